@@ -0,0 +1,127 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache.benchmark;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.salesforce.ddc.threelevelmemcache.CloudCacheService;
+import com.salesforce.ddc.threelevelmemcache.FirstLevelCacheService;
+import com.salesforce.ddc.threelevelmemcache.MemcachedCacheService;
+import com.salesforce.ddc.threelevelmemcache.MemcachedClientFactoryBean;
+import com.salesforce.ddc.threelevelmemcache.server.EmbeddedMemcachedServer;
+
+/**
+ * The cloud cache over a primary memcached served by an
+ * {@link EmbeddedMemcachedServer}, with and without the first level cache in
+ * front of it. Without it every get is a round trip over loopback.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class CloudCacheBenchmark {
+
+    private static final int KEYS = 1024;
+    private static final int BATCH = 16;
+
+    @Param({ "false", "true" })
+    private boolean firstLevel;
+    @Param({ "false", "true" })
+    private boolean binary;
+    private EmbeddedMemcachedServer server;
+    private CloudCacheService cache;
+    private final String[] keys = new String[KEYS];
+    private final String value = "a value of a few dozen characters, as most";
+
+    @Setup
+    public void setUp() throws Exception {
+	server = new EmbeddedMemcachedServer();
+	server.start();
+	MemcachedClientFactoryBean factory = new MemcachedClientFactoryBean();
+	factory.setServers(server.getServers());
+	factory.setBinary(binary);
+	MemcachedCacheService primary = new MemcachedCacheService(
+		factory.getObject());
+	cache = new CloudCacheService(firstLevel ? new FirstLevelCacheService(
+		KEYS) : null, primary, null);
+	// a put returns once memcached stored the value
+	cache.setSynchronousPut(true);
+	for (int i = 0; i < KEYS; i++) {
+	    keys[i] = "key:" + i;
+	    cache.put(keys[i], value);
+	}
+    }
+
+    @TearDown
+    public void tearDown() {
+	cache.shutdown();
+	server.shutdown();
+    }
+
+    private String randomKey() {
+	return keys[ThreadLocalRandom.current().nextInt(KEYS)];
+    }
+
+    @Benchmark
+    public Serializable get() {
+	return cache.get(randomKey());
+    }
+
+    @Benchmark
+    public List<Serializable> getBatch() {
+	List<Object> batch = new ArrayList<Object>(BATCH);
+	for (int i = 0; i < BATCH; i++) {
+	    batch.add(randomKey());
+	}
+	return cache.getBatch(batch);
+    }
+
+    @Benchmark
+    public void put() {
+	cache.put(randomKey(), value);
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache.benchmark;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.SerializingTranscoder;
+import net.spy.memcached.transcoders.Transcoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.salesforce.ddc.threelevelmemcache.exposed.NonCompressionTranscoder;
+import com.salesforce.ddc.threelevelmemcache.exposed.transcoder.BuiltInCodec;
+import com.salesforce.ddc.threelevelmemcache.exposed.transcoder.CompactTranscoder;
+import com.salesforce.ddc.threelevelmemcache.exposed.transcoder.CompressionPolicy;
+
+/**
+ * Encoding and decoding of a short string, a record-like map and a list of
+ * about 100KB, which the compressing transcoders compress.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TranscoderBenchmark {
+
+    @Param({ "serializing", "noncompression", "compact", "compact-lz4" })
+    private String transcoder;
+    @Param({ "string", "map", "list" })
+    private String payload;
+    private Transcoder<Object> codec;
+    private Object value;
+    private CachedData encoded;
+
+    @Setup
+    public void setUp() {
+	if ("serializing".equals(transcoder)) {
+	    codec = new SerializingTranscoder();
+	} else if ("noncompression".equals(transcoder)) {
+	    codec = new NonCompressionTranscoder();
+	} else {
+	    CompactTranscoder compact = new CompactTranscoder();
+	    if ("compact-lz4".equals(transcoder)) {
+		CompressionPolicy compression = new CompressionPolicy();
+		compression.setCodec(BuiltInCodec.LZ4);
+		compact.setCompression(compression);
+	    }
+	    codec = compact;
+	}
+	if ("string".equals(payload)) {
+	    value = "user:42:displayName=Jane Doe";
+	} else if ("map".equals(payload)) {
+	    Map<String, Object> map = new HashMap<String, Object>();
+	    for (int i = 0; i < 20; i++) {
+		map.put("field" + i, i % 2 == 0 ? (Object) ("value " + i)
+			: (Object) Long.valueOf(i * 1000L));
+	    }
+	    value = map;
+	} else {
+	    List<String> list = new ArrayList<String>();
+	    for (int i = 0; i < 2000; i++) {
+		list.add("row " + i + " of a report with some repeated text");
+	    }
+	    value = list;
+	}
+	encoded = codec.encode(value);
+    }
+
+    @Benchmark
+    public CachedData encode() {
+	return codec.encode(value);
+    }
+
+    @Benchmark
+    public Object decode() {
+	return codec.decode(encoded);
+    }
+}
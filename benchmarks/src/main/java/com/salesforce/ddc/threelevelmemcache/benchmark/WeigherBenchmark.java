@@ -0,0 +1,110 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache.benchmark;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.salesforce.ddc.threelevelmemcache.FirstLevelCacheService;
+
+/**
+ * Puts into the first level cache bounded by entries, and bounded by bytes
+ * where every put weighs the value with the default
+ * {@link com.salesforce.ddc.threelevelmemcache.eviction.SerializedSizeWeigher}.
+ * Strings are weighed without serialization, the map and the list are
+ * serialized.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WeigherBenchmark {
+
+    private static final int KEYS = 1024;
+
+    @Param({ "entries", "bytes" })
+    private String bound;
+    @Param({ "string", "map", "list" })
+    private String payload;
+    private FirstLevelCacheService cache;
+    private final String[] keys = new String[KEYS];
+    private Serializable value;
+
+    @Setup
+    public void setUp() {
+	cache = new FirstLevelCacheService(KEYS * 2);
+	if ("bytes".equals(bound)) {
+	    cache.setMaxBytes(1024L * 1024 * 1024);
+	}
+	for (int i = 0; i < KEYS; i++) {
+	    keys[i] = "key:" + i;
+	}
+	if ("string".equals(payload)) {
+	    value = "user:42:displayName=Jane Doe";
+	} else if ("map".equals(payload)) {
+	    HashMap<String, Object> map = new HashMap<String, Object>();
+	    for (int i = 0; i < 20; i++) {
+		map.put("field" + i, i % 2 == 0 ? (Object) ("value " + i)
+			: (Object) Long.valueOf(i * 1000L));
+	    }
+	    value = map;
+	} else {
+	    ArrayList<String> list = new ArrayList<String>();
+	    for (int i = 0; i < 200; i++) {
+		list.add("row " + i + " of a report with some repeated text");
+	    }
+	    value = list;
+	}
+    }
+
+    @TearDown
+    public void tearDown() {
+	cache.shutdown();
+    }
+
+    @Benchmark
+    public void put() {
+	cache.put(keys[ThreadLocalRandom.current().nextInt(KEYS)], value);
+    }
+}
@@ -0,0 +1,159 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache.benchmark.load;
+
+import java.util.Random;
+
+/**
+ * Picks the rank of the next key out of a fixed number of keys, rank 0
+ * being the most popular.
+ */
+public abstract class KeyGenerator {
+
+    protected final int keys;
+
+    protected KeyGenerator(int keys) {
+	if (keys <= 0) {
+	    throw new IllegalArgumentException("keys must be positive: "
+		    + keys);
+	}
+	this.keys = keys;
+    }
+
+    public int getKeys() {
+	return keys;
+    }
+
+    public abstract int next(Random random);
+
+    public static KeyGenerator uniform(int keys) {
+	return new KeyGenerator(keys) {
+
+	    @Override
+	    public int next(Random random) {
+		return random.nextInt(this.keys);
+	    }
+
+	    @Override
+	    public String toString() {
+		return "uniform(" + this.keys + ")";
+	    }
+	};
+    }
+
+    /**
+     * @param hotKeys
+     *            share of the keys which are hot
+     * @param hotOps
+     *            share of the picks which pick a hot key
+     */
+    public static KeyGenerator hotSet(int keys, double hotKeys,
+	    final double hotOps) {
+	if (hotKeys <= 0 || hotKeys >= 1 || hotOps < 0 || hotOps > 1) {
+	    throw new IllegalArgumentException("Bad hot set: " + hotKeys
+		    + " of the keys for " + hotOps + " of the picks");
+	}
+	final int hot = Math.max(1, (int) (keys * hotKeys));
+	return new KeyGenerator(keys) {
+
+	    @Override
+	    public int next(Random random) {
+		if (random.nextDouble() < hotOps || hot == this.keys) {
+		    return random.nextInt(hot);
+		}
+		return hot + random.nextInt(this.keys - hot);
+	    }
+
+	    @Override
+	    public String toString() {
+		return "hotset(" + this.keys + ", " + hot + " hot for " + hotOps
+			+ ")";
+	    }
+	};
+    }
+
+    /**
+     * Zipfian distribution where the key of rank i is picked with a
+     * probability proportional to 1 / (i + 1)^theta, generated as in
+     * "Quickly Generating Billion-Record Synthetic Databases" (Gray et al.).
+     * 
+     * @param theta
+     *            skew, between 0 and 1 exclusive, 0.99 is the usual choice
+     */
+    public static KeyGenerator zipfian(int keys, double theta) {
+	return new Zipfian(keys, theta);
+    }
+
+    private static final class Zipfian extends KeyGenerator {
+
+	private final double theta;
+	private final double alpha;
+	private final double zetaN;
+	private final double eta;
+	private final double half;
+
+	Zipfian(int keys, double theta) {
+	    super(keys);
+	    if (theta <= 0 || theta >= 1) {
+		throw new IllegalArgumentException(
+			"theta must be between 0 and 1 exclusive: " + theta);
+	    }
+	    this.theta = theta;
+	    this.alpha = 1 / (1 - theta);
+	    this.zetaN = zeta(keys, theta);
+	    this.eta = (1 - Math.pow(2.0 / keys, 1 - theta))
+		    / (1 - zeta(2, theta) / zetaN);
+	    this.half = 1 + Math.pow(0.5, theta);
+	}
+
+	private static double zeta(int n, double theta) {
+	    double sum = 0;
+	    for (int i = 1; i <= n; i++) {
+		sum += 1 / Math.pow(i, theta);
+	    }
+	    return sum;
+	}
+
+	@Override
+	public int next(Random random) {
+	    double u = random.nextDouble();
+	    double uz = u * zetaN;
+	    if (uz < 1) {
+		return 0;
+	    }
+	    if (uz < half) {
+		return Math.min(1, keys - 1);
+	    }
+	    int rank = (int) (keys * Math.pow(eta * u - eta + 1, alpha));
+	    return Math.min(rank, keys - 1);
+	}
+
+	@Override
+	public String toString() {
+	    return "zipfian(" + keys + ", " + theta + ")";
+	}
+    }
+}
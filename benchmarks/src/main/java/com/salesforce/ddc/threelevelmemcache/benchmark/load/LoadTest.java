@@ -0,0 +1,561 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache.benchmark.load;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import net.spy.memcached.AddrUtil;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+
+import com.salesforce.ddc.threelevelmemcache.exposed.CacheService;
+import com.salesforce.ddc.threelevelmemcache.server.EmbeddedMemcachedServer;
+
+/**
+ * Soak test of the cacheService of 3levelmemcache-context.xml, configured by
+ * the 3levelmemcache.env.properties of the configs directory. Threads run a
+ * mix of gets, batch gets, puts and removes of keys picked by a
+ * {@link KeyGenerator}, at a fixed arrival rate or as fast as they can, and
+ * the latency percentiles of each operation and the hit ratios of each tier
+ * are reported.
+ * <p>
+ * With a fixed rate the latency is measured from the time the operation was
+ * due, not from the time a thread got to it, so a stalled cache shows up in
+ * the percentiles instead of lowering the rate. Enough threads are needed to
+ * keep up with the rate at the expected latency.
+ * <p>
+ * Options are name=value arguments, see {@link #DEFAULTS}. With embedded=true
+ * the local memcached node addresses of the properties are served by
+ * {@link EmbeddedMemcachedServer}s, with the injected latency and loss.
+ */
+public final class LoadTest {
+
+    enum Operation {
+	GET, GET_BATCH, PUT, REMOVE
+    }
+
+    static final String[][] DEFAULTS = {
+	    // directory of 3levelmemcache.env.properties, $CONFIGS if set
+	    { "configs", "conf" },
+	    { "embedded", "true" },
+	    { "embedded.latencyMsec", "0" },
+	    { "embedded.jitterMsec", "0" },
+	    { "embedded.lossRate", "0" },
+	    // zipfian, hotset or uniform
+	    { "distribution", "zipfian" },
+	    { "keys", "100000" },
+	    { "zipfian.theta", "0.99" },
+	    { "hotset.keys", "0.2" },
+	    { "hotset.ops", "0.8" },
+	    { "value.minBytes", "100" },
+	    { "value.maxBytes", "1000" },
+	    // percent of the operations
+	    { "mix.get", "80" },
+	    { "mix.getBatch", "5" },
+	    { "mix.put", "14" },
+	    { "mix.remove", "1" },
+	    { "batchSize", "16" },
+	    // operations per second, 0 runs the threads as fast as they can
+	    { "rate", "0" },
+	    { "threads", "16" },
+	    { "preload", "true" },
+	    { "warmupSecs", "10" },
+	    { "durationSecs", "60" },
+	    { "reportSecs", "10" } };
+
+    private static final int HISTOGRAM_DIGITS = 3;
+    private static final String[] STATS = { "hits", "misses", "offHeapHits",
+	    "primaryHits", "secondaryHits", "remoteMisses", "batchL1Hits",
+	    "batchOffHeapHits", "batchPrimaryHits", "batchSecondaryHits",
+	    "batchMisses" };
+
+    private final CacheService cache;
+    private final KeyGenerator keys;
+    private final int[] mix = new int[Operation.values().length];
+    private final int batchSize;
+    private final int minValueBytes;
+    private final int maxValueBytes;
+    /** random text the values are cut from */
+    private final byte[] text;
+    private final Recorder[] recorders = new Recorder[Operation.values().length];
+    private final AtomicLongArray errors = new AtomicLongArray(
+	    Operation.values().length);
+
+    LoadTest(CacheService cache, KeyGenerator keys, Properties options) {
+	this.cache = cache;
+	this.keys = keys;
+	mix[Operation.GET.ordinal()] = intOption(options, "mix.get");
+	mix[Operation.GET_BATCH.ordinal()] = intOption(options, "mix.getBatch");
+	mix[Operation.PUT.ordinal()] = intOption(options, "mix.put");
+	mix[Operation.REMOVE.ordinal()] = intOption(options, "mix.remove");
+	int total = 0;
+	for (int i = 0; i < mix.length; i++) {
+	    total += mix[i];
+	    mix[i] = total;
+	}
+	if (total != 100) {
+	    throw new IllegalArgumentException("The mix adds up to " + total
+		    + " percent");
+	}
+	batchSize = intOption(options, "batchSize");
+	minValueBytes = intOption(options, "value.minBytes");
+	maxValueBytes = intOption(options, "value.maxBytes");
+	if (minValueBytes < 0 || maxValueBytes < minValueBytes) {
+	    throw new IllegalArgumentException("Bad value sizes: "
+		    + minValueBytes + " to " + maxValueBytes);
+	}
+	Random random = new Random(0);
+	text = new byte[maxValueBytes + 64 * 1024];
+	for (int i = 0; i < text.length; i++) {
+	    text[i] = (byte) ('a' + random.nextInt(16));
+	}
+	for (int i = 0; i < recorders.length; i++) {
+	    recorders[i] = new Recorder(HISTOGRAM_DIGITS);
+	}
+    }
+
+    static String key(int rank) {
+	return "loadtest:" + rank;
+    }
+
+    private Serializable value(Random random) {
+	int size = minValueBytes
+		+ random.nextInt(maxValueBytes - minValueBytes + 1);
+	int offset = random.nextInt(text.length - size + 1);
+	return Arrays.copyOfRange(text, offset, offset + size);
+    }
+
+    private Operation nextOperation(Random random) {
+	int percent = random.nextInt(100);
+	Operation[] operations = Operation.values();
+	for (int i = 0; i < mix.length; i++) {
+	    if (percent < mix[i]) {
+		return operations[i];
+	    }
+	}
+	return Operation.GET;
+    }
+
+    private void execute(Operation operation, Random random) {
+	switch (operation) {
+	case GET:
+	    cache.get(key(keys.next(random)));
+	    break;
+	case GET_BATCH:
+	    List<Object> batch = new ArrayList<Object>(batchSize);
+	    for (int i = 0; i < batchSize; i++) {
+		batch.add(key(keys.next(random)));
+	    }
+	    cache.getBatch(batch);
+	    break;
+	case PUT:
+	    cache.put(key(keys.next(random)), value(random));
+	    break;
+	case REMOVE:
+	    cache.remove(key(keys.next(random)));
+	    break;
+	default:
+	    throw new IllegalStateException(operation.name());
+	}
+    }
+
+    void preload() {
+	Random random = new Random(1);
+	for (int i = 0; i < keys.getKeys(); i++) {
+	    cache.put(key(i), value(random));
+	}
+    }
+
+    /**
+     * Runs the operations until the end, at the rate if positive.
+     */
+    private void work(long start, long end, long intervalNanos,
+	    AtomicLong sequence) {
+	Random random = ThreadLocalRandom.current();
+	while (true) {
+	    long due;
+	    if (intervalNanos > 0) {
+		due = start + sequence.getAndIncrement() * intervalNanos;
+		if (due >= end) {
+		    return;
+		}
+		long wait = due - System.nanoTime();
+		if (wait > 0) {
+		    LockSupport.parkNanos(wait);
+		}
+	    } else {
+		due = System.nanoTime();
+		if (due >= end) {
+		    return;
+		}
+	    }
+	    Operation operation = nextOperation(random);
+	    try {
+		execute(operation, random);
+	    } catch (RuntimeException e) {
+		errors.incrementAndGet(operation.ordinal());
+	    }
+	    long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime()
+		    - due);
+	    recorders[operation.ordinal()].recordValue(micros);
+	}
+    }
+
+    /**
+     * Runs the threads through the warmup and the measurement, and prints a
+     * report every reportSecs and at the end.
+     */
+    void run(int threads, int rate, int warmupSecs, int durationSecs,
+	    int reportSecs) throws InterruptedException {
+	final long start = System.nanoTime();
+	final long measureStart = start + TimeUnit.SECONDS.toNanos(warmupSecs);
+	final long end = measureStart + TimeUnit.SECONDS.toNanos(durationSecs);
+	final long intervalNanos = rate > 0 ? TimeUnit.SECONDS.toNanos(1)
+		/ rate : 0;
+	final AtomicLong sequence = new AtomicLong();
+	List<Thread> workers = new ArrayList<Thread>(threads);
+	for (int i = 0; i < threads; i++) {
+	    Thread worker = new Thread("LoadTest-" + i) {
+
+		@Override
+		public void run() {
+		    work(start, end, intervalNanos, sequence);
+		}
+	    };
+	    worker.setDaemon(true);
+	    workers.add(worker);
+	    worker.start();
+	}
+	sleepUntil(measureStart);
+	// drop the warmup
+	for (Recorder recorder : recorders) {
+	    recorder.getIntervalHistogram();
+	}
+	long[] errorsAtStart = errors();
+	Map<String, Long> statsAtStart = stats();
+	Histogram[] totals = new Histogram[recorders.length];
+	for (int i = 0; i < totals.length; i++) {
+	    totals[i] = new Histogram(HISTOGRAM_DIGITS);
+	}
+	long reportNanos = TimeUnit.SECONDS.toNanos(reportSecs);
+	long lastReport = measureStart;
+	while (lastReport < end) {
+	    long next = Math.min(end, lastReport + reportNanos);
+	    sleepUntil(next);
+	    if (next == end) {
+		for (Thread worker : workers) {
+		    worker.join();
+		}
+	    }
+	    Histogram[] interval = new Histogram[recorders.length];
+	    for (int i = 0; i < recorders.length; i++) {
+		interval[i] = recorders[i].getIntervalHistogram();
+		totals[i].add(interval[i]);
+	    }
+	    System.out.println(String.format(Locale.ENGLISH, "%6ds",
+		    TimeUnit.NANOSECONDS.toSeconds(next - measureStart))
+		    + summary(interval, next - lastReport));
+	    lastReport = next;
+	}
+	report(totals, end - measureStart, errorsAtStart, statsAtStart);
+    }
+
+    private static void sleepUntil(long nanoTime)
+	    throws InterruptedException {
+	long wait;
+	while ((wait = nanoTime - System.nanoTime()) > 0) {
+	    TimeUnit.NANOSECONDS.sleep(wait);
+	}
+    }
+
+    private static String summary(Histogram[] histograms, long nanos) {
+	StringBuilder s = new StringBuilder();
+	long count = 0;
+	for (Histogram histogram : histograms) {
+	    count += histogram.getTotalCount();
+	}
+	s.append(String.format(Locale.ENGLISH, "  %10.0f ops/s", count
+		* (double) TimeUnit.SECONDS.toNanos(1) / nanos));
+	for (Operation operation : Operation.values()) {
+	    Histogram histogram = histograms[operation.ordinal()];
+	    if (histogram.getTotalCount() > 0) {
+		s.append(String.format(Locale.ENGLISH, "  %s p99=%dus",
+			operation.name().toLowerCase(Locale.ENGLISH),
+			histogram.getValueAtPercentile(99)));
+	    }
+	}
+	return s.toString();
+    }
+
+    private void report(Histogram[] totals, long nanos, long[] errorsAtStart,
+	    Map<String, Long> statsAtStart) {
+	double seconds = nanos / (double) TimeUnit.SECONDS.toNanos(1);
+	long[] errorsAtEnd = errors();
+	System.out.println();
+	System.out.println(String.format(Locale.ENGLISH,
+		"%-10s %10s %10s %8s %8s %8s %8s %8s %8s %8s", "operation",
+		"count", "ops/s", "errors", "p50 us", "p90 us", "p99 us",
+		"p99.9 us", "p99.99", "max us"));
+	for (Operation operation : Operation.values()) {
+	    Histogram histogram = totals[operation.ordinal()];
+	    System.out.println(String.format(Locale.ENGLISH,
+		    "%-10s %10d %10.0f %8d %8d %8d %8d %8d %8d %8d", operation
+			    .name().toLowerCase(Locale.ENGLISH), histogram
+			    .getTotalCount(), histogram.getTotalCount()
+			    / seconds, errorsAtEnd[operation.ordinal()]
+			    - errorsAtStart[operation.ordinal()], histogram
+			    .getValueAtPercentile(50), histogram
+			    .getValueAtPercentile(90), histogram
+			    .getValueAtPercentile(99), histogram
+			    .getValueAtPercentile(99.9), histogram
+			    .getValueAtPercentile(99.99), histogram
+			    .getMaxValue()));
+	}
+	Map<String, Long> stats = stats();
+	for (Map.Entry<String, Long> entry : statsAtStart.entrySet()) {
+	    stats.put(entry.getKey(),
+		    stats.get(entry.getKey()) - entry.getValue());
+	}
+	System.out.println();
+	System.out.println("Hit ratios of the tiers, of the keys which reached"
+		+ " them:");
+	long gets = count(stats, "hits") + count(stats, "misses");
+	long offHeapReads = count(stats, "misses");
+	long primaryReads = offHeapReads - count(stats, "offHeapHits");
+	long secondaryReads = primaryReads - count(stats, "primaryHits");
+	boolean offHeap = stats.containsKey("offHeapHits");
+	printRatio("get first level", count(stats, "hits"), gets);
+	if (offHeap) {
+	    printRatio("get off-heap", count(stats, "offHeapHits"),
+		    offHeapReads);
+	}
+	printRatio("get primary", count(stats, "primaryHits"), primaryReads);
+	printRatio("get secondary", count(stats, "secondaryHits"),
+		secondaryReads);
+	printRatio("get overall", gets - count(stats, "remoteMisses"), gets);
+	long batchKeys = count(stats, "batchL1Hits")
+		+ count(stats, "batchOffHeapHits")
+		+ count(stats, "batchPrimaryHits")
+		+ count(stats, "batchSecondaryHits")
+		+ count(stats, "batchMisses");
+	long batchOffHeapReads = batchKeys - count(stats, "batchL1Hits");
+	long batchPrimaryReads = batchOffHeapReads
+		- count(stats, "batchOffHeapHits");
+	long batchSecondaryReads = batchPrimaryReads
+		- count(stats, "batchPrimaryHits");
+	printRatio("batch first level", count(stats, "batchL1Hits"), batchKeys);
+	if (offHeap) {
+	    printRatio("batch off-heap", count(stats, "batchOffHeapHits"),
+		    batchOffHeapReads);
+	}
+	printRatio("batch primary", count(stats, "batchPrimaryHits"),
+		batchPrimaryReads);
+	printRatio("batch secondary", count(stats, "batchSecondaryHits"),
+		batchSecondaryReads);
+	printRatio("batch overall", batchKeys - count(stats, "batchMisses"),
+		batchKeys);
+    }
+
+    private static void printRatio(String tier, long hits, long reads) {
+	System.out.println(String.format(Locale.ENGLISH,
+		"%-18s %6.2f%% of %d", tier, reads > 0 ? hits * 100.0 / reads
+			: 0.0, reads));
+    }
+
+    private long[] errors() {
+	long[] counts = new long[errors.length()];
+	for (int i = 0; i < counts.length; i++) {
+	    counts[i] = errors.get(i);
+	}
+	return counts;
+    }
+
+    /**
+     * @return the hit and miss counters the cache has, the off-heap ones
+     *         only with an off-heap cache
+     */
+    private Map<String, Long> stats() {
+	Map<String, Long> stats = new HashMap<String, Long>();
+	Map<String, String> values = cache.getStats().values().iterator()
+		.next();
+	for (String name : STATS) {
+	    if (values.containsKey(name)) {
+		stats.put(name, NumberUtils.toLong(values.get(name)));
+	    }
+	}
+	return stats;
+    }
+
+    private static long count(Map<String, Long> stats, String name) {
+	Long count = stats.get(name);
+	return count != null ? count.longValue() : 0;
+    }
+
+    static int intOption(Properties options, String name) {
+	return Integer.parseInt(options.getProperty(name).trim());
+    }
+
+    static double doubleOption(Properties options, String name) {
+	return Double.parseDouble(options.getProperty(name).trim());
+    }
+
+    static Properties parseOptions(String[] args) {
+	Properties options = new Properties();
+	for (String[] option : DEFAULTS) {
+	    options.setProperty(option[0], option[1]);
+	}
+	if (System.getenv("CONFIGS") != null) {
+	    options.setProperty("configs", System.getenv("CONFIGS"));
+	}
+	for (String arg : args) {
+	    int equals = arg.indexOf('=');
+	    if (equals < 0
+		    || options.getProperty(arg.substring(0, equals)) == null) {
+		throw new IllegalArgumentException("Unknown option " + arg
+			+ ", expected one of name=value for " + names());
+	    }
+	    options.setProperty(arg.substring(0, equals),
+		    arg.substring(equals + 1));
+	}
+	return options;
+    }
+
+    private static List<String> names() {
+	List<String> names = new ArrayList<String>();
+	for (String[] option : DEFAULTS) {
+	    names.add(option[0]);
+	}
+	return names;
+    }
+
+    static KeyGenerator keyGenerator(Properties options) {
+	String distribution = options.getProperty("distribution");
+	int keys = intOption(options, "keys");
+	if ("zipfian".equals(distribution)) {
+	    return KeyGenerator.zipfian(keys,
+		    doubleOption(options, "zipfian.theta"));
+	} else if ("hotset".equals(distribution)) {
+	    return KeyGenerator.hotSet(keys,
+		    doubleOption(options, "hotset.keys"),
+		    doubleOption(options, "hotset.ops"));
+	} else if ("uniform".equals(distribution)) {
+	    return KeyGenerator.uniform(keys);
+	}
+	throw new IllegalArgumentException("Unknown distribution "
+		+ distribution);
+    }
+
+    /**
+     * Starts a server for each local node address of primary and secondary.
+     */
+    static List<EmbeddedMemcachedServer> startEmbeddedServers(File configs,
+	    Properties options) throws IOException {
+	Properties env = new Properties();
+	InputStream in = new FileInputStream(new File(configs,
+		"3levelmemcache.env.properties"));
+	try {
+	    env.load(in);
+	} finally {
+	    in.close();
+	}
+	List<EmbeddedMemcachedServer> servers = new ArrayList<EmbeddedMemcachedServer>();
+	for (String property : new String[] {
+		"memcached.primary.nodeAddresses",
+		"memcached.secondary.nodeAddresses" }) {
+	    String addresses = env.getProperty(property);
+	    if (StringUtils.isBlank(addresses)) {
+		continue;
+	    }
+	    for (InetSocketAddress address : AddrUtil.getAddresses(addresses)) {
+		if (!address.getAddress().isLoopbackAddress()) {
+		    throw new IllegalArgumentException(property + " has "
+			    + address + " which can't be served locally");
+		}
+		EmbeddedMemcachedServer server = new EmbeddedMemcachedServer(
+			address.getPort());
+		server.setLatency(intOption(options, "embedded.latencyMsec"));
+		server.setJitter(intOption(options, "embedded.jitterMsec"));
+		server.setLossRate(doubleOption(options, "embedded.lossRate"));
+		server.start();
+		servers.add(server);
+	    }
+	}
+	return servers;
+    }
+
+    public static void main(String[] args) throws Exception {
+	Properties options = parseOptions(args);
+	File configs = new File(options.getProperty("configs"));
+	KeyGenerator keys = keyGenerator(options);
+	List<EmbeddedMemcachedServer> servers = new ArrayList<EmbeddedMemcachedServer>();
+	if (Boolean.parseBoolean(options.getProperty("embedded"))) {
+	    servers = startEmbeddedServers(configs, options);
+	}
+	System.setProperty("CONFIGS", configs.getAbsolutePath());
+	ClassPathXmlApplicationContext context = new ClassPathXmlApplicationContext(
+		"3levelmemcache-context.xml");
+	try {
+	    LoadTest test = new LoadTest(context.getBean("cacheService",
+		    CacheService.class), keys, options);
+	    System.out.println("Options: " + options);
+	    if (Boolean.parseBoolean(options.getProperty("preload"))) {
+		test.preload();
+	    }
+	    test.run(intOption(options, "threads"),
+		    intOption(options, "rate"),
+		    intOption(options, "warmupSecs"),
+		    intOption(options, "durationSecs"),
+		    intOption(options, "reportSecs"));
+	} finally {
+	    context.close();
+	    for (EmbeddedMemcachedServer server : servers) {
+		server.shutdown();
+	    }
+	}
+    }
+}
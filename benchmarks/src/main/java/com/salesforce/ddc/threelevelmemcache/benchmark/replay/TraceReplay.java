@@ -0,0 +1,321 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache.benchmark.replay;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Set;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.salesforce.ddc.threelevelmemcache.FirstLevelCacheService;
+import com.salesforce.ddc.threelevelmemcache.eviction.EvictionPolicy;
+import com.salesforce.ddc.threelevelmemcache.eviction.FifoEvictionPolicy;
+import com.salesforce.ddc.threelevelmemcache.eviction.Weigher;
+import com.salesforce.ddc.threelevelmemcache.eviction.WindowTinyLfuEvictionPolicy;
+import com.salesforce.ddc.threelevelmemcache.exposed.trace.TraceOperation;
+import com.salesforce.ddc.threelevelmemcache.exposed.trace.TraceReader;
+import com.salesforce.ddc.threelevelmemcache.exposed.trace.TraceRecordingCacheListener;
+
+/**
+ * Replays a trace of {@link TraceRecordingCacheListener} against first level
+ * caches of several sizes and eviction policies, and prints the hit ratio of
+ * each, to size cache.l1.size from real traffic. Trace the cloud cache, its
+ * gets are the reads of the first level cache.
+ * <p>
+ * Gets which miss put the key, as the cloud cache does with the values found
+ * in memcached. Appends are left out, they don't change which keys are
+ * cached.
+ * <p>
+ * Options are name=value arguments:
+ * <ul>
+ * <li>trace: the trace file, required</li>
+ * <li>sizes: comma separated cache.l1.size values, default is 1, 2, 5, 10,
+ * 20, 50 and 100 percent of the keys of the trace</li>
+ * <li>maxBytes: comma separated cache.l1.maxBytes values, replayed with an
+ * unbounded size, weighed by the recorded value sizes</li>
+ * <li>policies: comma separated eviction policies, tinylfu, fifo or a class
+ * name, default is tinylfu,fifo</li>
+ * </ul>
+ */
+public final class TraceReplay {
+
+    private static final int[] DEFAULT_SIZE_PERCENTS = { 1, 2, 5, 10, 20,
+	    50, 100 };
+    private static final int BAR_WIDTH = 40;
+
+    /**
+     * Value of the replayed keys, weighing what the traced value did.
+     */
+    static final class SizedValue implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	final int size;
+
+	SizedValue(long size) {
+	    this.size = (int) Math.min(size, Integer.MAX_VALUE);
+	}
+    }
+
+    static final class SizedValueWeigher implements Weigher {
+
+	@Override
+	public int weigh(Serializable value) {
+	    return ((SizedValue) value).size;
+	}
+    }
+
+    /**
+     * A simulated cache and its counters.
+     */
+    static final class Simulation {
+
+	final String policy;
+	final long size;
+	final long maxBytes;
+	final FirstLevelCacheService cache;
+	long gets;
+	long hits;
+
+	Simulation(String policy, long size, long maxBytes) {
+	    this.policy = policy;
+	    this.size = size;
+	    this.maxBytes = maxBytes;
+	    cache = new FirstLevelCacheService((int) Math.min(size,
+		    Integer.MAX_VALUE));
+	    if (maxBytes > 0) {
+		cache.setWeigher(new SizedValueWeigher());
+		cache.setMaxBytes(maxBytes);
+	    }
+	    cache.setEvictionPolicy(evictionPolicy(policy));
+	}
+
+	void replay(TraceOperation operation, Long key, SizedValue value) {
+	    switch (operation) {
+	    case GET:
+		gets++;
+		if (cache.get(key) != null) {
+		    hits++;
+		} else {
+		    cache.put(key, value);
+		}
+		break;
+	    case PUT:
+		cache.put(key, value);
+		break;
+	    case REMOVE:
+		cache.remove(key);
+		break;
+	    default:
+		break;
+	    }
+	}
+
+	double hitRatio() {
+	    return gets > 0 ? hits * 100.0 / gets : 0;
+	}
+    }
+
+    static EvictionPolicy evictionPolicy(String name) {
+	if ("tinylfu".equals(name)) {
+	    return new WindowTinyLfuEvictionPolicy();
+	} else if ("fifo".equals(name)) {
+	    return new FifoEvictionPolicy();
+	}
+	try {
+	    return (EvictionPolicy) Class.forName(name).newInstance();
+	} catch (Exception e) {
+	    throw new IllegalArgumentException("Unknown eviction policy "
+		    + name, e);
+	}
+    }
+
+    /**
+     * Counts of a first pass over the trace.
+     */
+    static final class Summary {
+
+	long records;
+	long gets;
+	long puts;
+	long appends;
+	long removes;
+	long putBytes;
+	long durationMicros;
+	long startMillis;
+	int keys;
+
+	long meanValueSize() {
+	    return puts > 0 ? putBytes / puts : 0;
+	}
+    }
+
+    static Summary summarize(File trace) throws IOException {
+	Summary summary = new Summary();
+	Set<Long> keys = new HashSet<Long>();
+	TraceReader reader = new TraceReader(trace);
+	try {
+	    summary.startMillis = reader.getStartMillis();
+	    while (reader.next()) {
+		summary.records++;
+		keys.add(reader.getKeyHash());
+		switch (reader.getOperation()) {
+		case GET:
+		    summary.gets++;
+		    break;
+		case PUT:
+		    summary.puts++;
+		    summary.putBytes += reader.getValueSize();
+		    break;
+		case APPEND:
+		    summary.appends++;
+		    break;
+		case REMOVE:
+		    summary.removes++;
+		    break;
+		default:
+		    break;
+		}
+		summary.durationMicros = reader.getTimeMicros();
+	    }
+	} finally {
+	    reader.close();
+	}
+	summary.keys = keys.size();
+	return summary;
+    }
+
+    static void replay(File trace, List<Simulation> simulations,
+	    long meanValueSize) throws IOException {
+	SizedValue missValue = new SizedValue(meanValueSize);
+	TraceReader reader = new TraceReader(trace);
+	try {
+	    while (reader.next()) {
+		Long key = Long.valueOf(reader.getKeyHash());
+		TraceOperation operation = reader.getOperation();
+		SizedValue value = missValue;
+		if (operation == TraceOperation.PUT) {
+		    value = new SizedValue(reader.getValueSize());
+		}
+		for (Simulation simulation : simulations) {
+		    simulation.replay(operation, key, value);
+		}
+	    }
+	} finally {
+	    reader.close();
+	}
+    }
+
+    static List<Long> longs(String values) {
+	List<Long> longs = new ArrayList<Long>();
+	for (String value : StringUtils.split(values, ',')) {
+	    longs.add(Long.valueOf(value.trim()));
+	}
+	return longs;
+    }
+
+    static Properties parseOptions(String[] args) {
+	Properties options = new Properties();
+	options.setProperty("policies", "tinylfu,fifo");
+	for (String arg : args) {
+	    int equals = arg.indexOf('=');
+	    String name = equals > 0 ? arg.substring(0, equals) : "";
+	    if (!"trace".equals(name) && !"sizes".equals(name)
+		    && !"maxBytes".equals(name) && !"policies".equals(name)) {
+		throw new IllegalArgumentException("Unknown option " + arg
+			+ ", expected trace=, sizes=, maxBytes= or policies=");
+	    }
+	    options.setProperty(name, arg.substring(equals + 1));
+	}
+	if (options.getProperty("trace") == null) {
+	    throw new IllegalArgumentException("trace=<file> is required");
+	}
+	return options;
+    }
+
+    public static void main(String[] args) throws Exception {
+	Properties options = parseOptions(args);
+	File trace = new File(options.getProperty("trace"));
+	Summary summary = summarize(trace);
+	System.out.println(String.format(Locale.ENGLISH,
+		"%s: %d records from %s over %d s, %d gets, %d puts,"
+			+ " %d appends, %d removes of %d keys,"
+			+ " mean value %d bytes", trace, summary.records,
+		new Date(summary.startMillis), summary.durationMicros
+			/ (1000 * 1000), summary.gets, summary.puts,
+		summary.appends, summary.removes, summary.keys,
+		summary.meanValueSize()));
+
+	List<Simulation> simulations = new ArrayList<Simulation>();
+	String[] policies = StringUtils.split(options.getProperty("policies"),
+		',');
+	List<Long> sizes = new ArrayList<Long>();
+	if (options.getProperty("sizes") != null) {
+	    sizes = longs(options.getProperty("sizes"));
+	} else if (options.getProperty("maxBytes") == null) {
+	    for (int percent : DEFAULT_SIZE_PERCENTS) {
+		sizes.add(Math.max(1, summary.keys * (long) percent / 100));
+	    }
+	}
+	for (String policy : policies) {
+	    for (Long size : sizes) {
+		simulations.add(new Simulation(policy.trim(), size, 0));
+	    }
+	    if (options.getProperty("maxBytes") != null) {
+		for (Long maxBytes : longs(options.getProperty("maxBytes"))) {
+		    simulations.add(new Simulation(policy.trim(),
+			    Integer.MAX_VALUE, maxBytes));
+		}
+	    }
+	}
+	replay(trace, simulations, summary.meanValueSize());
+
+	System.out.println();
+	System.out.println(String.format(Locale.ENGLISH,
+		"%-10s %12s %12s %8s", "policy", "size", "maxBytes",
+		"hit %"));
+	for (Simulation simulation : simulations) {
+	    double ratio = simulation.hitRatio();
+	    System.out.println(String.format(Locale.ENGLISH,
+		    "%-10s %12s %12s %7.2f%% |%s", simulation.policy,
+		    simulation.maxBytes > 0 ? "-" : String
+			    .valueOf(simulation.size),
+		    simulation.maxBytes > 0 ? String
+			    .valueOf(simulation.maxBytes) : "-", ratio,
+		    StringUtils.repeat("#", (int) Math.round(ratio * BAR_WIDTH
+			    / 100))));
+	    simulation.cache.shutdown();
+	}
+    }
+}
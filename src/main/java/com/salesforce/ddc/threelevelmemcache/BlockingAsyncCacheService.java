@@ -0,0 +1,166 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.salesforce.ddc.threelevelmemcache.exposed.AsyncCacheService;
+import com.salesforce.ddc.threelevelmemcache.exposed.CacheFuture;
+import com.salesforce.ddc.threelevelmemcache.exposed.CacheService;
+import com.salesforce.ddc.threelevelmemcache.exposed.RemoveOutcome;
+
+/**
+ * {@link AsyncCacheService} view of a {@link CacheService} without async
+ * support: each call runs the blocking method and returns a completed future.
+ */
+class BlockingAsyncCacheService implements AsyncCacheService {
+
+    private final CacheService tier;
+
+    private BlockingAsyncCacheService(CacheService tier) {
+	this.tier = tier;
+    }
+
+    /**
+     * @param tier
+     * @return the tier itself if it's async, otherwise a blocking view of it
+     */
+    static AsyncCacheService of(CacheService tier) {
+	if (tier instanceof AsyncCacheService) {
+	    return (AsyncCacheService) tier;
+	}
+	return new BlockingAsyncCacheService(tier);
+    }
+
+    @Override
+    public CacheFuture<Serializable> asyncGet(Object key) {
+	try {
+	    return SettableCacheFuture.completed(tier.get(key));
+	} catch (RuntimeException e) {
+	    return failed(e);
+	}
+    }
+
+    @Override
+    public CacheFuture<List<Serializable>> asyncGetBatch(
+	    List<? extends Object> keys) {
+	try {
+	    return SettableCacheFuture.completed((List<Serializable>) tier
+		    .getBatch(keys));
+	} catch (RuntimeException e) {
+	    return failed(e);
+	}
+    }
+
+    @Override
+    public CacheFuture<Boolean> asyncPut(Object key, int expiration,
+	    Serializable obj) {
+	try {
+	    tier.put(key, expiration, obj);
+	    return SettableCacheFuture.completed(Boolean.TRUE);
+	} catch (RuntimeException e) {
+	    return failed(e);
+	}
+    }
+
+    @Override
+    public CacheFuture<Boolean> asyncAdd(Object key, Serializable obj) {
+	try {
+	    return SettableCacheFuture.completed(tier.add(key, obj));
+	} catch (RuntimeException e) {
+	    return failed(e);
+	}
+    }
+
+    @Override
+    public CacheFuture<Boolean> asyncRemove(Object key) {
+	try {
+	    tier.remove(key);
+	    return SettableCacheFuture.completed(Boolean.TRUE);
+	} catch (RuntimeException e) {
+	    return failed(e);
+	}
+    }
+
+    @Override
+    public CacheFuture<Map<Object, RemoveOutcome>> asyncRemoveBatch(
+	    Collection<Object> keys) {
+	try {
+	    tier.removeBatch(keys);
+	    return SettableCacheFuture.completed(outcomes(keys,
+		    RemoveOutcome.REMOVED));
+	} catch (RuntimeException e) {
+	    return failed(e);
+	}
+    }
+
+    /**
+     * @return the same outcome for every key
+     */
+    static Map<Object, RemoveOutcome> outcomes(Collection<Object> keys,
+	    RemoveOutcome outcome) {
+	Map<Object, RemoveOutcome> outcomes = new LinkedHashMap<Object, RemoveOutcome>();
+	for (Object key : keys) {
+	    outcomes.put(key, outcome);
+	}
+	return outcomes;
+    }
+
+    /**
+     * Increments with {@link CacheService#incr(Object)} when by is 1, and
+     * with {@link CacheService#incr(Object, int, long, int)} starting at 0
+     * otherwise.
+     */
+    @Override
+    public CacheFuture<Long> asyncIncr(Object key, int by) {
+	try {
+	    return SettableCacheFuture.completed(by == 1 ? tier.incr(key)
+		    : tier.incr(key, by, 0, 0));
+	} catch (RuntimeException e) {
+	    return failed(e);
+	}
+    }
+
+    @Override
+    public CacheFuture<Boolean> asyncAppend(Object key, String obj) {
+	try {
+	    tier.append(key, obj);
+	    return SettableCacheFuture.completed(Boolean.TRUE);
+	} catch (RuntimeException e) {
+	    return failed(e);
+	}
+    }
+
+    private static <T> CacheFuture<T> failed(RuntimeException e) {
+	SettableCacheFuture<T> future = new SettableCacheFuture<T>();
+	future.setException(e);
+	return future;
+    }
+}
@@ -0,0 +1,178 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.Transcoder;
+
+/**
+ * Stored under the key of a value too large for a memcached item, in place of
+ * the value. The encoded value is split in chunks stored under the key
+ * followed by ":" and the index of the chunk.
+ * <p/>
+ * Every chunk starts with the version of its manifest, a random stamp drawn
+ * for each write. A newer write of the key overwrites the chunks one by one,
+ * so a read racing with it may find chunks of both values, or chunks lost to
+ * an eviction; {@link #join(Map)} detects both and the value reads as a miss.
+ */
+final class ChunkManifest implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** bytes of the version at the start of each chunk */
+    static final int VERSION_BYTES = 8;
+
+    /** stores the chunks as they are */
+    static final Transcoder<byte[]> TRANSCODER = new Transcoder<byte[]>() {
+
+	@Override
+	public boolean asyncDecode(CachedData d) {
+	    return false;
+	}
+
+	@Override
+	public CachedData encode(byte[] o) {
+	    return new CachedData(0, o, getMaxSize());
+	}
+
+	@Override
+	public byte[] decode(CachedData d) {
+	    return d.getData();
+	}
+
+	@Override
+	public int getMaxSize() {
+	    return CachedData.MAX_SIZE;
+	}
+    };
+
+    private final String key;
+    private final long version;
+    private final int flags;
+    private final int length;
+    private final int chunkSize;
+
+    /**
+     * @param key
+     *            memcached key of the value
+     * @param data
+     *            encoded value
+     * @param maxItemSize
+     *            largest chunk, version included
+     */
+    ChunkManifest(String key, CachedData data, int maxItemSize) {
+	if (maxItemSize <= VERSION_BYTES) {
+	    throw new IllegalArgumentException("Max item size " + maxItemSize
+		    + " leaves no room for the chunk data");
+	}
+	this.key = key;
+	this.version = ThreadLocalRandom.current().nextLong();
+	this.flags = data.getFlags();
+	this.length = data.getData().length;
+	this.chunkSize = maxItemSize - VERSION_BYTES;
+    }
+
+    /**
+     * @return flags of the encoded value
+     */
+    int getFlags() {
+	return flags;
+    }
+
+    int getChunkCount() {
+	return (int) (((long) length + chunkSize - 1) / chunkSize);
+    }
+
+    String getChunkKey(int i) {
+	return key + ":" + i;
+    }
+
+    List<String> getChunkKeys() {
+	int count = getChunkCount();
+	List<String> keys = new ArrayList<String>(count);
+	for (int i = 0; i < count; i++) {
+	    keys.add(getChunkKey(i));
+	}
+	return keys;
+    }
+
+    /**
+     * @param data
+     *            the encoded value given to the constructor
+     * @return the chunk i of the value, preceded by the version
+     */
+    byte[] getChunk(byte[] data, int i) {
+	int offset = i * chunkSize;
+	int size = Math.min(chunkSize, length - offset);
+	byte[] chunk = new byte[VERSION_BYTES + size];
+	for (int b = 0; b < VERSION_BYTES; b++) {
+	    chunk[b] = (byte) (version >>> (56 - 8 * b));
+	}
+	System.arraycopy(data, offset, chunk, VERSION_BYTES, size);
+	return chunk;
+    }
+
+    /**
+     * @param chunks
+     *            chunks read by their keys, may hold other keys
+     * @return the encoded value, null if a chunk is missing or belongs to
+     *         another version of the value
+     */
+    byte[] join(Map<String, byte[]> chunks) {
+	byte[] data = new byte[length];
+	int count = getChunkCount();
+	for (int i = 0; i < count; i++) {
+	    byte[] chunk = chunks.get(getChunkKey(i));
+	    int size = Math.min(chunkSize, length - i * chunkSize);
+	    if (chunk == null || chunk.length != VERSION_BYTES + size
+		    || readVersion(chunk) != version) {
+		return null;
+	    }
+	    System.arraycopy(chunk, VERSION_BYTES, data, i * chunkSize, size);
+	}
+	return data;
+    }
+
+    private static long readVersion(byte[] chunk) {
+	long version = 0;
+	for (int b = 0; b < VERSION_BYTES; b++) {
+	    version = version << 8 | (chunk[b] & 0xff);
+	}
+	return version;
+    }
+
+    @Override
+    public String toString() {
+	return "ChunkManifest[key=" + key + ", version=" + version
+		+ ", length=" + length + ", chunks=" + getChunkCount() + "]";
+    }
+}
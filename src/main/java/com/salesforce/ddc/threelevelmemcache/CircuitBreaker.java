@@ -0,0 +1,317 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Circuit breaker of one memcached cluster.
+ * <p/>
+ * While closed every call goes through and its outcome is counted in a
+ * rolling window. A call fails if it threw or took longer than the slow call
+ * threshold. Once the window holds at least the minimum number of calls and
+ * the failure rate reaches the threshold the breaker opens and rejects every
+ * call, so the cluster is skipped instead of eating the operation timeout.
+ * <p/>
+ * After the open interval the breaker is half-open and lets one probe call
+ * through at a time. A failed probe opens it again, enough successful probes
+ * in a row close it.
+ */
+public class CircuitBreaker {
+
+    private static Log log = LogFactory.getLog(CircuitBreaker.class);
+
+    public static final int DEFAULT_FAILURE_RATE_PERCENT = 50;
+    public static final int DEFAULT_MINIMUM_CALLS = 20;
+    public static final long DEFAULT_SLOW_CALL_MSEC = 1000;
+    public static final long DEFAULT_OPEN_MSEC = 5000;
+    public static final long DEFAULT_WINDOW_MSEC = 10000;
+    public static final int DEFAULT_PROBES = 3;
+    private static final int BUCKETS = 10;
+
+    public enum State {
+	CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String name;
+    private final AtomicReference<State> state = new AtomicReference<State>(
+	    State.CLOSED);
+    private final Bucket[] buckets = new Bucket[BUCKETS];
+    private volatile long bucketNanos = TimeUnit.MILLISECONDS
+	    .toNanos(DEFAULT_WINDOW_MSEC) / BUCKETS;
+    private volatile long openedAt;
+    /** admission time of the probe in flight, 0 if none */
+    private final AtomicLong probeAdmittedAt = new AtomicLong(0l);
+    private final AtomicInteger probeSuccesses = new AtomicInteger();
+
+    private volatile int failureRatePercent = DEFAULT_FAILURE_RATE_PERCENT;
+    private volatile int minimumCalls = DEFAULT_MINIMUM_CALLS;
+    private volatile long slowCallNanos = TimeUnit.MILLISECONDS
+	    .toNanos(DEFAULT_SLOW_CALL_MSEC);
+    private volatile long openNanos = TimeUnit.MILLISECONDS
+	    .toNanos(DEFAULT_OPEN_MSEC);
+    private volatile int probes = DEFAULT_PROBES;
+
+    private final AtomicLong opened = new AtomicLong(0l);
+    private final AtomicLong rejected = new AtomicLong(0l);
+
+    /**
+     * @param name
+     *            name of the cluster, used in the logs
+     */
+    public CircuitBreaker(String name) {
+	this.name = name;
+	for (int i = 0; i < BUCKETS; i++) {
+	    buckets[i] = new Bucket();
+	}
+    }
+
+    /**
+     * @return true if the call may go to the cluster
+     */
+    public boolean allowRequest() {
+	switch (state.get()) {
+	case CLOSED:
+	    return true;
+	case OPEN:
+	    long now = System.nanoTime();
+	    if (now - openedAt >= openNanos
+		    && state.compareAndSet(State.OPEN, State.HALF_OPEN)) {
+		probeSuccesses.set(0);
+		probeAdmittedAt.set(now);
+		log.info("Circuit of " + name
+			+ " cache is half-open, probing it.");
+		return true;
+	    }
+	    break;
+	default:
+	    long admitted = probeAdmittedAt.get();
+	    now = System.nanoTime();
+	    // a probe whose outcome never came back doesn't block the next one
+	    if ((admitted == 0 || now - admitted >= openNanos)
+		    && probeAdmittedAt.compareAndSet(admitted, now)) {
+		return true;
+	    }
+	}
+	rejected.incrementAndGet();
+	return false;
+    }
+
+    /**
+     * Records the outcome of a call let through by {@link #allowRequest()}.
+     * 
+     * @param startNanos
+     *            {@link System#nanoTime()} when the call started
+     * @param succeeded
+     *            false if the call failed
+     */
+    public void record(long startNanos, boolean succeeded) {
+	long now = System.nanoTime();
+	boolean failed = !succeeded || now - startNanos > slowCallNanos;
+	switch (state.get()) {
+	case CLOSED:
+	    count(now, failed);
+	    if (failed && isFailureRateReached(now)) {
+		open(State.CLOSED, now);
+	    }
+	    break;
+	case HALF_OPEN:
+	    if (failed) {
+		open(State.HALF_OPEN, now);
+	    } else if (probeSuccesses.incrementAndGet() >= probes) {
+		close();
+	    } else {
+		probeAdmittedAt.set(0);
+	    }
+	    break;
+	default:
+	    // late outcome of a call started before the breaker opened
+	}
+    }
+
+    private void count(long now, boolean failed) {
+	long epoch = now / bucketNanos;
+	// nanoTime may be negative
+	Bucket bucket = buckets[(int) ((epoch % BUCKETS + BUCKETS) % BUCKETS)];
+	if (bucket.epoch != epoch) {
+	    synchronized (bucket) {
+		if (bucket.epoch != epoch) {
+		    bucket.calls.set(0);
+		    bucket.failures.set(0);
+		    bucket.epoch = epoch;
+		}
+	    }
+	}
+	bucket.calls.incrementAndGet();
+	if (failed) {
+	    bucket.failures.incrementAndGet();
+	}
+    }
+
+    private boolean isFailureRateReached(long now) {
+	long[] window = window(now);
+	return window[0] >= minimumCalls
+		&& window[1] * 100 >= window[0] * failureRatePercent;
+    }
+
+    /**
+     * @return calls and failures in the rolling window
+     */
+    private long[] window(long now) {
+	long calls = 0, failures = 0;
+	long epoch = now / bucketNanos;
+	for (Bucket bucket : buckets) {
+	    if (bucket.epoch > epoch - BUCKETS) {
+		calls += bucket.calls.get();
+		failures += bucket.failures.get();
+	    }
+	}
+	return new long[] { calls, failures };
+    }
+
+    private void open(State from, long now) {
+	if (state.compareAndSet(from, State.OPEN)) {
+	    openedAt = now;
+	    opened.incrementAndGet();
+	    log.warn("Circuit of " + name + " cache is open, skipping it for "
+		    + TimeUnit.NANOSECONDS.toMillis(openNanos) + " msec.");
+	}
+    }
+
+    private void close() {
+	if (state.compareAndSet(State.HALF_OPEN, State.CLOSED)) {
+	    for (Bucket bucket : buckets) {
+		synchronized (bucket) {
+		    bucket.calls.set(0);
+		    bucket.failures.set(0);
+		}
+	    }
+	    log.warn("Circuit of " + name + " cache is closed again.");
+	}
+    }
+
+    /**
+     * Closes the breaker and forgets the recorded calls.
+     */
+    public void reset() {
+	state.set(State.HALF_OPEN);
+	close();
+    }
+
+    public State getState() {
+	return state.get();
+    }
+
+    /**
+     * @return percent of failed calls in the rolling window
+     */
+    public int getFailureRatePercent() {
+	long[] window = window(System.nanoTime());
+	return window[0] == 0 ? 0 : (int) (window[1] * 100 / window[0]);
+    }
+
+    /**
+     * @return number of times the breaker opened
+     */
+    public long getOpened() {
+	return opened.get();
+    }
+
+    /**
+     * @return number of calls rejected while open or half-open
+     */
+    public long getRejected() {
+	return rejected.get();
+    }
+
+    /**
+     * @param failureRatePercent
+     *            percent of failed calls in the window which opens the
+     *            breaker
+     */
+    public void setFailureRateThreshold(int failureRatePercent) {
+	this.failureRatePercent = failureRatePercent;
+    }
+
+    /**
+     * @param minimumCalls
+     *            calls in the window needed before the breaker can open
+     */
+    public void setMinimumCalls(int minimumCalls) {
+	this.minimumCalls = minimumCalls;
+    }
+
+    /**
+     * @param slowCallMsec
+     *            calls taking longer count as failed
+     */
+    public void setSlowCallMsec(long slowCallMsec) {
+	this.slowCallNanos = TimeUnit.MILLISECONDS.toNanos(slowCallMsec);
+    }
+
+    /**
+     * @param openMsec
+     *            how long the breaker stays open before it probes the cluster
+     */
+    public void setOpenMsec(long openMsec) {
+	this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMsec);
+    }
+
+    /**
+     * @param windowMsec
+     *            length of the rolling window
+     */
+    public void setWindowMsec(long windowMsec) {
+	this.bucketNanos = Math.max(1,
+		TimeUnit.MILLISECONDS.toNanos(windowMsec) / BUCKETS);
+    }
+
+    /**
+     * @param probes
+     *            successful probes in a row which close the breaker
+     */
+    public void setProbes(int probes) {
+	this.probes = probes;
+    }
+
+    @Override
+    public String toString() {
+	return "CircuitBreaker [name=" + name + ", state=" + state.get() + "]";
+    }
+
+    private static final class Bucket {
+
+	private volatile long epoch = Long.MIN_VALUE;
+	private final AtomicLong calls = new AtomicLong(0l);
+	private final AtomicLong failures = new AtomicLong(0l);
+    }
+}
@@ -0,0 +1,497 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache;
+
+import java.io.Serializable;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.salesforce.ddc.threelevelmemcache.exposed.AdminCacheService;
+import com.salesforce.ddc.threelevelmemcache.exposed.AsyncCacheService;
+import com.salesforce.ddc.threelevelmemcache.exposed.CacheFuture;
+import com.salesforce.ddc.threelevelmemcache.exposed.CacheService;
+import com.salesforce.ddc.threelevelmemcache.exposed.RemoveOutcome;
+import com.salesforce.ddc.threelevelmemcache.exposed.listener.CacheListener;
+
+/**
+ * Records the outcome of every data call on a cluster in its
+ * {@link CircuitBreaker}. Whether a call may go to the cluster is decided by
+ * the caller, this class only counts.
+ * <p/>
+ * A {@link MemcachedCacheService} in the exceptions silent mode would hide
+ * its failed calls behind quick nulls and the circuit would never open. Its
+ * calls are made without the silent mode, which may be shared with other
+ * users of the tier, and the failures are silenced here instead, once
+ * recorded.
+ */
+class CircuitBreakerCacheService implements CacheService, AdminCacheService,
+	AsyncCacheService {
+
+    private final CacheService tier;
+    private final CircuitBreaker breaker;
+    /** the tier if it has an exceptions silent mode, otherwise null */
+    private final MemcachedCacheService memcached;
+
+    CircuitBreakerCacheService(CacheService tier, CircuitBreaker breaker) {
+	this.tier = tier;
+	this.breaker = breaker;
+	this.memcached = tier instanceof MemcachedCacheService ? (MemcachedCacheService) tier
+		: null;
+    }
+
+    /**
+     * @return true if failed calls return the fallback instead of throwing
+     */
+    private boolean isSilent() {
+	return memcached != null && memcached.isExceptionsSilentMode();
+    }
+
+    CacheService getTier() {
+	return tier;
+    }
+
+    private void succeeded(long start) {
+	breaker.record(start, true);
+    }
+
+    private void failed(long start) {
+	breaker.record(start, false);
+    }
+
+    @Override
+    public Serializable get(Object key) {
+	long start = System.nanoTime();
+	try {
+	    Serializable value = memcached != null ? memcached.get(key, false)
+		    : tier.get(key);
+	    succeeded(start);
+	    return value;
+	} catch (RuntimeException e) {
+	    failed(start);
+	    if (isSilent()) {
+		// already logged by the tier
+		return null;
+	    }
+	    throw e;
+	}
+    }
+
+    @Override
+    public boolean add(Object key, Serializable obj) {
+	long start = System.nanoTime();
+	try {
+	    boolean added = tier.add(key, obj);
+	    succeeded(start);
+	    return added;
+	} catch (RuntimeException e) {
+	    failed(start);
+	    throw e;
+	}
+    }
+
+    @Override
+    public void put(Object key, Serializable obj) {
+	long start = System.nanoTime();
+	try {
+	    tier.put(key, obj);
+	    succeeded(start);
+	} catch (RuntimeException e) {
+	    failed(start);
+	    throw e;
+	}
+    }
+
+    @Override
+    public void put(Object key, int expiration, Serializable obj) {
+	long start = System.nanoTime();
+	try {
+	    tier.put(key, expiration, obj);
+	    succeeded(start);
+	} catch (RuntimeException e) {
+	    failed(start);
+	    throw e;
+	}
+    }
+
+    @Override
+    public void append(Object key, String obj) {
+	long start = System.nanoTime();
+	try {
+	    tier.append(key, obj);
+	    succeeded(start);
+	} catch (RuntimeException e) {
+	    failed(start);
+	    throw e;
+	}
+    }
+
+    @Override
+    public long incr(Object key) {
+	long start = System.nanoTime();
+	try {
+	    long value = tier.incr(key);
+	    succeeded(start);
+	    return value;
+	} catch (RuntimeException e) {
+	    failed(start);
+	    throw e;
+	}
+    }
+
+    @Override
+    public long incr(Object key, int by, long defaultValue, int expiration) {
+	long start = System.nanoTime();
+	try {
+	    long value = tier.incr(key, by, defaultValue, expiration);
+	    succeeded(start);
+	    return value;
+	} catch (RuntimeException e) {
+	    failed(start);
+	    throw e;
+	}
+    }
+
+    @Override
+    public long decr(Object key) {
+	long start = System.nanoTime();
+	try {
+	    long value = tier.decr(key);
+	    succeeded(start);
+	    return value;
+	} catch (RuntimeException e) {
+	    failed(start);
+	    throw e;
+	}
+    }
+
+    @Override
+    public long decr(Object key, int by, long defaultValue, int expiration) {
+	long start = System.nanoTime();
+	try {
+	    long value = tier.decr(key, by, defaultValue, expiration);
+	    succeeded(start);
+	    return value;
+	} catch (RuntimeException e) {
+	    failed(start);
+	    throw e;
+	}
+    }
+
+    @Override
+    public void putBatch(List<? extends Object> keys,
+	    List<? extends Serializable> objs) {
+	long start = System.nanoTime();
+	try {
+	    tier.putBatch(keys, objs);
+	    succeeded(start);
+	} catch (RuntimeException e) {
+	    failed(start);
+	    throw e;
+	}
+    }
+
+    @Override
+    public void putBatch(Map<? extends Object, ? extends Serializable> objs) {
+	long start = System.nanoTime();
+	try {
+	    tier.putBatch(objs);
+	    succeeded(start);
+	} catch (RuntimeException e) {
+	    failed(start);
+	    throw e;
+	}
+    }
+
+    @Override
+    public List<? extends Serializable> getBatch(List<? extends Object> keys) {
+	long start = System.nanoTime();
+	try {
+	    List<? extends Serializable> values = tier.getBatch(keys);
+	    succeeded(start);
+	    return values;
+	} catch (RuntimeException e) {
+	    failed(start);
+	    throw e;
+	}
+    }
+
+    @Override
+    public void remove(Object key) {
+	long start = System.nanoTime();
+	try {
+	    tier.remove(key);
+	    succeeded(start);
+	} catch (RuntimeException e) {
+	    failed(start);
+	    throw e;
+	}
+    }
+
+    @Override
+    public void removeBatch(Collection<Object> keys) {
+	long start = System.nanoTime();
+	try {
+	    tier.removeBatch(keys);
+	    succeeded(start);
+	} catch (RuntimeException e) {
+	    failed(start);
+	    throw e;
+	}
+    }
+
+    @Override
+    public CacheFuture<Serializable> asyncGet(Object key) {
+	long start = System.nanoTime();
+	try {
+	    return record(start, memcached != null ? memcached.asyncGet(key,
+		    false) : BlockingAsyncCacheService.of(tier).asyncGet(key),
+		    (Serializable) null);
+	} catch (RuntimeException e) {
+	    failed(start);
+	    throw e;
+	}
+    }
+
+    @Override
+    public CacheFuture<List<Serializable>> asyncGetBatch(
+	    List<? extends Object> keys) {
+	long start = System.nanoTime();
+	try {
+	    return record(start, memcached != null ? memcached.asyncGetBatch(
+		    keys, false) : BlockingAsyncCacheService.of(tier)
+		    .asyncGetBatch(keys),
+		    new ArrayList<Serializable>(Collections
+			    .<Serializable> nCopies(keys.size(), null)));
+	} catch (RuntimeException e) {
+	    failed(start);
+	    throw e;
+	}
+    }
+
+    @Override
+    public CacheFuture<Boolean> asyncPut(Object key, int expiration,
+	    Serializable obj) {
+	long start = System.nanoTime();
+	try {
+	    return record(start, memcached != null ? memcached.asyncPut(key,
+		    expiration, obj, false) : BlockingAsyncCacheService.of(tier)
+		    .asyncPut(key, expiration, obj), Boolean.FALSE);
+	} catch (RuntimeException e) {
+	    failed(start);
+	    throw e;
+	}
+    }
+
+    @Override
+    public CacheFuture<Boolean> asyncAdd(Object key, Serializable obj) {
+	long start = System.nanoTime();
+	try {
+	    return record(start, memcached != null ? memcached.asyncAdd(key,
+		    obj, false) : BlockingAsyncCacheService.of(tier).asyncAdd(
+		    key, obj), Boolean.FALSE);
+	} catch (RuntimeException e) {
+	    failed(start);
+	    throw e;
+	}
+    }
+
+    @Override
+    public CacheFuture<Boolean> asyncRemove(Object key) {
+	long start = System.nanoTime();
+	try {
+	    return record(start, memcached != null ? memcached.asyncRemove(
+		    key, false) : BlockingAsyncCacheService.of(tier)
+		    .asyncRemove(key), Boolean.FALSE);
+	} catch (RuntimeException e) {
+	    failed(start);
+	    throw e;
+	}
+    }
+
+    /**
+     * A batch with a failed or timed out key is recorded as a failed call.
+     */
+    @Override
+    public CacheFuture<Map<Object, RemoveOutcome>> asyncRemoveBatch(
+	    Collection<Object> keys) {
+	final long start = System.nanoTime();
+	try {
+	    return BlockingAsyncCacheService.of(tier).asyncRemoveBatch(keys)
+		    .addListener(
+			    new CacheFuture.Listener<Map<Object, RemoveOutcome>>() {
+
+				@Override
+				public void onComplete(
+					CacheFuture<Map<Object, RemoveOutcome>> f) {
+				    try {
+					for (RemoveOutcome outcome : f.get()
+						.values()) {
+					    if (!outcome.isSuccess()) {
+						failed(start);
+						return;
+					    }
+					}
+					succeeded(start);
+				    } catch (Exception e) {
+					failed(start);
+				    }
+				}
+			    });
+	} catch (RuntimeException e) {
+	    failed(start);
+	    throw e;
+	}
+    }
+
+    @Override
+    public CacheFuture<Long> asyncIncr(Object key, int by) {
+	long start = System.nanoTime();
+	try {
+	    return record(start, memcached != null ? memcached.asyncIncr(key,
+		    by, false) : BlockingAsyncCacheService.of(tier).asyncIncr(
+		    key, by), Long.valueOf(-1));
+	} catch (RuntimeException e) {
+	    failed(start);
+	    throw e;
+	}
+    }
+
+    @Override
+    public CacheFuture<Boolean> asyncAppend(Object key, String obj) {
+	long start = System.nanoTime();
+	try {
+	    return record(start, memcached != null ? memcached.asyncAppend(
+		    key, obj, false) : BlockingAsyncCacheService.of(tier)
+		    .asyncAppend(key, obj), Boolean.FALSE);
+	} catch (RuntimeException e) {
+	    failed(start);
+	    throw e;
+	}
+    }
+
+    /**
+     * Records the outcome once the future completes.
+     * 
+     * @param fallback
+     *            result of a failed call if the tier is silent
+     */
+    private <T> CacheFuture<T> record(final long start,
+	    CacheFuture<T> future, final T fallback) {
+	if (!isSilent()) {
+	    return future.addListener(new CacheFuture.Listener<T>() {
+
+		@Override
+		public void onComplete(CacheFuture<T> f) {
+		    try {
+			f.get();
+			succeeded(start);
+		    } catch (Exception e) {
+			failed(start);
+		    }
+		}
+	    });
+	}
+	final SettableCacheFuture<T> result = new SettableCacheFuture<T>();
+	future.addListener(new CacheFuture.Listener<T>() {
+
+	    @Override
+	    public void onComplete(CacheFuture<T> f) {
+		try {
+		    T value = f.get();
+		    succeeded(start);
+		    result.set(value);
+		} catch (InterruptedException e) {
+		    Thread.currentThread().interrupt();
+		    failed(start);
+		    result.set(fallback);
+		} catch (Exception e) {
+		    failed(start);
+		    result.set(fallback);
+		}
+	    }
+	});
+	return result;
+    }
+
+    @Override
+    public void clearAll() {
+	((AdminCacheService) tier).clearAll();
+    }
+
+    @Override
+    public void shutdown() {
+	tier.shutdown();
+    }
+
+    @Override
+    public void flush() {
+	tier.flush();
+    }
+
+    @Override
+    public long size() {
+	return tier.size();
+    }
+
+    @Override
+    public boolean isSynchronousPut() {
+	return tier.isSynchronousPut();
+    }
+
+    @Override
+    public boolean isConnected() {
+	return tier.isConnected();
+    }
+
+    @Override
+    public void setSynchronousPut(boolean synchronousPut) {
+	tier.setSynchronousPut(synchronousPut);
+    }
+
+    @Override
+    public Map<SocketAddress, Map<String, String>> getStats() {
+	return tier.getStats();
+    }
+
+    @Override
+    public CacheListener getCacheListener() {
+	return tier.getCacheListener();
+    }
+
+    @Override
+    public void setListener(CacheListener listener) {
+	tier.setListener(listener);
+    }
+
+    @Override
+    public String toString() {
+	return tier.toString();
+    }
+}
@@ -30,18 +30,28 @@ import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.aop.support.AopUtils;
 
 import com.salesforce.ddc.threelevelmemcache.exposed.AdminCacheService;
+import com.salesforce.ddc.threelevelmemcache.exposed.AsyncCacheService;
+import com.salesforce.ddc.threelevelmemcache.exposed.CacheFuture;
+import com.salesforce.ddc.threelevelmemcache.exposed.CacheKey;
 import com.salesforce.ddc.threelevelmemcache.exposed.CacheService;
+import com.salesforce.ddc.threelevelmemcache.exposed.RemoveOutcome;
+import com.salesforce.ddc.threelevelmemcache.exposed.WriteQuorum;
 import com.salesforce.ddc.threelevelmemcache.exposed.listener.CacheListener;
 import com.salesforce.ddc.threelevelmemcache.exposed.proxy.ValueProxyFactory;
 
@@ -50,37 +60,130 @@ import com.salesforce.ddc.threelevelmemcache.exposed.proxy.ValueProxyFactory;
  * primary cluster of replicated memcached servers and a secondary cluster of
  * replicated memcached servers. The Cloud cache supports automatic failover and
  * hot swapping of primary and secondary clusters.
+ * <p/>
+ * An optional off-heap cache can be set between the local JVM cache and the
+ * primary cluster, it's read on local misses and filled from memcached hits.
+ * <p/>
+ * Concurrent misses of the same key can be coalesced, only one of the
+ * callers goes to memcached and the others share its result, see
+ * {@link #setMissCoalescing(boolean)}. Writes can be fanned out to both clusters at once,
+ * see {@link #setWriteFanOut(boolean)}. Reads of a slow primary can be hedged
+ * to secondary, see {@link #setHedgedReads(boolean)}, and primary misses
+ * found in secondary can be repaired, see {@link #setReadRepair(boolean)}.
+ * <p/>
+ * Each cluster has a {@link CircuitBreaker}: a cluster failing or timing out
+ * too often is skipped, the calls fail over to the other one, and it's used
+ * again once probe calls succeed. The failed reads of a
+ * {@link MemcachedCacheService} in the exceptions silent mode are counted as
+ * well, they still return null.
+ * <p/>
+ * The {@link AsyncCacheService} calls read and write the local caches on the
+ * calling thread and chain the memcached calls on their completion callbacks.
  * 
  * @author Alexander Khimich
  */
-public class CloudCacheService implements CacheService, AdminCacheService {
+public class CloudCacheService implements CacheService, AdminCacheService,
+	AsyncCacheService {
 
     private static Log log = LogFactory.getLog(CloudCacheService.class);
     /**
-     * Config for hot swapping from primary to secondary caches
+     * Config for hot swapping from primary to secondary caches, a manual
+     * override on top of the circuit breakers
      */
     private static boolean isPrimaryOn = true, isSecondaryOn = true;
 
     private final CacheService primary, secondary;
+    private final CircuitBreaker primaryBreaker = new CircuitBreaker(
+	    "primary");
+    private final CircuitBreaker secondaryBreaker = new CircuitBreaker(
+	    "secondary");
     private final CacheService firstLevelCache;
+    private CacheService offHeapCache;
 
     private CacheListener listener;
 
     private ValueProxyFactory proxyFactory;
 
-    private long l1Hits, l1Missess;
+    private long l1Hits, l1Missess, offHeapHits;
+
+    /** single gets read from memcached, by the cluster which answered */
+    private long primaryHits, secondaryHits, remoteMisses;
+
+    private long batchL1Hits, batchOffHeapHits, batchPrimaryHits,
+	    batchSecondaryHits, batchMisses;
+
+    private MissCoalescer missCoalescer;
+    private long missCoalescingTimeoutMsec = MissCoalescer.DEFAULT_TIMEOUT_MSEC;
+
+    private volatile FanOutWriter fanOutWriter;
+    private WriteQuorum writeQuorum = WriteQuorum.PRIMARY;
+    private long writeQuorumTimeoutMsec = FanOutWriter.DEFAULT_TIMEOUT_MSEC;
+    private int writeFanOutThreads = FanOutWriter.DEFAULT_THREADS;
+    private long removeBatchTimeoutMsec = DEFAULT_REMOVE_BATCH_TIMEOUT_MSEC;
+
+    private volatile HedgedReader hedgedReader;
+    private volatile ReadRepairer readRepairer;
+    private int readRepairMaxPerSecond = ReadRepairer.DEFAULT_MAX_PER_SECOND;
+    private int hedgedReadsPercentile = HedgedReader.DEFAULT_PERCENTILE;
+    private int hedgedReadsBudgetPercent = HedgedReader.DEFAULT_BUDGET_PERCENT;
+
+    static final long DEFAULT_REMOVE_BATCH_TIMEOUT_MSEC = 6000;
+
+    /**
+     * Number of the most coalesced keys listed in the stats.
+     */
+    private static final int COALESCED_KEYS_IN_STATS = 10;
+
+    private final MissCoalescer.Loader remoteLoader = new MissCoalescer.Loader() {
+
+	@Override
+	public Serializable load(Object key) {
+	    return getFromRemote(key);
+	}
+    };
+
+    private final HedgedReader.Tiers hedgedTiers = new HedgedReader.Tiers() {
+
+	@Override
+	public CacheFuture<Serializable> primary(Object key) {
+	    return BlockingAsyncCacheService.of(primary).asyncGet(key);
+	}
+
+	@Override
+	public CacheFuture<Serializable> secondary(Object key) {
+	    return canUseSecondary() ? BlockingAsyncCacheService.of(secondary)
+		    .asyncGet(key) : null;
+	}
+
+	@Override
+	public void missedPrimary(Object key, Serializable secondaryValue) {
+	    repairPrimary(key, secondaryValue);
+	}
+
+	@Override
+	public void found(Object key, boolean bySecondary) {
+	    if (bySecondary) {
+		secondaryHits++;
+	    } else {
+		primaryHits++;
+	    }
+	}
+    };
 
     public CloudCacheService(CacheService jvm, CacheService primary,
 	    CacheService secondary) {
 	super();
-	this.primary = primary;
-	this.secondary = secondary;
+	this.primary = primary != null ? new CircuitBreakerCacheService(
+		primary, primaryBreaker) : null;
+	this.secondary = secondary != null ? new CircuitBreakerCacheService(
+		secondary, secondaryBreaker) : null;
 	this.firstLevelCache = jvm;
     }
 
     @Override
     public void append(Object key, String obj) {
-	appendNormal(key, obj);
+	final CacheKey cacheKey = CacheKey.of(key);
+	appendNormal(cacheKey, obj);
 
 	if (listener != null) {
 	    listener.append(key, obj);
@@ -93,6 +196,22 @@ public class CloudCacheService implements CacheService, AdminCacheService {
 	    firstLevelCache.append(key, obj);
 
 	}
+	if (offHeapCache != null) {
+	    offHeapCache.append(key, obj);
+	}
+	FanOutWriter writer = fanOutWriter;
+	if (writer != null) {
+	    writer.write(usablePrimary(), usableSecondary(),
+		    new FanOutWriter.TierWrite<Void>() {
+
+			@Override
+			public Void write(CacheService tier) {
+			    tier.append(key, obj);
+			    return null;
+			}
+		    });
+	    return;
+	}
 	// put in primary
 	if (canUsePrimary()) {
 	    primary.append(key, obj);
@@ -105,45 +224,54 @@ public class CloudCacheService implements CacheService, AdminCacheService {
 
     @Override
     public Serializable get(Object key) {
+	final CacheKey cacheKey = CacheKey.of(key);
+	Serializable value = getLocal(cacheKey);
+	// try to get from other caches
+	if (value == null) {
+	    MissCoalescer coalescer = missCoalescer;
+	    if (coalescer != null) {
+		value = coalescer.get(cacheKey, remoteLoader);
+	    } else {
+		value = getFromRemote(cacheKey);
+	    }
+	}
+	return finishGet(cacheKey, value);
+    }
+
+    /**
+     * Reads the key from the local JVM cache, then the off-heap cache.
+     */
+    private Serializable getLocal(Object key) {
 	Serializable value = null;
 	// get from l1
 	if (firstLevelCache != null) {
 	    value = firstLevelCache.get(key);
 	}
-	// try to get from other caches
 	if (value == null) {
 	    l1Missess++;
-	    // get from primary
-	    if (canUsePrimary()) {
-		value = primary.get(key);
-
-		if (log.isDebugEnabled()) {
-		    log.debug("Get from Primary:" + key + "=" + value);
-		}
-	    }
-
-	    if (value == null) {
-
-		log.debug("Primary cache returned null for key:" + key);
-		if (canUseSecondary()) {
-		    value = secondary.get(key);
-
-		    if (log.isDebugEnabled()) {
-			log.debug("Get from Secondary:" + key + "=" + value);
+	    // get from off-heap
+	    if (offHeapCache != null) {
+		value = offHeapCache.get(key);
+		if (value != null) {
+		    offHeapHits++;
+		    if (firstLevelCache != null) {
+			firstLevelCache.put(key, value);
 		    }
 		}
-
-	    }
-	    // if found in memcache - put in local
-	    if (firstLevelCache != null && value != null) {
-		firstLevelCache.put(key, value);
 	    }
 	} else {
 	    l1Hits++;
 	}
+	return value;
+    }
+
+    /**
+     * Notifies the listener and proxies the value read.
+     */
+    private Serializable finishGet(CacheKey key, Serializable value) {
 	// notify listener
 	if (listener != null) {
-	    listener.get(key);
+	    listener.get(key.getKey());
 	}
 	// proxying the object
 	if (proxyFactory != null && value != null) {
@@ -152,49 +280,264 @@ public class CloudCacheService implements CacheService, AdminCacheService {
 	return value;
     }
 
+    /**
+     * Reads the key from primary, then secondary, and fills the local caches
+     * with the value found. With hedged reads a slow primary read is raced
+     * against secondary.
+     */
+    private Serializable getFromRemote(Object key) {
+	Serializable value = null;
+	boolean usePrimary = canUsePrimary();
+	HedgedReader hedger = hedgedReader;
+	if (usePrimary && hedger != null) {
+	    value = hedger.get(key, hedgedTiers);
+	    if (value == null) {
+		remoteMisses++;
+	    }
+	    putLocal(key, value);
+	    return value;
+	}
+	// get from primary
+	if (usePrimary) {
+	    value = primary.get(key);
+	    if (value != null) {
+		primaryHits++;
+	    }
+
+	    if (log.isDebugEnabled()) {
+		log.debug("Get from Primary:" + key + "=" + value);
+	    }
+	}
+
+	if (value == null) {
+
+	    log.debug("Primary cache returned null for key:" + key);
+	    if (canUseSecondary()) {
+		value = secondary.get(key);
+		if (value != null) {
+		    secondaryHits++;
+		}
+
+		if (log.isDebugEnabled()) {
+		    log.debug("Get from Secondary:" + key + "=" + value);
+		}
+		if (usePrimary) {
+		    repairPrimary(key, value);
+		}
+	    }
+
+	}
+	if (value == null) {
+	    remoteMisses++;
+	}
+	putLocal(key, value);
+	return value;
+    }
+
+    /**
+     * Queues the write of a value found in secondary back into primary,
+     * which missed it.
+     */
+    private void repairPrimary(Object key, Serializable value) {
+	ReadRepairer repairer = readRepairer;
+	if (repairer != null && value != null && isPrimaryUp()
+		&& primaryBreaker.getState() == CircuitBreaker.State.CLOSED) {
+	    repairer.repair(key, value);
+	}
+    }
+
+    /**
+     * Puts the value found in memcached into the local caches.
+     */
+    private void putLocal(Object key, Serializable value) {
+	if (firstLevelCache != null && value != null) {
+	    firstLevelCache.put(key, value);
+	}
+	if (offHeapCache != null && value != null) {
+	    offHeapCache.put(key, value);
+	}
+    }
+
+    /**
+     * Reads the keys tier by tier: the local JVM cache, the off-heap cache,
+     * the primary cluster and, for the keys still missing, the secondary
+     * cluster. Values found in memcached are put back into the local caches.
+     */
     @Override
     public List<Serializable> getBatch(List keys) {
-	List<Serializable> results = null;
-	if (firstLevelCache != null) {
-	    final int size = keys.size();
-	    results = (List<Serializable>) firstLevelCache.getBatch(keys);
-	    int j = 0;
-	    List nullKeys = new ArrayList();
+	BatchRead batch = new BatchRead(keys);
+	if (!batch.missing.isEmpty()) {
+	    boolean usePrimary = canUsePrimary();
+	    if (usePrimary) {
+		batch.mergePrimary((List<Serializable>) primary.getBatch(batch
+			.missingKeys()));
+	    }
+	    // only the residual misses go to secondary
+	    boolean useSecondary = !batch.missing.isEmpty() && canUseSecondary();
+	    if (useSecondary) {
+		batch.mergeSecondary((List<Serializable>) secondary
+			.getBatch(batch.missingKeys()));
+	    }
+	    if (!usePrimary && !useSecondary) {
+		log.info("Wasn able to access primary and secondary cache.");
+	    }
+	}
+	return batch.finish();
+    }
+
+    /**
+     * State of one batch read going through the tiers.
+     */
+    private final class BatchRead {
+
+	private final List keys;
+	private final List<Serializable> results;
+	/** indexes of the keys not found yet */
+	private final List<Integer> missing = new ArrayList<Integer>();
+	/** indexes of the keys found in memcached */
+	private final List<Integer> found = new ArrayList<Integer>();
+	private int l1Hits, offHeapHits, primaryHits, secondaryHits;
+	private boolean primaryRead;
+
+	/**
+	 * Reads the keys from the local caches.
+	 */
+	BatchRead(List keys) {
+	    this.keys = CacheKey.of(keys);
+	    int size = keys.size();
+	    if (firstLevelCache != null) {
+		results = new ArrayList<Serializable>(
+			(List<Serializable>) firstLevelCache
+				.getBatch(this.keys));
+	    } else {
+		results = new ArrayList<Serializable>(Collections
+			.<Serializable> nCopies(size, null));
+	    }
 	    for (int i = 0; i < size; i++) {
 		if (results.get(i) == null) {
-		    nullKeys.add(keys.get(i));
+		    missing.add(i);
 		}
 	    }
-	    List<Serializable> nullKeyresult = null;
-	    if (canUsePrimary()) {
-		nullKeyresult = (List<Serializable>) primary.getBatch(nullKeys);
-	    } else if (canUseSecondary()) {
-		nullKeyresult = (List<Serializable>) secondary
-			.getBatch(nullKeys);
-	    } else {
-		log.info("Wasn able to access primary and secondary cache.");
+	    l1Hits = size - missing.size();
+	    if (offHeapCache != null && !missing.isEmpty()) {
+		fillFromOffHeap();
 	    }
+	}
 
-	    if (nullKeyresult != null) {
-		Iterator<Serializable> iterator = nullKeyresult.iterator();
-		for (int i = 0; i < results.size(); i++) {
-		    if (results.get(i) == null) {
-			results.set(i, iterator.next());
+	private void fillFromOffHeap() {
+	    for (Iterator<Integer> it = missing.iterator(); it.hasNext();) {
+		int i = it.next();
+		Serializable value = offHeapCache.get(keys.get(i));
+		if (value != null) {
+		    offHeapHits++;
+		    CloudCacheService.this.offHeapHits++;
+		    results.set(i, value);
+		    it.remove();
+		    if (firstLevelCache != null) {
+			firstLevelCache.put(keys.get(i), value);
 		    }
 		}
+	    }
+	}
+
+	/**
+	 * @return the keys still missing, for one multiget
+	 */
+	List<Object> missingKeys() {
+	    List<Object> tierKeys = new ArrayList<Object>(missing.size());
+	    for (int i : missing) {
+		tierKeys.add(keys.get(i));
+	    }
+	    return tierKeys;
+	}
+
+	/**
+	 * Takes the values primary returned for {@link #missingKeys()}.
+	 */
+	void mergePrimary(List<Serializable> values) {
+	    primaryRead = true;
+	    primaryHits = merge(values);
+	}
+
+	/**
+	 * Takes the values secondary returned for {@link #missingKeys()}, the
+	 * keys primary missed are repaired.
+	 */
+	void mergeSecondary(List<Serializable> values) {
+	    int from = found.size();
+	    secondaryHits = merge(values);
+	    if (primaryRead) {
+		for (int j = from; j < found.size(); j++) {
+		    int i = found.get(j);
+		    repairPrimary(keys.get(i), results.get(i));
+		}
+	    }
+	}
 
+	/**
+	 * @return number of keys found, their indexes are moved from missing
+	 *         to found
+	 */
+	private int merge(List<Serializable> values) {
+	    if (values == null) {
+		return 0;
 	    }
-	} else {
-	    if (canUsePrimary()) {
-		results = (List<Serializable>) primary.getBatch(keys);
-	    } else if (canUseSecondary()) {
-		results = (List<Serializable>) secondary.getBatch(keys);
+	    int hits = 0;
+	    Iterator<Integer> it = missing.iterator();
+	    for (int j = 0; j < values.size() && it.hasNext(); j++) {
+		int i = it.next();
+		Serializable value = values.get(j);
+		if (value != null) {
+		    results.set(i, value);
+		    found.add(i);
+		    it.remove();
+		    hits++;
+		}
+	    }
+	    return hits;
+	}
+
+	/**
+	 * Puts the values read from memcached into the local caches, counts
+	 * the hits and proxies the results.
+	 */
+	List<Serializable> finish() {
+	    backfill();
+	    batchL1Hits += l1Hits;
+	    batchOffHeapHits += offHeapHits;
+	    batchPrimaryHits += primaryHits;
+	    batchSecondaryHits += secondaryHits;
+	    batchMisses += missing.size();
+	    if (log.isDebugEnabled()) {
+		log.debug("Batch of " + keys.size() + " keys: l1=" + l1Hits
+			+ ", offHeap=" + offHeapHits + ", primary="
+			+ primaryHits + ", secondary=" + secondaryHits
+			+ ", misses=" + missing.size());
 	    }
+
+	    /* proxy the list */
+	    proxyList(results);
+	    return results;
 	}
 
-	/* proxy the list */
-	proxyList(results);
-	return results;
+	private void backfill() {
+	    if (found.isEmpty()) {
+		return;
+	    }
+	    List<Object> foundKeys = new ArrayList<Object>(found.size());
+	    List<Serializable> foundValues = new ArrayList<Serializable>(
+		    found.size());
+	    for (int i : found) {
+		foundKeys.add(keys.get(i));
+		foundValues.add(results.get(i));
+	    }
+	    if (firstLevelCache != null) {
+		firstLevelCache.putBatch(foundKeys, foundValues);
+	    }
+	    if (offHeapCache != null) {
+		offHeapCache.putBatch(foundKeys, foundValues);
+	    }
+	}
     }
 
     protected void proxyList(List<Serializable> data) {
@@ -209,13 +552,15 @@ public class CloudCacheService implements CacheService, AdminCacheService {
 
     @Override
     public void put(Object key, Serializable obj) {
-	putNormal(key, 0, obj);
+	final CacheKey cacheKey = CacheKey.of(key);
+	putNormal(cacheKey, 0, obj);
 	if (listener != null) {
 	    listener.put(key, obj);
 	}
     }
 
-    private void putNormal(Object key, int expiration, Serializable obj) {
+    private void putNormal(final Object key, final int expiration,
+	    final Serializable obj) {
 
 	if (AopUtils.isAopProxy(obj)) {
 	    // Do nothing with proxy object, because it was not modified and no
@@ -227,6 +572,22 @@ public class CloudCacheService implements CacheService, AdminCacheService {
 	if (firstLevelCache != null) {
 	    firstLevelCache.put(key, expiration, obj);
 	}
+	if (offHeapCache != null) {
+	    offHeapCache.put(key, expiration, obj);
+	}
+	FanOutWriter writer = fanOutWriter;
+	if (writer != null) {
+	    writer.write(usablePrimary(), usableSecondary(),
+		    new FanOutWriter.TierWrite<Void>() {
+
+			@Override
+			public Void write(CacheService tier) {
+			    tier.put(key, expiration, obj);
+			    return null;
+			}
+		    });
+	    return;
+	}
 
 	if (canUsePrimary()) {
 
@@ -248,36 +609,111 @@ public class CloudCacheService implements CacheService, AdminCacheService {
 
     }
 
+    /**
+     * Forwards the whole batch to each tier, so memcached sets the values in
+     * one round trip instead of one per key.
+     */
     @Override
     public void putBatch(List<? extends Object> keys,
 	    List<? extends Serializable> objs) {
+	final List<Object> _keys = new ArrayList<Object>(keys.size());
+	final List<Serializable> _objs = new ArrayList<Serializable>(
+		objs.size());
 	for (int i = 0; i < keys.size(); i++) {
-	    put(keys.get(i), objs.get(i));
+	    if (AopUtils.isAopProxy(objs.get(i))) {
+		log.warn("Code is trying to save proxy object, need to throw exception");
+		continue;
+	    }
+	    _keys.add(keys.get(i));
+	    _objs.add(objs.get(i));
+	}
+	if (_keys.isEmpty()) {
+	    return;
+	}
+	try {
+	    putBatchNormal(CacheKey.of(_keys), _objs);
+	} finally {
+	    if (listener != null) {
+		for (int i = 0; i < _keys.size(); i++) {
+		    listener.put(_keys.get(i), _objs.get(i));
+		}
+	    }
+	}
+    }
+
+    private void putBatchNormal(final List<Object> keys,
+	    final List<Serializable> objs) {
+	if (firstLevelCache != null) {
+	    firstLevelCache.putBatch(keys, objs);
+	}
+	if (offHeapCache != null) {
+	    offHeapCache.putBatch(keys, objs);
+	}
+	FanOutWriter writer = fanOutWriter;
+	if (writer != null) {
+	    writer.write(usablePrimary(), usableSecondary(),
+		    new FanOutWriter.TierWrite<Void>() {
+
+			@Override
+			public Void write(CacheService tier) {
+			    tier.putBatch(keys, objs);
+			    return null;
+			}
+		    });
+	    return;
+	}
+	if (canUsePrimary()) {
+	    if (log.isDebugEnabled()) {
+		log.debug("Put batch to Primary:" + keys);
+	    }
+	    primary.putBatch(keys, objs);
+	}
+	if (canUseSecondary()) {
+	    if (log.isDebugEnabled()) {
+		log.debug("Put batch to Secondary:" + keys);
+	    }
+	    secondary.putBatch(keys, objs);
 	}
     }
 
     @Override
     public void putBatch(Map<? extends Object, ? extends Serializable> objs) {
-	for (Map.Entry<? extends Object, ? extends Serializable> entry : objs
-		.entrySet()) {
-	    put(entry.getKey(), entry.getValue());
-	}
+	putBatch(new ArrayList<Object>(objs.keySet()),
+		new ArrayList<Serializable>(objs.values()));
     }
 
     @Override
-    public void remove(Object key) {
+    public void remove(final Object key) {
+	final CacheKey cacheKey = CacheKey.of(key);
 	try {
 	    // remove fl
 	    if (firstLevelCache != null) {
-		this.firstLevelCache.remove(key);
+		this.firstLevelCache.remove(cacheKey);
+	    }
+	    // remove off-heap
+	    if (offHeapCache != null) {
+		this.offHeapCache.remove(cacheKey);
+	    }
+	    FanOutWriter writer = fanOutWriter;
+	    if (writer != null) {
+		writer.write(usablePrimary(), usableSecondary(),
+			new FanOutWriter.TierWrite<Void>() {
+
+			    @Override
+			    public Void write(CacheService tier) {
+				tier.remove(cacheKey);
+				return null;
+			    }
+			});
+		return;
 	    }
 	    // remove primary
 	    if (canUsePrimary()) {
-		this.primary.remove(key);
+		this.primary.remove(cacheKey);
 	    }
 	    // remove secondary
 	    if (canUseSecondary()) {
-		this.secondary.remove(key);
+		this.secondary.remove(cacheKey);
 	    }
 	} finally {
 	    // notify listener
@@ -289,10 +725,141 @@ public class CloudCacheService implements CacheService, AdminCacheService {
 
     @Override
     public void removeBatch(Collection<Object> keys) {
+	removeBatchWithOutcome(keys);
+    }
+
+    /**
+     * Removes the keys from all the levels at once: the deletes of both
+     * clusters are issued before the local caches are cleared, then they are
+     * waited for under a single deadline.
+     * 
+     * @param keys
+     * @return outcome per key, in the iteration order of the keys
+     */
+    public Map<Object, RemoveOutcome> removeBatchWithOutcome(
+	    Collection<Object> keys) {
+	List<Object> cacheKeys = CacheKey.of(keys);
+	try {
+	    CacheFuture<Map<Object, RemoveOutcome>> primaryRemoval = null, secondaryRemoval = null;
+	    if (canUsePrimary()) {
+		primaryRemoval = BlockingAsyncCacheService.of(primary)
+			.asyncRemoveBatch(cacheKeys);
+	    } else if (primary != null) {
+		primaryRemoval = skipped(cacheKeys);
+	    }
+	    if (canUseSecondary()) {
+		secondaryRemoval = BlockingAsyncCacheService.of(secondary)
+			.asyncRemoveBatch(cacheKeys);
+	    } else if (secondary != null) {
+		secondaryRemoval = skipped(cacheKeys);
+	    }
+	    removeLocal(cacheKeys);
+	    long deadline = System.currentTimeMillis()
+		    + removeBatchTimeoutMsec;
+	    return mergeOutcomes(keys, cacheKeys,
+		    awaitRemoval(primaryRemoval, cacheKeys, deadline),
+		    awaitRemoval(secondaryRemoval, cacheKeys, deadline));
+	} finally {
+	    if (listener != null) {
+		for (Object key : keys) {
+		    listener.remove(key);
+		}
+	    }
+	}
+    }
+
+    private void removeLocal(Collection<Object> keys) {
 	for (Object key : keys) {
-	    remove(key);
+	    if (firstLevelCache != null) {
+		firstLevelCache.remove(key);
+	    }
+	    if (offHeapCache != null) {
+		offHeapCache.remove(key);
+	    }
+	}
+    }
+
+    /**
+     * @return outcomes of a cluster which is configured but down, switched
+     *         off or with its circuit open: the keys stay in it and are read
+     *         again once it's back, they are not removed
+     */
+    private static CacheFuture<Map<Object, RemoveOutcome>> skipped(
+	    Collection<Object> cacheKeys) {
+	return SettableCacheFuture.completed(BlockingAsyncCacheService
+		.outcomes(cacheKeys, RemoveOutcome.FAILED));
+    }
+
+    /**
+     * @return outcomes of the cluster, null if the cluster is not configured
+     */
+    private static Map<Object, RemoveOutcome> awaitRemoval(
+	    CacheFuture<Map<Object, RemoveOutcome>> removal,
+	    Collection<Object> keys, long deadline) {
+	if (removal == null) {
+	    return null;
 	}
+	try {
+	    return removal.get(
+		    Math.max(0, deadline - System.currentTimeMillis()),
+		    TimeUnit.MILLISECONDS);
+	} catch (TimeoutException e) {
+	    return BlockingAsyncCacheService.outcomes(keys,
+		    RemoveOutcome.TIMED_OUT);
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    return BlockingAsyncCacheService.outcomes(keys,
+		    RemoveOutcome.TIMED_OUT);
+	} catch (ExecutionException e) {
+	    log.warn("Remove batch failed.", e.getCause());
+	    return BlockingAsyncCacheService.outcomes(keys,
+		    RemoveOutcome.FAILED);
+	}
+    }
 
+    /**
+     * A key counts as failed if a cluster failed to remove it or was
+     * skipped, as removed if a cluster removed it. Without any configured
+     * cluster the keys were removed locally only.
+     * 
+     * @param keys
+     *            keys of the outcomes returned
+     * @param cacheKeys
+     *            the keys as given to the clusters, in the same order
+     * @param primary
+     *            outcomes of primary, null if primary is not configured
+     * @param secondary
+     *            outcomes of secondary, null if secondary is not configured
+     */
+    private static Map<Object, RemoveOutcome> mergeOutcomes(
+	    Collection<Object> keys, List<Object> cacheKeys,
+	    Map<Object, RemoveOutcome> primary,
+	    Map<Object, RemoveOutcome> secondary) {
+	Map<Object, RemoveOutcome> outcomes = new LinkedHashMap<Object, RemoveOutcome>();
+	Iterator<Object> it = cacheKeys.iterator();
+	for (Object key : keys) {
+	    Object cacheKey = it.next();
+	    RemoveOutcome p = primary != null ? primary.get(cacheKey) : null;
+	    RemoveOutcome s = secondary != null ? secondary.get(cacheKey)
+		    : null;
+	    RemoveOutcome outcome;
+	    if (p == null) {
+		outcome = s != null ? s : RemoveOutcome.REMOVED;
+	    } else if (s == null) {
+		outcome = p;
+	    } else if (!p.isSuccess()) {
+		outcome = p;
+	    } else if (!s.isSuccess()) {
+		outcome = s;
+	    } else if (p == RemoveOutcome.REMOVED
+		    || s == RemoveOutcome.REMOVED) {
+		outcome = RemoveOutcome.REMOVED;
+	    } else {
+		outcome = RemoveOutcome.NOT_FOUND;
+	    }
+	    outcomes.put(key, outcome);
+	}
+	return outcomes;
     }
 
     @Override
@@ -302,6 +869,58 @@ public class CloudCacheService implements CacheService, AdminCacheService {
 	Map<String, String> s = new LinkedHashMap<String, String>();
 	s.put("misses", String.valueOf(l1Missess));
 	s.put("hits", String.valueOf(l1Hits));
+	if (offHeapCache != null) {
+	    s.put("offHeapHits", String.valueOf(offHeapHits));
+	}
+	s.put("primaryHits", String.valueOf(primaryHits));
+	s.put("secondaryHits", String.valueOf(secondaryHits));
+	s.put("remoteMisses", String.valueOf(remoteMisses));
+	s.put("batchL1Hits", String.valueOf(batchL1Hits));
+	if (offHeapCache != null) {
+	    s.put("batchOffHeapHits", String.valueOf(batchOffHeapHits));
+	}
+	s.put("batchPrimaryHits", String.valueOf(batchPrimaryHits));
+	s.put("batchSecondaryHits", String.valueOf(batchSecondaryHits));
+	s.put("batchMisses", String.valueOf(batchMisses));
+	MissCoalescer coalescer = missCoalescer;
+	if (coalescer != null) {
+	    s.put("remoteLoads", String.valueOf(coalescer.getLoads()));
+	    s.put("coalescedGets", String.valueOf(coalescer.getCoalesced()));
+	    s.put("coalescingTimeouts", String.valueOf(coalescer.getTimeouts()));
+	    s.put("inFlightGets", String.valueOf(coalescer.getInFlight()));
+	    for (Map.Entry<String, Long> entry : coalescer
+		    .getMostCoalescedKeys(COALESCED_KEYS_IN_STATS).entrySet()) {
+		s.put("coalescedGets." + entry.getKey(),
+			String.valueOf(entry.getValue()));
+	    }
+	}
+	FanOutWriter writer = fanOutWriter;
+	if (writer != null) {
+	    s.put("writeQuorum", String.valueOf(writer.getQuorum()));
+	    s.put("fanOutWrites", String.valueOf(writer.getWrites()));
+	    s.put("fanOutFailures", String.valueOf(writer.getFailures()));
+	    s.put("laggingWrites", String.valueOf(writer.getLaggingWrites()));
+	    s.put("laggingWriteFailures",
+		    String.valueOf(writer.getLaggingFailures()));
+	    s.put("writeQuorumTimeouts",
+		    String.valueOf(writer.getQuorumTimeouts()));
+	}
+	HedgedReader hedger = hedgedReader;
+	if (hedger != null) {
+	    s.put("hedgedReads", String.valueOf(hedger.getHedges()));
+	    s.put("hedgeWins", String.valueOf(hedger.getHedgeWins()));
+	    s.put("hedgesOverBudget", String.valueOf(hedger.getOverBudget()));
+	    s.put("hedgeDelayMicros", String.valueOf(hedger.getDelayMicros()));
+	}
+	ReadRepairer repairer = readRepairer;
+	if (repairer != null) {
+	    s.put("readRepairs", String.valueOf(repairer.getRepairs()));
+	    s.put("readRepairsDeduplicated",
+		    String.valueOf(repairer.getDeduplicated()));
+	    s.put("readRepairsRateLimited",
+		    String.valueOf(repairer.getRateLimited()));
+	    s.put("readRepairFailures", String.valueOf(repairer.getFailures()));
+	}
 	s.put("isSynchronousPut", String.valueOf(isSynchronousPut()));
 	s.put("isPrimaryOn", String.valueOf(isPrimaryOn));
 	s.put("isSecondaryOn", String.valueOf(isSecondaryOn));
@@ -309,6 +928,10 @@ public class CloudCacheService implements CacheService, AdminCacheService {
 	s.put("isSecondaryConnected",
 		secondary != null ? String.valueOf(secondary.isConnected())
 			: "");
+	putBreakerStats(s, "primary", primaryBreaker);
+	if (secondary != null) {
+	    putBreakerStats(s, "secondary", secondaryBreaker);
+	}
 	stats.put(server, s);
 	return stats;
     }
@@ -322,20 +945,62 @@ public class CloudCacheService implements CacheService, AdminCacheService {
 	return unprefixedKey.toString();
     }
 
+    private static void putBreakerStats(Map<String, String> s, String tier,
+	    CircuitBreaker breaker) {
+	s.put(tier + "Circuit", String.valueOf(breaker.getState()));
+	s.put(tier + "CircuitFailureRate",
+		String.valueOf(breaker.getFailureRatePercent()));
+	s.put(tier + "CircuitOpened", String.valueOf(breaker.getOpened()));
+	s.put(tier + "CircuitRejected", String.valueOf(breaker.getRejected()));
+    }
+
+    /**
+     * Decides if a call goes to primary. Transitions of the breaker are
+     * logged by the breaker, not on every call.
+     */
     private boolean canUsePrimary() {
-	boolean active = primary != null && isPrimaryOn
-		&& primary.isConnected();
-	if (!active) {
-	    log.info("Primary cache is not active.Isconnected="
-		    + primary.isConnected());
-	}
-	return active;
+	return isPrimaryUp() && primaryBreaker.allowRequest();
     }
 
     private boolean canUseSecondary() {
-	boolean active = secondary != null && isSecondaryOn
-		&& secondary.isConnected();
-	return active;
+	return isSecondaryUp() && secondaryBreaker.allowRequest();
+    }
+
+    /**
+     * Same as {@link #canUsePrimary()} for the calls which are not counted by
+     * the breaker, it doesn't take the probe of a half-open breaker.
+     */
+    private boolean isPrimaryUp() {
+	return primary != null && isPrimaryOn && primary.isConnected();
+    }
+
+    private boolean isSecondaryUp() {
+	return secondary != null && isSecondaryOn && secondary.isConnected();
+    }
+
+    private CacheService usablePrimary() {
+	return canUsePrimary() ? primary : null;
+    }
+
+    private CacheService usableSecondary() {
+	return canUseSecondary() ? secondary : null;
+    }
+
+    /**
+     * Fans out a counter update, the result is the one of secondary as in the
+     * serial mode, or the one of primary if secondary didn't ack in time.
+     */
+    private long counter(FanOutWriter writer, long r,
+	    FanOutWriter.TierWrite<Long> write) {
+	FanOutWriter.Acks<Long> acks = writer.write(usablePrimary(),
+		usableSecondary(), write);
+	if (acks.getSecondary() != null) {
+	    return acks.getSecondary();
+	}
+	if (acks.getPrimary() != null) {
+	    return acks.getPrimary();
+	}
+	return r;
     }
 
     @Override
@@ -343,10 +1008,10 @@ public class CloudCacheService implements CacheService, AdminCacheService {
 	if (firstLevelCache != null) {
 	    this.firstLevelCache.setSynchronousPut(synchronousPut);
 	}
-	if (canUsePrimary()) {
+	if (isPrimaryUp()) {
 	    this.primary.setSynchronousPut(synchronousPut);
 	}
-	if (canUseSecondary()) {
+	if (isSecondaryUp()) {
 	    this.secondary.setSynchronousPut(synchronousPut);
 	}
     }
@@ -357,6 +1022,15 @@ public class CloudCacheService implements CacheService, AdminCacheService {
 	    if (firstLevelCache != null) {
 		this.firstLevelCache.shutdown();
 	    }
+	    if (offHeapCache != null) {
+		this.offHeapCache.shutdown();
+	    }
+	    if (fanOutWriter != null) {
+		this.fanOutWriter.shutdown();
+	    }
+	    if (readRepairer != null) {
+		this.readRepairer.shutdown();
+	    }
 	    this.primary.shutdown();
 	    if (secondary != null) {
 		this.secondary.shutdown();
@@ -377,12 +1051,16 @@ public class CloudCacheService implements CacheService, AdminCacheService {
 	    AdminCacheService adminCacheService = (AdminCacheService) firstLevelCache;
 	    adminCacheService.clearAll();
 	}
+	if (offHeapCache != null) {
+	    AdminCacheService adminCacheService = (AdminCacheService) offHeapCache;
+	    adminCacheService.clearAll();
+	}
 
-	if (canUsePrimary()) {
+	if (isPrimaryUp()) {
 	    AdminCacheService adminCacheService = (AdminCacheService) primary;
 	    adminCacheService.clearAll();
 	}
-	if (canUseSecondary()) {
+	if (isSecondaryUp()) {
 	    AdminCacheService adminCacheService = (AdminCacheService) secondary;
 	    adminCacheService.clearAll();
 	}
@@ -404,17 +1082,31 @@ public class CloudCacheService implements CacheService, AdminCacheService {
      * internal implementation of memcached cache service is different.
      */
     @Override
-    public long incr(Object key) {
+    public long incr(final Object key) {
+	final CacheKey cacheKey = CacheKey.of(key);
 	long r = -1;
 	if (firstLevelCache != null) {
-	    firstLevelCache.incr(key);
+	    firstLevelCache.incr(cacheKey);
+	}
+	if (offHeapCache != null) {
+	    offHeapCache.incr(cacheKey);
+	}
+	FanOutWriter writer = fanOutWriter;
+	if (writer != null) {
+	    return counter(writer, r, new FanOutWriter.TierWrite<Long>() {
+
+		@Override
+		public Long write(CacheService tier) {
+		    return tier.incr(cacheKey);
+		}
+	    });
 	}
 
 	if (canUsePrimary()) {
-	    r = primary.incr(key);
+	    r = primary.incr(cacheKey);
 	}
 	if (canUseSecondary()) {
-	    r = secondary.incr(key);
+	    r = secondary.incr(cacheKey);
 	}
 	return r;
     }
@@ -425,45 +1117,78 @@ public class CloudCacheService implements CacheService, AdminCacheService {
      * internal implementation of memcached cache service is different.
      */
     @Override
-    public long decr(Object key) {
+    public long decr(final Object key) {
+	final CacheKey cacheKey = CacheKey.of(key);
 	long r = -1;
 	if (firstLevelCache != null) {
-	    r = firstLevelCache.decr(key);
+	    r = firstLevelCache.decr(cacheKey);
+	}
+	if (offHeapCache != null) {
+	    offHeapCache.decr(cacheKey);
+	}
+	FanOutWriter writer = fanOutWriter;
+	if (writer != null) {
+	    return counter(writer, r, new FanOutWriter.TierWrite<Long>() {
+
+		@Override
+		public Long write(CacheService tier) {
+		    return tier.decr(cacheKey);
+		}
+	    });
 	}
 	if (canUsePrimary()) {
-	    r = primary.decr(key);
+	    r = primary.decr(cacheKey);
 	}
 	if (canUseSecondary()) {
-	    r = secondary.decr(key);
+	    r = secondary.decr(cacheKey);
 	}
 	return r;
     }
 
+    /**
+     * @deprecated failover is automatic, see {@link CircuitBreaker}; the
+     *             switch is kept as a manual override of all instances
+     */
+    @Deprecated
     public static boolean isPrimaryOn() {
 	return isPrimaryOn;
     }
 
-    public static void setPrimaryOn(boolean isPrimaryOn) {
+    /**
+     * @deprecated see {@link #isPrimaryOn()}
+     */
+    @Deprecated
+    public static void setPrimaryOn(boolean isPrimaryOn) {
 	CloudCacheService.isPrimaryOn = isPrimaryOn;
     }
 
+    /**
+     * @deprecated see {@link #isPrimaryOn()}
+     */
+    @Deprecated
     public static boolean isSecondaryOn() {
 	return isSecondaryOn;
     }
 
+    /**
+     * @deprecated see {@link #isPrimaryOn()}
+     */
+    @Deprecated
     public static void setSecondaryOn(boolean isSecondaryOn) {
 	CloudCacheService.isSecondaryOn = isSecondaryOn;
     }
 
     /**
-     * always return true
+     * @return true if a cluster is connected and its circuit is not open
      */
     @Override
     public boolean isConnected() {
-	if (canUsePrimary()) {
+	if (isPrimaryUp()
+		&& primaryBreaker.getState() != CircuitBreaker.State.OPEN) {
 	    return true;
 	}
-	if (canUseSecondary()) {
+	if (isSecondaryUp()
+		&& secondaryBreaker.getState() != CircuitBreaker.State.OPEN) {
 	    return true;
 	}
 	return false;
@@ -476,9 +1201,13 @@ public class CloudCacheService implements CacheService, AdminCacheService {
 	builder.append("CloudCacheService [primary=").append(primary)
 		.append(", secondary=").append(secondary)
 		.append(", firstLevelCache=").append(firstLevelCache)
+		.append(", offHeapCache=").append(offHeapCache)
 		.append(", l1Hits=").append(l1Hits).append(", l1Missess=")
 		.append(l1Missess).append(", isPrimaryOn=").append(isPrimaryOn)
-		.append(", isSecondaryOn=").append(isSecondaryOn).append("]");
+		.append(", isSecondaryOn=").append(isSecondaryOn)
+		.append(", primaryCircuit=").append(primaryBreaker.getState())
+		.append(", secondaryCircuit=")
+		.append(secondaryBreaker.getState()).append("]");
 	return builder.toString();
     }
 
@@ -493,7 +1222,8 @@ public class CloudCacheService implements CacheService, AdminCacheService {
     }
 
     @Override
-    public boolean add(Object key, Serializable obj) {
+    public boolean add(final Object key, final Serializable obj) {
+	final CacheKey cacheKey = CacheKey.of(key);
 
 	if (AopUtils.isAopProxy(obj)) {
 	    // Do nothing with proxy object, because it was not modified and no
@@ -504,23 +1234,39 @@ public class CloudCacheService implements CacheService, AdminCacheService {
 	try {
 
 	    if (firstLevelCache != null) {
-		firstLevelCache.add(key, obj);
+		firstLevelCache.add(cacheKey, obj);
+	    }
+	    if (offHeapCache != null) {
+		offHeapCache.add(cacheKey, obj);
+	    }
+	    FanOutWriter writer = fanOutWriter;
+	    if (writer != null) {
+		FanOutWriter.Acks<Boolean> acks = writer.write(usablePrimary(),
+			usableSecondary(), new FanOutWriter.TierWrite<Boolean>() {
+
+			    @Override
+			    public Boolean write(CacheService tier) {
+				return tier.add(cacheKey, obj);
+			    }
+			});
+		return Boolean.TRUE.equals(acks.getPrimary())
+			|| Boolean.TRUE.equals(acks.getSecondary());
 	    }
 
 	    boolean result = Boolean.FALSE;
 	    if (canUsePrimary()) {
 		if (log.isDebugEnabled()) {
-		    log.debug("Add to Primary:" + key + "=" + obj);
+		    log.debug("Add to Primary:" + cacheKey + "=" + obj);
 		}
 
-		result = primary.add(key, obj);
+		result = primary.add(cacheKey, obj);
 	    }
 	    if (canUseSecondary()) {
 		if (log.isDebugEnabled()) {
-		    log.debug("Add to Secondary:" + key + "=" + obj);
+		    log.debug("Add to Secondary:" + cacheKey + "=" + obj);
 		}
 
-		result |= secondary.add(key, obj);
+		result |= secondary.add(cacheKey, obj);
 	    }
 
 	    return result;
@@ -538,17 +1284,32 @@ public class CloudCacheService implements CacheService, AdminCacheService {
      * long, int)
      */
     @Override
-    public long incr(Object key, int by, long defaultValue, int expiration) {
+    public long incr(final Object key, final int by, final long defaultValue,
+	    final int expiration) {
+	final CacheKey cacheKey = CacheKey.of(key);
 	long r = -1;
 	if (firstLevelCache != null) {
-	    firstLevelCache.incr(key, by, defaultValue, expiration);
+	    firstLevelCache.incr(cacheKey, by, defaultValue, expiration);
+	}
+	if (offHeapCache != null) {
+	    offHeapCache.incr(cacheKey, by, defaultValue, expiration);
+	}
+	FanOutWriter writer = fanOutWriter;
+	if (writer != null) {
+	    return counter(writer, r, new FanOutWriter.TierWrite<Long>() {
+
+		@Override
+		public Long write(CacheService tier) {
+		    return tier.incr(cacheKey, by, defaultValue, expiration);
+		}
+	    });
 	}
 
 	if (canUsePrimary()) {
-	    r = primary.incr(key, by, defaultValue, expiration);
+	    r = primary.incr(cacheKey, by, defaultValue, expiration);
 	}
 	if (canUseSecondary()) {
-	    r = secondary.incr(key, by, defaultValue, expiration);
+	    r = secondary.incr(cacheKey, by, defaultValue, expiration);
 	}
 	return r;
     }
@@ -560,17 +1321,32 @@ public class CloudCacheService implements CacheService, AdminCacheService {
      * long, int)
      */
     @Override
-    public long decr(Object key, int by, long defaultValue, int expiration) {
+    public long decr(final Object key, final int by, final long defaultValue,
+	    final int expiration) {
+	final CacheKey cacheKey = CacheKey.of(key);
 	long r = -1;
 	if (firstLevelCache != null) {
-	    firstLevelCache.decr(key, by, defaultValue, expiration);
+	    firstLevelCache.decr(cacheKey, by, defaultValue, expiration);
+	}
+	if (offHeapCache != null) {
+	    offHeapCache.decr(cacheKey, by, defaultValue, expiration);
+	}
+	FanOutWriter writer = fanOutWriter;
+	if (writer != null) {
+	    return counter(writer, r, new FanOutWriter.TierWrite<Long>() {
+
+		@Override
+		public Long write(CacheService tier) {
+		    return tier.decr(cacheKey, by, defaultValue, expiration);
+		}
+	    });
 	}
 
 	if (canUsePrimary()) {
-	    r = primary.decr(key, by, defaultValue, expiration);
+	    r = primary.decr(cacheKey, by, defaultValue, expiration);
 	}
 	if (canUseSecondary()) {
-	    r = secondary.decr(key, by, defaultValue, expiration);
+	    r = secondary.decr(cacheKey, by, defaultValue, expiration);
 	}
 	return r;
     }
@@ -583,7 +1359,687 @@ public class CloudCacheService implements CacheService, AdminCacheService {
      */
     @Override
     public void put(Object key, int expiration, Serializable obj) {
-	putNormal(key, expiration, obj);
+	final CacheKey cacheKey = CacheKey.of(key);
+	putNormal(cacheKey, expiration, obj);
+    }
+
+    /**
+     * Reads the key like {@link #get(Object)}, secondary is asked only once
+     * primary missed. Misses are not coalesced, every call goes to memcached.
+     */
+    @Override
+    public CacheFuture<Serializable> asyncGet(final Object key) {
+	final CacheKey cacheKey = CacheKey.of(key);
+	Serializable value = getLocal(cacheKey);
+	if (value != null) {
+	    return SettableCacheFuture.completed(finishGet(cacheKey, value));
+	}
+	final SettableCacheFuture<Serializable> result = new SettableCacheFuture<Serializable>();
+	if (!canUsePrimary()) {
+	    asyncGetFromSecondary(cacheKey, false, result);
+	    return result;
+	}
+	BlockingAsyncCacheService.of(primary).asyncGet(cacheKey)
+		.addListener(new CacheFuture.Listener<Serializable>() {
+
+		    @Override
+		    public void onComplete(CacheFuture<Serializable> future) {
+			try {
+			    Serializable value = valueOf(future);
+			    if (value != null) {
+				putLocal(cacheKey, value);
+				result.set(finishGet(cacheKey, value));
+			    } else {
+				asyncGetFromSecondary(cacheKey, true, result);
+			    }
+			} catch (Exception e) {
+			    setException(result, e);
+			}
+		    }
+		});
+	return result;
+    }
+
+    /**
+     * @param primaryMissed
+     *            true if primary was read and missed the key
+     */
+    private void asyncGetFromSecondary(final CacheKey key,
+	    final boolean primaryMissed,
+	    final SettableCacheFuture<Serializable> result) {
+	if (!canUseSecondary()) {
+	    result.set(finishGet(key, null));
+	    return;
+	}
+	BlockingAsyncCacheService.of(secondary).asyncGet(key)
+		.addListener(new CacheFuture.Listener<Serializable>() {
+
+		    @Override
+		    public void onComplete(CacheFuture<Serializable> future) {
+			try {
+			    Serializable value = valueOf(future);
+			    if (primaryMissed) {
+				repairPrimary(key, value);
+			    }
+			    putLocal(key, value);
+			    result.set(finishGet(key, value));
+			} catch (Exception e) {
+			    setException(result, e);
+			}
+		    }
+		});
+    }
+
+    /**
+     * Reads the keys tier by tier like {@link #getBatch(List)}, with one
+     * multiget per cluster.
+     */
+    @Override
+    public CacheFuture<List<Serializable>> asyncGetBatch(
+	    List<? extends Object> keys) {
+	final BatchRead batch = new BatchRead(keys);
+	final SettableCacheFuture<List<Serializable>> result = new SettableCacheFuture<List<Serializable>>();
+	if (batch.missing.isEmpty() || !canUsePrimary()) {
+	    asyncGetBatchFromSecondary(batch, result);
+	    return result;
+	}
+	BlockingAsyncCacheService.of(primary).asyncGetBatch(batch.missingKeys())
+		.addListener(new CacheFuture.Listener<List<Serializable>>() {
+
+		    @Override
+		    public void onComplete(CacheFuture<List<Serializable>> future) {
+			try {
+			    batch.mergePrimary(valueOf(future));
+			    asyncGetBatchFromSecondary(batch, result);
+			} catch (Exception e) {
+			    setException(result, e);
+			}
+		    }
+		});
+	return result;
+    }
+
+    private void asyncGetBatchFromSecondary(final BatchRead batch,
+	    final SettableCacheFuture<List<Serializable>> result) {
+	if (batch.missing.isEmpty() || !canUseSecondary()) {
+	    result.set(batch.finish());
+	    return;
+	}
+	BlockingAsyncCacheService.of(secondary)
+		.asyncGetBatch(batch.missingKeys())
+		.addListener(new CacheFuture.Listener<List<Serializable>>() {
+
+		    @Override
+		    public void onComplete(CacheFuture<List<Serializable>> future) {
+			try {
+			    batch.mergeSecondary(valueOf(future));
+			    result.set(batch.finish());
+			} catch (Exception e) {
+			    setException(result, e);
+			}
+		    }
+		});
+    }
+
+    /**
+     * @return true once a cluster stored the value
+     */
+    @Override
+    public CacheFuture<Boolean> asyncPut(final Object key,
+	    final int expiration, final Serializable obj) {
+	final CacheKey cacheKey = CacheKey.of(key);
+	if (AopUtils.isAopProxy(obj)) {
+	    log.warn("Code is trying to save proxy object, need to throw exception");
+	    return SettableCacheFuture.completed(Boolean.FALSE);
+	}
+	try {
+	    if (firstLevelCache != null) {
+		firstLevelCache.put(cacheKey, expiration, obj);
+	    }
+	    if (offHeapCache != null) {
+		offHeapCache.put(cacheKey, expiration, obj);
+	    }
+	    return new AnyAck(canUsePrimary() ? BlockingAsyncCacheService.of(
+		    primary).asyncPut(cacheKey, expiration, obj) : null,
+		    canUseSecondary() ? BlockingAsyncCacheService.of(secondary)
+			    .asyncPut(cacheKey, expiration, obj) : null).start();
+	} finally {
+	    if (listener != null) {
+		listener.put(key, obj);
+	    }
+	}
+    }
+
+    /**
+     * @return true if a cluster added the value
+     */
+    @Override
+    public CacheFuture<Boolean> asyncAdd(Object key, Serializable obj) {
+	final CacheKey cacheKey = CacheKey.of(key);
+	if (AopUtils.isAopProxy(obj)) {
+	    log.warn("Code is trying to save proxy object, need to throw exception");
+	    return SettableCacheFuture.completed(Boolean.TRUE);
+	}
+	try {
+	    if (firstLevelCache != null) {
+		firstLevelCache.add(cacheKey, obj);
+	    }
+	    if (offHeapCache != null) {
+		offHeapCache.add(cacheKey, obj);
+	    }
+	    return new AnyAck(canUsePrimary() ? BlockingAsyncCacheService.of(
+		    primary).asyncAdd(cacheKey, obj) : null,
+		    canUseSecondary() ? BlockingAsyncCacheService.of(secondary)
+			    .asyncAdd(cacheKey, obj) : null).start();
+	} finally {
+	    if (listener != null) {
+		listener.put(key, obj);
+	    }
+	}
+    }
+
+    @Override
+    public CacheFuture<Boolean> asyncRemove(Object key) {
+	final CacheKey cacheKey = CacheKey.of(key);
+	try {
+	    if (firstLevelCache != null) {
+		firstLevelCache.remove(cacheKey);
+	    }
+	    if (offHeapCache != null) {
+		offHeapCache.remove(cacheKey);
+	    }
+	    return new AnyAck(canUsePrimary() ? BlockingAsyncCacheService.of(
+		    primary).asyncRemove(cacheKey) : null,
+		    canUseSecondary() ? BlockingAsyncCacheService.of(secondary)
+			    .asyncRemove(cacheKey) : null).start();
+	} finally {
+	    if (listener != null) {
+		listener.remove(key);
+	    }
+	}
+    }
+
+    @Override
+    public CacheFuture<Map<Object, RemoveOutcome>> asyncRemoveBatch(
+	    final Collection<Object> keys) {
+	final List<Object> cacheKeys = CacheKey.of(keys);
+	try {
+	    CacheFuture<Map<Object, RemoveOutcome>> primaryRemoval = null, secondaryRemoval = null;
+	    if (canUsePrimary()) {
+		primaryRemoval = orFailed(BlockingAsyncCacheService.of(primary)
+			.asyncRemoveBatch(cacheKeys), cacheKeys);
+	    } else if (primary != null) {
+		primaryRemoval = skipped(cacheKeys);
+	    }
+	    if (canUseSecondary()) {
+		secondaryRemoval = orFailed(BlockingAsyncCacheService.of(
+			secondary).asyncRemoveBatch(cacheKeys), cacheKeys);
+	    } else if (secondary != null) {
+		secondaryRemoval = skipped(cacheKeys);
+	    }
+	    removeLocal(cacheKeys);
+	    return new TierJoin<Map<Object, RemoveOutcome>>(primaryRemoval,
+		    secondaryRemoval) {
+
+		@Override
+		Map<Object, RemoveOutcome> combine(
+			Map<Object, RemoveOutcome> primary,
+			Map<Object, RemoveOutcome> secondary) {
+		    return mergeOutcomes(keys, cacheKeys, primary, secondary);
+		}
+	    }.start();
+	} finally {
+	    if (listener != null) {
+		for (Object key : keys) {
+		    listener.remove(key);
+		}
+	    }
+	}
+    }
+
+    /**
+     * @return the removal, completed with failed outcomes if it fails
+     */
+    private static CacheFuture<Map<Object, RemoveOutcome>> orFailed(
+	    CacheFuture<Map<Object, RemoveOutcome>> removal,
+	    final Collection<Object> keys) {
+	final SettableCacheFuture<Map<Object, RemoveOutcome>> result = new SettableCacheFuture<Map<Object, RemoveOutcome>>();
+	removal.addListener(new CacheFuture.Listener<Map<Object, RemoveOutcome>>() {
+
+	    @Override
+	    public void onComplete(
+		    CacheFuture<Map<Object, RemoveOutcome>> future) {
+		try {
+		    result.set(valueOf(future));
+		} catch (Exception e) {
+		    log.warn("Async remove batch failed.", e);
+		    result.set(BlockingAsyncCacheService.outcomes(keys,
+			    RemoveOutcome.FAILED));
+		}
+	    }
+	});
+	return result;
+    }
+
+    /**
+     * @return the counter of secondary as in {@link #incr(Object)}, the one
+     *         of primary if secondary is down or failed, -1 if neither
+     *         incremented it
+     */
+    @Override
+    public CacheFuture<Long> asyncIncr(Object key, int by) {
+	final CacheKey cacheKey = CacheKey.of(key);
+	if (firstLevelCache != null) {
+	    firstLevelCache.incr(cacheKey);
+	}
+	if (offHeapCache != null) {
+	    offHeapCache.incr(cacheKey);
+	}
+	return new TierJoin<Long>(canUsePrimary() ? BlockingAsyncCacheService
+		.of(primary).asyncIncr(cacheKey, by) : null,
+		canUseSecondary() ? BlockingAsyncCacheService.of(secondary)
+			.asyncIncr(cacheKey, by) : null) {
+
+	    @Override
+	    Long combine(Long primary, Long secondary) {
+		if (secondary != null) {
+		    return secondary;
+		}
+		return primary != null ? primary : Long.valueOf(-1);
+	    }
+	}.start();
+    }
+
+    @Override
+    public CacheFuture<Boolean> asyncAppend(Object key, String obj) {
+	final CacheKey cacheKey = CacheKey.of(key);
+	try {
+	    if (firstLevelCache != null) {
+		firstLevelCache.append(cacheKey, obj);
+	    }
+	    if (offHeapCache != null) {
+		offHeapCache.append(cacheKey, obj);
+	    }
+	    return new AnyAck(canUsePrimary() ? BlockingAsyncCacheService.of(
+		    primary).asyncAppend(cacheKey, obj) : null,
+		    canUseSecondary() ? BlockingAsyncCacheService.of(secondary)
+			    .asyncAppend(cacheKey, obj) : null).start();
+	} finally {
+	    if (listener != null) {
+		listener.append(key, obj);
+	    }
+	}
+    }
+
+    private static <T> T valueOf(CacheFuture<T> future)
+	    throws InterruptedException, ExecutionException {
+	// called from the completion callback, never blocks
+	return future.get();
+    }
+
+    private static void setException(SettableCacheFuture<?> result,
+	    Exception e) {
+	if (e instanceof InterruptedException) {
+	    Thread.currentThread().interrupt();
+	}
+	result.setException(e instanceof ExecutionException ? e.getCause() : e);
+    }
+
+    /**
+     * Completes once the writes to both clusters completed. A cluster which
+     * is not used or failed gives null to {@link #combine(Object, Object)},
+     * the join fails only if every used cluster failed.
+     */
+    private abstract static class TierJoin<T> implements
+	    CacheFuture.Listener<T> {
+
+	private final SettableCacheFuture<T> result = new SettableCacheFuture<T>();
+	private final CacheFuture<T> primary, secondary;
+	private final AtomicInteger pending = new AtomicInteger(2);
+
+	/**
+	 * @param primary
+	 *            write to primary, null if primary is not used
+	 * @param secondary
+	 *            write to secondary, null if secondary is not used
+	 */
+	TierJoin(CacheFuture<T> primary, CacheFuture<T> secondary) {
+	    this.primary = primary;
+	    this.secondary = secondary;
+	}
+
+	abstract T combine(T primary, T secondary);
+
+	CacheFuture<T> start() {
+	    listen(primary);
+	    listen(secondary);
+	    return result;
+	}
+
+	private void listen(CacheFuture<T> future) {
+	    if (future != null) {
+		future.addListener(this);
+	    } else {
+		onComplete(null);
+	    }
+	}
+
+	@Override
+	public void onComplete(CacheFuture<T> future) {
+	    if (pending.decrementAndGet() != 0) {
+		return;
+	    }
+	    T primaryValue = null, secondaryValue = null;
+	    Exception primaryFailure = null, secondaryFailure = null;
+	    try {
+		if (primary != null) {
+		    primaryValue = valueOf(primary);
+		}
+	    } catch (Exception e) {
+		primaryFailure = e;
+	    }
+	    try {
+		if (secondary != null) {
+		    secondaryValue = valueOf(secondary);
+		}
+	    } catch (Exception e) {
+		secondaryFailure = e;
+	    }
+	    boolean primaryOk = primary != null && primaryFailure == null;
+	    boolean secondaryOk = secondary != null && secondaryFailure == null;
+	    if (!primaryOk && !secondaryOk
+		    && (primaryFailure != null || secondaryFailure != null)) {
+		setException(result, primaryFailure != null ? primaryFailure
+			: secondaryFailure);
+		return;
+	    }
+	    if (primaryFailure != null) {
+		log.warn("Async write to primary failed.", primaryFailure);
+	    }
+	    if (secondaryFailure != null) {
+		log.warn("Async write to secondary failed.", secondaryFailure);
+	    }
+	    result.set(combine(primaryValue, secondaryValue));
+	}
+    }
+
+    /**
+     * Joins the acks of a write, true if any cluster acked it.
+     */
+    private static final class AnyAck extends TierJoin<Boolean> {
+
+	AnyAck(CacheFuture<Boolean> primary, CacheFuture<Boolean> secondary) {
+	    super(primary, secondary);
+	}
+
+	@Override
+	Boolean combine(Boolean primary, Boolean secondary) {
+	    return Boolean.TRUE.equals(primary)
+		    || Boolean.TRUE.equals(secondary);
+	}
+    }
+
+    public CacheService getOffHeapCache() {
+	return offHeapCache;
+    }
+
+    /**
+     * Sets the cache checked after the local JVM cache and before the primary
+     * cluster, usually an {@link OffHeapCacheService}.
+     * 
+     * @param offHeapCache
+     */
+    public void setOffHeapCache(CacheService offHeapCache) {
+	this.offHeapCache = offHeapCache;
+    }
+
+    public boolean isMissCoalescing() {
+	return missCoalescer != null;
+    }
+
+    /**
+     * Enables the coalescing of concurrent misses of the same key, off by
+     * default. The callers coalesced share the instance loaded, see
+     * {@link MissCoalescer}.
+     * 
+     * @param missCoalescing
+     */
+    public void setMissCoalescing(boolean missCoalescing) {
+	if (!missCoalescing) {
+	    missCoalescer = null;
+	} else if (missCoalescer == null) {
+	    MissCoalescer coalescer = new MissCoalescer();
+	    coalescer.setTimeoutMsec(missCoalescingTimeoutMsec);
+	    missCoalescer = coalescer;
+	}
+    }
+
+    public MissCoalescer getMissCoalescer() {
+	return missCoalescer;
+    }
+
+    /**
+     * @param timeoutMsec
+     *            how long a missing caller waits for the same key being read
+     *            by another caller, before it reads the key itself
+     */
+    public void setMissCoalescingTimeoutMsec(long timeoutMsec) {
+	this.missCoalescingTimeoutMsec = timeoutMsec;
+	MissCoalescer coalescer = missCoalescer;
+	if (coalescer != null) {
+	    coalescer.setTimeoutMsec(timeoutMsec);
+	}
+    }
+
+    public boolean isHedgedReads() {
+	return hedgedReader != null;
+    }
+
+    /**
+     * Enables hedged reads, off by default: a primary read slower than the
+     * percentile of its recent latency is sent to secondary too, and the
+     * first non-null answer wins.
+     * 
+     * @param hedgedReads
+     */
+    public synchronized void setHedgedReads(boolean hedgedReads) {
+	if (!hedgedReads) {
+	    hedgedReader = null;
+	} else if (hedgedReader == null) {
+	    HedgedReader hedger = new HedgedReader();
+	    hedger.setPercentile(hedgedReadsPercentile);
+	    hedger.setBudgetPercent(hedgedReadsBudgetPercent);
+	    hedgedReader = hedger;
+	}
+    }
+
+    public HedgedReader getHedgedReader() {
+	return hedgedReader;
+    }
+
+    /**
+     * @param percentile
+     *            percentile of the primary latency after which a read is
+     *            hedged
+     */
+    public synchronized void setHedgedReadsPercentile(int percentile) {
+	this.hedgedReadsPercentile = percentile;
+	if (hedgedReader != null) {
+	    hedgedReader.setPercentile(percentile);
+	}
+    }
+
+    /**
+     * @param budgetPercent
+     *            hedged reads allowed per 100 reads
+     */
+    public synchronized void setHedgedReadsBudgetPercent(int budgetPercent) {
+	this.hedgedReadsBudgetPercent = budgetPercent;
+	if (hedgedReader != null) {
+	    hedgedReader.setBudgetPercent(budgetPercent);
+	}
+    }
+
+    public boolean isReadRepair() {
+	return readRepairer != null;
+    }
+
+    /**
+     * Enables the read-repair, off by default: a value found in secondary
+     * after primary missed it is added back to primary in the background.
+     * 
+     * @param readRepair
+     */
+    public synchronized void setReadRepair(boolean readRepair) {
+	if (!readRepair) {
+	    if (readRepairer != null) {
+		readRepairer.shutdown();
+		readRepairer = null;
+	    }
+	} else if (readRepairer == null && primary != null) {
+	    ReadRepairer repairer = new ReadRepairer(primary);
+	    repairer.setMaxPerSecond(readRepairMaxPerSecond);
+	    readRepairer = repairer;
+	}
+    }
+
+    public ReadRepairer getReadRepairer() {
+	return readRepairer;
+    }
+
+    /**
+     * @param maxPerSecond
+     *            repairs of primary queued per second at most
+     */
+    public synchronized void setReadRepairMaxPerSecond(int maxPerSecond) {
+	this.readRepairMaxPerSecond = maxPerSecond;
+	if (readRepairer != null) {
+	    readRepairer.setMaxPerSecond(maxPerSecond);
+	}
+    }
+
+    public boolean isWriteFanOut() {
+	return fanOutWriter != null;
+    }
+
+    /**
+     * When true, writes are issued to primary and secondary concurrently and
+     * the call returns once the write quorum acked, see {@link FanOutWriter}.
+     * Off by default, writes go to primary and then to secondary.
+     * 
+     * @param writeFanOut
+     */
+    public synchronized void setWriteFanOut(boolean writeFanOut) {
+	if (writeFanOut && fanOutWriter == null) {
+	    fanOutWriter = new FanOutWriter(writeFanOutThreads);
+	    fanOutWriter.setQuorum(writeQuorum);
+	    fanOutWriter.setTimeoutMsec(writeQuorumTimeoutMsec);
+	} else if (!writeFanOut && fanOutWriter != null) {
+	    fanOutWriter.shutdown();
+	    fanOutWriter = null;
+	}
+    }
+
+    public FanOutWriter getFanOutWriter() {
+	return fanOutWriter;
+    }
+
+    public WriteQuorum getWriteQuorum() {
+	return writeQuorum;
+    }
+
+    public synchronized void setWriteQuorum(WriteQuorum writeQuorum) {
+	this.writeQuorum = writeQuorum;
+	if (fanOutWriter != null) {
+	    fanOutWriter.setQuorum(writeQuorum);
+	}
+    }
+
+    /**
+     * @param writeQuorumTimeoutMsec
+     *            how long a fanned out write waits for its quorum
+     */
+    public synchronized void setWriteQuorumTimeoutMsec(
+	    long writeQuorumTimeoutMsec) {
+	this.writeQuorumTimeoutMsec = writeQuorumTimeoutMsec;
+	if (fanOutWriter != null) {
+	    fanOutWriter.setTimeoutMsec(writeQuorumTimeoutMsec);
+	}
+    }
+
+    /**
+     * @param writeFanOutThreads
+     *            threads of the fan-out writer, takes effect when the fan-out
+     *            is enabled
+     */
+    public synchronized void setWriteFanOutThreads(int writeFanOutThreads) {
+	this.writeFanOutThreads = writeFanOutThreads;
+    }
+
+    public long getRemoveBatchTimeoutMsec() {
+	return removeBatchTimeoutMsec;
+    }
+
+    /**
+     * @param removeBatchTimeoutMsec
+     *            how long {@link #removeBatch(Collection)} waits for the
+     *            deletes of both clusters
+     */
+    public void setRemoveBatchTimeoutMsec(long removeBatchTimeoutMsec) {
+	this.removeBatchTimeoutMsec = removeBatchTimeoutMsec;
+    }
+
+    public CircuitBreaker getPrimaryCircuitBreaker() {
+	return primaryBreaker;
+    }
+
+    public CircuitBreaker getSecondaryCircuitBreaker() {
+	return secondaryBreaker;
+    }
+
+    /**
+     * @param failureRatePercent
+     *            percent of failed calls which opens the circuit of a cluster
+     */
+    public void setCircuitFailureRateThreshold(int failureRatePercent) {
+	primaryBreaker.setFailureRateThreshold(failureRatePercent);
+	secondaryBreaker.setFailureRateThreshold(failureRatePercent);
+    }
+
+    /**
+     * @param minimumCalls
+     *            calls in the rolling window needed before a circuit opens
+     */
+    public void setCircuitMinimumCalls(int minimumCalls) {
+	primaryBreaker.setMinimumCalls(minimumCalls);
+	secondaryBreaker.setMinimumCalls(minimumCalls);
+    }
+
+    /**
+     * @param slowCallMsec
+     *            calls taking longer count as failed
+     */
+    public void setCircuitSlowCallMsec(long slowCallMsec) {
+	primaryBreaker.setSlowCallMsec(slowCallMsec);
+	secondaryBreaker.setSlowCallMsec(slowCallMsec);
+    }
+
+    /**
+     * @param openMsec
+     *            how long an open circuit skips the cluster before probing it
+     */
+    public void setCircuitOpenMsec(long openMsec) {
+	primaryBreaker.setOpenMsec(openMsec);
+	secondaryBreaker.setOpenMsec(openMsec);
+    }
+
+    /**
+     * @param windowMsec
+     *            length of the rolling window of the circuits
+     */
+    public void setCircuitWindowMsec(long windowMsec) {
+	primaryBreaker.setWindowMsec(windowMsec);
+	secondaryBreaker.setWindowMsec(windowMsec);
     }
 
     public ValueProxyFactory getProxyFactory() {
@@ -0,0 +1,343 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.salesforce.ddc.threelevelmemcache.exposed.CacheService;
+import com.salesforce.ddc.threelevelmemcache.exposed.WriteQuorum;
+
+/**
+ * Issues a write to the primary and the secondary cluster concurrently and
+ * returns once the {@link WriteQuorum} acked it. The lagging cluster finishes
+ * in the background, its failures are counted.
+ * <p/>
+ * A write which throws is a failed ack. If the pool is saturated the write
+ * runs on the caller thread, once the writer is shut down it fails right
+ * away.
+ */
+public class FanOutWriter {
+
+    private static Log log = LogFactory.getLog(FanOutWriter.class);
+
+    public static final int DEFAULT_THREADS = 16;
+    public static final long DEFAULT_TIMEOUT_MSEC = 5000;
+    private static final int MAXIMUM_QUEUED_WRITES = 10000;
+
+    /**
+     * The write done on each cluster.
+     */
+    public interface TierWrite<T> {
+
+	T write(CacheService tier);
+    }
+
+    private final ThreadPoolExecutor executor;
+    private volatile WriteQuorum quorum = WriteQuorum.PRIMARY;
+    private volatile long timeoutMsec = DEFAULT_TIMEOUT_MSEC;
+    private final AtomicLong writes = new AtomicLong(0l);
+    private final AtomicLong failures = new AtomicLong(0l);
+    private final AtomicLong laggingWrites = new AtomicLong(0l);
+    private final AtomicLong laggingFailures = new AtomicLong(0l);
+    private final AtomicLong quorumTimeouts = new AtomicLong(0l);
+
+    public FanOutWriter() {
+	this(DEFAULT_THREADS);
+    }
+
+    /**
+     * @param threads
+     *            number of threads writing to the clusters
+     */
+    public FanOutWriter(int threads) {
+	executor = new ThreadPoolExecutor(threads, threads, 60,
+		TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(
+			MAXIMUM_QUEUED_WRITES), new ThreadFactory() {
+
+		    private final AtomicInteger count = new AtomicInteger();
+
+		    @Override
+		    public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "CacheFanOutWriter-"
+				+ count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		    }
+		}, new RejectedExecutionHandler() {
+
+		    @Override
+		    public void rejectedExecution(Runnable r,
+			    ThreadPoolExecutor executor) {
+			if (executor.isShutdown()) {
+			    ((TierWriteTask<?>) r).reject();
+			} else {
+			    // caller runs
+			    r.run();
+			}
+		    }
+		});
+	executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @param primary
+     *            primary cluster, null if it's not usable
+     * @param secondary
+     *            secondary cluster, null if it's not usable
+     * @param write
+     * @return acks received by the time the quorum was met or timed out
+     */
+    public <T> Acks<T> write(CacheService primary, CacheService secondary,
+	    TierWrite<T> write) {
+	Acks<T> acks = new Acks<T>(primary != null, secondary != null);
+	if (primary != null) {
+	    submit(acks, primary, true, write);
+	}
+	if (secondary != null) {
+	    submit(acks, secondary, false, write);
+	}
+	if (!acks.await(quorum, timeoutMsec)) {
+	    quorumTimeouts.incrementAndGet();
+	    if (log.isDebugEnabled()) {
+		log.debug("Write quorum " + quorum + " not met in "
+			+ timeoutMsec + " msec.");
+	    }
+	}
+	return acks;
+    }
+
+    private <T> void submit(Acks<T> acks, CacheService tier,
+	    boolean isPrimary, TierWrite<T> write) {
+	writes.incrementAndGet();
+	executor.execute(new TierWriteTask<T>(acks, tier, isPrimary, write));
+    }
+
+    /**
+     * The write of one cluster, acked when done or rejected.
+     */
+    private final class TierWriteTask<T> implements Runnable {
+
+	private final Acks<T> acks;
+	private final CacheService tier;
+	private final boolean isPrimary;
+	private final TierWrite<T> write;
+
+	TierWriteTask(Acks<T> acks, CacheService tier, boolean isPrimary,
+		TierWrite<T> write) {
+	    this.acks = acks;
+	    this.tier = tier;
+	    this.isPrimary = isPrimary;
+	    this.write = write;
+	}
+
+	@Override
+	public void run() {
+	    T value = null;
+	    boolean failed = true;
+	    try {
+		value = write.write(tier);
+		failed = false;
+	    } catch (RuntimeException e) {
+		log.warn("Write to " + (isPrimary ? "primary" : "secondary")
+			+ " failed.", e);
+	    } finally {
+		complete(value, failed);
+	    }
+	}
+
+	/**
+	 * Fails the write, the writer is shut down.
+	 */
+	void reject() {
+	    log.warn("Write to " + (isPrimary ? "primary" : "secondary")
+		    + " rejected, the writer is shut down.");
+	    complete(null, true);
+	}
+
+	private void complete(T value, boolean failed) {
+	    if (failed) {
+		failures.incrementAndGet();
+	    }
+	    if (acks.complete(isPrimary, value, failed)) {
+		laggingWrites.incrementAndGet();
+		if (failed) {
+		    laggingFailures.incrementAndGet();
+		}
+	    }
+	}
+    }
+
+    public void shutdown() {
+	executor.shutdown();
+    }
+
+    public WriteQuorum getQuorum() {
+	return quorum;
+    }
+
+    public void setQuorum(WriteQuorum quorum) {
+	this.quorum = quorum;
+    }
+
+    public long getTimeoutMsec() {
+	return timeoutMsec;
+    }
+
+    /**
+     * @param timeoutMsec
+     *            how long the caller waits for the quorum
+     */
+    public void setTimeoutMsec(long timeoutMsec) {
+	this.timeoutMsec = timeoutMsec;
+    }
+
+    /**
+     * @return number of writes issued to a cluster
+     */
+    public long getWrites() {
+	return writes.get();
+    }
+
+    public long getFailures() {
+	return failures.get();
+    }
+
+    /**
+     * @return number of writes which completed after the caller returned
+     */
+    public long getLaggingWrites() {
+	return laggingWrites.get();
+    }
+
+    /**
+     * @return number of writes which failed after the caller returned
+     */
+    public long getLaggingFailures() {
+	return laggingFailures.get();
+    }
+
+    public long getQuorumTimeouts() {
+	return quorumTimeouts.get();
+    }
+
+    /**
+     * Acks of one fanned out write.
+     */
+    public static final class Acks<T> {
+
+	private final boolean hasPrimary, hasSecondary;
+	private boolean primaryDone, secondaryDone;
+	private boolean primaryFailed, secondaryFailed;
+	private T primaryValue, secondaryValue;
+	private boolean returned;
+
+	Acks(boolean hasPrimary, boolean hasSecondary) {
+	    this.hasPrimary = hasPrimary;
+	    this.hasSecondary = hasSecondary;
+	}
+
+	/**
+	 * @return true if the caller returned already
+	 */
+	synchronized boolean complete(boolean isPrimary, T value,
+		boolean failed) {
+	    if (isPrimary) {
+		primaryDone = true;
+		primaryFailed = failed;
+		primaryValue = value;
+	    } else {
+		secondaryDone = true;
+		secondaryFailed = failed;
+		secondaryValue = value;
+	    }
+	    notifyAll();
+	    return returned;
+	}
+
+	synchronized boolean await(WriteQuorum quorum, long timeoutMsec) {
+	    long deadline = System.currentTimeMillis() + timeoutMsec;
+	    try {
+		while (!isMet(quorum)) {
+		    long remaining = deadline - System.currentTimeMillis();
+		    if (remaining <= 0) {
+			return false;
+		    }
+		    wait(remaining);
+		}
+		return true;
+	    } catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+		return false;
+	    } finally {
+		returned = true;
+	    }
+	}
+
+	private boolean isMet(WriteQuorum quorum) {
+	    boolean allDone = (!hasPrimary || primaryDone)
+		    && (!hasSecondary || secondaryDone);
+	    switch (quorum) {
+	    case PRIMARY:
+		return hasPrimary ? primaryDone : allDone;
+	    case ANY:
+		return isPrimaryAcked() || isSecondaryAcked() || allDone;
+	    default:
+		return allDone;
+	    }
+	}
+
+	public synchronized boolean isPrimaryAcked() {
+	    return primaryDone && !primaryFailed;
+	}
+
+	public synchronized boolean isSecondaryAcked() {
+	    return secondaryDone && !secondaryFailed;
+	}
+
+	/**
+	 * @return the result of the primary write, null if it's not acked
+	 */
+	public synchronized T getPrimary() {
+	    return primaryValue;
+	}
+
+	/**
+	 * @return the result of the secondary write, null if it's not acked
+	 */
+	public synchronized T getSecondary() {
+	    return secondaryValue;
+	}
+    }
+}
@@ -25,6 +25,8 @@
  */
 package com.salesforce.ddc.threelevelmemcache;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
@@ -37,46 +39,138 @@ import java.util.Map;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import net.spy.memcached.transcoders.SerializingTranscoder;
+import net.spy.memcached.transcoders.Transcoder;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com.salesforce.ddc.threelevelmemcache.eviction.EvictionPolicy;
+import com.salesforce.ddc.threelevelmemcache.eviction.FirstLevelCacheEntry;
+import com.salesforce.ddc.threelevelmemcache.eviction.MissRatioCurve;
+import com.salesforce.ddc.threelevelmemcache.eviction.ReadBuffer;
+import com.salesforce.ddc.threelevelmemcache.eviction.SerializedSizeWeigher;
+import com.salesforce.ddc.threelevelmemcache.eviction.TimerWheel;
+import com.salesforce.ddc.threelevelmemcache.eviction.Weigher;
+import com.salesforce.ddc.threelevelmemcache.eviction.WindowTinyLfuEvictionPolicy;
 import com.salesforce.ddc.threelevelmemcache.exposed.AdminCacheService;
+import com.salesforce.ddc.threelevelmemcache.exposed.AsyncCacheService;
+import com.salesforce.ddc.threelevelmemcache.exposed.CacheFuture;
 import com.salesforce.ddc.threelevelmemcache.exposed.CacheService;
+import com.salesforce.ddc.threelevelmemcache.exposed.RemoveOutcome;
 import com.salesforce.ddc.threelevelmemcache.exposed.listener.CacheListener;
 import com.salesforce.ddc.threelevelmemcache.exposed.strategy.CachingStrategy;
 import com.salesforce.ddc.threelevelmemcache.strategy.DefaultAnnotationBasedCachingStrategy;
 
 /**
  * In-memory JVM cache
+ * <p/>
+ * Reads and writes only touch the concurrent map, policy bookkeeping is
+ * recorded into buffers and replayed by the maintenance routine, which runs
+ * either on the caller thread that wins the lock or, in async mode, on a
+ * dedicated maintenance thread.
+ * <p/>
+ * Entries put with an expiration are scheduled on a timer wheel and swept in
+ * batches by the maintenance routine, an expired entry is never returned even
+ * if it was not swept yet.
+ * <p/>
+ * The cache is bounded by the number of entries and, if maxBytes is set, by
+ * the estimated size of the entries as well. Sizes are estimated by a
+ * pluggable {@link Weigher}.
+ * <p/>
+ * If a snapshot file is set, the entries are written to it on shutdown and
+ * served from it after the restart, see {@link FirstLevelCacheSnapshot}. The
+ * snapshot is opened on first use, with the transcoder set by then.
+ * <p/>
+ * If missRatioCurveKeys is set, the reads of a sample of the keys estimate
+ * the hit ratio of smaller and larger caches, see {@link MissRatioCurve}.
  * 
  * @author Alexander Khimich
  */
 
-public class FirstLevelCacheService implements CacheService, AdminCacheService {
+public class FirstLevelCacheService implements CacheService, AdminCacheService,
+	AsyncCacheService {
 
     /**
      * Logger
      */
     private static Log log = LogFactory.getLog(FirstLevelCacheService.class);
+    /**
+     * How far the cache may grow above its maximum while the maintenance
+     * thread is behind, before the callers start to evict themselves.
+     */
+    private static final int MAXIMUM_OVERSHOOT = 1024;
+    /**
+     * Estimated heap cost of an entry besides the key and the value.
+     */
+    private static final int ENTRY_OVERHEAD_BYTES = 96;
+    /**
+     * Memcached treats expirations above 30 days as unix time.
+     */
+    private static final int MAXIMUM_RELATIVE_EXPIRATION = 60 * 60 * 24 * 30;
+    /**
+     * How often the maintenance thread sweeps expired entries.
+     */
+    private static final long EXPIRATION_SWEEP_INTERVAL_MSEC = 1000;
     /**
      * The cache map.
      */
     protected int size = 1000;
     protected AtomicLong items = new AtomicLong(0l);
-    protected ConcurrentHashMap<Object, Serializable> cache = new ConcurrentHashMap<Object, Serializable>(
+    protected long maxBytes = 0;
+    protected AtomicLong weightedSize = new AtomicLong(0l);
+    protected Weigher weigher;
+    protected ConcurrentHashMap<Object, FirstLevelCacheEntry> cache = new ConcurrentHashMap<Object, FirstLevelCacheEntry>(
 	    size, 0.75F, 50);
-    protected Queue<String> keys = new ConcurrentLinkedQueue<String>();
     protected CacheListener listener;
     protected CachingStrategy cachingStrategy = new DefaultAnnotationBasedCachingStrategy();
+    protected EvictionPolicy evictionPolicy = new WindowTinyLfuEvictionPolicy();
+
+    private final ReadBuffer readBuffer = new ReadBuffer();
+    private final Queue<Runnable> writeBuffer = new ConcurrentLinkedQueue<Runnable>();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private final AtomicLong evictions = new AtomicLong(0l);
+    private final AtomicLong expirations = new AtomicLong(0l);
+    private final TimerWheel timerWheel;
+    private final List<FirstLevelCacheEntry> expired = new ArrayList<FirstLevelCacheEntry>();
+    private volatile boolean drainRequired;
+    private volatile ScheduledExecutorService maintenanceExecutor;
+    private String snapshotFile;
+    private Transcoder<Object> snapshotTranscoder = new SerializingTranscoder();
+    private volatile FirstLevelCacheSnapshot snapshot;
+    /** the snapshot file is set but not opened yet */
+    private volatile boolean snapshotPending;
+    private volatile MissRatioCurve missRatioCurve;
+
+    private final Runnable drainTask = new Runnable() {
+
+	@Override
+	public void run() {
+	    drainScheduled.set(false);
+	    drainBuffers();
+	}
+    };
 
     public FirstLevelCacheService(int size) {
 	this.size = size;
+	this.evictionPolicy.setMaximum(size);
+	this.timerWheel = new TimerWheel(currentTimeNanos());
     }
 
     public FirstLevelCacheService() {
+	this.evictionPolicy.setMaximum(size);
+	this.timerWheel = new TimerWheel(currentTimeNanos());
     }
 
     @Override
@@ -86,10 +180,14 @@ public class FirstLevelCacheService implements CacheService, AdminCacheService {
 	}
 
 	String normalizedKey = getKey(key);
-	String indexList = (String) cache.get(normalizedKey);
-	if (StringUtils.isNotBlank(indexList)) {
-	    cache.replace(normalizedKey, new StringBuffer(indexList)
-		    .append(",").append(obj).toString());
+	FirstLevelCacheEntry entry = cache.get(normalizedKey);
+	if (entry != null) {
+	    String indexList = (String) entry.getValue();
+	    if (StringUtils.isNotBlank(indexList)) {
+		// new entry, the weight of the value changes
+		replaceEntry(entry, new StringBuffer(indexList).append(",")
+			.append(obj).toString());
+	    }
 	}
 
 	if (listener != null)
@@ -107,13 +205,60 @@ public class FirstLevelCacheService implements CacheService, AdminCacheService {
 	}
 
 	try {
-	    return cache.get(getKey(key));
+	    String _key = getKey(key);
+	    MissRatioCurve curve = missRatioCurve;
+	    if (curve != null) {
+		curve.record(_key);
+	    }
+	    FirstLevelCacheEntry entry = cache.get(_key);
+	    if (entry == null) {
+		return loadFromSnapshot(_key);
+	    }
+	    if (entry.getExpiresAt() != 0
+		    && entry.isExpired(currentTimeNanos())) {
+		removeExpired(entry);
+		return null;
+	    }
+	    if (readBuffer.offer(entry)) {
+		scheduleDrain(false);
+	    }
+	    return entry.getValue();
 	} finally {
 	    if (listener != null)
 		listener.get(key);
 	}
     }
 
+    /**
+     * Moves the value of the key from the snapshot to the cache.
+     */
+    private Serializable loadFromSnapshot(String _key) {
+	FirstLevelCacheSnapshot current = getSnapshot();
+	if (current == null) {
+	    return null;
+	}
+	if (current.size() == 0) {
+	    // every key was served, let the mapping go
+	    snapshot = null;
+	    return null;
+	}
+	FirstLevelCacheSnapshot.Entry entry = current.take(_key);
+	if (entry == null) {
+	    return null;
+	}
+	long expiresAt = 0;
+	if (entry.getExpiresAt() != 0) {
+	    long remaining = entry.getExpiresAt() - System.currentTimeMillis();
+	    if (remaining <= 0) {
+		return null;
+	    }
+	    expiresAt = currentTimeNanos()
+		    + TimeUnit.MILLISECONDS.toNanos(remaining);
+	}
+	putEntry(_key, entry.getValue(), expiresAt);
+	return entry.getValue();
+    }
+
     @SuppressWarnings("rawtypes")
     @Override
     public List<Serializable> getBatch(List keys) {
@@ -129,8 +274,33 @@ public class FirstLevelCacheService implements CacheService, AdminCacheService {
 	Map<SocketAddress, Map<String, String>> stats = new HashMap<SocketAddress, Map<String, String>>();
 	SocketAddress server = new InetSocketAddress(0);
 	Map<String, String> s = new LinkedHashMap<String, String>();
-	s.put("maxSize", String.valueOf(size));
-	s.put("items", String.valueOf(items));
+	s.put("entries", String.valueOf(items));
+	s.put("maxEntries", String.valueOf(size));
+	if (maxBytes > 0) {
+	    s.put("bytes", String.valueOf(weightedSize));
+	    s.put("maxBytes", String.valueOf(maxBytes));
+	}
+	s.put("evictions", String.valueOf(evictions));
+	s.put("expirations", String.valueOf(expirations));
+	s.put("evictionPolicy", evictionPolicy.getClass().getSimpleName());
+	FirstLevelCacheSnapshot current = getSnapshot();
+	if (current != null) {
+	    s.put("snapshotEntries", String.valueOf(current.size()));
+	}
+	MissRatioCurve curve = missRatioCurve;
+	if (curve != null) {
+	    s.put("mrc.sampleRate", String.valueOf(curve.rate()));
+	    s.put("mrc.sampledKeys", String.valueOf(curve.getSampledKeys()));
+	    // hit ratios of caches from an eighth to 8 times the current size
+	    for (int shift = -3; shift <= 3; shift++) {
+		long entries = shift < 0 ? size >> -shift : (long) size << shift;
+		if (entries > 0) {
+		    s.put("mrc.hitRatio." + entries,
+			    String.valueOf(curve.hitRatio(entries)));
+		}
+	    }
+	}
+	s.put("isAsyncMaintenance", String.valueOf(isAsyncMaintenance()));
 	s.put("isSynchronousPut", String.valueOf(isSynchronousPut()));
 	stats.put(server, s);
 	return stats;
@@ -149,23 +319,275 @@ public class FirstLevelCacheService implements CacheService, AdminCacheService {
 	}
 
 	try {
-	    String _key = getKey(key);
-	    // if exist - just update in the cache.
-	    if (cache.put(_key, obj) == null) {
-		keys.add(_key);
-		if (items.addAndGet(1) > size) {
-		    free();
-		}
-	    }
+	    putEntry(getKey(key), obj);
 	} finally {
 	    if (listener != null)
 		listener.put(key, obj);
 	}
     }
 
+    /**
+     * Stores the value, an existing mapping is replaced by a new entry.
+     * 
+     * @param _key
+     *            normalized key
+     * @param obj
+     *            value
+     */
+    protected void putEntry(String _key, Serializable obj) {
+	putEntry(_key, obj, 0);
+    }
+
+    /**
+     * Stores the value which expires at the given time.
+     * 
+     * @param _key
+     *            normalized key
+     * @param obj
+     *            value
+     * @param expiresAt
+     *            expiration time in {@link #currentTimeNanos()} units, 0 means
+     *            never
+     */
+    protected void putEntry(String _key, Serializable obj, long expiresAt) {
+	discardSnapshot(_key);
+	int weight = weigh(_key, obj);
+	if (maxBytes > 0 && weight > maxBytes) {
+	    // would evict everything else, keep the stale value out as well
+	    removeEntry(_key);
+	    return;
+	}
+	FirstLevelCacheEntry entry = new FirstLevelCacheEntry(_key, obj,
+		expiresAt, weight);
+	FirstLevelCacheEntry prior = cache.put(_key, entry);
+	if (prior == null) {
+	    items.incrementAndGet();
+	    weightedSize.addAndGet(weight);
+	} else {
+	    weightedSize.addAndGet(weight - prior.getWeight());
+	    prior.retire();
+	    writeBuffer.add(new RemovalTask(prior));
+	}
+	writeBuffer.add(new AddTask(entry));
+	scheduleDrain(isOvershoot());
+    }
+
+    /**
+     * Replaces the entry by a new one with the value, only if the entry is
+     * still mapped: a concurrent remove or put wins.
+     * 
+     * @param prior
+     *            entry read from the cache
+     * @param obj
+     *            new value, expires with the prior one
+     */
+    private void replaceEntry(FirstLevelCacheEntry prior, Serializable obj) {
+	String _key = prior.getKey();
+	int weight = weigh(_key, obj);
+	if (maxBytes > 0 && weight > maxBytes) {
+	    // would evict everything else, keep the stale value out as well
+	    if (cache.remove(_key, prior)) {
+		decrement(prior);
+		prior.retire();
+		writeBuffer.add(new RemovalTask(prior));
+		scheduleDrain(false);
+	    }
+	    return;
+	}
+	FirstLevelCacheEntry entry = new FirstLevelCacheEntry(_key, obj,
+		prior.getExpiresAt(), weight);
+	if (!cache.replace(_key, prior, entry)) {
+	    return;
+	}
+	weightedSize.addAndGet(weight - prior.getWeight());
+	prior.retire();
+	writeBuffer.add(new RemovalTask(prior));
+	writeBuffer.add(new AddTask(entry));
+	scheduleDrain(isOvershoot());
+    }
+
+    /**
+     * @return the weight of the entry: 1 if the cache is bounded by entries,
+     *         the estimated bytes otherwise
+     */
+    private int weigh(String _key, Serializable obj) {
+	if (maxBytes <= 0) {
+	    return 1;
+	}
+	long weight = ENTRY_OVERHEAD_BYTES + 2L * _key.length();
+	if (obj != null) {
+	    weight += weigher.weigh(obj);
+	}
+	return (int) Math.min(weight, Integer.MAX_VALUE);
+    }
+
+    private boolean isAboveMaximum() {
+	return items.get() > size
+		|| (maxBytes > 0 && weightedSize.get() > maxBytes);
+    }
+
+    private boolean isOvershoot() {
+	return items.get() > size + MAXIMUM_OVERSHOOT
+		|| (maxBytes > 0 && weightedSize.get() - maxBytes > maxBytes / 8);
+    }
+
+    private void decrement(FirstLevelCacheEntry entry) {
+	items.decrementAndGet();
+	weightedSize.addAndGet(-entry.getWeight());
+    }
+
+    /**
+     * Removes the mapping, O(1): the entry is unlinked from the policy by the
+     * maintenance routine.
+     * 
+     * @param _key
+     *            normalized key
+     * @return removed entry or null
+     */
+    protected FirstLevelCacheEntry removeEntry(String _key) {
+	discardSnapshot(_key);
+	FirstLevelCacheEntry entry = cache.remove(_key);
+	if (entry != null) {
+	    decrement(entry);
+	    entry.retire();
+	    writeBuffer.add(new RemovalTask(entry));
+	    scheduleDrain(false);
+	}
+	return entry;
+    }
+
+    private void discardSnapshot(String _key) {
+	FirstLevelCacheSnapshot current = getSnapshot();
+	if (current != null) {
+	    current.discard(_key);
+	}
+    }
+
+    private void removeExpired(FirstLevelCacheEntry entry) {
+	if (cache.remove(entry.getKey(), entry)) {
+	    decrement(entry);
+	    expirations.incrementAndGet();
+	    entry.retire();
+	    writeBuffer.add(new RemovalTask(entry));
+	    scheduleDrain(false);
+	}
+    }
+
+    /**
+     * Requests the maintenance. In async mode the drain is handed to the
+     * maintenance thread unless forced, otherwise it's done by the caller if
+     * no other thread is doing it already.
+     * 
+     * @param force
+     *            drain on the caller thread
+     */
+    protected void scheduleDrain(boolean force) {
+	drainRequired = true;
+	ScheduledExecutorService executor = maintenanceExecutor;
+	if (executor == null || force) {
+	    drainBuffers();
+	} else if (drainScheduled.compareAndSet(false, true)) {
+	    try {
+		executor.execute(drainTask);
+	    } catch (RejectedExecutionException e) {
+		drainScheduled.set(false);
+		drainBuffers();
+	    }
+	}
+    }
+
+    protected void drainBuffers() {
+	while (drainRequired && evictionLock.tryLock()) {
+	    try {
+		drainRequired = false;
+		maintenance();
+	    } finally {
+		evictionLock.unlock();
+	    }
+	}
+    }
+
+    /**
+     * Replays buffered reads and writes to the policy, sweeps expired entries
+     * and evicts the entries above the maximum. Must be called under the
+     * eviction lock.
+     */
+    private void maintenance() {
+	readBuffer.drainTo(evictionPolicy);
+	Runnable task;
+	while ((task = writeBuffer.poll()) != null) {
+	    task.run();
+	}
+	expireEntries();
+	free();
+    }
+
+    private void expireEntries() {
+	timerWheel.advance(currentTimeNanos(), expired);
+	for (FirstLevelCacheEntry entry : expired) {
+	    if (cache.remove(entry.getKey(), entry)) {
+		decrement(entry);
+		expirations.incrementAndGet();
+	    }
+	    entry.retire();
+	    evictionPolicy.onRemove(entry);
+	}
+	expired.clear();
+    }
+
+    /**
+     * Time source of the expirations, {@link System#nanoTime()}. Called from
+     * the constructors, it must not depend on the state of a subclass.
+     */
+    protected long currentTimeNanos() {
+	return System.nanoTime();
+    }
+
     protected void free() {
-	if (cache.remove(keys.poll()) != null) {
-	    items.addAndGet(-1);
+	while (isAboveMaximum()) {
+	    FirstLevelCacheEntry victim = evictionPolicy.evict();
+	    if (victim == null) {
+		return;
+	    }
+	    if (cache.remove(victim.getKey(), victim)) {
+		decrement(victim);
+		evictions.incrementAndGet();
+	    }
+	    victim.retire();
+	    timerWheel.deschedule(victim);
+	}
+    }
+
+    private final class AddTask implements Runnable {
+
+	private final FirstLevelCacheEntry entry;
+
+	AddTask(FirstLevelCacheEntry entry) {
+	    this.entry = entry;
+	}
+
+	@Override
+	public void run() {
+	    // skip if removed before the insert was replayed
+	    if (entry.isAlive()) {
+		evictionPolicy.onInsert(entry);
+		timerWheel.schedule(entry);
+	    }
+	}
+    }
+
+    private final class RemovalTask implements Runnable {
+
+	private final FirstLevelCacheEntry entry;
+
+	RemovalTask(FirstLevelCacheEntry entry) {
+	    this.entry = entry;
+	}
+
+	@Override
+	public void run() {
+	    evictionPolicy.onRemove(entry);
+	    timerWheel.deschedule(entry);
 	}
     }
 
@@ -191,12 +613,7 @@ public class FirstLevelCacheService implements CacheService, AdminCacheService {
 	    if (size == 0) {
 		return;
 	    }
-	    String _key = getKey(key);
-	    Serializable value = cache.remove(_key);
-	    keys.remove(_key);
-	    if (value != null) {
-		items.addAndGet(-1);
-	    }
+	    removeEntry(getKey(key));
 	} finally {
 	    if (listener != null)
 		listener.remove(key);
@@ -216,9 +633,31 @@ public class FirstLevelCacheService implements CacheService, AdminCacheService {
 
     @Override
     public void shutdown() {
-	this.cache.clear();
-	this.keys.clear();
-	this.items = new AtomicLong(0);
+	if (snapshotFile != null) {
+	    writeSnapshot();
+	}
+	clearAll();
+	setAsyncMaintenance(false);
+    }
+
+    private void writeSnapshot() {
+	List<FirstLevelCacheEntry> entries = new ArrayList<FirstLevelCacheEntry>(
+		cache.size());
+	evictionLock.lock();
+	try {
+	    maintenance();
+	    evictionPolicy.entries(entries);
+	} finally {
+	    evictionLock.unlock();
+	}
+	File file = new File(snapshotFile);
+	try {
+	    int count = FirstLevelCacheSnapshot.write(file, entries,
+		    currentTimeNanos(), snapshotTranscoder);
+	    log.info("Wrote " + count + " entries to snapshot " + file);
+	} catch (IOException e) {
+	    log.warn("Unable to write snapshot " + file, e);
+	}
     }
 
     @Override
@@ -227,9 +666,26 @@ public class FirstLevelCacheService implements CacheService, AdminCacheService {
 
     @Override
     public void clearAll() {
-	cache.clear();
-	keys.clear();
-	items = new AtomicLong(0);
+	dropSnapshot();
+	clearEntries();
+    }
+
+    private void clearEntries() {
+	evictionLock.lock();
+	try {
+	    for (FirstLevelCacheEntry entry : cache.values()) {
+		entry.retire();
+	    }
+	    cache.clear();
+	    writeBuffer.clear();
+	    readBuffer.drainTo(evictionPolicy);
+	    evictionPolicy.clear();
+	    timerWheel.clear();
+	    items.set(0);
+	    weightedSize.set(0);
+	} finally {
+	    evictionLock.unlock();
+	}
     }
 
     @Override
@@ -244,7 +700,7 @@ public class FirstLevelCacheService implements CacheService, AdminCacheService {
 	 * Ak: to avoid synchronization problems remove from FirstLevelCache, so
 	 * next time real value comes from memcached.
 	 */
-	cache.remove(_key);
+	removeEntry(_key);
 	return -1;
     }
 
@@ -255,7 +711,7 @@ public class FirstLevelCacheService implements CacheService, AdminCacheService {
 	 * Ak: to avoid synchronization problems remove from FirstLevelCache, so
 	 * next time real value comes from memcached.
 	 */
-	cache.remove(_key);
+	removeEntry(_key);
 	return -1;
     }
 
@@ -281,7 +737,7 @@ public class FirstLevelCacheService implements CacheService, AdminCacheService {
 	 * Ak: to avoid synchronization problems remove from FirstLevelCache, so
 	 * next time real value comes from memcached.
 	 */
-	cache.remove(_key);
+	removeEntry(_key);
 	return Boolean.TRUE;
     }
 
@@ -309,15 +765,44 @@ public class FirstLevelCacheService implements CacheService, AdminCacheService {
 	return decr(key);
     }
 
-    /*
-     * (non-Javadoc)
+    /**
+     * Stores the value for the given number of seconds. As in memcached, 0
+     * means no expiration and values above 30 days are unix time.
      * 
-     * @see com.salesforce.jigsaw.cache.CacheService#put(java.lang.Object, int,
-     * java.io.Serializable)
+     * @see com.salesforce.ddc.threelevelmemcache.exposed.CacheService#put(java.lang.Object,
+     *      int, java.io.Serializable)
      */
     @Override
     public void put(Object key, int expiration, Serializable obj) {
-	put(key, obj);
+	if (expiration <= 0) {
+	    put(key, obj);
+	    return;
+	}
+	if (key == null || size == 0 || !cachingStrategy.isCacheable(key, obj)) {
+	    return;
+	}
+
+	try {
+	    long ttlSeconds = expiration;
+	    if (expiration > MAXIMUM_RELATIVE_EXPIRATION) {
+		ttlSeconds = expiration - System.currentTimeMillis() / 1000;
+	    }
+	    if (ttlSeconds <= 0) {
+		// already expired, drop the stale value if any
+		removeEntry(getKey(key));
+		return;
+	    }
+	    long expiresAt = currentTimeNanos()
+		    + TimeUnit.SECONDS.toNanos(ttlSeconds);
+	    if (expiresAt == 0) {
+		// 0 is reserved for entries without expiration
+		expiresAt = 1;
+	    }
+	    putEntry(getKey(key), obj, expiresAt);
+	} finally {
+	    if (listener != null)
+		listener.put(key, obj);
+	}
     }
 
     public CachingStrategy getCachingStrategy() {
@@ -328,4 +813,253 @@ public class FirstLevelCacheService implements CacheService, AdminCacheService {
 	this.cachingStrategy = cachingStrategy;
     }
 
+    public EvictionPolicy getEvictionPolicy() {
+	return evictionPolicy;
+    }
+
+    /**
+     * Replaces the eviction policy, entries already in the cache are handed
+     * over to the new policy.
+     * 
+     * @param evictionPolicy
+     */
+    public void setEvictionPolicy(EvictionPolicy evictionPolicy) {
+	evictionLock.lock();
+	try {
+	    maintenance();
+	    this.evictionPolicy.clear();
+	    evictionPolicy.setMaximum(policyMaximum());
+	    for (FirstLevelCacheEntry entry : cache.values()) {
+		evictionPolicy.onInsert(entry);
+	    }
+	    this.evictionPolicy = evictionPolicy;
+	} finally {
+	    evictionLock.unlock();
+	}
+    }
+
+    private long policyMaximum() {
+	return maxBytes > 0 ? maxBytes : size;
+    }
+
+    public long getMaxBytes() {
+	return maxBytes;
+    }
+
+    /**
+     * Bounds the cache by the estimated size of the entries in addition to
+     * their number, 0 disables the limit. Changing the limit clears the cache.
+     * Every put then weighs its value, the default weigher serializes values
+     * other than strings and byte arrays, see WeigherBenchmark.
+     * 
+     * @param maxBytes
+     */
+    public void setMaxBytes(long maxBytes) {
+	evictionLock.lock();
+	try {
+	    clearEntries();
+	    this.maxBytes = maxBytes;
+	    if (maxBytes > 0 && weigher == null) {
+		weigher = new SerializedSizeWeigher();
+	    }
+	    evictionPolicy.setMaximum(policyMaximum());
+	} finally {
+	    evictionLock.unlock();
+	}
+    }
+
+    public Weigher getWeigher() {
+	return weigher;
+    }
+
+    /**
+     * Sets the weigher of the values, used when maxBytes is set. Defaults to
+     * {@link SerializedSizeWeigher}. Changing the weigher clears the cache.
+     * 
+     * @param weigher
+     */
+    public void setWeigher(Weigher weigher) {
+	evictionLock.lock();
+	try {
+	    clearEntries();
+	    this.weigher = weigher;
+	} finally {
+	    evictionLock.unlock();
+	}
+    }
+
+    public String getSnapshotFile() {
+	return snapshotFile;
+    }
+
+    /**
+     * Enables the warm restart: the entries are written to the file on
+     * shutdown, and the file left by the previous shutdown is loaded on first
+     * use. An empty value disables it.
+     * 
+     * @param snapshotFile
+     */
+    public synchronized void setSnapshotFile(String snapshotFile) {
+	this.snapshot = null;
+	if (StringUtils.isBlank(snapshotFile)) {
+	    this.snapshotFile = null;
+	    this.snapshotPending = false;
+	    return;
+	}
+	this.snapshotFile = snapshotFile;
+	this.snapshotPending = true;
+    }
+
+    /**
+     * Opens the snapshot on first use, so it's decoded by the transcoder set
+     * after the file, whatever the order of the properties is.
+     * 
+     * @return the snapshot, null if there is none or every key was served
+     */
+    private FirstLevelCacheSnapshot getSnapshot() {
+	if (snapshotPending) {
+	    openSnapshot();
+	}
+	return snapshot;
+    }
+
+    private synchronized void openSnapshot() {
+	if (snapshotPending) {
+	    snapshot = FirstLevelCacheSnapshot.open(new File(snapshotFile),
+		    size, snapshotTranscoder);
+	    snapshotPending = false;
+	}
+    }
+
+    private synchronized void dropSnapshot() {
+	snapshot = null;
+	snapshotPending = false;
+    }
+
+    public int getMissRatioCurveKeys() {
+	MissRatioCurve curve = missRatioCurve;
+	return curve != null ? curve.getMaxKeys() : 0;
+    }
+
+    /**
+     * Estimates the hit ratio the cache would have at other sizes from the
+     * reads of at most this many sampled keys, published by
+     * {@link #getStats()}. 0 disables the estimation. Changing the value
+     * restarts the estimation.
+     * 
+     * @param missRatioCurveKeys
+     */
+    public void setMissRatioCurveKeys(int missRatioCurveKeys) {
+	this.missRatioCurve = missRatioCurveKeys > 0 ? new MissRatioCurve(
+		missRatioCurveKeys) : null;
+    }
+
+    public Transcoder<Object> getSnapshotTranscoder() {
+	return snapshotTranscoder;
+    }
+
+    /**
+     * Sets the transcoder of the snapshot values. Defaults to
+     * {@link SerializingTranscoder}.
+     * 
+     * @param snapshotTranscoder
+     */
+    public void setSnapshotTranscoder(Transcoder<Object> snapshotTranscoder) {
+	this.snapshotTranscoder = snapshotTranscoder;
+    }
+
+    public boolean isAsyncMaintenance() {
+	return maintenanceExecutor != null;
+    }
+
+    /**
+     * When true, eviction and policy bookkeeping run on a dedicated daemon
+     * thread instead of the threads calling the cache. The thread also sweeps
+     * expired entries every second, so they are freed even if the cache is
+     * idle.
+     * 
+     * @param asyncMaintenance
+     */
+    public synchronized void setAsyncMaintenance(boolean asyncMaintenance) {
+	if (asyncMaintenance && maintenanceExecutor == null) {
+	    maintenanceExecutor = Executors
+		    .newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+			    Thread thread = new Thread(r,
+				    "FirstLevelCacheMaintenance");
+			    thread.setDaemon(true);
+			    return thread;
+			}
+		    });
+	    maintenanceExecutor.scheduleWithFixedDelay(new Runnable() {
+
+		@Override
+		public void run() {
+		    drainRequired = true;
+		    drainBuffers();
+		}
+	    }, EXPIRATION_SWEEP_INTERVAL_MSEC, EXPIRATION_SWEEP_INTERVAL_MSEC,
+		    TimeUnit.MILLISECONDS);
+	    log.info("First level cache maintenance runs asynchronously.");
+	} else if (!asyncMaintenance && maintenanceExecutor != null) {
+	    maintenanceExecutor.shutdown();
+	    maintenanceExecutor = null;
+	}
+    }
+
+    /*
+     * The first level cache never blocks on I/O, the async calls complete
+     * before they return.
+     */
+
+    @Override
+    public CacheFuture<Serializable> asyncGet(Object key) {
+	return SettableCacheFuture.completed(get(key));
+    }
+
+    @Override
+    public CacheFuture<List<Serializable>> asyncGetBatch(
+	    List<? extends Object> keys) {
+	return SettableCacheFuture.completed(getBatch(keys));
+    }
+
+    @Override
+    public CacheFuture<Boolean> asyncPut(Object key, int expiration,
+	    Serializable obj) {
+	put(key, expiration, obj);
+	return SettableCacheFuture.completed(Boolean.TRUE);
+    }
+
+    @Override
+    public CacheFuture<Boolean> asyncAdd(Object key, Serializable obj) {
+	return SettableCacheFuture.completed(add(key, obj));
+    }
+
+    @Override
+    public CacheFuture<Boolean> asyncRemove(Object key) {
+	remove(key);
+	return SettableCacheFuture.completed(Boolean.TRUE);
+    }
+
+    @Override
+    public CacheFuture<Map<Object, RemoveOutcome>> asyncRemoveBatch(
+	    Collection<Object> keys) {
+	removeBatch(keys);
+	return SettableCacheFuture.completed(BlockingAsyncCacheService
+		.outcomes(keys, RemoveOutcome.REMOVED));
+    }
+
+    @Override
+    public CacheFuture<Long> asyncIncr(Object key, int by) {
+	return SettableCacheFuture.completed(incr(key, by, 0, 0));
+    }
+
+    @Override
+    public CacheFuture<Boolean> asyncAppend(Object key, String obj) {
+	append(key, obj);
+	return SettableCacheFuture.completed(Boolean.TRUE);
+    }
+
 }
@@ -0,0 +1,318 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.Transcoder;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.salesforce.ddc.threelevelmemcache.eviction.FirstLevelCacheEntry;
+
+/**
+ * Snapshot of the first level cache kept over a restart.
+ * <p/>
+ * On shutdown the entries are written in the order of the eviction policy,
+ * the hottest first, with their remaining time to live. On startup the file is
+ * memory-mapped and only the keys are indexed, a value is decoded the first
+ * time its key is missed in the cache. Snapshots of another format version,
+ * truncated or corrupted files are ignored.
+ * <p/>
+ * File layout: magic, format version, creation time, entry count, then per
+ * entry: key length, UTF-8 key, expiration as unix millis (0 for never),
+ * transcoder flags, value length, value.
+ */
+public class FirstLevelCacheSnapshot {
+
+    private static Log log = LogFactory.getLog(FirstLevelCacheSnapshot.class);
+
+    static final int MAGIC = 0x334c4331;
+    static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 20;
+    private static final int COUNT_OFFSET = 16;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final ByteBuffer buffer;
+    private final Map<String, Integer> index;
+    private final Transcoder<Object> transcoder;
+
+    private FirstLevelCacheSnapshot(ByteBuffer buffer,
+	    Map<String, Integer> index, Transcoder<Object> transcoder) {
+	this.buffer = buffer;
+	this.index = index;
+	this.transcoder = transcoder;
+    }
+
+    /**
+     * Writes the entries to the file. The snapshot is written to a temporary
+     * file first and renamed, so a crash never leaves a partial snapshot.
+     * 
+     * @param file
+     * @param entries
+     *            entries, the hottest first
+     * @param currentTimeNanos
+     *            current time of the entry expirations
+     * @param transcoder
+     * @return number of written entries
+     * @throws IOException
+     */
+    public static int write(File file, List<FirstLevelCacheEntry> entries,
+	    long currentTimeNanos, Transcoder<Object> transcoder)
+	    throws IOException {
+	File temp = new File(file.getPath() + ".tmp");
+	long now = System.currentTimeMillis();
+	int count = 0;
+	DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+		new FileOutputStream(temp), 64 * 1024));
+	try {
+	    out.writeInt(MAGIC);
+	    out.writeInt(FORMAT_VERSION);
+	    out.writeLong(now);
+	    out.writeInt(0);
+	    for (FirstLevelCacheEntry entry : entries) {
+		long expiresAt = 0;
+		if (entry.getExpiresAt() != 0) {
+		    long remaining = entry.getExpiresAt() - currentTimeNanos;
+		    if (remaining <= 0) {
+			continue;
+		    }
+		    expiresAt = now + TimeUnit.NANOSECONDS.toMillis(remaining);
+		}
+		Serializable value = entry.getValue();
+		if (value == null) {
+		    continue;
+		}
+		CachedData data;
+		try {
+		    data = transcoder.encode(value);
+		} catch (RuntimeException e) {
+		    if (log.isDebugEnabled()) {
+			log.debug("Skipping key:" + entry.getKey(), e);
+		    }
+		    continue;
+		}
+		byte[] key = entry.getKey().getBytes(UTF8);
+		out.writeInt(key.length);
+		out.write(key);
+		out.writeLong(expiresAt);
+		out.writeInt(data.getFlags());
+		out.writeInt(data.getData().length);
+		out.write(data.getData());
+		count++;
+	    }
+	} finally {
+	    out.close();
+	}
+	RandomAccessFile header = new RandomAccessFile(temp, "rw");
+	try {
+	    header.seek(COUNT_OFFSET);
+	    header.writeInt(count);
+	} finally {
+	    header.close();
+	}
+	if (file.exists() && !file.delete()) {
+	    throw new IOException("Unable to replace snapshot " + file);
+	}
+	if (!temp.renameTo(file)) {
+	    throw new IOException("Unable to rename " + temp + " to " + file);
+	}
+	return count;
+    }
+
+    /**
+     * Maps the snapshot and indexes its keys. The file is deleted once it's
+     * mapped, so the same snapshot is never loaded twice.
+     * 
+     * @param file
+     * @param maxEntries
+     *            how many of the hottest entries to index
+     * @param transcoder
+     * @return the snapshot, or null if there is no valid snapshot
+     */
+    public static FirstLevelCacheSnapshot open(File file, int maxEntries,
+	    Transcoder<Object> transcoder) {
+	if (!file.isFile()) {
+	    return null;
+	}
+	MappedByteBuffer buffer;
+	try {
+	    RandomAccessFile raf = new RandomAccessFile(file, "r");
+	    try {
+		FileChannel channel = raf.getChannel();
+		if (channel.size() > Integer.MAX_VALUE) {
+		    log.warn("Snapshot " + file + " is too large, ignoring it.");
+		    return null;
+		}
+		buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+			channel.size());
+	    } finally {
+		raf.close();
+	    }
+	} catch (IOException e) {
+	    log.warn("Unable to read snapshot " + file, e);
+	    return null;
+	} finally {
+	    if (!file.delete()) {
+		log.warn("Unable to delete snapshot " + file);
+	    }
+	}
+	Map<String, Integer> index = index(file, buffer, maxEntries);
+	if (index == null) {
+	    return null;
+	}
+	log.info("Loaded " + index.size() + " keys from snapshot " + file);
+	return new FirstLevelCacheSnapshot(buffer, index, transcoder);
+    }
+
+    private static Map<String, Integer> index(File file, ByteBuffer buffer,
+	    int maxEntries) {
+	try {
+	    if (buffer.capacity() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+		log.warn("Snapshot " + file + " is not valid, ignoring it.");
+		return null;
+	    }
+	    int version = buffer.getInt();
+	    if (version != FORMAT_VERSION) {
+		log.warn("Snapshot " + file + " has format version " + version
+			+ ", expected " + FORMAT_VERSION + ", ignoring it.");
+		return null;
+	    }
+	    buffer.getLong();
+	    int count = buffer.getInt();
+	    Map<String, Integer> index = new ConcurrentHashMap<String, Integer>(
+		    Math.max(16, Math.min(count, maxEntries) * 4 / 3));
+	    for (int i = 0; i < count && index.size() < maxEntries; i++) {
+		int keyLength = buffer.getInt();
+		if (keyLength < 0 || keyLength > buffer.remaining()) {
+		    throw new BufferUnderflowException();
+		}
+		byte[] key = new byte[keyLength];
+		buffer.get(key);
+		int offset = buffer.position();
+		// expiration and flags
+		buffer.position(offset + 12);
+		int length = buffer.getInt();
+		if (length < 0 || length > buffer.remaining()) {
+		    throw new BufferUnderflowException();
+		}
+		buffer.position(buffer.position() + length);
+		index.put(new String(key, UTF8), offset);
+	    }
+	    return index;
+	} catch (RuntimeException e) {
+	    log.warn("Snapshot " + file + " is truncated, ignoring it.", e);
+	    return null;
+	}
+    }
+
+    /**
+     * Takes the value of the key out of the snapshot, each key is served
+     * once.
+     * 
+     * @param key
+     * @return the value and its expiration, or null if the key is not in the
+     *         snapshot or has expired
+     */
+    public Entry take(String key) {
+	Integer offset = index.remove(key);
+	if (offset == null) {
+	    return null;
+	}
+	ByteBuffer record = buffer.duplicate();
+	record.position(offset);
+	long expiresAt = record.getLong();
+	if (expiresAt != 0 && expiresAt <= System.currentTimeMillis()) {
+	    return null;
+	}
+	int flags = record.getInt();
+	byte[] data = new byte[record.getInt()];
+	record.get(data);
+	try {
+	    Serializable value = (Serializable) transcoder
+		    .decode(new CachedData(flags, data, CachedData.MAX_SIZE));
+	    return new Entry(value, expiresAt);
+	} catch (RuntimeException e) {
+	    log.warn("Unable to decode snapshot value of key:" + key, e);
+	    return null;
+	}
+    }
+
+    /**
+     * Drops the key, its value in the snapshot is stale.
+     * 
+     * @param key
+     */
+    public void discard(String key) {
+	index.remove(key);
+    }
+
+    /**
+     * @return number of keys not taken yet
+     */
+    public int size() {
+	return index.size();
+    }
+
+    public static final class Entry {
+
+	private final Serializable value;
+	private final long expiresAt;
+
+	Entry(Serializable value, long expiresAt) {
+	    this.value = value;
+	    this.expiresAt = expiresAt;
+	}
+
+	public Serializable getValue() {
+	    return value;
+	}
+
+	/**
+	 * @return expiration as unix millis, 0 for never
+	 */
+	public long getExpiresAt() {
+	    return expiresAt;
+	}
+    }
+}
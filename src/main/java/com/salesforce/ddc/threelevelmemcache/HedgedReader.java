@@ -0,0 +1,382 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.salesforce.ddc.threelevelmemcache.exposed.CacheFuture;
+
+/**
+ * Hedges reads of a slow primary: if primary has not answered within a
+ * percentile of its recent latency, the same read goes to secondary and the
+ * first non-null answer wins.
+ * <p/>
+ * The extra reads are capped by a budget: every read earns a fraction of a
+ * hedge, a hedge spends a whole one, and at most {@link #MAXIMUM_BURST}
+ * hedges are saved up. Reads over the budget wait for primary as usual.
+ * <p/>
+ * The delay is the configured percentile of the last
+ * {@link #LATENCY_SAMPLES} primary latencies, recomputed every
+ * {@link #RECOMPUTE_EVERY} samples. Until enough samples are seen reads are
+ * not hedged.
+ */
+public class HedgedReader {
+
+    private static Log log = LogFactory.getLog(HedgedReader.class);
+
+    public static final int DEFAULT_PERCENTILE = 95;
+    public static final int DEFAULT_BUDGET_PERCENT = 5;
+    public static final long DEFAULT_MINIMUM_DELAY_MSEC = 1;
+    public static final long DEFAULT_TIMEOUT_MSEC = 5000;
+    static final int LATENCY_SAMPLES = 1024;
+    static final int RECOMPUTE_EVERY = 64;
+    static final int MAXIMUM_BURST = 10;
+    /** budget is kept in hundredths of a hedge */
+    private static final long HEDGE_COST = 100;
+
+    /**
+     * Reads of the clusters.
+     */
+    public interface Tiers {
+
+	CacheFuture<Serializable> primary(Object key);
+
+	/**
+	 * @return the read, or null if secondary can't be used
+	 */
+	CacheFuture<Serializable> secondary(Object key);
+
+	/**
+	 * Called when secondary found a key primary missed.
+	 */
+	void missedPrimary(Object key, Serializable secondaryValue);
+
+	/**
+	 * Called with the cluster whose value is returned.
+	 * 
+	 * @param bySecondary
+	 *            true if secondary won the hedge or found a key primary
+	 *            missed
+	 */
+	void found(Object key, boolean bySecondary);
+    }
+
+    private final long[] samples = new long[LATENCY_SAMPLES];
+    private final AtomicLong sampleCount = new AtomicLong(0l);
+    private volatile long delayNanos = Long.MAX_VALUE;
+    private final AtomicLong budget = new AtomicLong(HEDGE_COST);
+
+    private volatile int percentile = DEFAULT_PERCENTILE;
+    private volatile int budgetPercent = DEFAULT_BUDGET_PERCENT;
+    private volatile long minimumDelayNanos = TimeUnit.MILLISECONDS
+	    .toNanos(DEFAULT_MINIMUM_DELAY_MSEC);
+    private volatile long timeoutMsec = DEFAULT_TIMEOUT_MSEC;
+
+    private final AtomicLong reads = new AtomicLong(0l);
+    private final AtomicLong hedges = new AtomicLong(0l);
+    private final AtomicLong hedgeWins = new AtomicLong(0l);
+    private final AtomicLong overBudget = new AtomicLong(0l);
+
+    /**
+     * Reads the key from primary, hedged to secondary if primary is slow,
+     * then from secondary if it was not found.
+     * 
+     * @param key
+     * @param tiers
+     * @return the value or null if not found
+     */
+    public Serializable get(Object key, Tiers tiers) {
+	reads.incrementAndGet();
+	earn();
+	final long start = System.nanoTime();
+	CacheFuture<Serializable> primary = tiers.primary(key);
+	primary.addListener(new CacheFuture.Listener<Serializable>() {
+
+	    @Override
+	    public void onComplete(CacheFuture<Serializable> future) {
+		sample(System.nanoTime() - start);
+	    }
+	});
+	// the delay is unbounded until enough latencies were sampled
+	long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMsec);
+	boolean hedged = delayNanos < timeoutNanos;
+	Serializable value;
+	try {
+	    value = found(key, tiers, primary.get(hedged ? delayNanos
+		    : timeoutNanos, TimeUnit.NANOSECONDS), false);
+	} catch (TimeoutException e) {
+	    if (!hedged) {
+		log.warn("Timeout on hedged read, timeout=" + timeoutMsec
+			+ " mseconds. Returning null.");
+		return null;
+	    }
+	    return hedge(key, tiers, primary);
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    return null;
+	} catch (ExecutionException e) {
+	    throw rethrow(e);
+	}
+	return value != null ? value : getFromSecondary(key, tiers);
+    }
+
+    private Serializable hedge(Object key, Tiers tiers,
+	    CacheFuture<Serializable> primary) {
+	if (!spend()) {
+	    overBudget.incrementAndGet();
+	    Serializable value = found(key, tiers, await(primary), false);
+	    return value != null ? value : getFromSecondary(key, tiers);
+	}
+	CacheFuture<Serializable> secondary = tiers.secondary(key);
+	if (secondary == null) {
+	    return found(key, tiers, await(primary), false);
+	}
+	hedges.incrementAndGet();
+	if (log.isDebugEnabled()) {
+	    log.debug("Hedging read of key:" + key + " to secondary.");
+	}
+	final SettableCacheFuture<Race> first = new SettableCacheFuture<Race>();
+	final AtomicInteger pending = new AtomicInteger(2);
+	primary.addListener(new Race(first, pending, false));
+	secondary.addListener(new Race(first, pending, true));
+	Race winner = await(first);
+	return winner != null ? found(key, tiers, winner.value,
+		winner.isSecondary) : null;
+    }
+
+    /**
+     * Reads the key primary missed from secondary.
+     */
+    private Serializable getFromSecondary(Object key, Tiers tiers) {
+	CacheFuture<Serializable> secondary = tiers.secondary(key);
+	if (secondary == null) {
+	    return null;
+	}
+	Serializable value = await(secondary);
+	if (value != null) {
+	    tiers.missedPrimary(key, value);
+	}
+	return found(key, tiers, value, true);
+    }
+
+    private static Serializable found(Object key, Tiers tiers,
+	    Serializable value, boolean bySecondary) {
+	if (value != null) {
+	    tiers.found(key, bySecondary);
+	}
+	return value;
+    }
+
+    private <T> T await(CacheFuture<T> future) {
+	try {
+	    return future.get(timeoutMsec, TimeUnit.MILLISECONDS);
+	} catch (TimeoutException e) {
+	    log.warn("Timeout on hedged read, timeout=" + timeoutMsec
+		    + " mseconds. Returning null.");
+	    return null;
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    return null;
+	} catch (ExecutionException e) {
+	    throw rethrow(e);
+	}
+    }
+
+    private static RuntimeException rethrow(ExecutionException e) {
+	if (e.getCause() instanceof RuntimeException) {
+	    return (RuntimeException) e.getCause();
+	}
+	return new RuntimeException(e.getCause());
+    }
+
+    /**
+     * Completes the race with the first non-null answer, or with null once
+     * both answered.
+     */
+    private final class Race implements CacheFuture.Listener<Serializable> {
+
+	private final SettableCacheFuture<Race> first;
+	private final AtomicInteger pending;
+	private final boolean isSecondary;
+	/** the answer, published by the completion of the race */
+	private Serializable value;
+
+	Race(SettableCacheFuture<Race> first, AtomicInteger pending,
+		boolean isSecondary) {
+	    this.first = first;
+	    this.pending = pending;
+	    this.isSecondary = isSecondary;
+	}
+
+	@Override
+	public void onComplete(CacheFuture<Serializable> future) {
+	    Serializable value = null;
+	    try {
+		value = future.get();
+	    } catch (Exception e) {
+		log.warn("Hedged read from "
+			+ (isSecondary ? "secondary" : "primary") + " failed.",
+			e);
+	    }
+	    this.value = value;
+	    if (value != null && first.set(this) && isSecondary) {
+		hedgeWins.incrementAndGet();
+	    }
+	    if (pending.decrementAndGet() == 0) {
+		first.set(null);
+	    }
+	}
+    }
+
+    private void earn() {
+	long max = MAXIMUM_BURST * HEDGE_COST;
+	long current;
+	do {
+	    current = budget.get();
+	    if (current >= max) {
+		return;
+	    }
+	} while (!budget.compareAndSet(current,
+		Math.min(max, current + budgetPercent)));
+    }
+
+    private boolean spend() {
+	long current;
+	do {
+	    current = budget.get();
+	    if (current < HEDGE_COST) {
+		return false;
+	    }
+	} while (!budget.compareAndSet(current, current - HEDGE_COST));
+	return true;
+    }
+
+    private void sample(long latencyNanos) {
+	long n = sampleCount.getAndIncrement();
+	samples[(int) (n % LATENCY_SAMPLES)] = latencyNanos;
+	if ((n + 1) % RECOMPUTE_EVERY == 0 && n + 1 >= LATENCY_SAMPLES / 8) {
+	    recompute((int) Math.min(n + 1, LATENCY_SAMPLES));
+	}
+    }
+
+    private void recompute(int count) {
+	// samples written meanwhile may be missed, it's a rolling estimate
+	long[] sorted = Arrays.copyOf(samples, count);
+	Arrays.sort(sorted);
+	int index = Math.min(count - 1, count * percentile / 100);
+	delayNanos = Math.max(minimumDelayNanos, sorted[index]);
+    }
+
+    /**
+     * @return the current hedging delay in microseconds, -1 until enough
+     *         latencies are sampled
+     */
+    public long getDelayMicros() {
+	long delay = delayNanos;
+	return delay == Long.MAX_VALUE ? -1 : TimeUnit.NANOSECONDS
+		.toMicros(delay);
+    }
+
+    public long getReads() {
+	return reads.get();
+    }
+
+    /**
+     * @return number of reads sent to secondary before primary answered
+     */
+    public long getHedges() {
+	return hedges.get();
+    }
+
+    /**
+     * @return number of hedged reads answered by secondary first
+     */
+    public long getHedgeWins() {
+	return hedgeWins.get();
+    }
+
+    /**
+     * @return number of slow reads not hedged because of the budget
+     */
+    public long getOverBudget() {
+	return overBudget.get();
+    }
+
+    public int getPercentile() {
+	return percentile;
+    }
+
+    /**
+     * @param percentile
+     *            percentile of the primary latency after which a read is
+     *            hedged
+     */
+    public void setPercentile(int percentile) {
+	if (percentile <= 0 || percentile > 100) {
+	    throw new IllegalArgumentException(
+		    "Percentile must be in (0, 100], was " + percentile);
+	}
+	this.percentile = percentile;
+    }
+
+    public int getBudgetPercent() {
+	return budgetPercent;
+    }
+
+    /**
+     * @param budgetPercent
+     *            hedges allowed per 100 reads
+     */
+    public void setBudgetPercent(int budgetPercent) {
+	this.budgetPercent = budgetPercent;
+    }
+
+    /**
+     * @param minimumDelayMsec
+     *            reads are never hedged sooner
+     */
+    public void setMinimumDelayMsec(long minimumDelayMsec) {
+	this.minimumDelayNanos = TimeUnit.MILLISECONDS
+		.toNanos(minimumDelayMsec);
+    }
+
+    /**
+     * @param timeoutMsec
+     *            how long a read waits for the answers
+     */
+    public void setTimeoutMsec(long timeoutMsec) {
+	this.timeoutMsec = timeoutMsec;
+    }
+}
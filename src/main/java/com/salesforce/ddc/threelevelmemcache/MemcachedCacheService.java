@@ -29,19 +29,34 @@ import java.io.Serializable;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.spy.memcached.CASResponse;
 import net.spy.memcached.CASValue;
+import net.spy.memcached.CachedData;
 import net.spy.memcached.MemcachedClientIF;
 import net.spy.memcached.internal.BulkFuture;
+import net.spy.memcached.internal.BulkGetCompletionListener;
+import net.spy.memcached.internal.BulkGetFuture;
+import net.spy.memcached.internal.GetCompletionListener;
+import net.spy.memcached.internal.GetFuture;
+import net.spy.memcached.internal.OperationCompletionListener;
 import net.spy.memcached.internal.OperationFuture;
+import net.spy.memcached.ops.OperationStatus;
+import net.spy.memcached.transcoders.Transcoder;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.math.NumberUtils;
@@ -49,24 +64,74 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import com.salesforce.ddc.threelevelmemcache.exposed.AdminCacheService;
+import com.salesforce.ddc.threelevelmemcache.exposed.AsyncCacheService;
+import com.salesforce.ddc.threelevelmemcache.exposed.CacheFuture;
+import com.salesforce.ddc.threelevelmemcache.exposed.CacheKey;
 import com.salesforce.ddc.threelevelmemcache.exposed.CacheService;
 import com.salesforce.ddc.threelevelmemcache.exposed.NonCompressionTranscoder;
+import com.salesforce.ddc.threelevelmemcache.exposed.RemoveOutcome;
 import com.salesforce.ddc.threelevelmemcache.exposed.listener.CacheListener;
-import com.salesforce.ddc.threelevelmemcache.exposed.util.SHAKey;
+import com.salesforce.ddc.threelevelmemcache.exposed.util.KeyEncoding;
+import com.salesforce.ddc.threelevelmemcache.exposed.util.KeyFormat;
+import com.salesforce.ddc.threelevelmemcache.exposed.util.KeyHash;
 import com.salesforce.ddc.threelevelmemcache.exposed.util.WaitResponseUtils;
 
 /**
  * Cache implementation is based on memcached client.
+ * <p/>
+ * The {@link AsyncCacheService} calls are completed by the spymemcached
+ * operation callbacks, no thread waits for them.
+ * <p/>
+ * Values larger than {@link #setMaxItemSize(int)} once encoded are stored in
+ * chunks, see {@link ChunkManifest}. The chunks and the manifest are sent
+ * without waiting for each other, a synchronous put awaits them all and
+ * removes the manifest if a chunk failed, and a get reads the chunks of the
+ * values it found with one multiget. The chunks of a removed value are left
+ * to expire or be evicted.
  * 
  * @author Alexander Khimich
  */
-public class MemcachedCacheService implements CacheService, AdminCacheService {
+public class MemcachedCacheService implements CacheService, AdminCacheService,
+	AsyncCacheService {
 
     private static Log log = LogFactory.getLog(MemcachedCacheService.class);
 
     private static final int DEFAULT_EXPIRE_TIME = 0;
     private static final int DEFAULT_TIMEOUT_SINGLE_OPERATION = 3000;
     private static final int DEFAULT_TIMEOUT_BULK_OPERATION = 6000;
+    /**
+     * memcached rejects items above 1 MB by default, the item header and the
+     * key included
+     */
+    private static final int DEFAULT_MAX_ITEM_SIZE = 1000 * 1024;
+
+    /**
+     * sets a value the transcoder of the client already encoded, and reads
+     * it back as is
+     */
+    private static final Transcoder<CachedData> ENCODED = new Transcoder<CachedData>() {
+
+	@Override
+	public boolean asyncDecode(CachedData d) {
+	    return false;
+	}
+
+	@Override
+	public CachedData encode(CachedData o) {
+	    return o;
+	}
+
+	@Override
+	public CachedData decode(CachedData d) {
+	    return d;
+	}
+
+	@Override
+	public int getMaxSize() {
+	    return Integer.MAX_VALUE;
+	}
+    };
+
     /**
      * The actual value sent may either be Unix time (number of seconds since
      * January 1, 1970, as a 32-bit value), or a number of seconds starting from
@@ -82,6 +147,25 @@ public class MemcachedCacheService implements CacheService, AdminCacheService {
      * Default is never
      */
     private int expireTime = DEFAULT_EXPIRE_TIME;
+
+    /**
+     * Times out the async operations spymemcached has not completed yet,
+     * shared by all the instances.
+     */
+    private static final ScheduledThreadPoolExecutor TIMEOUTS = new ScheduledThreadPoolExecutor(
+	    1, new ThreadFactory() {
+
+		@Override
+		public Thread newThread(Runnable r) {
+		    Thread thread = new Thread(r, "MemcachedOperationTimeout");
+		    thread.setDaemon(true);
+		    return thread;
+		}
+	    });
+    static {
+	TIMEOUTS.setRemoveOnCancelPolicy(true);
+    }
+
     private int operationTimeOutMsec = DEFAULT_TIMEOUT_SINGLE_OPERATION;
     private long operationTimeOutBulkMsec = DEFAULT_TIMEOUT_BULK_OPERATION;
 
@@ -90,6 +174,12 @@ public class MemcachedCacheService implements CacheService, AdminCacheService {
     private CacheListener listener;
     private final NonCompressionTranscoder nonCompressTranscoder = new NonCompressionTranscoder();
     protected boolean exceptionsSilentMode = true;
+    private volatile KeyFormat keyFormat = KeyFormat.DEFAULT;
+    private KeyFormat dualReadKeyFormatSetting = KeyFormat.DEFAULT;
+    private boolean dualReadKeys;
+    /** format of the keys read as well while migrating, null if not migrating */
+    private volatile KeyFormat dualReadKeyFormat;
+    private volatile int maxItemSize = DEFAULT_MAX_ITEM_SIZE;
 
     public MemcachedCacheService(MemcachedClientIF client) {
 	this(client, DEFAULT_EXPIRE_TIME, DEFAULT_TIMEOUT_SINGLE_OPERATION,
@@ -121,24 +211,46 @@ public class MemcachedCacheService implements CacheService, AdminCacheService {
      */
     @Override
     public Serializable get(Object key) {
+	return get(key, exceptionsSilentMode);
+    }
+
+    /**
+     * @param silent
+     *            a failed get returns null instead of throwing, the
+     *            {@link CircuitBreakerCacheService} needs to see the failures
+     *            whatever the mode of the service is
+     */
+    Serializable get(Object key, boolean silent) {
 	Serializable rt = null;
 	try {
 	    if (key != null) {
-		Future<Object> f = client.asyncGet(getKey(key));
+		String _key = getKey(key);
+		String dualReadKey = getDualReadKey(key);
+		Future<?> f = dualReadKey == null ? client.asyncGet(_key)
+			: client.asyncGetBulk(Arrays.asList(_key, dualReadKey));
 		try {
-		    rt = (Serializable) f.get(operationTimeOutMsec,
+		    Object value = f.get(operationTimeOutMsec,
 			    TimeUnit.MILLISECONDS);
+		    if (dualReadKey == null) {
+			rt = (Serializable) value;
+		    } else {
+			rt = dualRead((Map<String, Object>) value, _key,
+				dualReadKey);
+		    }
 		} catch (TimeoutException e) {
 		    log.warn("Timeout on get key='" + key + "' , timeout="
 			    + operationTimeOutMsec + " mseconds. Returning "
 			    + rt);
 		    f.cancel(false);
 
-		    if (!exceptionsSilentMode) {
+		    if (!silent) {
 			throw new RuntimeException("Timeout on get key:" + key,
 				e);
 		    }
 		}
+		if (rt instanceof ChunkManifest) {
+		    rt = readChunks(Collections.singletonList(rt)).get(0);
+		}
 	    }
 	    return rt;
 	} catch (Exception alle) {
@@ -153,7 +265,7 @@ public class MemcachedCacheService implements CacheService, AdminCacheService {
 				+ " unable to retrieve key:" + key, alle);
 	    }
 
-	    if (!exceptionsSilentMode) {
+	    if (!silent) {
 		throw new RuntimeException(
 			"There is exception in memcached get method, unable to retrieve key:"
 				+ key, alle);
@@ -207,29 +319,242 @@ public class MemcachedCacheService implements CacheService, AdminCacheService {
      * Returns list ordered by key sequence and filled out from map.
      * 
      * @param keys
-     *            keys
+     *            keys, see {@link #getReadKeys(List)}
+     * @param size
+     *            number of keys read
      * @param map
      *            map
      * @return list ordered by key sequence and filled out from map
      */
-    private List<Serializable> processBulkResult(List keys, Map map) {
-	List<Serializable> result = new ArrayList<Serializable>();
-	for (Object key : keys) {
-	    Serializable obj = (Serializable) map.get(key);
+    private List<Serializable> processBulkResult(List<String> keys,
+	    int size, Map map) {
+	boolean dualRead = keys.size() > size;
+	List<Serializable> result = new ArrayList<Serializable>(size);
+	for (int i = 0; i < size; i++) {
+	    Serializable obj = (Serializable) map.get(keys.get(i));
+	    if (obj == null && dualRead) {
+		obj = (Serializable) map.get(keys.get(size + i));
+	    }
 	    result.add(obj);
 	}
 	return result;
     }
 
     /**
-     * Converts key to SHA-1 hash and prefixes the hash.
+     * Converts key to SHA-1 hash and prefixes the hash, or whatever
+     * {@link KeyFormat} is configured.
      * 
      * @param unprefixedKey
      *            key
      * @return prefixed and hashed key value.
      */
     private String getKey(Object unprefixedKey) {
-	return SHAKey.sha(unprefixedKey);
+	return getKey(unprefixedKey, keyFormat);
+    }
+
+    private static String getKey(Object unprefixedKey, KeyFormat format) {
+	if (unprefixedKey instanceof CacheKey) {
+	    return ((CacheKey) unprefixedKey).format(format);
+	}
+	return format.format(unprefixedKey);
+    }
+
+    /**
+     * @return the key in the format it had before the migration, null if
+     *         not migrating
+     */
+    private String getDualReadKey(Object unprefixedKey) {
+	KeyFormat format = dualReadKeyFormat;
+	if (format == null) {
+	    return null;
+	}
+	return getKey(unprefixedKey, format);
+    }
+
+    /**
+     * @return the memcached keys of the keys, followed by their dual read
+     *         keys while migrating
+     */
+    private List<String> getReadKeys(List<? extends Object> keys) {
+	KeyFormat format = keyFormat;
+	KeyFormat dualReadFormat = dualReadKeyFormat;
+	List<String> readKeys = new ArrayList<String>(
+		dualReadFormat != null ? 2 * keys.size() : keys.size());
+	for (Object key : keys) {
+	    readKeys.add(getKey(key, format));
+	    if (listener != null) {
+		listener.get(key);
+	    }
+	}
+	if (dualReadFormat != null) {
+	    for (Object key : keys) {
+		readKeys.add(getKey(key, dualReadFormat));
+	    }
+	}
+	return readKeys;
+    }
+
+    private static Serializable dualRead(Map<String, Object> values,
+	    String key, String dualReadKey) {
+	Object value = values.get(key);
+	return (Serializable) (value != null ? value : values.get(dualReadKey));
+    }
+
+    /**
+     * @return the keys of the chunks of the chunked values, empty if none is
+     *         chunked
+     */
+    private static List<String> getChunkKeys(List<Serializable> values) {
+	List<String> keys = Collections.emptyList();
+	for (Serializable value : values) {
+	    if (value instanceof ChunkManifest) {
+		if (keys.isEmpty()) {
+		    keys = new ArrayList<String>();
+		}
+		keys.addAll(((ChunkManifest) value).getChunkKeys());
+	    }
+	}
+	return keys;
+    }
+
+    /**
+     * Replaces the manifests among the values by the values they stand for,
+     * read with one multiget for all the chunks.
+     */
+    private List<Serializable> readChunks(List<Serializable> values) {
+	List<String> chunkKeys = getChunkKeys(values);
+	if (chunkKeys.isEmpty()) {
+	    return values;
+	}
+	Map<String, byte[]> chunks = Collections.emptyMap();
+	BulkFuture<Map<String, byte[]>> future = client.asyncGetBulk(
+		chunkKeys, ChunkManifest.TRANSCODER);
+	try {
+	    chunks = future.get(operationTimeOutBulkMsec, TimeUnit.MILLISECONDS);
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	} catch (Exception e) {
+	    if (e instanceof TimeoutException) {
+		future.cancel(false);
+	    }
+	    log.warn("Unable to read " + chunkKeys.size()
+		    + " chunks, the chunked values are missed. Ex:"
+		    + e.getMessage());
+	}
+	return joinChunks(values, chunks);
+    }
+
+    /**
+     * Asynchronous {@link #readChunks(List)}.
+     */
+    private CacheFuture<List<Serializable>> asyncReadChunks(
+	    final List<Serializable> values) {
+	List<String> chunkKeys = getChunkKeys(values);
+	if (chunkKeys.isEmpty()) {
+	    return SettableCacheFuture.completed(values);
+	}
+	final SettableCacheFuture<List<Serializable>> result = new SettableCacheFuture<List<Serializable>>();
+	CacheFuture<Map<String, byte[]>> chunks;
+	try {
+	    chunks = whenDone(
+		    client.asyncGetBulk(chunkKeys, ChunkManifest.TRANSCODER),
+		    operationTimeOutBulkMsec, "get chunks", chunkKeys,
+		    Collections.<String, byte[]> emptyMap());
+	} catch (RuntimeException e) {
+	    chunks = failed("get chunks", chunkKeys, e,
+		    Collections.<String, byte[]> emptyMap());
+	}
+	chunks.addListener(new CacheFuture.Listener<Map<String, byte[]>>() {
+
+	    @Override
+	    public void onComplete(CacheFuture<Map<String, byte[]>> future) {
+		Map<String, byte[]> chunks = Collections.emptyMap();
+		try {
+		    chunks = future.get();
+		} catch (Exception e) {
+		    // logged by whenDone, the chunked values are missed
+		}
+		result.set(joinChunks(values, chunks));
+	    }
+	});
+	return result;
+    }
+
+    /**
+     * Asynchronous {@link #readChunks(List)} of a single value.
+     */
+    private CacheFuture<Serializable> asyncReadChunks(
+	    CacheFuture<Serializable> value) {
+	final SettableCacheFuture<Serializable> result = new SettableCacheFuture<Serializable>();
+	value.addListener(new CacheFuture.Listener<Serializable>() {
+
+	    @Override
+	    public void onComplete(CacheFuture<Serializable> future) {
+		try {
+		    Serializable value = future.get();
+		    if (!(value instanceof ChunkManifest)) {
+			result.set(value);
+			return;
+		    }
+		    asyncReadChunks(Collections.singletonList(value))
+			    .addListener(
+				    new CacheFuture.Listener<List<Serializable>>() {
+
+					@Override
+					public void onComplete(
+						CacheFuture<List<Serializable>> values) {
+					    try {
+						result.set(values.get().get(0));
+					    } catch (Exception e) {
+						result.setException(e);
+					    }
+					}
+				    });
+		} catch (Exception e) {
+		    result.setException(e);
+		}
+	    }
+	});
+	return result;
+    }
+
+    private List<Serializable> joinChunks(List<Serializable> values,
+	    Map<String, byte[]> chunks) {
+	List<Serializable> joined = new ArrayList<Serializable>(values);
+	for (int i = 0; i < joined.size(); i++) {
+	    if (joined.get(i) instanceof ChunkManifest) {
+		ChunkManifest manifest = (ChunkManifest) joined.get(i);
+		byte[] data = manifest.join(chunks);
+		if (data == null) {
+		    if (log.isDebugEnabled()) {
+			log.debug("Chunks missing or overwritten, missed "
+				+ manifest);
+		    }
+		    joined.set(i, null);
+		} else {
+		    joined.set(i, (Serializable) client.getTranscoder().decode(
+			    new CachedData(manifest.getFlags(), data,
+				    Integer.MAX_VALUE)));
+		}
+	    }
+	}
+	return joined;
+    }
+
+    /**
+     * While migrating the value may still be stored under the dual read key,
+     * where a read would find it again. The delete is not waited for.
+     */
+    private void removeDualReadKey(Object key) {
+	String dualReadKey = getDualReadKey(key);
+	if (dualReadKey != null) {
+	    try {
+		client.delete(dualReadKey);
+	    } catch (RuntimeException e) {
+		log.warn("Unable to remove the dual read key of key:" + key
+			+ ". Ex:" + e.getMessage());
+	    }
+	}
     }
 
     /*
@@ -241,9 +566,8 @@ public class MemcachedCacheService implements CacheService, AdminCacheService {
     @Override
     public void putBatch(List<? extends Object> keys,
 	    List<? extends Serializable> objs) {
-	for (int i = 0; i < keys.size(); i++) {
-	    put(keys.get(i), objs.get(i));
-	}
+	// the failed keys are logged, the other tiers still get the batch
+	putBatch(keys, objs, expireTime);
     }
 
     /*
@@ -253,9 +577,119 @@ public class MemcachedCacheService implements CacheService, AdminCacheService {
      */
     @Override
     public void putBatch(Map<? extends Object, ? extends Serializable> objs) {
-	for (Object key : objs.keySet()) {
-	    put(key, objs.get(key));
+	putBatch(new ArrayList<Object>(objs.keySet()),
+		new ArrayList<Serializable>(objs.values()));
+    }
+
+    /**
+     * Sets all the values before it waits for any of them, so the batch costs
+     * one round trip instead of one per key. With the binary protocol the
+     * client sends the queued sets as quiet sets, the server answers only the
+     * failed ones.
+     * <p/>
+     * In synchronous mode the sets are awaited under a single deadline of the
+     * bulk operation timeout, otherwise they are not awaited at all.
+     * 
+     * @param keys
+     * @param objs
+     *            values, objs[i] corresponds keys[i]
+     * @param expiration
+     * @return keys which were not set or not acked before the deadline, empty
+     *         if the sets are not awaited
+     */
+    public List<Object> putBatch(List<? extends Object> keys,
+	    List<? extends Serializable> objs, int expiration) {
+	if (expiration < 0) {
+	    throw new IllegalArgumentException(
+		    "Expiration time cannot be minus. Exptime=" + expiration);
 	}
+	List<Object> sentKeys = new ArrayList<Object>(keys.size());
+	List<OperationFuture<Boolean>> futures = new ArrayList<OperationFuture<Boolean>>(
+		keys.size());
+	List<List<OperationFuture<Boolean>>> chunks = new ArrayList<List<OperationFuture<Boolean>>>(
+		keys.size());
+	List<Object> failed = new ArrayList<Object>();
+	try {
+	    for (int i = 0; i < keys.size(); i++) {
+		Object key = keys.get(i);
+		if (key == null) {
+		    throw new IllegalArgumentException("Key cannot be null");
+		}
+		List<OperationFuture<Boolean>> keyChunks = new ArrayList<OperationFuture<Boolean>>();
+		try {
+		    futures.add(putWithSlowDownLogic(key, expiration,
+			    objs.get(i), keyChunks));
+		    chunks.add(keyChunks);
+		    sentKeys.add(key);
+		} catch (RuntimeException e) {
+		    log.warn("Unable to set key=" + key, e);
+		    failed.add(key);
+		}
+	    }
+	    if (synchronousMode) {
+		long deadline = System.currentTimeMillis()
+			+ operationTimeOutBulkMsec;
+		for (int i = 0; i < futures.size(); i++) {
+		    boolean succeeded = isSucceeded(futures.get(i), deadline);
+		    if (!isChunksSucceeded(getKey(sentKeys.get(i)),
+			    chunks.get(i), deadline) || !succeeded) {
+			failed.add(sentKeys.get(i));
+		    }
+		}
+	    }
+	} finally {
+	    if (listener != null) {
+		for (int i = 0; i < keys.size(); i++) {
+		    listener.put(keys.get(i), objs.get(i));
+		}
+	    }
+	}
+	if (!failed.isEmpty()) {
+	    log.warn("Set failed for " + failed.size() + " of " + keys.size()
+		    + " keys: " + failed);
+	}
+	return failed;
+    }
+
+    /**
+     * @return true if the operation succeeded before the deadline
+     */
+    private boolean isSucceeded(OperationFuture<Boolean> f, long deadline) {
+	try {
+	    long remaining = Math.max(0,
+		    deadline - System.currentTimeMillis());
+	    return Boolean.TRUE.equals(f.get(remaining, TimeUnit.MILLISECONDS));
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	} catch (Exception e) {
+	    if (log.isDebugEnabled()) {
+		log.debug("Operation failed, key=" + f.getKey(), e);
+	    }
+	}
+	return false;
+    }
+
+    /**
+     * Awaits the chunks of a chunked set. The manifest of a value missing a
+     * chunk is removed, it could only be missed.
+     * 
+     * @return true if all the chunks were stored before the deadline
+     */
+    private boolean isChunksSucceeded(String key,
+	    List<OperationFuture<Boolean>> chunks, long deadline) {
+	for (OperationFuture<Boolean> chunk : chunks) {
+	    if (!isSucceeded(chunk, deadline)) {
+		log.warn("Chunk " + chunk.getKey() + " failed, removing key="
+			+ key);
+		try {
+		    client.delete(key);
+		} catch (RuntimeException e) {
+		    log.warn("Unable to remove key=" + key, e);
+		}
+		return false;
+	    }
+	}
+	return true;
     }
 
     /*
@@ -265,13 +699,7 @@ public class MemcachedCacheService implements CacheService, AdminCacheService {
      */
     @Override
     public List<Serializable> getBatch(List keys) {
-	List<String> prefixedKeys = new ArrayList<String>();
-	for (Object key : keys) {
-	    prefixedKeys.add(getKey(key));
-	    if (listener != null) {
-		listener.get(key);
-	    }
-	}
+	List<String> prefixedKeys = getReadKeys(keys);
 	BulkFuture<Map<String, Object>> future = client
 		.asyncGetBulk(prefixedKeys);
 
@@ -285,8 +713,9 @@ public class MemcachedCacheService implements CacheService, AdminCacheService {
 	    log.error("Exception on getBatch keys='"
 		    + StringUtils.join(keys, ",") + "' Returning null.");
 	}
-	List<Serializable> result = processBulkResult(prefixedKeys, map);
-	return result;
+	List<Serializable> result = processBulkResult(prefixedKeys,
+		keys.size(), map);
+	return readChunks(result);
 
     }
 
@@ -299,6 +728,7 @@ public class MemcachedCacheService implements CacheService, AdminCacheService {
     public void remove(Object key) {
 	OperationFuture<Boolean> f = (OperationFuture<Boolean>) client
 		.delete(getKey(key));
+	removeDualReadKey(key);
 	try {
 	    WaitResponseUtils.waitForResponse(f, 3, "remove");
 	} catch (TimeoutException e) {
@@ -319,9 +749,34 @@ public class MemcachedCacheService implements CacheService, AdminCacheService {
      */
     @Override
     public void removeBatch(Collection<Object> keys) {
-	for (Object key : keys) {
-	    remove(key);
+	removeBatchWithOutcome(keys);
+    }
+
+    /**
+     * Issues all the deletes before it waits for any of them, and waits for
+     * them under a single deadline of the bulk operation timeout. A key which
+     * is not in memcached counts as removed.
+     * 
+     * @param keys
+     * @return outcome per key, in the iteration order of the keys
+     */
+    public Map<Object, RemoveOutcome> removeBatchWithOutcome(
+	    Collection<Object> keys) {
+	BatchRemoval removal = new BatchRemoval(keys);
+	removal.start();
+	Map<Object, RemoveOutcome> outcomes = removal
+		.await(operationTimeOutBulkMsec);
+	int failures = 0;
+	for (RemoveOutcome outcome : outcomes.values()) {
+	    if (!outcome.isSuccess()) {
+		failures++;
+	    }
 	}
+	if (failures > 0) {
+	    log.warn("Remove failed for " + failures + " of " + keys.size()
+		    + " keys.");
+	}
+	return outcomes;
     }
 
     /*
@@ -374,6 +829,10 @@ public class MemcachedCacheService implements CacheService, AdminCacheService {
 	CASValue<Object> cas = null;
 	try {
 	    cas = client.gets(getKey(key));
+	    if (cas != null && cas.getValue() instanceof ChunkManifest) {
+		// a chunked value can't be swapped atomically
+		cas = null;
+	    }
 	} catch (RuntimeException e) {
 	    log.warn("OK to ignore, memcached gets threw an exception, unable to read the key:"
 		    + key);
@@ -580,11 +1039,17 @@ public class MemcachedCacheService implements CacheService, AdminCacheService {
 	    int tries) {
 
 	try {
+	    List<OperationFuture<Boolean>> chunks = new ArrayList<OperationFuture<Boolean>>();
 	    OperationFuture<Boolean> rv = putWithSlowDownLogic(key, expiration,
-		    obj);
+		    obj, chunks);
 
 	    if (synchronousMode) {
-		if (!WaitResponseUtils.waitForResponse(rv, 3, "set")) {
+		long deadline = System.currentTimeMillis()
+			+ operationTimeOutMsec;
+		boolean succeeded = WaitResponseUtils.waitForResponse(rv, 3,
+			"set");
+		if (!isChunksSucceeded(getKey(key), chunks, deadline)
+			|| !succeeded) {
 		    throw new RuntimeException("Set failed");
 		}
 	    }
@@ -610,13 +1075,21 @@ public class MemcachedCacheService implements CacheService, AdminCacheService {
 
     }
 
+    /**
+     * @param chunks
+     *            receives the futures of the sets of the chunks
+     */
     private OperationFuture<Boolean> putWithSlowDownLogic(Object key,
-	    int expiration, Serializable obj) {
+	    int expiration, Serializable obj,
+	    List<OperationFuture<Boolean>> chunks) {
+	String _key = getKey(key);
+	CachedData data = encode(obj);
 	OperationFuture<Boolean> rv = null;
 	while (rv == null) {
 	    try {
-		rv = (OperationFuture<Boolean>) client.set(getKey(key),
-			expiration, obj);
+		chunks.clear();
+		rv = (OperationFuture<Boolean>) set(_key, expiration, obj,
+			data, chunks);
 	    } catch (IllegalStateException ex) {
 		log.debug("slow down"); // Need to slow down a bit when
 					// we start getting rejections.
@@ -637,6 +1110,66 @@ public class MemcachedCacheService implements CacheService, AdminCacheService {
 	return rv;
     }
 
+    /**
+     * @return the value encoded by the transcoder of the client, null if
+     *         values are not chunked
+     */
+    private CachedData encode(Serializable obj) {
+	Transcoder<Object> transcoder = maxItemSize > 0 ? client
+		.getTranscoder() : null;
+	return transcoder != null ? transcoder.encode(obj) : null;
+    }
+
+    /**
+     * Sets the value, in chunks if it's larger than the max item size.
+     * 
+     * @param data
+     *            the value encoded by {@link #encode(Serializable)}
+     * @param chunks
+     *            receives the futures of the sets of the chunks, null if
+     *            they are not awaited
+     * @return the future of the set of the value, or of its manifest
+     */
+    private Future<Boolean> set(String key, int expiration, Serializable obj,
+	    CachedData data, List<OperationFuture<Boolean>> chunks) {
+	if (data == null) {
+	    return client.set(key, expiration, obj);
+	}
+	int size = maxItemSize;
+	if (data.getData().length <= size) {
+	    return client.set(key, expiration, data, ENCODED);
+	}
+	ChunkManifest manifest = new ChunkManifest(key, data, size);
+	for (int i = 0; i < manifest.getChunkCount(); i++) {
+	    Future<Boolean> chunk = client.set(manifest.getChunkKey(i),
+		    expiration, manifest.getChunk(data.getData(), i),
+		    ChunkManifest.TRANSCODER);
+	    if (chunks != null) {
+		chunks.add((OperationFuture<Boolean>) chunk);
+	    }
+	}
+	return client.set(key, expiration, manifest);
+    }
+
+    public int getMaxItemSize() {
+	return maxItemSize;
+    }
+
+    /**
+     * @param maxItemSize
+     *            largest item stored, in bytes once encoded. Larger values
+     *            are split in chunks of this size. 0 stores every value in
+     *            a single item. Default is 1000 KB, under the 1 MB item
+     *            limit of memcached.
+     */
+    public void setMaxItemSize(int maxItemSize) {
+	if (maxItemSize != 0 && maxItemSize <= ChunkManifest.VERSION_BYTES) {
+	    throw new IllegalArgumentException("Max item size too small: "
+		    + maxItemSize);
+	}
+	this.maxItemSize = maxItemSize;
+    }
+
     public void setTimeOutSingleOperation(String timeOutSingleOperation) {
 	this.operationTimeOutMsec = NumberUtils.toInt(timeOutSingleOperation,
 		DEFAULT_TIMEOUT_SINGLE_OPERATION);
@@ -648,8 +1181,670 @@ public class MemcachedCacheService implements CacheService, AdminCacheService {
 
     }
 
+    public boolean isExceptionsSilentMode() {
+	return exceptionsSilentMode;
+    }
+
     public void setExceptionsSilentMode(boolean exceptionsSilentMode) {
 	this.exceptionsSilentMode = exceptionsSilentMode;
     }
 
+    public KeyFormat getKeyFormat() {
+	return keyFormat;
+    }
+
+    /**
+     * Changing the format on a populated cluster misses all the stored
+     * values, unless the previous format is read as well, see
+     * {@link #setDualReadKeyHash(KeyHash)}.
+     * 
+     * @param keyFormat
+     *            format of the keys values are stored under,
+     *            {@link KeyFormat#DEFAULT} if null
+     */
+    public synchronized void setKeyFormat(KeyFormat keyFormat) {
+	this.keyFormat = keyFormat != null ? keyFormat : KeyFormat.DEFAULT;
+	updateDualReadKeyFormat();
+    }
+
+    public KeyHash getKeyHash() {
+	return keyFormat.getHash();
+    }
+
+    /**
+     * @param keyHash
+     *            hash of the keys values are stored under, SHA1 by default
+     */
+    public synchronized void setKeyHash(KeyHash keyHash) {
+	setKeyFormat(keyFormat.withHash(keyHash));
+    }
+
+    public KeyEncoding getKeyEncoding() {
+	return keyFormat.getEncoding();
+    }
+
+    /**
+     * @param keyEncoding
+     *            encoding of the key hashes, HEX by default. BASE64URL keys
+     *            of SHA-1 are 27 characters instead of 40.
+     */
+    public synchronized void setKeyEncoding(KeyEncoding keyEncoding) {
+	setKeyFormat(keyFormat.withEncoding(keyEncoding));
+    }
+
+    public String getKeyNamespace() {
+	return keyFormat.getNamespace();
+    }
+
+    /**
+     * @param keyNamespace
+     *            prefix of the keys, none by default
+     */
+    public synchronized void setKeyNamespace(String keyNamespace) {
+	setKeyFormat(keyFormat.withNamespace(keyNamespace));
+    }
+
+    /**
+     * @return format of the keys read as well, null if not migrating
+     */
+    public KeyFormat getDualReadKeyFormat() {
+	return dualReadKeyFormat;
+    }
+
+    /**
+     * Migration mode: the keys in the previous format are read in the same
+     * multiget as the keys in {@link #getKeyFormat()}, and removed along with
+     * them. Values are written under the new keys only, the old ones expire
+     * or get evicted. incr, decr, append and cas see only the new keys.
+     * <p/>
+     * The previous format is SHA1, HEX and no namespace, unless its parts are
+     * set with the other dualRead setters. It's not read if it's the same as
+     * the current format.
+     * 
+     * @param dualReadKeys
+     *            true while migrating
+     */
+    public synchronized void setDualReadKeys(boolean dualReadKeys) {
+	this.dualReadKeys = dualReadKeys;
+	updateDualReadKeyFormat();
+    }
+
+    /**
+     * Turns the migration mode on, see {@link #setDualReadKeys(boolean)}.
+     * 
+     * @param dualReadKeyHash
+     *            the previous hash, null turns the migration mode off
+     */
+    public synchronized void setDualReadKeyHash(KeyHash dualReadKeyHash) {
+	dualReadKeyFormatSetting = dualReadKeyFormatSetting
+		.withHash(dualReadKeyHash);
+	setDualReadKeys(dualReadKeyHash != null);
+    }
+
+    /**
+     * @param dualReadKeyEncoding
+     *            the previous encoding, see {@link #setDualReadKeys(boolean)}
+     */
+    public synchronized void setDualReadKeyEncoding(
+	    KeyEncoding dualReadKeyEncoding) {
+	dualReadKeyFormatSetting = dualReadKeyFormatSetting
+		.withEncoding(dualReadKeyEncoding);
+	updateDualReadKeyFormat();
+    }
+
+    /**
+     * @param dualReadKeyNamespace
+     *            the previous namespace, see {@link #setDualReadKeys(boolean)}
+     */
+    public synchronized void setDualReadKeyNamespace(
+	    String dualReadKeyNamespace) {
+	dualReadKeyFormatSetting = dualReadKeyFormatSetting
+		.withNamespace(dualReadKeyNamespace);
+	updateDualReadKeyFormat();
+    }
+
+    private void updateDualReadKeyFormat() {
+	if (dualReadKeys && !dualReadKeyFormatSetting.equals(keyFormat)) {
+	    dualReadKeyFormat = dualReadKeyFormatSetting;
+	} else {
+	    dualReadKeyFormat = null;
+	}
+    }
+
+    @Override
+    public CacheFuture<Serializable> asyncGet(Object key) {
+	return asyncGet(key, exceptionsSilentMode);
+    }
+
+    /**
+     * @param silent
+     *            a failed get completes with null instead of failing
+     */
+    @SuppressWarnings("unchecked")
+    CacheFuture<Serializable> asyncGet(Object key, boolean silent) {
+	if (key == null) {
+	    return SettableCacheFuture.completed(null);
+	}
+	try {
+	    final String _key = getKey(key);
+	    final String dualReadKey = getDualReadKey(key);
+	    if (dualReadKey != null) {
+		final SettableCacheFuture<Serializable> result = new SettableCacheFuture<Serializable>();
+		whenDone(client.asyncGetBulk(Arrays.asList(_key, dualReadKey)),
+			operationTimeOutMsec, "get", key,
+			Collections.<String, Object> emptyMap()).addListener(
+			new CacheFuture.Listener<Map<String, Object>>() {
+
+			    @Override
+			    public void onComplete(
+				    CacheFuture<Map<String, Object>> future) {
+				try {
+				    result.set(dualRead(future.get(), _key,
+					    dualReadKey));
+				} catch (Exception e) {
+				    result.setException(e);
+				}
+			    }
+			});
+		return silenced(asyncReadChunks(result), silent, null);
+	    }
+	    Future<?> f = client.asyncGet(_key);
+	    return silenced(
+		    asyncReadChunks(whenDone((Future<Serializable>) f,
+			    operationTimeOutMsec, "get", key, null)), silent,
+		    null);
+	} catch (RuntimeException e) {
+	    return silenced(failed("get", key, e, (Serializable) null),
+		    silent, null);
+	} finally {
+	    if (listener != null)
+		listener.get(key);
+	}
+    }
+
+    @Override
+    public CacheFuture<List<Serializable>> asyncGetBatch(
+	    List<? extends Object> keys) {
+	return asyncGetBatch(keys, exceptionsSilentMode);
+    }
+
+    /**
+     * @param silent
+     *            a failed get completes with nulls instead of failing
+     */
+    CacheFuture<List<Serializable>> asyncGetBatch(
+	    List<? extends Object> keys, boolean silent) {
+	final List<String> prefixedKeys = getReadKeys(keys);
+	final int size = keys.size();
+	final SettableCacheFuture<List<Serializable>> result = new SettableCacheFuture<List<Serializable>>();
+	CacheFuture<Map<String, Object>> bulk;
+	try {
+	    bulk = whenDone(client.asyncGetBulk(prefixedKeys),
+		    operationTimeOutBulkMsec, "getBatch", keys,
+		    Collections.<String, Object> emptyMap());
+	} catch (RuntimeException e) {
+	    bulk = failed("getBatch", keys, e,
+		    Collections.<String, Object> emptyMap());
+	}
+	bulk.addListener(new CacheFuture.Listener<Map<String, Object>>() {
+
+	    @Override
+	    public void onComplete(CacheFuture<Map<String, Object>> future) {
+		try {
+		    asyncReadChunks(
+			    processBulkResult(prefixedKeys, size, future.get()))
+			    .addListener(
+				    new CacheFuture.Listener<List<Serializable>>() {
+
+					@Override
+					public void onComplete(
+						CacheFuture<List<Serializable>> values) {
+					    try {
+						result.set(values.get());
+					    } catch (Exception e) {
+						result.setException(e);
+					    }
+					}
+				    });
+		} catch (Exception e) {
+		    result.setException(e);
+		}
+	    }
+	});
+	return silenced(result, silent, new ArrayList<Serializable>(
+		Collections.<Serializable> nCopies(size, null)));
+    }
+
+    @Override
+    public CacheFuture<Boolean> asyncPut(Object key, int expiration,
+	    Serializable obj) {
+	return asyncPut(key, expiration, obj, exceptionsSilentMode);
+    }
+
+    /**
+     * @param silent
+     *            a failed set completes with false instead of failing
+     */
+    CacheFuture<Boolean> asyncPut(Object key, int expiration,
+	    Serializable obj, boolean silent) {
+	if (key == null) {
+	    throw new IllegalArgumentException("Key cannot be null");
+	}
+	if (expiration < 0) {
+	    throw new IllegalArgumentException(
+		    "Expiration time cannot be minus. Exptime=" + expiration);
+	}
+	try {
+	    return silenced(
+		    whenDone(set(getKey(key), expiration, obj, encode(obj),
+			    null), operationTimeOutMsec, "set", key,
+			    Boolean.FALSE), silent, Boolean.FALSE);
+	} catch (RuntimeException e) {
+	    return silenced(failed("set", key, e, Boolean.FALSE), silent,
+		    Boolean.FALSE);
+	} finally {
+	    if (listener != null)
+		listener.put(key, obj);
+	}
+    }
+
+    @Override
+    public CacheFuture<Boolean> asyncAdd(Object key, Serializable obj) {
+	return asyncAdd(key, obj, exceptionsSilentMode);
+    }
+
+    /**
+     * @param silent
+     *            a failed add completes with false instead of failing
+     */
+    CacheFuture<Boolean> asyncAdd(Object key, Serializable obj,
+	    boolean silent) {
+	if (key == null) {
+	    return SettableCacheFuture.completed(Boolean.TRUE);
+	}
+	try {
+	    return silenced(whenDone(client.add(getKey(key), expireTime, obj),
+		    operationTimeOutMsec, "add", key, Boolean.FALSE), silent,
+		    Boolean.FALSE);
+	} catch (RuntimeException e) {
+	    return silenced(failed("add", key, e, Boolean.FALSE), silent,
+		    Boolean.FALSE);
+	} finally {
+	    if (listener != null)
+		listener.put(key, obj);
+	}
+    }
+
+    @Override
+    public CacheFuture<Boolean> asyncRemove(Object key) {
+	return asyncRemove(key, exceptionsSilentMode);
+    }
+
+    /**
+     * @param silent
+     *            a failed delete completes with false instead of failing
+     */
+    CacheFuture<Boolean> asyncRemove(Object key, boolean silent) {
+	try {
+	    removeDualReadKey(key);
+	    return silenced(whenDone(client.delete(getKey(key)),
+		    operationTimeOutMsec, "remove", key, Boolean.FALSE),
+		    silent, Boolean.FALSE);
+	} catch (RuntimeException e) {
+	    return silenced(failed("remove", key, e, Boolean.FALSE), silent,
+		    Boolean.FALSE);
+	} finally {
+	    if (listener != null)
+		listener.remove(key);
+	}
+    }
+
+    @Override
+    public CacheFuture<Map<Object, RemoveOutcome>> asyncRemoveBatch(
+	    Collection<Object> keys) {
+	BatchRemoval removal = new BatchRemoval(keys);
+	removal.start();
+	return removal.result;
+    }
+
+    @Override
+    public CacheFuture<Long> asyncIncr(Object key, int by) {
+	return asyncIncr(key, by, exceptionsSilentMode);
+    }
+
+    /**
+     * @param silent
+     *            a failed incr completes with -1 instead of failing
+     */
+    CacheFuture<Long> asyncIncr(Object key, int by, boolean silent) {
+	try {
+	    return silenced(whenDone(client.asyncIncr(getKey(key), by),
+		    operationTimeOutMsec, "incr", key, Long.valueOf(-1)),
+		    silent, Long.valueOf(-1));
+	} catch (RuntimeException e) {
+	    return silenced(failed("incr", key, e, Long.valueOf(-1)), silent,
+		    Long.valueOf(-1));
+	}
+    }
+
+    /**
+     * Adds the value, or appends it with a comma if the key exists, the same
+     * way {@link #append(Object, String)} does.
+     */
+    @Override
+    public CacheFuture<Boolean> asyncAppend(Object key, String obj) {
+	return asyncAppend(key, obj, exceptionsSilentMode);
+    }
+
+    /**
+     * @param silent
+     *            a failed append completes with false instead of failing
+     */
+    CacheFuture<Boolean> asyncAppend(final Object key, final String obj,
+	    boolean silent) {
+	final String _key = getKey(key);
+	final SettableCacheFuture<Boolean> result = new SettableCacheFuture<Boolean>();
+	try {
+	    whenDone(client.add(_key, expireTime, obj, nonCompressTranscoder),
+		    operationTimeOutMsec, "append", key, Boolean.FALSE)
+		    .addListener(new CacheFuture.Listener<Boolean>() {
+
+			@Override
+			public void onComplete(CacheFuture<Boolean> added) {
+			    if (Boolean.TRUE.equals(getQuietly(added))) {
+				result.set(Boolean.TRUE);
+				return;
+			    }
+			    try {
+				whenDone(
+					client.append(0, _key, "," + obj,
+						nonCompressTranscoder),
+					operationTimeOutMsec, "append", key,
+					Boolean.FALSE).addListener(
+					new CacheFuture.Listener<Boolean>() {
+
+					    @Override
+					    public void onComplete(
+						    CacheFuture<Boolean> appended) {
+						result.set(getQuietly(appended));
+					    }
+					});
+			    } catch (RuntimeException e) {
+				result.set(Boolean.FALSE);
+			    }
+			}
+		    });
+	} catch (RuntimeException e) {
+	    return silenced(failed("append", key, e, Boolean.FALSE), silent,
+		    Boolean.FALSE);
+	} finally {
+	    if (listener != null)
+		listener.append(key, obj);
+	}
+	return silenced(result, silent, Boolean.FALSE);
+    }
+
+    private static Boolean getQuietly(CacheFuture<Boolean> future) {
+	try {
+	    return future.get();
+	} catch (Exception e) {
+	    return Boolean.FALSE;
+	}
+    }
+
+    /**
+     * Completes the result from the callback of the spymemcached future, or
+     * fails it once the timeout elapsed, the operation is then cancelled.
+     * Futures without callbacks are waited for on the calling thread.
+     * 
+     * @param fallback
+     *            result of an operation which returned null
+     */
+    private <T> CacheFuture<T> whenDone(final Future<T> future,
+	    final long timeoutMsec, final String operation, final Object key,
+	    final T fallback) {
+	final SettableCacheFuture<T> result = new SettableCacheFuture<T>();
+	if (!(future instanceof OperationFuture)
+		&& !(future instanceof GetFuture)
+		&& !(future instanceof BulkFuture)) {
+	    settle(future, timeoutMsec, result, operation, key, fallback);
+	    return result;
+	}
+	final ScheduledFuture<?> deadline = TIMEOUTS.schedule(new Runnable() {
+
+	    @Override
+	    public void run() {
+		if (!result.isDone()) {
+		    future.cancel(false);
+		    fail(result, operation, key, new TimeoutException(
+			    "Timeout after " + timeoutMsec + " mseconds."),
+			    fallback);
+		}
+	    }
+	}, timeoutMsec, TimeUnit.MILLISECONDS);
+	if (future instanceof OperationFuture) {
+	    ((OperationFuture<?>) future)
+		    .addListener(new OperationCompletionListener() {
+
+			@Override
+			public void onComplete(OperationFuture<?> f) {
+			    deadline.cancel(false);
+			    settle(future, timeoutMsec, result, operation, key,
+				    fallback);
+			}
+		    });
+	} else if (future instanceof GetFuture) {
+	    ((GetFuture<?>) future).addListener(new GetCompletionListener() {
+
+		@Override
+		public void onComplete(GetFuture<?> f) {
+		    deadline.cancel(false);
+		    settle(future, timeoutMsec, result, operation, key,
+			    fallback);
+		}
+	    });
+	} else {
+	    ((BulkFuture<?>) future)
+		    .addListener(new BulkGetCompletionListener() {
+
+			@Override
+			public void onComplete(BulkGetFuture<?> f) {
+			    deadline.cancel(false);
+			    settle(future, timeoutMsec, result, operation, key,
+				    fallback);
+			}
+		    });
+	}
+	return result;
+    }
+
+    private <T> void settle(Future<T> future, long timeoutMsec,
+	    SettableCacheFuture<T> result, String operation, Object key,
+	    T fallback) {
+	if (result.isDone()) {
+	    // timed out already
+	    return;
+	}
+	try {
+	    T value = future.get(timeoutMsec, TimeUnit.MILLISECONDS);
+	    result.set(value != null ? value : fallback);
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    result.setException(e);
+	} catch (Exception e) {
+	    if (e instanceof TimeoutException) {
+		future.cancel(false);
+	    }
+	    fail(result, operation, key, e, fallback);
+	}
+    }
+
+    private <T> CacheFuture<T> failed(String operation, Object key,
+	    Exception e, T fallback) {
+	SettableCacheFuture<T> result = new SettableCacheFuture<T>();
+	fail(result, operation, key, e, fallback);
+	return result;
+    }
+
+    private <T> void fail(SettableCacheFuture<T> result, String operation,
+	    Object key, Exception e, T fallback) {
+	log.warn("For information only, memcached " + operation
+		+ " failed, key:" + key + ". Ex:" + e.getMessage());
+	if (log.isDebugEnabled()) {
+	    log.debug("memcached " + operation + " failed, key:" + key, e);
+	}
+	result.setException(e);
+    }
+
+    /**
+     * @param silent
+     *            the exceptions silent mode of the call
+     * @param fallback
+     *            result of a failed operation in the silent mode
+     */
+    private static <T> CacheFuture<T> silenced(CacheFuture<T> future,
+	    boolean silent, final T fallback) {
+	if (!silent) {
+	    return future;
+	}
+	final SettableCacheFuture<T> result = new SettableCacheFuture<T>();
+	future.addListener(new CacheFuture.Listener<T>() {
+
+	    @Override
+	    public void onComplete(CacheFuture<T> f) {
+		try {
+		    result.set(f.get());
+		} catch (InterruptedException e) {
+		    Thread.currentThread().interrupt();
+		    result.set(fallback);
+		} catch (Exception e) {
+		    // logged when the operation failed
+		    result.set(fallback);
+		}
+	    }
+	});
+	return result;
+    }
+
+    /**
+     * Deletes of a batch, each one completes its key from the callback of
+     * the client.
+     */
+    private final class BatchRemoval {
+
+	private final List<Object> keys;
+	private final RemoveOutcome[] outcomes;
+	private final AtomicInteger pending;
+	private final SettableCacheFuture<Map<Object, RemoveOutcome>> result = new SettableCacheFuture<Map<Object, RemoveOutcome>>();
+
+	BatchRemoval(Collection<Object> keys) {
+	    this.keys = new ArrayList<Object>(keys);
+	    this.outcomes = new RemoveOutcome[this.keys.size()];
+	    this.pending = new AtomicInteger(this.keys.size());
+	}
+
+	void start() {
+	    if (keys.isEmpty()) {
+		result.set(new LinkedHashMap<Object, RemoveOutcome>());
+		return;
+	    }
+	    final ScheduledFuture<?> deadline = TIMEOUTS.schedule(
+		    new Runnable() {
+
+			@Override
+			public void run() {
+			    result.set(outcomes(RemoveOutcome.TIMED_OUT));
+			}
+		    }, operationTimeOutBulkMsec, TimeUnit.MILLISECONDS);
+	    result.addListener(new CacheFuture.Listener<Map<Object, RemoveOutcome>>() {
+
+		@Override
+		public void onComplete(
+			CacheFuture<Map<Object, RemoveOutcome>> future) {
+		    deadline.cancel(false);
+		}
+	    });
+	    for (int i = 0; i < keys.size(); i++) {
+		final int index = i;
+		Object key = keys.get(i);
+		try {
+		    removeDualReadKey(key);
+		    ((OperationFuture<Boolean>) client.delete(getKey(key)))
+			    .addListener(new OperationCompletionListener() {
+
+				@Override
+				public void onComplete(OperationFuture<?> f) {
+				    complete(index, outcomeOf(f));
+				}
+			    });
+		} catch (RuntimeException e) {
+		    log.warn("For information only, memcached remove failed,"
+			    + " key:" + key + ". Ex:" + e.getMessage());
+		    complete(index, RemoveOutcome.FAILED);
+		} finally {
+		    if (listener != null)
+			listener.remove(key);
+		}
+	    }
+	}
+
+	private RemoveOutcome outcomeOf(OperationFuture<?> f) {
+	    try {
+		OperationStatus status = f.getStatus();
+		if (status == null) {
+		    return RemoveOutcome.FAILED;
+		}
+		if (status.isSuccess()) {
+		    return RemoveOutcome.REMOVED;
+		}
+		if ("NOT_FOUND".equals(status.getMessage())
+			|| "Not found".equals(status.getMessage())) {
+		    return RemoveOutcome.NOT_FOUND;
+		}
+		log.warn("remove failed with status=" + status);
+	    } catch (RuntimeException e) {
+		log.warn("For information only, memcached remove failed, key:"
+			+ f.getKey() + ". Ex:" + e.getMessage());
+	    }
+	    return RemoveOutcome.FAILED;
+	}
+
+	private void complete(int index, RemoveOutcome outcome) {
+	    synchronized (this) {
+		outcomes[index] = outcome;
+	    }
+	    if (pending.decrementAndGet() == 0) {
+		result.set(outcomes(RemoveOutcome.TIMED_OUT));
+	    }
+	}
+
+	/**
+	 * @return the outcomes, the deletes not acked before the timeout
+	 *         timed out
+	 */
+	Map<Object, RemoveOutcome> await(long timeoutMsec) {
+	    try {
+		return result.get(timeoutMsec, TimeUnit.MILLISECONDS);
+	    } catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+	    } catch (Exception e) {
+		// timed out, report what was acked so far
+	    }
+	    return outcomes(RemoveOutcome.TIMED_OUT);
+	}
+
+	/**
+	 * @param pendingOutcome
+	 *            outcome of the deletes not acked yet
+	 */
+	private synchronized Map<Object, RemoveOutcome> outcomes(
+		RemoveOutcome pendingOutcome) {
+	    Map<Object, RemoveOutcome> map = new LinkedHashMap<Object, RemoveOutcome>();
+	    for (int i = 0; i < keys.size(); i++) {
+		map.put(keys.get(i), outcomes[i] != null ? outcomes[i]
+			: pendingOutcome);
+	    }
+	    return map;
+	}
+    }
 }
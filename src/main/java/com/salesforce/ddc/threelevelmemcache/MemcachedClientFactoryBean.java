@@ -45,6 +45,7 @@ import net.spy.memcached.ops.Operation;
 import net.spy.memcached.ops.OperationQueueFactory;
 import net.spy.memcached.protocol.ascii.AsciiOperationFactory;
 import net.spy.memcached.protocol.binary.BinaryOperationFactory;
+import net.spy.memcached.transcoders.Transcoder;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.math.NumberUtils;
@@ -74,6 +75,8 @@ public class MemcachedClientFactoryBean {
 
     protected int queueSize = DefaultConnectionFactory.DEFAULT_OP_QUEUE_LEN;
 
+    private Transcoder<Object> transcoder;
+
     static {
 	setupViewmode();
 	setupLogger();
@@ -106,6 +109,9 @@ public class MemcachedClientFactoryBean {
 	    if (operationTimeout > 0) {
 		connectionFactoryBuilder.setOpTimeout(operationTimeout);
 	    }
+	    if (transcoder != null) {
+		connectionFactoryBuilder.setTranscoder(transcoder);
+	    }
 	    if (baseList.size() > 0) {
 		return getCouchBaseConnection(connectionFactoryBuilder);
 	    } else if (StringUtils.isNotBlank(servers)) {
@@ -228,4 +234,13 @@ public class MemcachedClientFactoryBean {
 	this.queueSize = NumberUtils.toInt(queueSize,
 		DefaultConnectionFactory.DEFAULT_OP_QUEUE_LEN);
     }
+
+    /**
+     * @param transcoder
+     *            transcoder of the values, the client's default
+     *            SerializingTranscoder if null
+     */
+    public void setTranscoder(Transcoder<Object> transcoder) {
+	this.transcoder = transcoder;
+    }
 }
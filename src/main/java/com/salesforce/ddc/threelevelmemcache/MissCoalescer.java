@@ -0,0 +1,265 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.salesforce.ddc.threelevelmemcache.exposed.NotUseFirstLevelCacheDomain;
+import com.salesforce.ddc.threelevelmemcache.exposed.util.SHAKey;
+
+/**
+ * Coalesces concurrent misses of the same key: the first caller loads the
+ * value, the callers arriving while the load is in flight wait for it and
+ * share its result instead of going to memcached themselves.
+ * <p/>
+ * A waiter gives up after the timeout, or if the load failed, and loads the
+ * value on its own, so a slow or broken load never blocks the callers longer
+ * than the timeout.
+ * <p/>
+ * The waiters share the instance loaded, except for the values of a
+ * {@link NotUseFirstLevelCacheDomain} class: every caller must get its own
+ * copy of those, so the waiters load them on their own.
+ * <p/>
+ * Besides the totals, the number of coalesced calls is counted per key for up
+ * to {@link #MAXIMUM_TRACKED_KEYS} keys, to show which keys cause the herds.
+ * The keys are tracked by their SHA-1, not to publish application keys.
+ * Every {@link #DECAY_PERIOD} coalesced calls the counts are halved and the
+ * keys left at 0 dropped, so the counts follow the current herds and new
+ * keys find room.
+ */
+public class MissCoalescer {
+
+    public static final long DEFAULT_TIMEOUT_MSEC = 1000;
+    static final int MAXIMUM_TRACKED_KEYS = 1024;
+    static final int DECAY_PERIOD = 10 * MAXIMUM_TRACKED_KEYS;
+
+    /**
+     * Loads the value of a missed key.
+     */
+    public interface Loader {
+
+	Serializable load(Object key);
+    }
+
+    private final ConcurrentHashMap<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+    private final ConcurrentHashMap<String, AtomicLong> coalescedByKey = new ConcurrentHashMap<String, AtomicLong>();
+    private final AtomicLong loads = new AtomicLong(0l);
+    private final AtomicLong coalesced = new AtomicLong(0l);
+    private final AtomicLong sinceDecay = new AtomicLong(0l);
+    private final AtomicLong timeouts = new AtomicLong(0l);
+    private volatile long timeoutMsec = DEFAULT_TIMEOUT_MSEC;
+
+    /**
+     * @param key
+     * @param loader
+     * @return the value loaded by this call or by the call in flight
+     */
+    public Serializable get(Object key, Loader loader) {
+	String _key = key.toString();
+	Flight flight = new Flight();
+	Flight inFlight = flights.putIfAbsent(_key, flight);
+	if (inFlight == null) {
+	    return lead(key, _key, flight, loader);
+	}
+	coalesced.incrementAndGet();
+	count(_key);
+	try {
+	    if (inFlight.latch.await(timeoutMsec, TimeUnit.MILLISECONDS)) {
+		if (!inFlight.failed && isShared(inFlight.value)) {
+		    return inFlight.value;
+		}
+	    } else {
+		timeouts.incrementAndGet();
+	    }
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	}
+	loads.incrementAndGet();
+	return loader.load(key);
+    }
+
+    private Serializable lead(Object key, String _key, Flight flight,
+	    Loader loader) {
+	loads.incrementAndGet();
+	boolean failed = true;
+	try {
+	    Serializable value = loader.load(key);
+	    flight.value = value;
+	    failed = false;
+	    return value;
+	} finally {
+	    flight.failed = failed;
+	    flights.remove(_key, flight);
+	    flight.latch.countDown();
+	}
+    }
+
+    private static boolean isShared(Serializable value) {
+	return value == null
+		|| !value.getClass().isAnnotationPresent(
+			NotUseFirstLevelCacheDomain.class);
+    }
+
+    void count(String _key) {
+	if (sinceDecay.incrementAndGet() % DECAY_PERIOD == 0) {
+	    decay();
+	}
+	String hashedKey = SHAKey.sha(_key);
+	AtomicLong counter = coalescedByKey.get(hashedKey);
+	if (counter == null) {
+	    if (coalescedByKey.size() >= MAXIMUM_TRACKED_KEYS) {
+		return;
+	    }
+	    AtomicLong created = new AtomicLong();
+	    counter = coalescedByKey.putIfAbsent(hashedKey, created);
+	    if (counter == null) {
+		counter = created;
+	    }
+	}
+	counter.incrementAndGet();
+    }
+
+    /**
+     * Halves the per key counts, the keys left at 0 are dropped.
+     */
+    private void decay() {
+	for (Map.Entry<String, AtomicLong> entry : coalescedByKey.entrySet()) {
+	    AtomicLong counter = entry.getValue();
+	    long current;
+	    do {
+		current = counter.get();
+	    } while (!counter.compareAndSet(current, current / 2));
+	    if (current / 2 == 0) {
+		coalescedByKey.remove(entry.getKey(), counter);
+	    }
+	}
+    }
+
+    /**
+     * @return number of loads, by the leading calls and by the waiters which
+     *         gave up
+     */
+    public long getLoads() {
+	return loads.get();
+    }
+
+    /**
+     * @return number of calls which joined a load in flight
+     */
+    public long getCoalesced() {
+	return coalesced.get();
+    }
+
+    /**
+     * @return number of waiters which timed out
+     */
+    public long getTimeouts() {
+	return timeouts.get();
+    }
+
+    /**
+     * @return number of keys being loaded right now
+     */
+    public int getInFlight() {
+	return flights.size();
+    }
+
+    /**
+     * @param key
+     * @return number of calls of the key which joined a load in flight,
+     *         halved every {@link #DECAY_PERIOD} coalesced calls
+     */
+    public long getCoalesced(Object key) {
+	AtomicLong counter = coalescedByKey.get(SHAKey.sha(key.toString()));
+	return counter != null ? counter.get() : 0;
+    }
+
+    /**
+     * @param limit
+     * @return SHA-1 of the keys with the most coalesced calls, the most
+     *         first
+     */
+    public Map<String, Long> getMostCoalescedKeys(int limit) {
+	// copy the counts first, they change while sorting
+	List<Map.Entry<String, Long>> entries = new ArrayList<Map.Entry<String, Long>>(
+		coalescedByKey.size());
+	for (Map.Entry<String, AtomicLong> entry : coalescedByKey.entrySet()) {
+	    entries.add(new AbstractMap.SimpleImmutableEntry<String, Long>(entry
+		    .getKey(), entry.getValue().get()));
+	}
+	Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+
+	    @Override
+	    public int compare(Map.Entry<String, Long> o1,
+		    Map.Entry<String, Long> o2) {
+		return o2.getValue().compareTo(o1.getValue());
+	    }
+	});
+	Map<String, Long> result = new LinkedHashMap<String, Long>();
+	for (int i = 0; i < entries.size() && i < limit; i++) {
+	    result.put(entries.get(i).getKey(), entries.get(i).getValue());
+	}
+	return result;
+    }
+
+    /**
+     * Resets the per key counters.
+     */
+    public void clearKeyStats() {
+	coalescedByKey.clear();
+    }
+
+    public long getTimeoutMsec() {
+	return timeoutMsec;
+    }
+
+    /**
+     * @param timeoutMsec
+     *            how long a caller waits for the load in flight before it
+     *            loads the value itself
+     */
+    public void setTimeoutMsec(long timeoutMsec) {
+	this.timeoutMsec = timeoutMsec;
+    }
+
+    private static final class Flight {
+
+	private final CountDownLatch latch = new CountDownLatch(1);
+	private volatile Serializable value;
+	private volatile boolean failed;
+    }
+}
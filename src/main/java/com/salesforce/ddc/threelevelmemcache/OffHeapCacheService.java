@@ -0,0 +1,350 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache;
+
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.SerializingTranscoder;
+import net.spy.memcached.transcoders.Transcoder;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.salesforce.ddc.threelevelmemcache.exposed.AdminCacheService;
+import com.salesforce.ddc.threelevelmemcache.exposed.CacheService;
+import com.salesforce.ddc.threelevelmemcache.exposed.listener.CacheListener;
+import com.salesforce.ddc.threelevelmemcache.exposed.strategy.CachingStrategy;
+import com.salesforce.ddc.threelevelmemcache.offheap.OffHeapStore;
+import com.salesforce.ddc.threelevelmemcache.offheap.SlabAllocator;
+import com.salesforce.ddc.threelevelmemcache.strategy.DefaultAnnotationBasedCachingStrategy;
+
+/**
+ * Off-heap JVM cache, the level between the first level cache and memcached.
+ * <p/>
+ * Values are encoded by the same {@link Transcoder} memcached values go
+ * through and kept in direct memory slabs, so the cache can hold gigabytes
+ * without adding to the GC work. Every read decodes a new copy of the value.
+ * Counters and appends only invalidate the key, the next read goes to
+ * memcached. A size of 0 disables the cache.
+ */
+public class OffHeapCacheService implements CacheService, AdminCacheService {
+
+    private static Log log = LogFactory.getLog(OffHeapCacheService.class);
+
+    /**
+     * Memcached treats expirations above 30 days as unix time.
+     */
+    private static final int MAXIMUM_RELATIVE_EXPIRATION = 60 * 60 * 24 * 30;
+
+    private final OffHeapStore store;
+    private Transcoder<Object> transcoder = new SerializingTranscoder();
+    private CachingStrategy cachingStrategy = new DefaultAnnotationBasedCachingStrategy();
+    private CacheListener listener;
+    private final AtomicLong hits = new AtomicLong(0l);
+    private final AtomicLong misses = new AtomicLong(0l);
+
+    /**
+     * @param maxBytes
+     *            direct memory budget, 0 disables the cache
+     */
+    public OffHeapCacheService(long maxBytes) {
+	this(maxBytes, SlabAllocator.DEFAULT_SLAB_SIZE);
+    }
+
+    /**
+     * @param maxBytes
+     *            direct memory budget, 0 disables the cache
+     * @param slabSize
+     *            slab size, values above it are not cached
+     */
+    public OffHeapCacheService(long maxBytes, int slabSize) {
+	if (maxBytes >= slabSize) {
+	    store = new OffHeapStore(new SlabAllocator(maxBytes, slabSize,
+		    SlabAllocator.DEFAULT_GROWTH_FACTOR));
+	} else {
+	    if (maxBytes > 0) {
+		log.warn("Off-heap cache size " + maxBytes
+			+ " is below the slab size " + slabSize
+			+ ", the cache is disabled.");
+	    }
+	    store = null;
+	}
+    }
+
+    protected String getKey(Object unprefixedKey) {
+	return unprefixedKey.toString();
+    }
+
+    @Override
+    public Serializable get(Object key) {
+	if (key == null) {
+	    return null;
+	}
+	try {
+	    if (store == null) {
+		return null;
+	    }
+	    CachedData data = store.get(getKey(key),
+		    System.currentTimeMillis());
+	    if (data == null) {
+		misses.incrementAndGet();
+		return null;
+	    }
+	    hits.incrementAndGet();
+	    return (Serializable) transcoder.decode(data);
+	} catch (Exception e) {
+	    log.warn("Unable to decode off-heap value of key:" + key, e);
+	    store.remove(getKey(key));
+	    return null;
+	} finally {
+	    if (listener != null)
+		listener.get(key);
+	}
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public List<Serializable> getBatch(List keys) {
+	List<Serializable> result = new ArrayList<Serializable>();
+	for (Object key : keys) {
+	    result.add(get(key));
+	}
+	return result;
+    }
+
+    @Override
+    public void put(Object key, Serializable obj) {
+	put(key, 0, obj);
+    }
+
+    /**
+     * Stores the value for the given number of seconds. As in memcached, 0
+     * means no expiration and values above 30 days are unix time.
+     */
+    @Override
+    public void put(Object key, int expiration, Serializable obj) {
+	if (key == null || store == null
+		|| !cachingStrategy.isCacheable(key, obj)) {
+	    return;
+	}
+	try {
+	    String _key = getKey(key);
+	    long expiresAt = 0;
+	    if (expiration > MAXIMUM_RELATIVE_EXPIRATION) {
+		expiresAt = expiration * 1000L;
+	    } else if (expiration > 0) {
+		expiresAt = System.currentTimeMillis() + expiration * 1000L;
+	    }
+	    if (obj == null
+		    || (expiresAt != 0 && expiresAt <= System
+			    .currentTimeMillis())) {
+		store.remove(_key);
+		return;
+	    }
+	    store.put(_key, transcoder.encode(obj), expiresAt);
+	} catch (Exception e) {
+	    log.warn("Unable to store off-heap value of key:" + key, e);
+	    store.remove(getKey(key));
+	} finally {
+	    if (listener != null)
+		listener.put(key, obj);
+	}
+    }
+
+    @Override
+    public boolean add(Object key, Serializable obj) {
+	invalidate(key);
+	return Boolean.TRUE;
+    }
+
+    @Override
+    public void append(Object key, String obj) {
+	invalidate(key);
+	if (listener != null)
+	    listener.append(key, obj);
+    }
+
+    @Override
+    public long incr(Object key) {
+	invalidate(key);
+	return -1;
+    }
+
+    @Override
+    public long incr(Object key, int by, long defaultValue, int expiration) {
+	return incr(key);
+    }
+
+    @Override
+    public long decr(Object key) {
+	invalidate(key);
+	return -1;
+    }
+
+    @Override
+    public long decr(Object key, int by, long defaultValue, int expiration) {
+	return decr(key);
+    }
+
+    private void invalidate(Object key) {
+	if (key != null && store != null) {
+	    store.remove(getKey(key));
+	}
+    }
+
+    @Override
+    public void putBatch(List<? extends Object> keys,
+	    List<? extends Serializable> objs) {
+	for (int i = 0; i < keys.size(); i++) {
+	    put(keys.get(i), objs.get(i));
+	}
+    }
+
+    @Override
+    public void putBatch(Map<? extends Object, ? extends Serializable> objs) {
+	for (Map.Entry<? extends Object, ? extends Serializable> entry : objs
+		.entrySet()) {
+	    put(entry.getKey(), entry.getValue());
+	}
+    }
+
+    @Override
+    public void remove(Object key) {
+	try {
+	    invalidate(key);
+	} finally {
+	    if (listener != null)
+		listener.remove(key);
+	}
+    }
+
+    @Override
+    public void removeBatch(Collection<Object> keys) {
+	for (Object key : keys) {
+	    remove(key);
+	}
+    }
+
+    @Override
+    public void shutdown() {
+	if (store != null) {
+	    store.release();
+	}
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void clearAll() {
+	if (store != null) {
+	    store.clear();
+	}
+    }
+
+    @Override
+    public long size() {
+	return store != null ? store.size() : 0;
+    }
+
+    @Override
+    public boolean isSynchronousPut() {
+	return true;
+    }
+
+    @Override
+    public void setSynchronousPut(boolean synchronousPut) {
+    }
+
+    @Override
+    public boolean isConnected() {
+	return true;
+    }
+
+    @Override
+    public Map<SocketAddress, Map<String, String>> getStats() {
+	Map<SocketAddress, Map<String, String>> stats = new HashMap<SocketAddress, Map<String, String>>();
+	SocketAddress server = new InetSocketAddress(0);
+	Map<String, String> s = new LinkedHashMap<String, String>();
+	s.put("hits", String.valueOf(hits));
+	s.put("misses", String.valueOf(misses));
+	if (store != null) {
+	    s.put("entries", String.valueOf(store.size()));
+	    s.put("bytes", String.valueOf(store.usedBytes()));
+	    s.put("reservedBytes", String.valueOf(store.reservedBytes()));
+	    s.put("maxBytes", String.valueOf(store.maxBytes()));
+	    s.put("evictions", String.valueOf(store.evictions()));
+	    s.put("rejections", String.valueOf(store.rejections()));
+	} else {
+	    s.put("maxBytes", "0");
+	}
+	stats.put(server, s);
+	return stats;
+    }
+
+    @Override
+    public CacheListener getCacheListener() {
+	return listener;
+    }
+
+    @Override
+    public void setListener(CacheListener listener) {
+	this.listener = listener;
+    }
+
+    public Transcoder<Object> getTranscoder() {
+	return transcoder;
+    }
+
+    /**
+     * Sets the transcoder of the values, should be the one of the memcached
+     * client. Defaults to {@link SerializingTranscoder}.
+     * 
+     * @param transcoder
+     */
+    public void setTranscoder(Transcoder<Object> transcoder) {
+	this.transcoder = transcoder;
+    }
+
+    public CachingStrategy getCachingStrategy() {
+	return cachingStrategy;
+    }
+
+    public void setCachingStrategy(CachingStrategy cachingStrategy) {
+	this.cachingStrategy = cachingStrategy;
+    }
+}
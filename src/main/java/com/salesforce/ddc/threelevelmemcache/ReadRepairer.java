@@ -0,0 +1,194 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache;
+
+import java.io.Serializable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.salesforce.ddc.threelevelmemcache.exposed.CacheService;
+
+/**
+ * Writes values found in secondary after a primary miss back into primary,
+ * so the other JVMs hit primary again.
+ * <p/>
+ * Repairs run on a background thread. A key already waiting for its repair
+ * is not queued twice, and at most {@link #setMaxPerSecond(int)} repairs are
+ * queued per second, the others are dropped. The value is added, not put:
+ * a value written to primary since the read is never overwritten.
+ */
+public class ReadRepairer {
+
+    private static Log log = LogFactory.getLog(ReadRepairer.class);
+
+    public static final int DEFAULT_MAX_PER_SECOND = 100;
+    private static final int MAXIMUM_QUEUED_REPAIRS = 1000;
+
+    private final CacheService target;
+    private final ThreadPoolExecutor executor;
+    private final ConcurrentHashMap<String, Boolean> pending = new ConcurrentHashMap<String, Boolean>();
+    private volatile int maxPerSecond = DEFAULT_MAX_PER_SECOND;
+    private long second;
+    private int permitsUsed;
+
+    private final AtomicLong repairs = new AtomicLong(0l);
+    private final AtomicLong deduplicated = new AtomicLong(0l);
+    private final AtomicLong rateLimited = new AtomicLong(0l);
+    private final AtomicLong failures = new AtomicLong(0l);
+
+    /**
+     * @param target
+     *            the cluster to repair
+     */
+    public ReadRepairer(CacheService target) {
+	this.target = target;
+	executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+		new LinkedBlockingQueue<Runnable>(MAXIMUM_QUEUED_REPAIRS),
+		new ThreadFactory() {
+
+		    @Override
+		    public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "CacheReadRepair");
+			thread.setDaemon(true);
+			return thread;
+		    }
+		});
+	executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queues the repair of the key.
+     * 
+     * @param key
+     * @param value
+     *            value read from the other cluster
+     * @return true if the repair was queued
+     */
+    public boolean repair(final Object key, final Serializable value) {
+	final String _key = key.toString();
+	if (pending.putIfAbsent(_key, Boolean.TRUE) != null) {
+	    deduplicated.incrementAndGet();
+	    return false;
+	}
+	if (!tryAcquire()) {
+	    pending.remove(_key);
+	    rateLimited.incrementAndGet();
+	    return false;
+	}
+	try {
+	    executor.execute(new Runnable() {
+
+		@Override
+		public void run() {
+		    try {
+			target.add(key, value);
+			repairs.incrementAndGet();
+		    } catch (RuntimeException e) {
+			failures.incrementAndGet();
+			log.warn("Read repair of key:" + key + " failed.", e);
+		    } finally {
+			pending.remove(_key);
+		    }
+		}
+	    });
+	    return true;
+	} catch (RejectedExecutionException e) {
+	    pending.remove(_key);
+	    rateLimited.incrementAndGet();
+	    return false;
+	}
+    }
+
+    private synchronized boolean tryAcquire() {
+	long now = System.nanoTime() / TimeUnit.SECONDS.toNanos(1);
+	if (now != second) {
+	    second = now;
+	    permitsUsed = 0;
+	}
+	if (permitsUsed >= maxPerSecond) {
+	    return false;
+	}
+	permitsUsed++;
+	return true;
+    }
+
+    public void shutdown() {
+	executor.shutdown();
+    }
+
+    /**
+     * @return number of repair writes done, a key present in primary
+     *         already is left as it is
+     */
+    public long getRepairs() {
+	return repairs.get();
+    }
+
+    /**
+     * @return number of repairs skipped because the key was queued already
+     */
+    public long getDeduplicated() {
+	return deduplicated.get();
+    }
+
+    /**
+     * @return number of repairs dropped by the rate limit or a full queue
+     */
+    public long getRateLimited() {
+	return rateLimited.get();
+    }
+
+    public long getFailures() {
+	return failures.get();
+    }
+
+    /**
+     * @return number of keys waiting for their repair
+     */
+    public int getPending() {
+	return pending.size();
+    }
+
+    public int getMaxPerSecond() {
+	return maxPerSecond;
+    }
+
+    /**
+     * @param maxPerSecond
+     *            repairs queued per second at most
+     */
+    public void setMaxPerSecond(int maxPerSecond) {
+	this.maxPerSecond = maxPerSecond;
+    }
+}
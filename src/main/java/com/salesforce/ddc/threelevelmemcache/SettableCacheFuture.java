@@ -0,0 +1,158 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.salesforce.ddc.threelevelmemcache.exposed.CacheFuture;
+
+/**
+ * {@link CacheFuture} completed by whoever holds it. Only the first
+ * completion counts, the later ones are ignored.
+ */
+public class SettableCacheFuture<T> implements CacheFuture<T> {
+
+    private static Log log = LogFactory.getLog(SettableCacheFuture.class);
+
+    private final CountDownLatch done = new CountDownLatch(1);
+    private List<Listener<T>> listeners = new ArrayList<Listener<T>>(2);
+    private T value;
+    private Throwable exception;
+    private boolean cancelled;
+
+    /**
+     * @param value
+     * @return a future completed with the value
+     */
+    public static <T> SettableCacheFuture<T> completed(T value) {
+	SettableCacheFuture<T> future = new SettableCacheFuture<T>();
+	future.set(value);
+	return future;
+    }
+
+    /**
+     * @return true if this call completed the future
+     */
+    public boolean set(T value) {
+	return complete(value, null, false);
+    }
+
+    /**
+     * @return true if this call completed the future
+     */
+    public boolean setException(Throwable exception) {
+	return complete(null, exception, false);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+	return complete(null, null, true);
+    }
+
+    private boolean complete(T value, Throwable exception, boolean cancelled) {
+	List<Listener<T>> toNotify;
+	synchronized (this) {
+	    if (listeners == null) {
+		return false;
+	    }
+	    this.value = value;
+	    this.exception = exception;
+	    this.cancelled = cancelled;
+	    toNotify = listeners;
+	    listeners = null;
+	}
+	done.countDown();
+	for (Listener<T> listener : toNotify) {
+	    notify(listener);
+	}
+	return true;
+    }
+
+    @Override
+    public CacheFuture<T> addListener(Listener<T> listener) {
+	synchronized (this) {
+	    if (listeners != null) {
+		listeners.add(listener);
+		return this;
+	    }
+	}
+	notify(listener);
+	return this;
+    }
+
+    private void notify(Listener<T> listener) {
+	try {
+	    listener.onComplete(this);
+	} catch (RuntimeException e) {
+	    log.warn("Cache future listener failed.", e);
+	}
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+	return cancelled;
+    }
+
+    @Override
+    public boolean isDone() {
+	return done.getCount() == 0;
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+	done.await();
+	return result();
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit) throws InterruptedException,
+	    ExecutionException, TimeoutException {
+	if (!done.await(timeout, unit)) {
+	    throw new TimeoutException("Cache call did not complete in "
+		    + timeout + " " + unit);
+	}
+	return result();
+    }
+
+    private synchronized T result() throws ExecutionException {
+	if (cancelled) {
+	    throw new CancellationException();
+	}
+	if (exception != null) {
+	    throw new ExecutionException(exception);
+	}
+	return value;
+    }
+}
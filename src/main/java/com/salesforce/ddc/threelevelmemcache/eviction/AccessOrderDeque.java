@@ -0,0 +1,129 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache.eviction;
+
+import java.util.List;
+
+/**
+ * Intrusive doubly linked list of {@link FirstLevelCacheEntry}. The head is
+ * the least recently used entry and the tail is the most recently used one.
+ * All operations are O(1). Not thread safe, the owner policy is guarded by the
+ * cache maintenance lock.
+ */
+public class AccessOrderDeque {
+
+    private FirstLevelCacheEntry head;
+    private FirstLevelCacheEntry tail;
+    private int size;
+
+    public FirstLevelCacheEntry peekFirst() {
+	return head;
+    }
+
+    public FirstLevelCacheEntry peekLast() {
+	return tail;
+    }
+
+    public int size() {
+	return size;
+    }
+
+    public boolean isEmpty() {
+	return head == null;
+    }
+
+    public void addLast(FirstLevelCacheEntry entry) {
+	entry.previous = tail;
+	entry.next = null;
+	if (tail == null) {
+	    head = entry;
+	} else {
+	    tail.next = entry;
+	}
+	tail = entry;
+	size++;
+    }
+
+    public FirstLevelCacheEntry pollFirst() {
+	FirstLevelCacheEntry first = head;
+	if (first != null) {
+	    unlink(first);
+	}
+	return first;
+    }
+
+    public void moveToLast(FirstLevelCacheEntry entry) {
+	if (entry != tail) {
+	    unlink(entry);
+	    addLast(entry);
+	}
+    }
+
+    public void unlink(FirstLevelCacheEntry entry) {
+	FirstLevelCacheEntry previous = entry.previous;
+	FirstLevelCacheEntry next = entry.next;
+	if (previous == null) {
+	    head = next;
+	} else {
+	    previous.next = next;
+	}
+	if (next == null) {
+	    tail = previous;
+	} else {
+	    next.previous = previous;
+	}
+	entry.previous = null;
+	entry.next = null;
+	size--;
+    }
+
+    /**
+     * Adds the entries to the list, the most recently used first.
+     * 
+     * @param entries
+     */
+    public void descendingTo(List<FirstLevelCacheEntry> entries) {
+	FirstLevelCacheEntry entry = tail;
+	while (entry != null) {
+	    entries.add(entry);
+	    entry = entry.previous;
+	}
+    }
+
+    public void clear() {
+	FirstLevelCacheEntry entry = head;
+	while (entry != null) {
+	    FirstLevelCacheEntry next = entry.next;
+	    entry.previous = null;
+	    entry.next = null;
+	    entry.queue = FirstLevelCacheEntry.QUEUE_NONE;
+	    entry = next;
+	}
+	head = null;
+	tail = null;
+	size = 0;
+    }
+}
@@ -0,0 +1,67 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache.eviction;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Weigher delegating to weighers registered per value class. The class
+ * hierarchy of the value is searched for a registered weigher, values of
+ * unregistered classes are weighed by the default weigher, a
+ * {@link SerializedSizeWeigher} unless configured otherwise.
+ */
+public class ClassRegistryWeigher implements Weigher {
+
+    private final Map<Class<?>, Weigher> weighers = new ConcurrentHashMap<Class<?>, Weigher>();
+    private Weigher defaultWeigher = new SerializedSizeWeigher();
+
+    @Override
+    public int weigh(Serializable value) {
+	for (Class<?> clazz = value.getClass(); clazz != null; clazz = clazz
+		.getSuperclass()) {
+	    Weigher weigher = weighers.get(clazz);
+	    if (weigher != null) {
+		return weigher.weigh(value);
+	    }
+	}
+	return defaultWeigher.weigh(value);
+    }
+
+    public void register(Class<?> clazz, Weigher weigher) {
+	weighers.put(clazz, weigher);
+    }
+
+    public void setWeighers(Map<Class<?>, Weigher> weighers) {
+	this.weighers.clear();
+	this.weighers.putAll(weighers);
+    }
+
+    public void setDefaultWeigher(Weigher defaultWeigher) {
+	this.defaultWeigher = defaultWeigher;
+    }
+}
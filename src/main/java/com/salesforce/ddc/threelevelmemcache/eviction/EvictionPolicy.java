@@ -0,0 +1,89 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache.eviction;
+
+import java.util.List;
+
+/**
+ * Eviction engine of the first level cache. The cache calls the policy only
+ * from its maintenance routine, under a lock, so implementations don't need to
+ * be thread safe.
+ */
+public interface EvictionPolicy {
+
+    /**
+     * Sets the maximum total weight the cache is allowed to keep, see
+     * {@link FirstLevelCacheEntry#getWeight()}.
+     * 
+     * @param maximum
+     */
+    void setMaximum(long maximum);
+
+    /**
+     * New entry was added to the cache.
+     * 
+     * @param entry
+     */
+    void onInsert(FirstLevelCacheEntry entry);
+
+    /**
+     * Entry was read from the cache. Reads are sampled, so the policy must not
+     * expect to see every access.
+     * 
+     * @param entry
+     */
+    void onAccess(FirstLevelCacheEntry entry);
+
+    /**
+     * Entry was removed from the cache explicitly. The entry may be unknown to
+     * the policy if it was removed before its insert has been processed.
+     * 
+     * @param entry
+     */
+    void onRemove(FirstLevelCacheEntry entry);
+
+    /**
+     * Chooses and unlinks the entry to evict. Called by the cache while it is
+     * above its maximum.
+     * 
+     * @return the entry to evict, or null if the policy has no entries
+     */
+    FirstLevelCacheEntry evict();
+
+    /**
+     * Collects the entries known to the policy, from the one the policy would
+     * keep the longest to the next victim.
+     * 
+     * @param entries
+     *            receives the entries
+     */
+    void entries(List<FirstLevelCacheEntry> entries);
+
+    /**
+     * Forgets all entries.
+     */
+    void clear();
+}
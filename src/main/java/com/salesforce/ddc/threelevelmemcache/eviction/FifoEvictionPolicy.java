@@ -0,0 +1,78 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache.eviction;
+
+import java.util.List;
+
+/**
+ * The original first level cache behaviour: entries are evicted in insertion
+ * order, reads are ignored.
+ */
+public class FifoEvictionPolicy implements EvictionPolicy {
+
+    private final AccessOrderDeque queue = new AccessOrderDeque();
+
+    @Override
+    public void setMaximum(long maximum) {
+    }
+
+    @Override
+    public void onInsert(FirstLevelCacheEntry entry) {
+	entry.queue = FirstLevelCacheEntry.QUEUE_WINDOW;
+	queue.addLast(entry);
+    }
+
+    @Override
+    public void onAccess(FirstLevelCacheEntry entry) {
+    }
+
+    @Override
+    public void onRemove(FirstLevelCacheEntry entry) {
+	if (entry.queue != FirstLevelCacheEntry.QUEUE_NONE) {
+	    queue.unlink(entry);
+	    entry.queue = FirstLevelCacheEntry.QUEUE_NONE;
+	}
+    }
+
+    @Override
+    public FirstLevelCacheEntry evict() {
+	FirstLevelCacheEntry victim = queue.pollFirst();
+	if (victim != null) {
+	    victim.queue = FirstLevelCacheEntry.QUEUE_NONE;
+	}
+	return victim;
+    }
+
+    @Override
+    public void entries(List<FirstLevelCacheEntry> entries) {
+	queue.descendingTo(entries);
+    }
+
+    @Override
+    public void clear() {
+	queue.clear();
+    }
+}
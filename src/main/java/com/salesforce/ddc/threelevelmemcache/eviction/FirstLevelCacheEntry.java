@@ -0,0 +1,144 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache.eviction;
+
+import java.io.Serializable;
+
+/**
+ * Entry of the first level cache. The entry is the value holder stored in the
+ * cache map and, at the same time, the node of the eviction policy queues, so
+ * unlinking an entry from the policy is O(1).
+ * <p/>
+ * The links and the queue marker are owned by the {@link EvictionPolicy} and
+ * are only touched under the cache maintenance lock.
+ */
+public class FirstLevelCacheEntry {
+
+    /**
+     * Entry is not linked to any policy queue.
+     */
+    public static final int QUEUE_NONE = 0;
+    public static final int QUEUE_WINDOW = 1;
+    public static final int QUEUE_PROBATION = 2;
+    public static final int QUEUE_PROTECTED = 3;
+
+    private final String key;
+    private final long expiresAt;
+    private final int weight;
+    private volatile Serializable value;
+    private volatile boolean alive = true;
+
+    int queue = QUEUE_NONE;
+    FirstLevelCacheEntry previous;
+    FirstLevelCacheEntry next;
+    FirstLevelCacheEntry timerPrevious;
+    FirstLevelCacheEntry timerNext;
+
+    public FirstLevelCacheEntry(String key, Serializable value) {
+	this(key, value, 0, 1);
+    }
+
+    public FirstLevelCacheEntry(String key, Serializable value, long expiresAt) {
+	this(key, value, expiresAt, 1);
+    }
+
+    /**
+     * @param key
+     * @param value
+     * @param expiresAt
+     *            expiration time in {@link System#nanoTime()} units, 0 means
+     *            the entry never expires
+     * @param weight
+     *            share of the cache capacity the entry takes, 1 if the cache
+     *            is bounded by entries, bytes if it's bounded by bytes
+     */
+    public FirstLevelCacheEntry(String key, Serializable value, long expiresAt,
+	    int weight) {
+	this.key = key;
+	this.value = value;
+	this.expiresAt = expiresAt;
+	this.weight = weight;
+    }
+
+    public String getKey() {
+	return key;
+    }
+
+    public Serializable getValue() {
+	return value;
+    }
+
+    public void setValue(Serializable value) {
+	this.value = value;
+    }
+
+    /**
+     * @return false if the entry was removed from the cache map
+     */
+    public boolean isAlive() {
+	return alive;
+    }
+
+    public int getWeight() {
+	return weight;
+    }
+
+    public long getExpiresAt() {
+	return expiresAt;
+    }
+
+    /**
+     * @param currentTimeNanos
+     * @return true if the entry has a time to live and it has passed
+     */
+    public boolean isExpired(long currentTimeNanos) {
+	return expiresAt != 0 && expiresAt - currentTimeNanos <= 0;
+    }
+
+    public void retire() {
+	this.alive = false;
+    }
+
+    public int getQueue() {
+	return queue;
+    }
+
+    /**
+     * Hash used by the frequency sketch.
+     */
+    public int keyHash() {
+	int h = key.hashCode();
+	// spread bits, the same way as HashMap does
+	h ^= (h >>> 20) ^ (h >>> 12);
+	return h ^ (h >>> 7) ^ (h >>> 4);
+    }
+
+    @Override
+    public String toString() {
+	return "FirstLevelCacheEntry [key=" + key + ", alive=" + alive
+		+ ", queue=" + queue + ", expiresAt=" + expiresAt + "]";
+    }
+}
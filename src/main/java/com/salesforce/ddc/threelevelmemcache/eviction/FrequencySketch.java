@@ -0,0 +1,135 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache.eviction;
+
+/**
+ * Count-Min sketch with 4-bit counters used as the TinyLFU admission filter.
+ * Every long of the table holds sixteen counters, an item is mapped to four
+ * counters of one long. Once the number of increments reaches the sample size
+ * all counters are halved, so the popularity of old entries decays over time.
+ * Not thread safe.
+ */
+public class FrequencySketch {
+
+    private static final long[] SEEDS = new long[] { 0xc3a5c85c97cb3127L,
+	    0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final long ONE_MASK = 0x1111111111111111L;
+    private static final int MAXIMUM_COUNT = 15;
+
+    private long[] table;
+    private int tableMask;
+    private int sampleSize;
+    private int additions;
+
+    public FrequencySketch(long maximum) {
+	ensureCapacity(maximum);
+    }
+
+    /**
+     * Resizes the sketch for the given cache maximum, resetting all counters.
+     * 
+     * @param maximum
+     */
+    public void ensureCapacity(long maximum) {
+	int capacity = (int) Math.min(Math.max(maximum, 1), 1 << 30);
+	int length = Integer.highestOneBit(capacity - 1) << 1;
+	if (length <= 0) {
+	    length = 1;
+	}
+	if (table != null && table.length == length) {
+	    return;
+	}
+	table = new long[length];
+	tableMask = length - 1;
+	sampleSize = (int) Math.min(10L * capacity, Integer.MAX_VALUE);
+	additions = 0;
+    }
+
+    /**
+     * @param hash
+     * @return the estimated number of occurrences, from 0 to 15
+     */
+    public int frequency(int hash) {
+	int start = (hash & 3) << 2;
+	int frequency = Integer.MAX_VALUE;
+	for (int i = 0; i < 4; i++) {
+	    int index = indexOf(hash, i);
+	    int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+	    frequency = Math.min(frequency, count);
+	}
+	return frequency;
+    }
+
+    /**
+     * Increments the popularity of the item if it's not already at the
+     * maximum.
+     * 
+     * @param hash
+     */
+    public void increment(int hash) {
+	int start = (hash & 3) << 2;
+	boolean added = false;
+	for (int i = 0; i < 4; i++) {
+	    added |= incrementAt(indexOf(hash, i), start + i);
+	}
+	if (added && ++additions == sampleSize) {
+	    reset();
+	}
+    }
+
+    private boolean incrementAt(int index, int counter) {
+	int offset = counter << 2;
+	long mask = 0xfL << offset;
+	if ((table[index] & mask) != ((long) MAXIMUM_COUNT << offset)) {
+	    table[index] += 1L << offset;
+	    return true;
+	}
+	return false;
+    }
+
+    private void reset() {
+	int odd = 0;
+	for (int i = 0; i < table.length; i++) {
+	    odd += Long.bitCount(table[i] & ONE_MASK);
+	    table[i] = (table[i] >>> 1) & RESET_MASK;
+	}
+	additions = (additions >>> 1) - (odd >>> 2);
+    }
+
+    private int indexOf(int item, int i) {
+	long hash = (item + SEEDS[i]) * SEEDS[i];
+	hash += hash >>> 32;
+	return ((int) hash) & tableMask;
+    }
+
+    public void clear() {
+	for (int i = 0; i < table.length; i++) {
+	    table[i] = 0;
+	}
+	additions = 0;
+    }
+}
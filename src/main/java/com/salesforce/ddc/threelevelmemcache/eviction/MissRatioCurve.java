@@ -0,0 +1,322 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache.eviction;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Estimates the hit ratio an LRU cache of any size would have on the reads
+ * recorded, from the reuse distances of a spatially hashed sample of the
+ * keys: SHARDS, "Efficient MRC Construction with SHARDS" (Waldspurger et al.,
+ * FAST '15). A key is sampled if its hash is below a threshold, so either
+ * every read of a key is seen or none, and the distances measured among the
+ * sampled keys are scaled up by the sampling rate.
+ * <p>
+ * The number of sampled keys is bounded: past the maximum the threshold is
+ * lowered to drop the keys with the highest hashes, and the counts recorded
+ * so far are scaled down to the new rate (SHARDS fixed-size). The sampled
+ * reads are few, so a hot key being sampled or not moves the estimate: the
+ * difference to the expected number of sampled reads is counted as reads at
+ * distance 0 (SHARDS adjusted).
+ * <p>
+ * Reads of keys which aren't sampled cost a hash, a comparison and the
+ * increment of a counter striped by thread, sampled reads take a lock.
+ */
+public class MissRatioCurve {
+
+    /** rate the sampling starts at */
+    public static final double DEFAULT_INITIAL_RATE = 0.01;
+    private static final long HASH_SPACE = 1L << 32;
+    /** distances below are exact, above in 8 buckets per power of 2 */
+    private static final int LINEAR_BUCKETS = 16;
+    private static final int SUB_BUCKETS = 8;
+    private static final int BUCKETS = LINEAR_BUCKETS + (64 - 4) * SUB_BUCKETS;
+    private static final int STRIPES = 16;
+    /** longs between the stripes, so they don't share a cache line */
+    private static final int STRIPE_PADDING = 8;
+
+    private static final class Sample {
+
+	final Object key;
+	final long hash;
+	/** time of the last read, the index in the tree */
+	int time;
+
+	Sample(Object key, long hash) {
+	    this.key = key;
+	    this.hash = hash;
+	}
+    }
+
+    private static final Comparator<Sample> HIGHEST_HASH_FIRST = new Comparator<Sample>() {
+
+	@Override
+	public int compare(Sample o1, Sample o2) {
+	    return o1.hash < o2.hash ? 1 : o1.hash > o2.hash ? -1 : 0;
+	}
+    };
+
+    private static final Comparator<Sample> OLDEST_FIRST = new Comparator<Sample>() {
+
+	@Override
+	public int compare(Sample o1, Sample o2) {
+	    return o1.time - o2.time;
+	}
+    };
+
+    private final int maxKeys;
+    private final AtomicLongArray totalReads = new AtomicLongArray(STRIPES
+	    * STRIPE_PADDING);
+    /** keys whose hash is below are sampled */
+    private volatile long threshold;
+    private final Map<Object, Sample> samples = new HashMap<Object, Sample>();
+    private final PriorityQueue<Sample> byHash;
+    /**
+     * Fenwick tree over the read times, 1 at the last read of each sampled
+     * key. The keys read after a time are the sum of the times above it.
+     */
+    private int[] tree;
+    private int time;
+    /** sampled reads by scaled reuse distance */
+    private final double[] distances = new double[BUCKETS];
+    /** sampled reads, the first reads of the keys included */
+    private double reads;
+    private long sampledReads;
+
+    public MissRatioCurve(int maxKeys) {
+	this(maxKeys, DEFAULT_INITIAL_RATE);
+    }
+
+    /**
+     * @param maxKeys
+     *            keys sampled at most, the memory used grows with them
+     * @param initialRate
+     *            share of the keys sampled until there are too many of
+     *            them, at most 1
+     */
+    public MissRatioCurve(int maxKeys, double initialRate) {
+	if (maxKeys <= 0) {
+	    throw new IllegalArgumentException("maxKeys must be positive: "
+		    + maxKeys);
+	}
+	if (initialRate <= 0 || initialRate > 1) {
+	    throw new IllegalArgumentException(
+		    "initialRate must be in (0..1], was " + initialRate);
+	}
+	this.maxKeys = maxKeys;
+	this.threshold = (long) (initialRate * HASH_SPACE);
+	this.byHash = new PriorityQueue<Sample>(maxKeys + 1, HIGHEST_HASH_FIRST);
+	this.tree = new int[4 * maxKeys + 1];
+    }
+
+    /**
+     * Records a read of the key.
+     */
+    public void record(Object key) {
+	int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+	totalReads.incrementAndGet(stripe * STRIPE_PADDING);
+	long hash = spread(key.hashCode()) & 0xffffffffL;
+	if (hash < threshold) {
+	    sample(key, hash);
+	}
+    }
+
+    private synchronized void sample(Object key, long hash) {
+	// the threshold may have been lowered since it was checked
+	if (hash >= threshold) {
+	    return;
+	}
+	if (time == tree.length - 1) {
+	    compact();
+	}
+	int now = ++time;
+	Sample sample = samples.get(key);
+	if (sample != null) {
+	    long distance = sum(now - 1) - sum(sample.time);
+	    add(sample.time, -1);
+	    distances[bucket((long) (distance / rate()))]++;
+	} else {
+	    sample = new Sample(key, hash);
+	    samples.put(key, sample);
+	    byHash.add(sample);
+	}
+	sample.time = now;
+	add(now, 1);
+	reads++;
+	sampledReads++;
+	if (samples.size() > maxKeys) {
+	    lowerThreshold();
+	}
+    }
+
+    /**
+     * Drops the keys with the highest hash and rescales the counts to the
+     * lower rate.
+     */
+    private void lowerThreshold() {
+	long lowered = byHash.peek().hash;
+	double scale = (double) lowered / threshold;
+	threshold = lowered;
+	while (!byHash.isEmpty() && byHash.peek().hash >= lowered) {
+	    Sample dropped = byHash.poll();
+	    samples.remove(dropped.key);
+	    add(dropped.time, -1);
+	}
+	for (int i = 0; i < distances.length; i++) {
+	    distances[i] *= scale;
+	}
+	reads *= scale;
+    }
+
+    /**
+     * Renumbers the times of the sampled keys from 1, in the same order, once
+     * the tree is full.
+     */
+    private void compact() {
+	List<Sample> ordered = new ArrayList<Sample>(samples.values());
+	Collections.sort(ordered, OLDEST_FIRST);
+	tree = new int[tree.length];
+	time = 0;
+	for (Sample sample : ordered) {
+	    sample.time = ++time;
+	    add(sample.time, 1);
+	}
+    }
+
+    private void add(int index, int delta) {
+	for (int i = index; i < tree.length; i += i & -i) {
+	    tree[i] += delta;
+	}
+    }
+
+    private long sum(int index) {
+	long sum = 0;
+	for (int i = index; i > 0; i -= i & -i) {
+	    sum += tree[i];
+	}
+	return sum;
+    }
+
+    static int spread(int hash) {
+	// MurmurHash3 finalizer, the key hashes are too regular to sample
+	hash ^= hash >>> 16;
+	hash *= 0x85ebca6b;
+	hash ^= hash >>> 13;
+	hash *= 0xc2b2ae35;
+	hash ^= hash >>> 16;
+	return hash;
+    }
+
+    static int bucket(long distance) {
+	if (distance < LINEAR_BUCKETS) {
+	    return (int) distance;
+	}
+	int exponent = 63 - Long.numberOfLeadingZeros(distance);
+	return LINEAR_BUCKETS + (exponent - 4) * SUB_BUCKETS
+		+ (int) ((distance >>> (exponent - 3)) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * @return the smallest distance of the bucket
+     */
+    static long lowerBound(int bucket) {
+	if (bucket < LINEAR_BUCKETS) {
+	    return bucket;
+	}
+	int exponent = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 4;
+	int sub = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+	return (long) (SUB_BUCKETS + sub) << (exponent - 3);
+    }
+
+    /**
+     * Estimates the hit ratio of an LRU cache of the size. A read hits if
+     * fewer other keys were read since the previous read of its key than the
+     * cache holds.
+     * 
+     * @param size
+     *            entries of the cache
+     * @return between 0 and 1, 0 before any sampled read
+     */
+    public synchronized double hitRatio(long size) {
+	double expected = getTotalReads() * rate();
+	if (reads == 0 || expected == 0 || size <= 0) {
+	    return 0;
+	}
+	double hits = expected - reads;
+	for (int i = 0; i < distances.length; i++) {
+	    if (distances[i] == 0) {
+		continue;
+	    }
+	    long lower = lowerBound(i);
+	    if (lower >= size) {
+		break;
+	    }
+	    long upper = i + 1 < distances.length ? lowerBound(i + 1)
+		    : Long.MAX_VALUE;
+	    // the distances of a bucket are taken as evenly spread
+	    hits += distances[i]
+		    * Math.min(1, (double) (size - lower) / (upper - lower));
+	}
+	return Math.max(0, Math.min(1, hits / expected));
+    }
+
+    /**
+     * @return the current share of the keys sampled
+     */
+    public double rate() {
+	return (double) threshold / HASH_SPACE;
+    }
+
+    public synchronized int getSampledKeys() {
+	return samples.size();
+    }
+
+    public synchronized long getSampledReads() {
+	return sampledReads;
+    }
+
+    /**
+     * @return reads recorded, sampled or not
+     */
+    public long getTotalReads() {
+	long total = 0;
+	for (int i = 0; i < STRIPES; i++) {
+	    total += totalReads.get(i * STRIPE_PADDING);
+	}
+	return total;
+    }
+
+    public int getMaxKeys() {
+	return maxKeys;
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache.eviction;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lossy ring buffer recording reads of the first level cache. Readers never
+ * block: if the buffer is full or another reader won the slot the access is
+ * simply dropped, the policy only needs a sample of the reads. Drained by a
+ * single thread holding the maintenance lock.
+ */
+public class ReadBuffer {
+
+    public static final int SIZE = 256;
+    private static final int MASK = SIZE - 1;
+
+    private final AtomicReferenceArray<FirstLevelCacheEntry> buffer = new AtomicReferenceArray<FirstLevelCacheEntry>(
+	    SIZE);
+    private final AtomicLong writeCounter = new AtomicLong();
+    private volatile long readCounter;
+
+    /**
+     * @param entry
+     * @return true if the buffer is full and should be drained
+     */
+    public boolean offer(FirstLevelCacheEntry entry) {
+	long head = readCounter;
+	long tail = writeCounter.get();
+	long size = tail - head;
+	if (size >= SIZE) {
+	    return true;
+	}
+	if (writeCounter.compareAndSet(tail, tail + 1)) {
+	    buffer.lazySet((int) (tail & MASK), entry);
+	    return size + 1 >= SIZE;
+	}
+	return false;
+    }
+
+    /**
+     * Passes recorded entries to the policy.
+     * 
+     * @param policy
+     */
+    public void drainTo(EvictionPolicy policy) {
+	long head = readCounter;
+	long tail = writeCounter.get();
+	for (; head < tail; head++) {
+	    int index = (int) (head & MASK);
+	    FirstLevelCacheEntry entry = buffer.get(index);
+	    if (entry == null) {
+		// slot claimed but not written yet
+		break;
+	    }
+	    buffer.lazySet(index, null);
+	    if (entry.isAlive()) {
+		policy.onAccess(entry);
+	    }
+	}
+	readCounter = head;
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache.eviction;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Weighs a value by the size of its java serialized form, which is close to
+ * what the value costs in memcached and a fair estimate of its heap
+ * footprint. Strings, byte arrays and boxed primitives are weighed without
+ * serialization.
+ */
+public class SerializedSizeWeigher implements Weigher {
+
+    private static Log log = LogFactory.getLog(SerializedSizeWeigher.class);
+
+    /**
+     * Weight of values which can't be serialized, e.g. changed by another
+     * thread while they are.
+     */
+    static final int DEFAULT_WEIGHT = 1024;
+    private static final int OBJECT_HEADER = 16;
+    private static final int STRING_OVERHEAD = 40;
+
+    @Override
+    public int weigh(Serializable value) {
+	if (value instanceof String) {
+	    return STRING_OVERHEAD + 2 * ((String) value).length();
+	}
+	if (value instanceof byte[]) {
+	    return OBJECT_HEADER + ((byte[]) value).length;
+	}
+	if (value instanceof Number || value instanceof Boolean
+		|| value instanceof Character) {
+	    return OBJECT_HEADER;
+	}
+	CountingOutputStream counter = new CountingOutputStream();
+	try {
+	    ObjectOutputStream out = new ObjectOutputStream(counter);
+	    out.writeObject(value);
+	    out.close();
+	} catch (IOException e) {
+	    log.warn("Unable to weigh " + value.getClass().getName(), e);
+	    return DEFAULT_WEIGHT;
+	} catch (RuntimeException e) {
+	    log.warn("Unable to weigh " + value.getClass().getName(), e);
+	    return DEFAULT_WEIGHT;
+	}
+	return (int) Math.min(counter.count, Integer.MAX_VALUE);
+    }
+
+    private static final class CountingOutputStream extends OutputStream {
+
+	private long count;
+
+	@Override
+	public void write(int b) {
+	    count++;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+	    count += len;
+	}
+    }
+}
@@ -0,0 +1,205 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache.eviction;
+
+import java.util.List;
+
+/**
+ * Hierarchical timer wheel of {@link FirstLevelCacheEntry} expiration times.
+ * Every level is an array of buckets, each bucket is a circular doubly linked
+ * list headed by a sentinel. Scheduling and descheduling are O(1). When the
+ * wheel is advanced the buckets the time passed over are swept in one batch,
+ * entries which are not yet due are cascaded down to a finer level.
+ * <p/>
+ * Bucket spans are powers of two nanoseconds, roughly 1 second, 1 minute, 1
+ * hour, 1 day and 6 days. Not thread safe, guarded by the cache maintenance
+ * lock.
+ */
+public class TimerWheel {
+
+    private static final int[] BUCKETS = new int[] { 64, 64, 32, 4, 1 };
+    private static final long[] SPANS = new long[] {
+	    ceilingPowerOfTwo(1000000000L), // 1.07s
+	    ceilingPowerOfTwo(60000000000L), // 1.14m
+	    ceilingPowerOfTwo(3600000000000L), // 1.22h
+	    ceilingPowerOfTwo(86400000000000L), // 1.63d
+	    BUCKETS[3] * ceilingPowerOfTwo(86400000000000L), // 6.5d
+	    BUCKETS[3] * ceilingPowerOfTwo(86400000000000L) // 6.5d
+    };
+    private static final long[] SHIFT = new long[] {
+	    Long.numberOfTrailingZeros(SPANS[0]),
+	    Long.numberOfTrailingZeros(SPANS[1]),
+	    Long.numberOfTrailingZeros(SPANS[2]),
+	    Long.numberOfTrailingZeros(SPANS[3]),
+	    Long.numberOfTrailingZeros(SPANS[4]) };
+
+    private final FirstLevelCacheEntry[][] wheel;
+    private long nanos;
+    private int size;
+
+    public TimerWheel(long currentTimeNanos) {
+	this.nanos = currentTimeNanos;
+	wheel = new FirstLevelCacheEntry[BUCKETS.length][];
+	for (int i = 0; i < wheel.length; i++) {
+	    wheel[i] = new FirstLevelCacheEntry[BUCKETS[i]];
+	    for (int j = 0; j < wheel[i].length; j++) {
+		FirstLevelCacheEntry sentinel = new FirstLevelCacheEntry(null,
+			null);
+		sentinel.timerPrevious = sentinel;
+		sentinel.timerNext = sentinel;
+		wheel[i][j] = sentinel;
+	    }
+	}
+    }
+
+    private static long ceilingPowerOfTwo(long x) {
+	return 1L << -Long.numberOfLeadingZeros(x - 1);
+    }
+
+    /**
+     * Schedules the entry by its expiration time. Entries without expiration
+     * are ignored.
+     * 
+     * @param entry
+     */
+    public void schedule(FirstLevelCacheEntry entry) {
+	if (entry.getExpiresAt() == 0) {
+	    return;
+	}
+	deschedule(entry);
+	link(findBucket(entry.getExpiresAt()), entry);
+    }
+
+    /**
+     * Removes the entry from the wheel if it's scheduled.
+     * 
+     * @param entry
+     */
+    public void deschedule(FirstLevelCacheEntry entry) {
+	if (entry.timerNext != null) {
+	    entry.timerNext.timerPrevious = entry.timerPrevious;
+	    entry.timerPrevious.timerNext = entry.timerNext;
+	    entry.timerNext = null;
+	    entry.timerPrevious = null;
+	    size--;
+	}
+    }
+
+    /**
+     * Advances the wheel to the current time and collects the entries which
+     * have expired. Collected entries are no longer scheduled.
+     * 
+     * @param currentTimeNanos
+     * @param expired
+     *            receives the expired entries
+     */
+    public void advance(long currentTimeNanos,
+	    List<FirstLevelCacheEntry> expired) {
+	long previousTimeNanos = nanos;
+	nanos = currentTimeNanos;
+	for (int i = 0; i < SHIFT.length; i++) {
+	    long previousTicks = previousTimeNanos >>> SHIFT[i];
+	    long currentTicks = currentTimeNanos >>> SHIFT[i];
+	    if (currentTicks - previousTicks <= 0L) {
+		break;
+	    }
+	    expire(i, previousTicks, currentTicks - previousTicks, expired);
+	}
+    }
+
+    private void expire(int index, long previousTicks, long delta,
+	    List<FirstLevelCacheEntry> expired) {
+	FirstLevelCacheEntry[] timerWheel = wheel[index];
+	int mask = timerWheel.length - 1;
+	int steps = (int) Math.min(1 + delta, timerWheel.length);
+	int start = (int) (previousTicks & mask);
+	int end = start + steps;
+	for (int i = start; i < end; i++) {
+	    FirstLevelCacheEntry sentinel = timerWheel[i & mask];
+	    FirstLevelCacheEntry entry = sentinel.timerNext;
+	    sentinel.timerPrevious = sentinel;
+	    sentinel.timerNext = sentinel;
+	    while (entry != sentinel) {
+		FirstLevelCacheEntry next = entry.timerNext;
+		entry.timerPrevious = null;
+		entry.timerNext = null;
+		size--;
+		if (entry.getExpiresAt() - nanos > 0) {
+		    // not due yet, cascade to a finer bucket
+		    link(findBucket(entry.getExpiresAt()), entry);
+		} else {
+		    expired.add(entry);
+		}
+		entry = next;
+	    }
+	}
+    }
+
+    private FirstLevelCacheEntry findBucket(long time) {
+	long duration = time - nanos;
+	int length = wheel.length - 1;
+	for (int i = 0; i < length; i++) {
+	    if (duration < SPANS[i + 1]) {
+		long ticks = time >>> SHIFT[i];
+		int index = (int) (ticks & (wheel[i].length - 1));
+		return wheel[i][index];
+	    }
+	}
+	return wheel[length][0];
+    }
+
+    private void link(FirstLevelCacheEntry sentinel, FirstLevelCacheEntry entry) {
+	entry.timerPrevious = sentinel.timerPrevious;
+	entry.timerNext = sentinel;
+	sentinel.timerPrevious.timerNext = entry;
+	sentinel.timerPrevious = entry;
+	size++;
+    }
+
+    /**
+     * @return number of scheduled entries
+     */
+    public int size() {
+	return size;
+    }
+
+    public void clear() {
+	for (FirstLevelCacheEntry[] buckets : wheel) {
+	    for (FirstLevelCacheEntry sentinel : buckets) {
+		FirstLevelCacheEntry entry = sentinel.timerNext;
+		while (entry != sentinel) {
+		    FirstLevelCacheEntry next = entry.timerNext;
+		    entry.timerPrevious = null;
+		    entry.timerNext = null;
+		    entry = next;
+		}
+		sentinel.timerPrevious = sentinel;
+		sentinel.timerNext = sentinel;
+	    }
+	}
+	size = 0;
+    }
+}
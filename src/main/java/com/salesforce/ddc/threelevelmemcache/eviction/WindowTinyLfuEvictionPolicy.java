@@ -0,0 +1,258 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache.eviction;
+
+import java.util.List;
+
+/**
+ * Window TinyLFU policy. New entries are placed into a small LRU window (1% of
+ * the cache by default). Entries falling out of the window are candidates for
+ * the main space, which is a segmented LRU with a probation and a protected
+ * (80%) segment. A candidate is admitted only if the frequency sketch
+ * estimates it as more popular than the probation victim, so keys which are
+ * read once can't push the hot entries out of the cache.
+ * <p/>
+ * Segments are bounded by the total weight of their entries, so the policy
+ * works the same for caches bounded by entries and by bytes.
+ */
+public class WindowTinyLfuEvictionPolicy implements EvictionPolicy {
+
+    private static final double DEFAULT_WINDOW_PERCENTAGE = 0.01d;
+    private static final double PROTECTED_PERCENTAGE = 0.8d;
+    private static final int INITIAL_SKETCH_CAPACITY = 1024;
+    private static final int MAXIMUM_SKETCH_CAPACITY = 1 << 30;
+
+    private final double windowPercentage;
+    private final AccessOrderDeque window = new AccessOrderDeque();
+    private final AccessOrderDeque probation = new AccessOrderDeque();
+    private final AccessOrderDeque protectedQueue = new AccessOrderDeque();
+    private final FrequencySketch sketch = new FrequencySketch(1);
+
+    private long maximum;
+    private int sketchCapacity;
+    private long windowMaximum;
+    private long mainMaximum;
+    private long protectedMaximum;
+    private long windowWeight;
+    private long probationWeight;
+    private long protectedWeight;
+
+    public WindowTinyLfuEvictionPolicy() {
+	this(DEFAULT_WINDOW_PERCENTAGE);
+    }
+
+    public WindowTinyLfuEvictionPolicy(double windowPercentage) {
+	if (windowPercentage < 0 || windowPercentage > 1) {
+	    throw new IllegalArgumentException(
+		    "Window percentage must be in [0..1], was "
+			    + windowPercentage);
+	}
+	this.windowPercentage = windowPercentage;
+    }
+
+    @Override
+    public void setMaximum(long maximum) {
+	this.maximum = maximum;
+	windowMaximum = Math.max(1, (long) (maximum * windowPercentage));
+	mainMaximum = Math.max(0, maximum - windowMaximum);
+	protectedMaximum = (long) (mainMaximum * PROTECTED_PERCENTAGE);
+	// the sketch grows with the cache, a huge maximum costs nothing upfront
+	sketchCapacity = (int) Math.min(maximum, INITIAL_SKETCH_CAPACITY);
+	sketch.ensureCapacity(sketchCapacity);
+    }
+
+    @Override
+    public void onInsert(FirstLevelCacheEntry entry) {
+	int entries = window.size() + probation.size() + protectedQueue.size();
+	if (entries >= sketchCapacity
+		&& sketchCapacity < Math.min(maximum, MAXIMUM_SKETCH_CAPACITY)) {
+	    sketchCapacity = (int) Math.min(Math.min(maximum,
+		    MAXIMUM_SKETCH_CAPACITY), 2L * sketchCapacity);
+	    sketch.ensureCapacity(sketchCapacity);
+	}
+	sketch.increment(entry.keyHash());
+	entry.queue = FirstLevelCacheEntry.QUEUE_WINDOW;
+	window.addLast(entry);
+	windowWeight += entry.getWeight();
+    }
+
+    @Override
+    public void onAccess(FirstLevelCacheEntry entry) {
+	sketch.increment(entry.keyHash());
+	switch (entry.queue) {
+	case FirstLevelCacheEntry.QUEUE_WINDOW:
+	    window.moveToLast(entry);
+	    break;
+	case FirstLevelCacheEntry.QUEUE_PROBATION:
+	    // second hit in the main space, promote
+	    probation.unlink(entry);
+	    probationWeight -= entry.getWeight();
+	    entry.queue = FirstLevelCacheEntry.QUEUE_PROTECTED;
+	    protectedQueue.addLast(entry);
+	    protectedWeight += entry.getWeight();
+	    demoteProtected();
+	    break;
+	case FirstLevelCacheEntry.QUEUE_PROTECTED:
+	    protectedQueue.moveToLast(entry);
+	    break;
+	default:
+	    // already removed
+	}
+    }
+
+    private void demoteProtected() {
+	while (protectedWeight > protectedMaximum) {
+	    FirstLevelCacheEntry demoted = protectedQueue.pollFirst();
+	    protectedWeight -= demoted.getWeight();
+	    addProbation(demoted);
+	}
+    }
+
+    @Override
+    public void onRemove(FirstLevelCacheEntry entry) {
+	switch (entry.queue) {
+	case FirstLevelCacheEntry.QUEUE_WINDOW:
+	    window.unlink(entry);
+	    windowWeight -= entry.getWeight();
+	    break;
+	case FirstLevelCacheEntry.QUEUE_PROBATION:
+	    probation.unlink(entry);
+	    probationWeight -= entry.getWeight();
+	    break;
+	case FirstLevelCacheEntry.QUEUE_PROTECTED:
+	    protectedQueue.unlink(entry);
+	    protectedWeight -= entry.getWeight();
+	    break;
+	default:
+	    return;
+	}
+	entry.queue = FirstLevelCacheEntry.QUEUE_NONE;
+    }
+
+    private void addProbation(FirstLevelCacheEntry entry) {
+	entry.queue = FirstLevelCacheEntry.QUEUE_PROBATION;
+	probation.addLast(entry);
+	probationWeight += entry.getWeight();
+    }
+
+    @Override
+    public FirstLevelCacheEntry evict() {
+	while (windowWeight > windowMaximum) {
+	    FirstLevelCacheEntry candidate = window.pollFirst();
+	    windowWeight -= candidate.getWeight();
+	    if (mainWeight() + candidate.getWeight() <= mainMaximum) {
+		// there is still room in the main space
+		addProbation(candidate);
+		continue;
+	    }
+	    FirstLevelCacheEntry victim = mainVictim();
+	    if (victim == null) {
+		candidate.queue = FirstLevelCacheEntry.QUEUE_NONE;
+		return candidate;
+	    }
+	    if (admit(candidate, victim)) {
+		// the main space may still be above its maximum if the
+		// candidate is heavier, the next calls will evict from it
+		onRemove(victim);
+		addProbation(candidate);
+		return victim;
+	    }
+	    candidate.queue = FirstLevelCacheEntry.QUEUE_NONE;
+	    return candidate;
+	}
+	FirstLevelCacheEntry victim = mainVictim();
+	if (victim == null) {
+	    victim = window.peekFirst();
+	}
+	if (victim != null) {
+	    onRemove(victim);
+	}
+	return victim;
+    }
+
+    /**
+     * The candidate is admitted if it's more popular than the victim. Ties go
+     * to the victim, the main space keeps what it already has.
+     */
+    private boolean admit(FirstLevelCacheEntry candidate,
+	    FirstLevelCacheEntry victim) {
+	return sketch.frequency(candidate.keyHash()) > sketch.frequency(victim
+		.keyHash());
+    }
+
+    private FirstLevelCacheEntry mainVictim() {
+	FirstLevelCacheEntry victim = probation.peekFirst();
+	if (victim == null) {
+	    victim = protectedQueue.peekFirst();
+	}
+	return victim;
+    }
+
+    private long mainWeight() {
+	return probationWeight + protectedWeight;
+    }
+
+    /**
+     * Protected entries come first, then the window and the probation
+     * segment, each from the most recently used.
+     */
+    @Override
+    public void entries(List<FirstLevelCacheEntry> entries) {
+	protectedQueue.descendingTo(entries);
+	window.descendingTo(entries);
+	probation.descendingTo(entries);
+    }
+
+    @Override
+    public void clear() {
+	window.clear();
+	probation.clear();
+	protectedQueue.clear();
+	sketch.clear();
+	windowWeight = 0;
+	probationWeight = 0;
+	protectedWeight = 0;
+    }
+
+    public int windowSize() {
+	return window.size();
+    }
+
+    public int probationSize() {
+	return probation.size();
+    }
+
+    public int protectedSize() {
+	return protectedQueue.size();
+    }
+
+    /**
+     * @return total weight of the entries known to the policy
+     */
+    public long weightedSize() {
+	return windowWeight + probationWeight + protectedWeight;
+    }
+}
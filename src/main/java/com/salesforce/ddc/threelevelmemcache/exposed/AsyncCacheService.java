@@ -0,0 +1,117 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache.exposed;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Non blocking counterpart of {@link CacheService}: every call returns a
+ * future right away, so a caller can issue many cache calls and wait for them
+ * together instead of one after the other.
+ */
+public interface AsyncCacheService {
+
+    /**
+     * Gets a value from cache.
+     * 
+     * @param key
+     *            key
+     * @return the value or null if not found
+     */
+    CacheFuture<Serializable> asyncGet(Object key);
+
+    /**
+     * Takes bunch of serializable objects from cache.
+     * 
+     * @param keys
+     *            keys
+     * @return stored objects, result[i] corresponds keys[i], item can be null
+     *         if stored object is not found
+     */
+    CacheFuture<List<Serializable>> asyncGetBatch(List<? extends Object> keys);
+
+    /**
+     * Puts a value identified by key to the cache.
+     * 
+     * @param key
+     * @param expiration
+     *            seconds, 0 means never
+     * @param obj
+     * @return true if the value was stored
+     */
+    CacheFuture<Boolean> asyncPut(Object key, int expiration, Serializable obj);
+
+    /**
+     * Adds a value identified by key to the cache.
+     * 
+     * @param key
+     * @param obj
+     * @return true if successful, false if the key exists already or the add
+     *         failed
+     */
+    CacheFuture<Boolean> asyncAdd(Object key, Serializable obj);
+
+    /**
+     * Removes entry from cache.
+     * 
+     * @param key
+     * @return true if the key was removed
+     */
+    CacheFuture<Boolean> asyncRemove(Object key);
+
+    /**
+     * Removes batch of entries from cache. All the removals are issued before
+     * any of them is waited for.
+     * 
+     * @param keys
+     *            entries' keys
+     * @return outcome per key, in the iteration order of the keys
+     */
+    CacheFuture<Map<Object, RemoveOutcome>> asyncRemoveBatch(
+	    Collection<Object> keys);
+
+    /**
+     * Do increment +by of counter
+     * 
+     * @param key
+     * @param by
+     * @return the new value, or -1 if the counter doesn't exist or the
+     *         increment failed
+     */
+    CacheFuture<Long> asyncIncr(Object key, int by);
+
+    /**
+     * Do append of index
+     * 
+     * @param key
+     * @param obj
+     * @return true if the value was appended or added
+     */
+    CacheFuture<Boolean> asyncAppend(Object key, String obj);
+}
@@ -0,0 +1,162 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache.exposed;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import com.salesforce.ddc.threelevelmemcache.exposed.util.KeyFormat;
+import com.salesforce.ddc.threelevelmemcache.exposed.util.SHAKey;
+
+/**
+ * Key with its derived forms computed once: the normalized string used by the
+ * local caches, its hash code and the SHA key used by memcached.
+ * {@link com.salesforce.ddc.threelevelmemcache.CloudCacheService} wraps the
+ * keys it's given, so each form is computed once per call instead of once per
+ * tier. A caller which uses the same key for many calls can wrap it itself.
+ * <p/>
+ * Two keys are equal if their normalized strings are, the tiers don't tell
+ * them apart either. The tiers, their listeners and caching strategies get
+ * the CacheKey, {@link #getKey()} returns the key it wraps.
+ */
+public final class CacheKey {
+
+    private final Object key;
+    private final String normalized;
+    private final int hash;
+    /*
+     * memcached keys of the last two formats asked for, a cluster migrating
+     * its keys reads two formats
+     */
+    private volatile Formatted formatted, previouslyFormatted;
+
+    private CacheKey(Object key) {
+	this.key = key;
+	this.normalized = key.toString();
+	this.hash = normalized.hashCode();
+    }
+
+    /**
+     * @param key
+     * @return the key itself if it's a CacheKey already, null for null
+     */
+    public static CacheKey of(Object key) {
+	if (key == null) {
+	    return null;
+	}
+	if (key instanceof CacheKey) {
+	    return (CacheKey) key;
+	}
+	return new CacheKey(key);
+    }
+
+    /**
+     * @param keys
+     * @return the keys wrapped by {@link #of(Object)}, in the same order
+     */
+    public static List<Object> of(Collection<? extends Object> keys) {
+	List<Object> cacheKeys = new ArrayList<Object>(keys.size());
+	for (Object key : keys) {
+	    cacheKeys.add(of(key));
+	}
+	return cacheKeys;
+    }
+
+    /**
+     * @return the wrapped key
+     */
+    public Object getKey() {
+	return key;
+    }
+
+    /**
+     * @return the key as memcached stores it, see {@link SHAKey}
+     */
+    public String getSha() {
+	return format(KeyFormat.DEFAULT);
+    }
+
+    /**
+     * @return the key as memcached stores it in the format, computed once
+     *         per format
+     */
+    public String format(KeyFormat format) {
+	Formatted f = formatted;
+	if (f != null && f.matches(format)) {
+	    return f.key;
+	}
+	f = previouslyFormatted;
+	if (f != null && f.matches(format)) {
+	    return f.key;
+	}
+	// racy but idempotent, at worst computed twice
+	f = new Formatted(format, format.format(normalized));
+	previouslyFormatted = formatted;
+	formatted = f;
+	return f.key;
+    }
+
+    @Override
+    public int hashCode() {
+	return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+	if (this == obj) {
+	    return true;
+	}
+	if (!(obj instanceof CacheKey)) {
+	    return false;
+	}
+	CacheKey other = (CacheKey) obj;
+	return hash == other.hash && normalized.equals(other.normalized);
+    }
+
+    /**
+     * @return the normalized key, the toString() of the wrapped key
+     */
+    @Override
+    public String toString() {
+	return normalized;
+    }
+
+    private static final class Formatted {
+
+	final KeyFormat format;
+	final String key;
+
+	Formatted(KeyFormat format, String key) {
+	    this.format = format;
+	    this.key = key;
+	}
+
+	boolean matches(KeyFormat format) {
+	    return this.format == format || this.format.equals(format);
+	}
+    }
+}
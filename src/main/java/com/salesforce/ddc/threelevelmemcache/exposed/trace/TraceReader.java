@@ -0,0 +1,158 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache.exposed.trace;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Reads the records of a trace written by
+ * {@link TraceRecordingCacheListener}, one at a time:
+ * 
+ * <pre>
+ * while (reader.next()) {
+ *     reader.getOperation() ...
+ * }
+ * </pre>
+ * 
+ * A record cut short, as the last one of a trace whose writer was killed,
+ * ends the trace.
+ */
+public class TraceReader implements Closeable {
+
+    private static final TraceOperation[] OPERATIONS = TraceOperation
+	    .values();
+
+    private final DataInputStream in;
+    private final long startMillis;
+    private TraceOperation operation;
+    private long timeMicros;
+    private long keyHash;
+    private long valueSize;
+
+    /**
+     * @throws IOException
+     *             if the file is not a trace of a known version
+     */
+    public TraceReader(File file) throws IOException {
+	in = new DataInputStream(new BufferedInputStream(new FileInputStream(
+		file), 64 * 1024));
+	try {
+	    if (in.readInt() != TraceRecordingCacheListener.MAGIC) {
+		throw new IOException(file + " is not a cache trace");
+	    }
+	    byte version = in.readByte();
+	    if (version != TraceRecordingCacheListener.VERSION) {
+		throw new IOException(file + " has the unknown version "
+			+ version);
+	    }
+	    startMillis = in.readLong();
+	} catch (IOException e) {
+	    in.close();
+	    throw e;
+	}
+    }
+
+    /**
+     * Moves to the next record.
+     * 
+     * @return false at the end of the trace
+     */
+    public boolean next() throws IOException {
+	int ordinal = in.read();
+	if (ordinal < 0) {
+	    return false;
+	}
+	if (ordinal >= OPERATIONS.length) {
+	    throw new IOException("Unknown operation " + ordinal);
+	}
+	try {
+	    operation = OPERATIONS[ordinal];
+	    timeMicros += readVarLong();
+	    keyHash = in.readLong();
+	    valueSize = operation == TraceOperation.PUT
+		    || operation == TraceOperation.APPEND ? readVarLong() : -1;
+	} catch (EOFException e) {
+	    return false;
+	}
+	return true;
+    }
+
+    private long readVarLong() throws IOException {
+	long value = 0;
+	for (int shift = 0; shift < 64; shift += 7) {
+	    int b = in.readUnsignedByte();
+	    value |= (long) (b & 0x7f) << shift;
+	    if ((b & 0x80) == 0) {
+		return value;
+	    }
+	}
+	throw new IOException("Malformed trace record");
+    }
+
+    /**
+     * @return millis since the epoch the trace was started at
+     */
+    public long getStartMillis() {
+	return startMillis;
+    }
+
+    public TraceOperation getOperation() {
+	return operation;
+    }
+
+    /**
+     * @return micros since the start of the trace
+     */
+    public long getTimeMicros() {
+	return timeMicros;
+    }
+
+    /**
+     * @return {@link TraceRecordingCacheListener#hash(String)} of the key
+     */
+    public long getKeyHash() {
+	return keyHash;
+    }
+
+    /**
+     * @return weight of the value put or appended, -1 for the other
+     *         operations
+     */
+    public long getValueSize() {
+	return valueSize;
+    }
+
+    @Override
+    public void close() throws IOException {
+	in.close();
+    }
+}
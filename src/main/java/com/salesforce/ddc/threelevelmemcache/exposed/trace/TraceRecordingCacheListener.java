@@ -0,0 +1,379 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache.exposed.trace;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.salesforce.ddc.threelevelmemcache.eviction.SerializedSizeWeigher;
+import com.salesforce.ddc.threelevelmemcache.eviction.Weigher;
+import com.salesforce.ddc.threelevelmemcache.exposed.listener.CacheListener;
+
+/**
+ * Records the operations of a cache into a trace file, which
+ * {@link TraceReader} reads back. A record holds the operation, the micros
+ * since the previous record, a 64 bit hash of the key and, for puts and
+ * appends, the weight of the value, 10 to 15 bytes in all.
+ * <p>
+ * The listener hashes the key, weighs the value and queues the record, a
+ * thread writes the file. The queue never holds the values, and the default
+ * weigher serializes none, see {@link #setWeigher(Weigher)}. When the
+ * queue is full operations are dropped and counted instead of waiting, and a
+ * file which can't be written disables the listener. Register a subclass
+ * annotated as the listener of the cache to trace, e.g.
+ * 
+ * <pre>
+ * &#064;CloudCacheListener
+ * public class Trace extends TraceRecordingCacheListener {
+ *     public Trace() {
+ * 	super(&quot;/var/tmp/cache.trace&quot;);
+ *     }
+ * }
+ * </pre>
+ */
+public class TraceRecordingCacheListener implements CacheListener, Closeable {
+
+    private static Log log = LogFactory
+	    .getLog(TraceRecordingCacheListener.class);
+
+    /** "3LMT" */
+    static final int MAGIC = 0x334c4d54;
+    static final byte VERSION = 1;
+    public static final int DEFAULT_QUEUE_SIZE = 64 * 1024;
+    private static final int BATCH = 1024;
+    private static final long FLUSH_MSEC = 100;
+    /**
+     * Size recorded by the default weigher for the values it doesn't weigh.
+     */
+    public static final int DEFAULT_VALUE_SIZE = 1024;
+    private static final Weigher SERIALIZED_SIZE_WEIGHER = new SerializedSizeWeigher();
+
+    /**
+     * Weighs strings, byte arrays and boxed primitives like
+     * {@link SerializedSizeWeigher}, without serialization, and any other
+     * value as {@link #DEFAULT_VALUE_SIZE}.
+     */
+    private static final Weigher DEFAULT_WEIGHER = new Weigher() {
+
+	@Override
+	public int weigh(Serializable value) {
+	    if (value instanceof String || value instanceof byte[]
+		    || value instanceof Number || value instanceof Boolean
+		    || value instanceof Character) {
+		return SERIALIZED_SIZE_WEIGHER.weigh(value);
+	    }
+	    return DEFAULT_VALUE_SIZE;
+	}
+    };
+
+    private static final class Event {
+
+	final TraceOperation operation;
+	final long nanoTime;
+	final long keyHash;
+	final long weight;
+
+	Event(TraceOperation operation, long nanoTime, long keyHash,
+		long weight) {
+	    this.operation = operation;
+	    this.nanoTime = nanoTime;
+	    this.keyHash = keyHash;
+	    this.weight = weight;
+	}
+    }
+
+    private final String file;
+    private final BlockingQueue<Event> queue;
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile long recorded;
+    private volatile long bytes;
+    private volatile long maxBytes;
+    private volatile Weigher weigher = DEFAULT_WEIGHER;
+    private volatile boolean closed;
+    private DataOutputStream out;
+    private long lastNanoTime;
+    private final Thread writer;
+
+    public TraceRecordingCacheListener(String file) {
+	this(file, DEFAULT_QUEUE_SIZE);
+    }
+
+    /**
+     * Creates the file and starts the thread writing it.
+     * 
+     * @param queueSize
+     *            operations queued for the writer at most
+     */
+    public TraceRecordingCacheListener(String file, int queueSize) {
+	this.file = file;
+	this.queue = new ArrayBlockingQueue<Event>(queueSize);
+	this.writer = new Thread("TraceRecordingCacheListener-" + file) {
+
+	    @Override
+	    public void run() {
+		write();
+	    }
+	};
+	writer.setDaemon(true);
+	try {
+	    out = new DataOutputStream(new BufferedOutputStream(
+		    new FileOutputStream(file), 64 * 1024));
+	    out.writeInt(MAGIC);
+	    out.writeByte(VERSION);
+	    out.writeLong(System.currentTimeMillis());
+	    lastNanoTime = System.nanoTime();
+	    bytes = 13;
+	} catch (IOException e) {
+	    log.error("Unable to write the cache trace " + file
+		    + ", operations are not recorded", e);
+	    closeQuietly(out);
+	    closed = true;
+	    return;
+	}
+	writer.start();
+	log.info("Recording the cache operations into " + file);
+    }
+
+    @Override
+    public void get(Object key) {
+	record(TraceOperation.GET, key, null);
+    }
+
+    @Override
+    public void put(Object key, Serializable obj) {
+	record(TraceOperation.PUT, key, obj);
+    }
+
+    @Override
+    public void append(Object key, String obj) {
+	record(TraceOperation.APPEND, key, obj);
+    }
+
+    @Override
+    public void remove(Object key) {
+	record(TraceOperation.REMOVE, key, null);
+    }
+
+    private void record(TraceOperation operation, Object key,
+	    Serializable value) {
+	if (closed || key == null) {
+	    return;
+	}
+	long nanoTime = System.nanoTime();
+	long weight = 0;
+	if (value != null) {
+	    try {
+		weight = weigher.weigh(value);
+	    } catch (RuntimeException e) {
+		// e.g. the value changed while it was serialized
+		if (log.isDebugEnabled()) {
+		    log.debug("Unable to weigh the value of key:" + key, e);
+		}
+	    }
+	}
+	if (!queue.offer(new Event(operation, nanoTime, hash(key.toString()),
+		weight))) {
+	    dropped.incrementAndGet();
+	}
+    }
+
+    private void write() {
+	List<Event> batch = new ArrayList<Event>(BATCH);
+	try {
+	    while (true) {
+		Event first = queue.poll(FLUSH_MSEC, TimeUnit.MILLISECONDS);
+		if (first == null) {
+		    out.flush();
+		    if (closed) {
+			return;
+		    }
+		    continue;
+		}
+		batch.add(first);
+		queue.drainTo(batch, BATCH - 1);
+		for (Event event : batch) {
+		    write(event);
+		}
+		batch.clear();
+		long max = maxBytes;
+		if (max > 0 && bytes >= max) {
+		    log.info("Cache trace " + file + " reached " + bytes
+			    + " bytes, recording stopped");
+		    return;
+		}
+	    }
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	} catch (IOException e) {
+	    log.error("Unable to write the cache trace " + file
+		    + ", recording stopped", e);
+	} finally {
+	    closed = true;
+	    closeQuietly(out);
+	    queue.clear();
+	}
+    }
+
+    private void write(Event event) throws IOException {
+	long written = 1 + 8;
+	out.writeByte(event.operation.ordinal());
+	// threads may queue slightly out of order
+	long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(event.nanoTime
+		- lastNanoTime));
+	lastNanoTime = Math.max(lastNanoTime, event.nanoTime);
+	written += writeVarLong(out, micros);
+	out.writeLong(event.keyHash);
+	if (event.operation == TraceOperation.PUT
+		|| event.operation == TraceOperation.APPEND) {
+	    written += writeVarLong(out, event.weight);
+	}
+	bytes += written;
+	recorded++;
+    }
+
+    static int writeVarLong(DataOutputStream out, long value)
+	    throws IOException {
+	int written = 1;
+	while ((value & ~0x7fL) != 0) {
+	    out.writeByte((int) (value & 0x7f) | 0x80);
+	    value >>>= 7;
+	    written++;
+	}
+	out.writeByte((int) value);
+	return written;
+    }
+
+    /**
+     * 64 bit FNV-1a of the key, with the MurmurHash3 finalizer spreading its
+     * bits.
+     */
+    public static long hash(String key) {
+	long h = 0xcbf29ce484222325L;
+	for (int i = 0; i < key.length(); i++) {
+	    h ^= key.charAt(i);
+	    h *= 0x100000001b3L;
+	}
+	h ^= h >>> 33;
+	h *= 0xff51afd7ed558ccdL;
+	h ^= h >>> 33;
+	h *= 0xc4ceb9fe1a85ec53L;
+	h ^= h >>> 33;
+	return h;
+    }
+
+    /**
+     * Stops recording and writes the queued operations.
+     */
+    @Override
+    public void close() {
+	closed = true;
+	try {
+	    writer.join();
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	}
+    }
+
+    private static void closeQuietly(OutputStream stream) {
+	if (stream != null) {
+	    try {
+		stream.close();
+	    } catch (IOException e) {
+		log.warn("Unable to close the cache trace", e);
+	    }
+	}
+    }
+
+    public String getFile() {
+	return file;
+    }
+
+    /**
+     * @return whether operations are still recorded
+     */
+    public boolean isRecording() {
+	return !closed;
+    }
+
+    public long getRecorded() {
+	return recorded;
+    }
+
+    /**
+     * @return operations dropped because the writer fell behind
+     */
+    public long getDropped() {
+	return dropped.get();
+    }
+
+    public long getBytes() {
+	return bytes;
+    }
+
+    public long getMaxBytes() {
+	return maxBytes;
+    }
+
+    /**
+     * @param maxBytes
+     *            size the recording stops at, 0 for no limit. Default is no
+     *            limit.
+     */
+    public void setMaxBytes(long maxBytes) {
+	this.maxBytes = maxBytes;
+    }
+
+    public Weigher getWeigher() {
+	return weigher;
+    }
+
+    /**
+     * @param weigher
+     *            gives the size recorded for the values put, called by the
+     *            thread putting the value, so it should be cheap. Default
+     *            weighs strings, byte arrays and boxed primitives, and
+     *            records {@link #DEFAULT_VALUE_SIZE} for other values. A
+     *            {@link SerializedSizeWeigher} gives their sizes at the cost
+     *            of serializing each value put.
+     */
+    public void setWeigher(Weigher weigher) {
+	this.weigher = weigher;
+    }
+}
@@ -0,0 +1,67 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache.exposed.transcoder;
+
+import java.io.IOException;
+import java.util.zip.Deflater;
+
+/**
+ * Codecs every {@link CompactTranscoder} can decompress.
+ */
+public enum BuiltInCodec implements CompressionCodec {
+
+    /**
+     * LZ4 block format, several times faster than Deflate for a lower ratio.
+     */
+    LZ4(new LZ4Codec()),
+    /** Deflate level 1 */
+    DEFLATE_FAST(new DeflateCodec(Deflater.BEST_SPEED)),
+    /** Deflate level 6, the ratio of the gzip of SerializingTranscoder */
+    DEFLATE(new DeflateCodec(Deflater.DEFAULT_COMPRESSION)),
+    /** Deflate level 9 */
+    DEFLATE_BEST(new DeflateCodec(Deflater.BEST_COMPRESSION));
+
+    private final CompressionCodec codec;
+
+    private BuiltInCodec(CompressionCodec codec) {
+	this.codec = codec;
+    }
+
+    @Override
+    public int getId() {
+	return codec.getId();
+    }
+
+    @Override
+    public byte[] compress(byte[] data) {
+	return codec.compress(data);
+    }
+
+    @Override
+    public byte[] decompress(byte[] data) throws IOException {
+	return codec.decompress(data);
+    }
+}
@@ -0,0 +1,158 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache.exposed.transcoder;
+
+import static com.salesforce.ddc.threelevelmemcache.exposed.transcoder.CompactObjectOutput.ARRAY_LIST;
+import static com.salesforce.ddc.threelevelmemcache.exposed.transcoder.CompactObjectOutput.BOOLEAN;
+import static com.salesforce.ddc.threelevelmemcache.exposed.transcoder.CompactObjectOutput.BYTES;
+import static com.salesforce.ddc.threelevelmemcache.exposed.transcoder.CompactObjectOutput.DOUBLE;
+import static com.salesforce.ddc.threelevelmemcache.exposed.transcoder.CompactObjectOutput.FIRST_CLASS_TAG;
+import static com.salesforce.ddc.threelevelmemcache.exposed.transcoder.CompactObjectOutput.HASH_MAP;
+import static com.salesforce.ddc.threelevelmemcache.exposed.transcoder.CompactObjectOutput.INTEGER;
+import static com.salesforce.ddc.threelevelmemcache.exposed.transcoder.CompactObjectOutput.JAVA;
+import static com.salesforce.ddc.threelevelmemcache.exposed.transcoder.CompactObjectOutput.LONG;
+import static com.salesforce.ddc.threelevelmemcache.exposed.transcoder.CompactObjectOutput.NULL;
+import static com.salesforce.ddc.threelevelmemcache.exposed.transcoder.CompactObjectOutput.STRING;
+import static com.salesforce.ddc.threelevelmemcache.exposed.transcoder.CompactObjectOutput.UTF8;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import com.salesforce.ddc.threelevelmemcache.exposed.transcoder.CompactTranscoder.Registration;
+
+/**
+ * Reads what {@link CompactObjectOutput} writes.
+ */
+final class CompactObjectInput extends DataInputStream implements ObjectInput {
+
+    private final CompactTranscoder transcoder;
+
+    CompactObjectInput(CompactTranscoder transcoder, byte[] data, int offset) {
+	super(new ByteArrayInputStream(data, offset, data.length - offset));
+	this.transcoder = transcoder;
+    }
+
+    @Override
+    public Object readObject() throws ClassNotFoundException, IOException {
+	int tag = readVarInt();
+	switch (tag) {
+	case NULL:
+	    return null;
+	case JAVA:
+	    return new ObjectInputStream(new ByteArrayInputStream(
+		    readByteArray())).readObject();
+	case STRING:
+	    return new String(readByteArray(), UTF8);
+	case INTEGER:
+	    return readInt();
+	case LONG:
+	    return readLong();
+	case BOOLEAN:
+	    return readBoolean();
+	case DOUBLE:
+	    return readDouble();
+	case BYTES:
+	    return readByteArray();
+	case ARRAY_LIST: {
+	    int size = readLength();
+	    ArrayList<Object> list = new ArrayList<Object>(size);
+	    for (int i = 0; i < size; i++) {
+		list.add(readObject());
+	    }
+	    return list;
+	}
+	case HASH_MAP: {
+	    int size = readLength();
+	    HashMap<Object, Object> map = new HashMap<Object, Object>(
+		    size * 4 / 3 + 1);
+	    for (int i = 0; i < size; i++) {
+		map.put(readObject(), readObject());
+	    }
+	    return map;
+	}
+	}
+	if (tag < FIRST_CLASS_TAG) {
+	    throw new StreamCorruptedException("Unknown tag " + tag);
+	}
+	Registration registration = transcoder.getRegistration(tag
+		- FIRST_CLASS_TAG);
+	if (registration == null) {
+	    throw new ClassNotFoundException("No class registered with id "
+		    + (tag - FIRST_CLASS_TAG));
+	}
+	if (registration.serializer != null) {
+	    return registration.serializer.read(this);
+	}
+	Externalizable value;
+	try {
+	    value = (Externalizable) registration.constructor.newInstance();
+	} catch (Exception e) {
+	    throw new InvalidClassException(registration.type.getName(),
+		    "Can't instantiate: " + e);
+	}
+	value.readExternal(this);
+	return value;
+    }
+
+    private byte[] readByteArray() throws IOException {
+	byte[] b = new byte[readLength()];
+	readFully(b);
+	return b;
+    }
+
+    /**
+     * @return a length, checked against the remaining bytes so a corrupt
+     *         value can't allocate more than its own size
+     */
+    private int readLength() throws IOException {
+	int length = readVarInt();
+	if (length < 0 || length > available()) {
+	    throw new EOFException("Length " + length + " exceeds the value.");
+	}
+	return length;
+    }
+
+    int readVarInt() throws IOException {
+	int value = 0;
+	for (int shift = 0; shift < 32; shift += 7) {
+	    int b = readUnsignedByte();
+	    value |= (b & 0x7f) << shift;
+	    if (b < 0x80) {
+		return value;
+	    }
+	}
+	throw new StreamCorruptedException("Malformed varint");
+    }
+}
@@ -0,0 +1,160 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache.exposed.transcoder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.salesforce.ddc.threelevelmemcache.exposed.transcoder.CompactTranscoder.Registration;
+
+/**
+ * Writes the compact format: each object is a varint tag followed by its
+ * data. The tags below {@link #FIRST_CLASS_TAG} are the built-in types, the
+ * others are the registered class ids shifted by it.
+ */
+final class CompactObjectOutput extends DataOutputStream implements
+	ObjectOutput {
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    static final int NULL = 0;
+    /** length-prefixed Java serialization, for unregistered classes */
+    static final int JAVA = 1;
+    static final int STRING = 2;
+    static final int INTEGER = 3;
+    static final int LONG = 4;
+    static final int BOOLEAN = 5;
+    static final int DOUBLE = 6;
+    static final int BYTES = 7;
+    static final int ARRAY_LIST = 8;
+    static final int HASH_MAP = 9;
+    /** tags up to this one are reserved for built-in types */
+    static final int FIRST_CLASS_TAG = 16;
+
+    private final CompactTranscoder transcoder;
+    private final ByteArrayOutputStream bytes;
+
+    CompactObjectOutput(CompactTranscoder transcoder) {
+	this(transcoder, new ByteArrayOutputStream(256));
+    }
+
+    private CompactObjectOutput(CompactTranscoder transcoder,
+	    ByteArrayOutputStream bytes) {
+	super(bytes);
+	this.transcoder = transcoder;
+	this.bytes = bytes;
+    }
+
+    byte[] toByteArray() {
+	return bytes.toByteArray();
+    }
+
+    @Override
+    public void writeObject(Object obj) throws IOException {
+	if (obj == null) {
+	    writeVarInt(NULL);
+	    return;
+	}
+	Class<?> type = obj.getClass();
+	Registration registration = transcoder.getRegistration(type);
+	if (registration != null) {
+	    writeVarInt(FIRST_CLASS_TAG + registration.id);
+	    if (registration.serializer != null) {
+		registration.serializer.write(obj, this);
+	    } else {
+		((Externalizable) obj).writeExternal(this);
+	    }
+	} else if (type == String.class) {
+	    writeVarInt(STRING);
+	    writeByteArray(((String) obj).getBytes(UTF8));
+	} else if (type == Integer.class) {
+	    writeVarInt(INTEGER);
+	    writeInt((Integer) obj);
+	} else if (type == Long.class) {
+	    writeVarInt(LONG);
+	    writeLong((Long) obj);
+	} else if (type == Boolean.class) {
+	    writeVarInt(BOOLEAN);
+	    writeBoolean((Boolean) obj);
+	} else if (type == Double.class) {
+	    writeVarInt(DOUBLE);
+	    writeDouble((Double) obj);
+	} else if (type == byte[].class) {
+	    writeVarInt(BYTES);
+	    writeByteArray((byte[]) obj);
+	} else if (type == ArrayList.class) {
+	    ArrayList<?> list = (ArrayList<?>) obj;
+	    writeVarInt(ARRAY_LIST);
+	    writeVarInt(list.size());
+	    for (Object element : list) {
+		writeObject(element);
+	    }
+	} else if (type == HashMap.class) {
+	    HashMap<?, ?> map = (HashMap<?, ?>) obj;
+	    writeVarInt(HASH_MAP);
+	    writeVarInt(map.size());
+	    for (Map.Entry<?, ?> entry : map.entrySet()) {
+		writeObject(entry.getKey());
+		writeObject(entry.getValue());
+	    }
+	} else if (obj instanceof Serializable) {
+	    ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+	    ObjectOutputStream out = new ObjectOutputStream(serialized);
+	    out.writeObject(obj);
+	    out.close();
+	    writeVarInt(JAVA);
+	    writeByteArray(serialized.toByteArray());
+	} else {
+	    throw new NotSerializableException(type.getName());
+	}
+    }
+
+    private void writeByteArray(byte[] b) throws IOException {
+	writeVarInt(b.length);
+	write(b);
+    }
+
+    /**
+     * Unsigned LEB128, 7 bits per byte.
+     */
+    void writeVarInt(int value) throws IOException {
+	while ((value & ~0x7f) != 0) {
+	    write((value & 0x7f) | 0x80);
+	    value >>>= 7;
+	}
+	write(value);
+    }
+}
@@ -0,0 +1,350 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache.exposed.transcoder;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.SerializingTranscoder;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.salesforce.ddc.threelevelmemcache.exposed.NonCompressionTranscoder;
+
+/**
+ * Transcoder writing the values of registered classes in a compact binary
+ * format instead of Java serialization. A registered class is written as its
+ * numeric id followed by its fields, either by its {@link ValueSerializer}
+ * or by its own {@link Externalizable} methods, with no class descriptors.
+ * <p/>
+ * Compact values are stored with the {@link #COMPACT} flag and start with a
+ * format version byte. Values without the flag, the ones written before and
+ * the ones of unregistered classes, strings and primitives, are read and
+ * written the way {@link SerializingTranscoder} does.
+ * <p/>
+ * Class ids are stored with the values: an id must never be reused for
+ * another class. Readers must know a class before writers use it, roll out
+ * a registration with {@link #setCompactWrites(boolean)} off first.
+ * <p/>
+ * With a {@link CompressionPolicy} the values are compressed by the codec it
+ * chooses instead of the gzip of SerializingTranscoder, the id of the codec
+ * is stored in the {@link #CODEC_MASK} bits of the flags. Every transcoder
+ * reads the {@link BuiltInCodec}s, other codecs have to be registered with
+ * the readers before a policy writes them.
+ */
+public class CompactTranscoder extends SerializingTranscoder {
+
+    private static Log log = LogFactory.getLog(CompactTranscoder.class);
+
+    /**
+     * Flag of the compact values, a bit {@link SerializingTranscoder} leaves
+     * unused.
+     */
+    public static final int COMPACT = 4;
+    /** same bit as in SerializingTranscoder */
+    static final int COMPRESSED = 2;
+    /** version of the compact format, the first byte of the values */
+    static final byte VERSION = 1;
+    /** bits of the flags holding the id of the {@link CompressionCodec} */
+    public static final int CODEC_MASK = 0xf0000;
+    static final int CODEC_SHIFT = 16;
+    /** largest class id, keeps the written ids at 3 bytes at most */
+    public static final int MAX_CLASS_ID = (1 << 21) - 1
+	    - CompactObjectOutput.FIRST_CLASS_TAG;
+
+    private final Map<Class<?>, Registration> byClass = new ConcurrentHashMap<Class<?>, Registration>();
+    private final Map<Integer, Registration> byId = new ConcurrentHashMap<Integer, Registration>();
+    private volatile boolean compactWrites = true;
+    /** codecs by id, copied on write */
+    private volatile CompressionCodec[] codecs = new CompressionCodec[16];
+    private volatile CompressionPolicy compression;
+    /** encodes like this transcoder's parent without compression */
+    private final SerializingTranscoder uncompressed;
+
+    public CompactTranscoder() {
+	this(CachedData.MAX_SIZE);
+    }
+
+    public CompactTranscoder(int max) {
+	super(max);
+	uncompressed = new NonCompressionTranscoder(max);
+	codecs[LZ4Codec.ID] = BuiltInCodec.LZ4;
+	codecs[DeflateCodec.ID] = BuiltInCodec.DEFLATE;
+    }
+
+    /**
+     * Registers the serializer of its class.
+     * 
+     * @param id
+     *            between 1 and {@link #MAX_CLASS_ID}, unique
+     * @param serializer
+     */
+    public void register(int id, ValueSerializer<?> serializer) {
+	register(new Registration(id, serializer.getType(), serializer, null));
+    }
+
+    /**
+     * Registers a class written by its {@link Externalizable} methods.
+     * 
+     * @param id
+     *            between 1 and {@link #MAX_CLASS_ID}, unique
+     * @param type
+     *            needs a public no-arg constructor
+     */
+    public void register(int id, Class<? extends Externalizable> type) {
+	try {
+	    register(new Registration(id, type, null, type.getConstructor()));
+	} catch (NoSuchMethodException e) {
+	    throw new IllegalArgumentException(type.getName()
+		    + " has no public no-arg constructor.", e);
+	}
+    }
+
+    private synchronized void register(Registration registration) {
+	if (registration.id < 1 || registration.id > MAX_CLASS_ID) {
+	    throw new IllegalArgumentException("Class id " + registration.id
+		    + " is not between 1 and " + MAX_CLASS_ID + ".");
+	}
+	Registration previous = byId.get(registration.id);
+	if (previous != null && previous.type != registration.type) {
+	    throw new IllegalArgumentException("Class id " + registration.id
+		    + " is registered for " + previous.type.getName() + ".");
+	}
+	previous = byClass.get(registration.type);
+	if (previous != null && previous.id != registration.id) {
+	    throw new IllegalArgumentException(registration.type.getName()
+		    + " is registered with class id " + previous.id + ".");
+	}
+	byId.put(registration.id, registration);
+	byClass.put(registration.type, registration);
+    }
+
+    /**
+     * @param serializers
+     *            serializers by class id, see
+     *            {@link #register(int, ValueSerializer)}
+     */
+    public void setSerializers(Map<Integer, ValueSerializer<?>> serializers) {
+	for (Map.Entry<Integer, ValueSerializer<?>> entry : serializers
+		.entrySet()) {
+	    register(entry.getKey(), entry.getValue());
+	}
+    }
+
+    /**
+     * @param externalizables
+     *            {@link Externalizable} classes by class id, see
+     *            {@link #register(int, Class)}
+     */
+    @SuppressWarnings("unchecked")
+    public void setExternalizables(Map<Integer, Class<?>> externalizables) {
+	for (Map.Entry<Integer, Class<?>> entry : externalizables.entrySet()) {
+	    if (!Externalizable.class.isAssignableFrom(entry.getValue())) {
+		throw new IllegalArgumentException(entry.getValue().getName()
+			+ " is not Externalizable.");
+	    }
+	    register(entry.getKey(),
+		    (Class<? extends Externalizable>) entry.getValue());
+	}
+    }
+
+    public boolean isCompactWrites() {
+	return compactWrites;
+    }
+
+    /**
+     * @param compactWrites
+     *            false to write every value the way
+     *            {@link SerializingTranscoder} does. Compact values are read
+     *            either way.
+     */
+    public void setCompactWrites(boolean compactWrites) {
+	this.compactWrites = compactWrites;
+    }
+
+    /**
+     * Registers a codec to read, the policy's codecs are registered by
+     * {@link #setCompression(CompressionPolicy)}.
+     * 
+     * @param codec
+     *            a {@link BuiltInCodec} or a codec with an id between 8 and
+     *            15
+     */
+    public synchronized void register(CompressionCodec codec) {
+	if (codec instanceof BuiltInCodec) {
+	    // always read
+	    return;
+	}
+	int id = codec.getId();
+	if (id < 8 || id > 15) {
+	    throw new IllegalArgumentException("Codec id " + id
+		    + " is not between 8 and 15.");
+	}
+	CompressionCodec previous = codecs[id];
+	if (previous != null && previous.getClass() != codec.getClass()) {
+	    throw new IllegalArgumentException("Codec id " + id
+		    + " is registered for " + previous.getClass().getName()
+		    + ".");
+	}
+	CompressionCodec[] codecs = this.codecs.clone();
+	codecs[id] = codec;
+	this.codecs = codecs;
+    }
+
+    public CompressionPolicy getCompression() {
+	return compression;
+    }
+
+    /**
+     * @param compression
+     *            chooses the codec of each value, null to gzip the values
+     *            above the compression threshold like SerializingTranscoder
+     */
+    public synchronized void setCompression(CompressionPolicy compression) {
+	if (compression != null) {
+	    for (CompressionCodec codec : compression.getCodecs()) {
+		register(codec);
+	    }
+	}
+	this.compression = compression;
+    }
+
+    @Override
+    public CachedData encode(Object o) {
+	boolean compact = compactWrites && o != null
+		&& byClass.containsKey(o.getClass());
+	CompressionPolicy policy = compression;
+	if (policy == null || !policy.isEnabled()) {
+	    return compact ? encodeCompact(o, true) : super.encode(o);
+	}
+	CachedData d = compact ? encodeCompact(o, false) : uncompressed
+		.encode(o);
+	byte[] data = d.getData();
+	CompressionCodec codec = policy.select(o.getClass(), data.length);
+	if (codec == null) {
+	    return d;
+	}
+	byte[] compressed = codec.compress(data);
+	policy.record(o.getClass(), data.length, compressed.length);
+	if (compressed.length >= data.length) {
+	    return d;
+	}
+	return new CachedData(d.getFlags() | codec.getId() << CODEC_SHIFT,
+		compressed, getMaxSize());
+    }
+
+    private CachedData encodeCompact(Object o, boolean gzip) {
+	byte[] data;
+	try {
+	    CompactObjectOutput out = new CompactObjectOutput(this);
+	    out.writeByte(VERSION);
+	    out.writeObject(o);
+	    data = out.toByteArray();
+	} catch (IOException e) {
+	    throw new IllegalArgumentException("Can't write "
+		    + o.getClass().getName(), e);
+	}
+	int flags = COMPACT;
+	if (gzip && data.length > compressionThreshold) {
+	    byte[] compressed = compress(data);
+	    if (compressed.length < data.length) {
+		data = compressed;
+		flags |= COMPRESSED;
+	    }
+	}
+	return new CachedData(flags, data, getMaxSize());
+    }
+
+    @Override
+    public Object decode(CachedData d) {
+	int codecId = (d.getFlags() & CODEC_MASK) >>> CODEC_SHIFT;
+	if (codecId != 0) {
+	    CompressionCodec codec = codecs[codecId];
+	    if (codec == null) {
+		log.warn("Can't decode value of unknown codec " + codecId);
+		return null;
+	    }
+	    try {
+		d = new CachedData(d.getFlags() & ~CODEC_MASK, codec
+			.decompress(d.getData()), Integer.MAX_VALUE);
+	    } catch (IOException e) {
+		log.warn("Can't decompress value of codec " + codecId, e);
+		return null;
+	    }
+	}
+	if ((d.getFlags() & COMPACT) == 0) {
+	    return super.decode(d);
+	}
+	byte[] data = d.getData();
+	if ((d.getFlags() & COMPRESSED) != 0) {
+	    data = decompress(data);
+	}
+	if (data == null || data.length == 0) {
+	    return null;
+	}
+	if (data[0] != VERSION) {
+	    log.warn("Can't decode compact value of version " + data[0]);
+	    return null;
+	}
+	try {
+	    return new CompactObjectInput(this, data, 1).readObject();
+	} catch (Exception e) {
+	    // read as a miss, the value gets written again
+	    log.warn("Can't decode compact value.", e);
+	    return null;
+	}
+    }
+
+    Registration getRegistration(Class<?> type) {
+	return byClass.get(type);
+    }
+
+    Registration getRegistration(int id) {
+	return byId.get(id);
+    }
+
+    static final class Registration {
+
+	final int id;
+	final Class<?> type;
+	final ValueSerializer<Object> serializer;
+	final Constructor<?> constructor;
+
+	@SuppressWarnings("unchecked")
+	Registration(int id, Class<?> type, ValueSerializer<?> serializer,
+		Constructor<?> constructor) {
+	    this.id = id;
+	    this.type = type;
+	    this.serializer = (ValueSerializer<Object>) serializer;
+	    this.constructor = constructor;
+	}
+    }
+}
@@ -0,0 +1,223 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache.exposed.transcoder;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Chooses the {@link CompressionCodec} of a value for
+ * {@link CompactTranscoder}, by the size of the encoded value and by its
+ * class.
+ * <p/>
+ * A value of at least {@link #setMinBytes(int)} bytes uses
+ * {@link #setCodec(BuiltInCodec)}, bands of larger values may use other
+ * codecs, see {@link #setSizeBands(Map)}. A codec registered for the class
+ * of the value, or one of its superclasses, replaces the codec of the band;
+ * values smaller than every band are not compressed.
+ * <p/>
+ * The ratio each class compresses to is tracked. Once it's worse than
+ * {@link #setMaxRatio(double)} the values of the class are stored
+ * uncompressed, except one in {@link #PROBE_INTERVAL} which keeps measuring
+ * the ratio.
+ */
+public class CompressionPolicy {
+
+    /** values compressed before the ratio of a class is trusted */
+    static final int MIN_SAMPLES = 16;
+    /** one value in this many is compressed while a class is skipped */
+    public static final int PROBE_INTERVAL = 64;
+
+    private BuiltInCodec codec;
+    private int minBytes = 16384;
+    private final Map<Integer, CompressionCodec> sizeBands = new TreeMap<Integer, CompressionCodec>();
+    private volatile NavigableMap<Integer, CompressionCodec> bands = new TreeMap<Integer, CompressionCodec>();
+    private final Map<Class<?>, CompressionCodec> classCodecs = new ConcurrentHashMap<Class<?>, CompressionCodec>();
+    private volatile double maxRatio = 0.9;
+    private final ConcurrentMap<Class<?>, Ratio> ratios = new ConcurrentHashMap<Class<?>, Ratio>();
+
+    /**
+     * @param codec
+     *            codec of the values of at least {@link #setMinBytes(int)}
+     *            bytes, none if null
+     */
+    public synchronized void setCodec(BuiltInCodec codec) {
+	this.codec = codec;
+	updateBands();
+    }
+
+    /**
+     * @param minBytes
+     *            smallest value compressed by {@link #setCodec(BuiltInCodec)},
+     *            16384 by default like SerializingTranscoder
+     */
+    public synchronized void setMinBytes(int minBytes) {
+	this.minBytes = minBytes;
+	updateBands();
+    }
+
+    /**
+     * @param sizeBands
+     *            codecs by the smallest size of the values they compress. A
+     *            value uses the band with the largest size not above its own.
+     */
+    public synchronized void setSizeBands(
+	    Map<Integer, ? extends CompressionCodec> sizeBands) {
+	this.sizeBands.clear();
+	this.sizeBands.putAll(sizeBands);
+	updateBands();
+    }
+
+    private void updateBands() {
+	TreeMap<Integer, CompressionCodec> bands = new TreeMap<Integer, CompressionCodec>();
+	if (codec != null) {
+	    bands.put(minBytes, codec);
+	}
+	bands.putAll(sizeBands);
+	this.bands = bands;
+    }
+
+    public void register(Class<?> clazz, CompressionCodec codec) {
+	classCodecs.put(clazz, codec);
+    }
+
+    /**
+     * @param classCodecs
+     *            codecs replacing the ones of the size bands for the values
+     *            of the classes
+     */
+    public void setClassCodecs(Map<Class<?>, CompressionCodec> classCodecs) {
+	this.classCodecs.clear();
+	this.classCodecs.putAll(classCodecs);
+    }
+
+    /**
+     * @param maxRatio
+     *            compressed size over original size above which a class is
+     *            not compressed anymore, 0.9 by default
+     */
+    public void setMaxRatio(double maxRatio) {
+	this.maxRatio = maxRatio;
+    }
+
+    /**
+     * @return true if some values are compressed
+     */
+    public boolean isEnabled() {
+	return !bands.isEmpty();
+    }
+
+    /**
+     * @return every codec the policy may choose
+     */
+    public Collection<CompressionCodec> getCodecs() {
+	List<CompressionCodec> codecs = new ArrayList<CompressionCodec>(
+		bands.values());
+	codecs.addAll(classCodecs.values());
+	return codecs;
+    }
+
+    /**
+     * @param clazz
+     *            class of the value
+     * @param size
+     *            encoded size of the value
+     * @return the codec to compress the value with, null to store it as is
+     */
+    public CompressionCodec select(Class<?> clazz, int size) {
+	Map.Entry<Integer, CompressionCodec> band = bands.floorEntry(size);
+	if (band == null) {
+	    return null;
+	}
+	Ratio ratio = ratios.get(clazz);
+	if (ratio != null && ratio.isPoor(maxRatio)
+		&& ratio.skipped.incrementAndGet() % PROBE_INTERVAL != 0) {
+	    return null;
+	}
+	for (Class<?> c = clazz; c != null; c = c.getSuperclass()) {
+	    CompressionCodec codec = classCodecs.get(c);
+	    if (codec != null) {
+		return codec;
+	    }
+	}
+	return band.getValue();
+    }
+
+    /**
+     * Records the outcome of a compression chosen by
+     * {@link #select(Class, int)}.
+     */
+    public void record(Class<?> clazz, int size, int compressedSize) {
+	Ratio ratio = ratios.get(clazz);
+	if (ratio == null) {
+	    Ratio created = new Ratio();
+	    ratio = ratios.putIfAbsent(clazz, created);
+	    if (ratio == null) {
+		ratio = created;
+	    }
+	}
+	ratio.add((double) compressedSize / size);
+    }
+
+    /**
+     * @return the average ratio the values of the class compressed to, NaN
+     *         if none was compressed
+     */
+    public double getRatio(Class<?> clazz) {
+	Ratio ratio = ratios.get(clazz);
+	return ratio != null && ratio.samples > 0 ? ratio.average : Double.NaN;
+    }
+
+    /**
+     * Exponential moving average of the ratios, racy updates only lose a
+     * sample.
+     */
+    private static final class Ratio {
+
+	/** up to MIN_SAMPLES */
+	volatile int samples;
+	volatile double average;
+	final AtomicInteger skipped = new AtomicInteger();
+
+	void add(double ratio) {
+	    int n = samples;
+	    average = n == 0 ? ratio : average + (ratio - average)
+		    / Math.min(n + 1, MIN_SAMPLES);
+	    samples = Math.min(n + 1, MIN_SAMPLES);
+	}
+
+	boolean isPoor(double maxRatio) {
+	    return samples >= MIN_SAMPLES && average > maxRatio;
+	}
+    }
+}
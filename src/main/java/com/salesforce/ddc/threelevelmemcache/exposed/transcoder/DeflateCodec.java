@@ -0,0 +1,94 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache.exposed.transcoder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * zlib Deflate. The level doesn't change the format, every level has the
+ * same id.
+ */
+final class DeflateCodec implements CompressionCodec {
+
+    static final int ID = 2;
+
+    private final int level;
+
+    DeflateCodec(int level) {
+	this.level = level;
+    }
+
+    @Override
+    public int getId() {
+	return ID;
+    }
+
+    @Override
+    public byte[] compress(byte[] data) {
+	Deflater deflater = new Deflater(level);
+	try {
+	    deflater.setInput(data);
+	    deflater.finish();
+	    ByteArrayOutputStream out = new ByteArrayOutputStream(
+		    data.length / 2 + 64);
+	    byte[] buffer = new byte[4096];
+	    while (!deflater.finished()) {
+		out.write(buffer, 0, deflater.deflate(buffer));
+	    }
+	    return out.toByteArray();
+	} finally {
+	    deflater.end();
+	}
+    }
+
+    @Override
+    public byte[] decompress(byte[] data) throws IOException {
+	Inflater inflater = new Inflater();
+	try {
+	    inflater.setInput(data);
+	    ByteArrayOutputStream out = new ByteArrayOutputStream(
+		    data.length * 3);
+	    byte[] buffer = new byte[4096];
+	    while (!inflater.finished()) {
+		int n = inflater.inflate(buffer);
+		if (n == 0 && !inflater.finished()
+			&& (inflater.needsInput() || inflater.needsDictionary())) {
+		    throw new IOException("Truncated deflate data");
+		}
+		out.write(buffer, 0, n);
+	    }
+	    return out.toByteArray();
+	} catch (DataFormatException e) {
+	    throw new IOException("Corrupt deflate data", e);
+	} finally {
+	    inflater.end();
+	}
+    }
+}
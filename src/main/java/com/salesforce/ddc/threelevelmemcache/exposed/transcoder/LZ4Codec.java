@@ -0,0 +1,198 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache.exposed.transcoder;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * LZ4 block format preceded by the uncompressed length, 4 bytes little
+ * endian. The compressor is the greedy single-probe one of the reference
+ * implementation, no dependency needed.
+ */
+final class LZ4Codec implements CompressionCodec {
+
+    static final int ID = 1;
+
+    private static final int MIN_MATCH = 4;
+    /** the last match starts at least 12 bytes before the end */
+    private static final int MF_LIMIT = 12;
+    /** the last 5 bytes are always literals */
+    private static final int LAST_LITERALS = 5;
+    private static final int MAX_OFFSET = 65535;
+    private static final int MAX_HASH_LOG = 12;
+    /** misses before the search step grows, skips incompressible data */
+    private static final int SKIP_TRIGGER = 6;
+
+    @Override
+    public int getId() {
+	return ID;
+    }
+
+    @Override
+    public byte[] compress(byte[] src) {
+	int length = src.length;
+	byte[] dst = new byte[4 + length + length / 255 + 16];
+	writeIntLE(dst, 0, length);
+	int dp = 4;
+	int anchor = 0;
+	if (length > MF_LIMIT) {
+	    int hashLog = Math.min(MAX_HASH_LOG,
+		    32 - Integer.numberOfLeadingZeros(length));
+	    // positions + 1, 0 is empty
+	    int[] table = new int[1 << hashLog];
+	    int matchLimit = length - MF_LIMIT;
+	    int sp = 0;
+	    int misses = 0;
+	    while (sp < matchLimit) {
+		int sequence = readInt(src, sp);
+		int h = (sequence * -1640531535) >>> (32 - hashLog);
+		int ref = table[h] - 1;
+		table[h] = sp + 1;
+		if (ref < 0 || sp - ref > MAX_OFFSET
+			|| readInt(src, ref) != sequence) {
+		    sp += 1 + (misses++ >>> SKIP_TRIGGER);
+		    continue;
+		}
+		misses = 0;
+		int matchLength = MIN_MATCH;
+		int maxMatch = length - LAST_LITERALS - sp;
+		while (matchLength < maxMatch
+			&& src[ref + matchLength] == src[sp + matchLength]) {
+		    matchLength++;
+		}
+		dp = writeSequence(dst, dp, src, anchor, sp - anchor, sp - ref,
+			matchLength);
+		sp += matchLength;
+		anchor = sp;
+	    }
+	}
+	dp = writeLiterals(dst, dp, src, anchor, length - anchor, 0);
+	return Arrays.copyOf(dst, dp);
+    }
+
+    private static int writeSequence(byte[] dst, int dp, byte[] src,
+	    int anchor, int literals, int offset, int matchLength) {
+	int extraMatch = matchLength - MIN_MATCH;
+	dp = writeLiterals(dst, dp, src, anchor, literals, Math.min(
+		extraMatch, 15));
+	dst[dp++] = (byte) offset;
+	dst[dp++] = (byte) (offset >>> 8);
+	if (extraMatch >= 15) {
+	    dp = writeLength(dst, dp, extraMatch - 15);
+	}
+	return dp;
+    }
+
+    private static int writeLiterals(byte[] dst, int dp, byte[] src,
+	    int anchor, int literals, int tokenLow) {
+	dst[dp++] = (byte) (Math.min(literals, 15) << 4 | tokenLow);
+	if (literals >= 15) {
+	    dp = writeLength(dst, dp, literals - 15);
+	}
+	System.arraycopy(src, anchor, dst, dp, literals);
+	return dp + literals;
+    }
+
+    private static int writeLength(byte[] dst, int dp, int length) {
+	for (; length >= 255; length -= 255) {
+	    dst[dp++] = (byte) 255;
+	}
+	dst[dp++] = (byte) length;
+	return dp;
+    }
+
+    @Override
+    public byte[] decompress(byte[] src) throws IOException {
+	if (src.length < 5) {
+	    throw new IOException("Truncated LZ4 data");
+	}
+	int length = readInt(src, 0);
+	// a byte of LZ4 expands to 255 bytes at most
+	if (length < 0 || length > (long) src.length * 255) {
+	    throw new IOException("Corrupt LZ4 length " + length);
+	}
+	byte[] dst = new byte[length];
+	int sp = 4;
+	int dp = 0;
+	try {
+	    while (true) {
+		int token = src[sp++] & 0xff;
+		int literals = token >>> 4;
+		if (literals == 15) {
+		    int b;
+		    do {
+			b = src[sp++] & 0xff;
+			literals += b;
+		    } while (b == 255);
+		}
+		System.arraycopy(src, sp, dst, dp, literals);
+		sp += literals;
+		dp += literals;
+		if (sp == src.length) {
+		    break;
+		}
+		int offset = (src[sp++] & 0xff) | (src[sp++] & 0xff) << 8;
+		int matchLength = token & 15;
+		if (matchLength == 15) {
+		    int b;
+		    do {
+			b = src[sp++] & 0xff;
+			matchLength += b;
+		    } while (b == 255);
+		}
+		matchLength += MIN_MATCH;
+		int ref = dp - offset;
+		if (offset == 0 || ref < 0 || dp + matchLength > length) {
+		    throw new IOException("Corrupt LZ4 match at " + sp);
+		}
+		// byte by byte, the match may overlap what it writes
+		for (int end = dp + matchLength; dp < end;) {
+		    dst[dp++] = dst[ref++];
+		}
+	    }
+	} catch (IndexOutOfBoundsException e) {
+	    throw new IOException("Corrupt LZ4 data", e);
+	}
+	if (dp != length) {
+	    throw new IOException("LZ4 data is " + dp + " bytes instead of "
+		    + length);
+	}
+	return dst;
+    }
+
+    private static int readInt(byte[] b, int i) {
+	return (b[i] & 0xff) | (b[i + 1] & 0xff) << 8 | (b[i + 2] & 0xff) << 16
+		| (b[i + 3] & 0xff) << 24;
+    }
+
+    private static void writeIntLE(byte[] b, int i, int value) {
+	b[i] = (byte) value;
+	b[i + 1] = (byte) (value >>> 8);
+	b[i + 2] = (byte) (value >>> 16);
+	b[i + 3] = (byte) (value >>> 24);
+    }
+}
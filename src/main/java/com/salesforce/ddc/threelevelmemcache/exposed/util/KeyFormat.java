@@ -0,0 +1,127 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache.exposed.util;
+
+/**
+ * How a key is turned into the key memcached stores its value under: the
+ * hash of the key, the encoding of the hash and a namespace prefix.
+ */
+public final class KeyFormat {
+
+    /**
+     * SHA-1 in hex without namespace, the format of all the keys before it
+     * was configurable.
+     */
+    public static final KeyFormat DEFAULT = new KeyFormat(KeyHash.SHA1,
+	    KeyEncoding.HEX, "");
+    /** memcached keys are 250 bytes at most */
+    private static final int MAX_NAMESPACE_LENGTH = 200;
+
+    private final KeyHash hash;
+    private final KeyEncoding encoding;
+    private final String namespace;
+
+    /**
+     * @param hash
+     *            SHA1 if null
+     * @param encoding
+     *            HEX if null
+     * @param namespace
+     *            prefix of the keys, printable ASCII without spaces. No
+     *            prefix if null or empty.
+     */
+    public KeyFormat(KeyHash hash, KeyEncoding encoding, String namespace) {
+	this.hash = hash != null ? hash : KeyHash.SHA1;
+	this.encoding = encoding != null ? encoding : KeyEncoding.HEX;
+	this.namespace = namespace != null ? namespace : "";
+	if (this.namespace.length() > MAX_NAMESPACE_LENGTH) {
+	    throw new IllegalArgumentException("Key namespace is longer than "
+		    + MAX_NAMESPACE_LENGTH + " characters.");
+	}
+	for (int i = 0; i < this.namespace.length(); i++) {
+	    char c = this.namespace.charAt(i);
+	    if (c <= ' ' || c > '~') {
+		throw new IllegalArgumentException("Key namespace '"
+			+ namespace + "' is not printable ASCII.");
+	    }
+	}
+    }
+
+    /**
+     * @return the memcached key of the key, null for null
+     */
+    public String format(Object key) {
+	return SHAKey.hash(key, hash, encoding, namespace);
+    }
+
+    public KeyFormat withHash(KeyHash hash) {
+	return new KeyFormat(hash, encoding, namespace);
+    }
+
+    public KeyFormat withEncoding(KeyEncoding encoding) {
+	return new KeyFormat(hash, encoding, namespace);
+    }
+
+    public KeyFormat withNamespace(String namespace) {
+	return new KeyFormat(hash, encoding, namespace);
+    }
+
+    public KeyHash getHash() {
+	return hash;
+    }
+
+    public KeyEncoding getEncoding() {
+	return encoding;
+    }
+
+    public String getNamespace() {
+	return namespace;
+    }
+
+    @Override
+    public int hashCode() {
+	return (31 * hash.hashCode() + encoding.hashCode()) * 31
+		+ namespace.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+	if (this == obj) {
+	    return true;
+	}
+	if (!(obj instanceof KeyFormat)) {
+	    return false;
+	}
+	KeyFormat other = (KeyFormat) obj;
+	return hash == other.hash && encoding == other.encoding
+		&& namespace.equals(other.namespace);
+    }
+
+    @Override
+    public String toString() {
+	return namespace + "{" + hash + "," + encoding + "}";
+    }
+}
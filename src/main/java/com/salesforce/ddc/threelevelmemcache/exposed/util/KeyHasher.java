@@ -0,0 +1,241 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache.exposed.util;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Hashing state of one thread. The digest and the buffers are reused for
+ * every key the thread hashes, the only allocation is the returned key.
+ */
+final class KeyHasher {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final char[] BASE64URL = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_"
+	    .toCharArray();
+    /** larger buffers are not kept, a few huge keys don't pin memory */
+    private static final int MAX_RETAINED_BYTES = 8192;
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private final MessageDigest sha;
+    private byte[] bytes = new byte[256];
+    private final byte[] digest = new byte[20];
+    private char[] chars = new char[64];
+
+    KeyHasher() throws NoSuchAlgorithmException {
+	sha = MessageDigest.getInstance("SHA");
+    }
+
+    /**
+     * @return the namespace followed by the hash of the UTF-8 bytes of the
+     *         key in the encoding
+     */
+    String encode(String key, KeyHash hash, KeyEncoding encoding,
+	    String namespace) throws DigestException {
+	int length = digest(key, hash);
+	int prefix = namespace.length();
+	if (chars.length < prefix + 2 * digest.length) {
+	    chars = new char[prefix + 2 * digest.length];
+	}
+	namespace.getChars(0, prefix, chars, 0);
+	int n = encoding == KeyEncoding.BASE64URL ? base64url(length, prefix)
+		: hex(length, prefix);
+	return new String(chars, 0, n);
+    }
+
+    /**
+     * @return end of the encoded digest in the char buffer
+     */
+    private int hex(int length, int n) {
+	for (int i = 0; i < length; i++) {
+	    chars[n++] = HEX[(digest[i] >> 4) & 0xf];
+	    chars[n++] = HEX[digest[i] & 0xf];
+	}
+	return n;
+    }
+
+    /**
+     * @return end of the encoded digest in the char buffer, no padding
+     */
+    private int base64url(int length, int n) {
+	int i = 0;
+	for (; i + 3 <= length; i += 3) {
+	    int v = (digest[i] & 0xff) << 16 | (digest[i + 1] & 0xff) << 8
+		    | digest[i + 2] & 0xff;
+	    chars[n++] = BASE64URL[v >>> 18];
+	    chars[n++] = BASE64URL[v >>> 12 & 0x3f];
+	    chars[n++] = BASE64URL[v >>> 6 & 0x3f];
+	    chars[n++] = BASE64URL[v & 0x3f];
+	}
+	int rest = length - i;
+	if (rest > 0) {
+	    int v = (digest[i] & 0xff) << 16;
+	    if (rest == 2) {
+		v |= (digest[i + 1] & 0xff) << 8;
+	    }
+	    chars[n++] = BASE64URL[v >>> 18];
+	    chars[n++] = BASE64URL[v >>> 12 & 0x3f];
+	    if (rest == 2) {
+		chars[n++] = BASE64URL[v >>> 6 & 0x3f];
+	    }
+	}
+	return n;
+    }
+
+    /**
+     * @return number of bytes of the hash written into the digest buffer
+     */
+    private int digest(String key, KeyHash hash) throws DigestException {
+	byte[] buffer = bytes;
+	int maxLength = 3 * key.length();
+	if (maxLength > buffer.length) {
+	    buffer = new byte[maxLength];
+	    if (maxLength <= MAX_RETAINED_BYTES) {
+		bytes = buffer;
+	    }
+	}
+	int length = encodeUtf8(key, buffer);
+	if (hash == KeyHash.MURMUR3_128) {
+	    murmur3(buffer, length, digest);
+	    return 16;
+	}
+	sha.update(buffer, 0, length);
+	return sha.digest(digest, 0, digest.length);
+    }
+
+    /**
+     * Encodes the same bytes as {@code key.getBytes("UTF-8")}, a lone
+     * surrogate is replaced by '?'.
+     * 
+     * @param out
+     *            at least 3 bytes per char of the key
+     * @return number of bytes written
+     */
+    static int encodeUtf8(String key, byte[] out) {
+	int n = 0;
+	for (int i = 0, length = key.length(); i < length; i++) {
+	    char c = key.charAt(i);
+	    if (c < 0x80) {
+		out[n++] = (byte) c;
+	    } else if (c < 0x800) {
+		out[n++] = (byte) (0xc0 | c >> 6);
+		out[n++] = (byte) (0x80 | c & 0x3f);
+	    } else if (!Character.isSurrogate(c)) {
+		out[n++] = (byte) (0xe0 | c >> 12);
+		out[n++] = (byte) (0x80 | c >> 6 & 0x3f);
+		out[n++] = (byte) (0x80 | c & 0x3f);
+	    } else if (Character.isHighSurrogate(c) && i + 1 < length
+		    && Character.isLowSurrogate(key.charAt(i + 1))) {
+		int cp = Character.toCodePoint(c, key.charAt(++i));
+		out[n++] = (byte) (0xf0 | cp >> 18);
+		out[n++] = (byte) (0x80 | cp >> 12 & 0x3f);
+		out[n++] = (byte) (0x80 | cp >> 6 & 0x3f);
+		out[n++] = (byte) (0x80 | cp & 0x3f);
+	    } else {
+		out[n++] = '?';
+	    }
+	}
+	return n;
+    }
+
+    /**
+     * MurmurHash3 x64 128-bit with seed 0. The 16 bytes are written as two
+     * little-endian longs, like most implementations print it.
+     */
+    static void murmur3(byte[] data, int length, byte[] out) {
+	long h1 = 0, h2 = 0;
+	int blocks = length >>> 4;
+	for (int i = 0; i < blocks; i++) {
+	    long k1 = getLong(data, 16 * i);
+	    long k2 = getLong(data, 16 * i + 8);
+	    h1 ^= mixK1(k1);
+	    h1 = Long.rotateLeft(h1, 27) + h2;
+	    h1 = h1 * 5 + 0x52dce729;
+	    h2 ^= mixK2(k2);
+	    h2 = Long.rotateLeft(h2, 31) + h1;
+	    h2 = h2 * 5 + 0x38495ab5;
+	}
+	int tail = 16 * blocks;
+	int rest = length & 15;
+	long k1 = 0, k2 = 0;
+	for (int i = rest - 1; i >= 8; i--) {
+	    k2 ^= (data[tail + i] & 0xffL) << (8 * (i - 8));
+	}
+	for (int i = Math.min(rest, 8) - 1; i >= 0; i--) {
+	    k1 ^= (data[tail + i] & 0xffL) << (8 * i);
+	}
+	if (rest > 8) {
+	    h2 ^= mixK2(k2);
+	}
+	if (rest > 0) {
+	    h1 ^= mixK1(k1);
+	}
+	h1 ^= length;
+	h2 ^= length;
+	h1 += h2;
+	h2 += h1;
+	h1 = fmix(h1);
+	h2 = fmix(h2);
+	h1 += h2;
+	h2 += h1;
+	putLong(out, 0, h1);
+	putLong(out, 8, h2);
+    }
+
+    private static long mixK1(long k1) {
+	return Long.rotateLeft(k1 * C1, 31) * C2;
+    }
+
+    private static long mixK2(long k2) {
+	return Long.rotateLeft(k2 * C2, 33) * C1;
+    }
+
+    private static long fmix(long k) {
+	k ^= k >>> 33;
+	k *= 0xff51afd7ed558ccdL;
+	k ^= k >>> 33;
+	k *= 0xc4ceb9fe1a85ec53L;
+	k ^= k >>> 33;
+	return k;
+    }
+
+    private static long getLong(byte[] data, int offset) {
+	long value = 0;
+	for (int i = 7; i >= 0; i--) {
+	    value = value << 8 | (data[offset + i] & 0xffL);
+	}
+	return value;
+    }
+
+    private static void putLong(byte[] out, int offset, long value) {
+	for (int i = 0; i < 8; i++) {
+	    out[offset + i] = (byte) (value >>> (8 * i));
+	}
+    }
+}
@@ -25,38 +25,84 @@
  */
 package com.salesforce.ddc.threelevelmemcache.exposed.util;
 
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
-import org.apache.commons.codec.binary.Hex;
-import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+/**
+ * Hashes keys into the keys memcached stores the values under. Each thread
+ * keeps its own digest and buffers, hashing a key allocates only the hashed
+ * key.
+ */
 public class SHAKey {
 
     private static final Log log = LogFactory.getLog(SHAKey.class);
-    private static MessageDigest keyEncrypt;
 
-    static {
-	try {
-	    keyEncrypt = MessageDigest.getInstance("SHA");
-	} catch (NoSuchAlgorithmException e) {
-	    throw new RuntimeException("Can't create keyEncrypter", e);
+    private static final ThreadLocal<KeyHasher> hashers = new ThreadLocal<KeyHasher>() {
+
+	@Override
+	protected KeyHasher initialValue() {
+	    try {
+		return new KeyHasher();
+	    } catch (NoSuchAlgorithmException e) {
+		throw new RuntimeException("Can't create keyEncrypter", e);
+	    }
 	}
+    };
+
+    static {
+	// fail at class loading like before, not at the first key
+	hashers.get();
     }
 
+    /**
+     * @return the SHA-1 hex of the key, null for null
+     */
     public static String sha(Object unprefixedKey) {
+	return hash(unprefixedKey, KeyHash.SHA1);
+    }
+
+    /**
+     * @param unprefixedKey
+     * @param hash
+     * @return the hash of the toString() of the key in hex, null for null
+     */
+    public static String hash(Object unprefixedKey, KeyHash hash) {
+	return hash(unprefixedKey, hash, KeyEncoding.HEX, "");
+    }
+
+    /**
+     * @param unprefixedKey
+     * @param hash
+     * @param encoding
+     * @param namespace
+     *            prefix of the returned key, see {@link KeyFormat}
+     * @return the namespace followed by the hash of the toString() of the
+     *         key, null for null
+     * @throws IllegalStateException
+     *             if the key can't be built in the requested format
+     */
+    public static String hash(Object unprefixedKey, KeyHash hash,
+	    KeyEncoding encoding, String namespace) {
 	if (unprefixedKey == null) {
 	    return null;
 	}
+	String key = unprefixedKey.toString();
 	try {
-	    return Hex.encodeHexString(((MessageDigest) keyEncrypt.clone())
-		    .digest(unprefixedKey.toString().getBytes("UTF-8")));
+	    return hashers.get().encode(key, hash, encoding, namespace);
 	} catch (Exception e) {
 	    log.error("Can't create Memcached key for value:" + unprefixedKey
-		    + " . Return default SHA key.", e);
-	    return DigestUtils.shaHex(unprefixedKey.toString());
+		    + " . Retry with a new hasher.", e);
+	}
+	try {
+	    // the thread's buffers or digest may be left broken, replace them
+	    KeyHasher hasher = new KeyHasher();
+	    hashers.set(hasher);
+	    return hasher.encode(key, hash, encoding, namespace);
+	} catch (Exception e) {
+	    throw new IllegalStateException(
+		    "Can't create Memcached key for value:" + unprefixedKey, e);
 	}
     }
 }
@@ -0,0 +1,271 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache.offheap;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import net.spy.memcached.CachedData;
+
+/**
+ * Thread safe store of encoded values in direct memory. Values live in the
+ * chunks of a {@link SlabAllocator}, the heap only keeps a small index entry
+ * per key. Every slab class has its own LRU list: when a class runs out of
+ * chunks and no slab is left, the least recently used value of the class is
+ * evicted, the same way memcached does it.
+ * <p/>
+ * All operations are done under one lock. Reads copy the value out of the
+ * slab under the lock, decoding is up to the caller.
+ */
+public class OffHeapStore {
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final SlabAllocator allocator;
+    private final Map<String, Entry> index = new HashMap<String, Entry>();
+    private final Entry[] lru;
+
+    private volatile long usedBytes;
+    private volatile long evictions;
+    private volatile long rejections;
+
+    public OffHeapStore(SlabAllocator allocator) {
+	this.allocator = allocator;
+	lru = new Entry[allocator.classCount()];
+	for (int i = 0; i < lru.length; i++) {
+	    Entry sentinel = new Entry(null, -1, 0, 0, 0);
+	    sentinel.previous = sentinel;
+	    sentinel.next = sentinel;
+	    lru[i] = sentinel;
+	}
+    }
+
+    /**
+     * @param key
+     * @param currentTimeMillis
+     * @return the value or null if it's missing or expired
+     */
+    public CachedData get(String key, long currentTimeMillis) {
+	lock.lock();
+	try {
+	    Entry entry = index.get(key);
+	    if (entry == null) {
+		return null;
+	    }
+	    if (entry.isExpired(currentTimeMillis)) {
+		remove(entry);
+		return null;
+	    }
+	    // move to the head of the class LRU
+	    unlink(entry);
+	    linkFirst(lru[allocator.slabClassOf(entry.address)], entry);
+	    return new CachedData(entry.flags, allocator.read(entry.address,
+		    entry.length), CachedData.MAX_SIZE);
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /**
+     * Stores the value, evicting the least recently used values of the same
+     * slab class if needed.
+     * 
+     * @param key
+     * @param data
+     * @param expiresAt
+     *            expiration time in millis, 0 means never
+     * @return false if the value was not stored: it's larger than a slab or
+     *         its slab class has no memory
+     */
+    public boolean put(String key, CachedData data, long expiresAt) {
+	byte[] bytes = data.getData();
+	int slabClass = allocator.slabClass(bytes.length);
+	lock.lock();
+	try {
+	    Entry prior = index.get(key);
+	    if (prior != null) {
+		remove(prior);
+	    }
+	    if (slabClass < 0) {
+		rejections++;
+		return false;
+	    }
+	    long address = allocator.allocate(slabClass);
+	    Entry sentinel = lru[slabClass];
+	    while (address < 0 && sentinel.previous != sentinel) {
+		remove(sentinel.previous);
+		evictions++;
+		address = allocator.allocate(slabClass);
+	    }
+	    if (address < 0) {
+		rejections++;
+		return false;
+	    }
+	    allocator.write(address, bytes);
+	    Entry entry = new Entry(key, address, bytes.length,
+		    data.getFlags(), expiresAt);
+	    index.put(key, entry);
+	    linkFirst(sentinel, entry);
+	    usedBytes += bytes.length;
+	    return true;
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /**
+     * @param key
+     * @return true if the key was present
+     */
+    public boolean remove(String key) {
+	lock.lock();
+	try {
+	    Entry entry = index.get(key);
+	    if (entry == null) {
+		return false;
+	    }
+	    remove(entry);
+	    return true;
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    private void remove(Entry entry) {
+	index.remove(entry.key);
+	unlink(entry);
+	allocator.free(entry.address);
+	usedBytes -= entry.length;
+    }
+
+    private void linkFirst(Entry sentinel, Entry entry) {
+	entry.previous = sentinel;
+	entry.next = sentinel.next;
+	sentinel.next.previous = entry;
+	sentinel.next = entry;
+    }
+
+    private void unlink(Entry entry) {
+	entry.previous.next = entry.next;
+	entry.next.previous = entry.previous;
+	entry.previous = null;
+	entry.next = null;
+    }
+
+    /**
+     * Removes all values, the direct memory stays reserved.
+     */
+    public void clear() {
+	lock.lock();
+	try {
+	    index.clear();
+	    for (Entry sentinel : lru) {
+		sentinel.previous = sentinel;
+		sentinel.next = sentinel;
+	    }
+	    allocator.clear();
+	    usedBytes = 0;
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /**
+     * Removes all values and releases the direct memory.
+     */
+    public void release() {
+	lock.lock();
+	try {
+	    clear();
+	    allocator.release();
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    public long size() {
+	lock.lock();
+	try {
+	    return index.size();
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /**
+     * @return bytes taken by the values, without the chunk slack
+     */
+    public long usedBytes() {
+	return usedBytes;
+    }
+
+    public long reservedBytes() {
+	lock.lock();
+	try {
+	    return allocator.reservedBytes();
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    public long maxBytes() {
+	return allocator.maxBytes();
+    }
+
+    public long evictions() {
+	return evictions;
+    }
+
+    /**
+     * @return number of values which could not be stored
+     */
+    public long rejections() {
+	return rejections;
+    }
+
+    private static final class Entry {
+
+	private final String key;
+	private final long address;
+	private final int length;
+	private final int flags;
+	private final long expiresAt;
+	private Entry previous;
+	private Entry next;
+
+	Entry(String key, long address, int length, int flags, long expiresAt) {
+	    this.key = key;
+	    this.address = address;
+	    this.length = length;
+	    this.flags = flags;
+	    this.expiresAt = expiresAt;
+	}
+
+	boolean isExpired(long currentTimeMillis) {
+	    return expiresAt != 0 && expiresAt <= currentTimeMillis;
+	}
+    }
+}
@@ -0,0 +1,265 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache.offheap;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Memcached style slab allocator over direct memory. Memory is reserved in
+ * slabs of a fixed size, every slab is assigned to a slab class on first use
+ * and cut into chunks of the class size. Chunk sizes grow by a factor, so a
+ * value wastes at most that factor of its size. Freed chunks are reused by
+ * the same class, slabs are never moved between classes.
+ * <p/>
+ * A chunk address is the slab index in the high 32 bits and the offset in the
+ * slab in the low 32 bits. Not thread safe, the owner must guard it.
+ */
+public class SlabAllocator {
+
+    public static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+    public static final int MINIMUM_CHUNK_SIZE = 64;
+    public static final double DEFAULT_GROWTH_FACTOR = 1.25d;
+
+    private final int slabSize;
+    private final int maxSlabs;
+    private final int[] chunkSizes;
+    private final LongStack[] freeChunks;
+    private final int[] slabCounts;
+    private final List<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+    private final List<Integer> slabClasses = new ArrayList<Integer>();
+
+    public SlabAllocator(long maxBytes) {
+	this(maxBytes, DEFAULT_SLAB_SIZE, DEFAULT_GROWTH_FACTOR);
+    }
+
+    /**
+     * @param maxBytes
+     *            direct memory budget, rounded down to whole slabs
+     * @param slabSize
+     *            size of a slab and the largest value which can be stored
+     * @param growthFactor
+     *            ratio of two neighbour chunk sizes
+     */
+    public SlabAllocator(long maxBytes, int slabSize, double growthFactor) {
+	if (slabSize < MINIMUM_CHUNK_SIZE) {
+	    throw new IllegalArgumentException("Slab size is too small: "
+		    + slabSize);
+	}
+	if (growthFactor <= 1) {
+	    throw new IllegalArgumentException(
+		    "Growth factor must be above 1, was " + growthFactor);
+	}
+	this.slabSize = slabSize;
+	this.maxSlabs = (int) Math.min(maxBytes / slabSize, Integer.MAX_VALUE);
+	List<Integer> sizes = new ArrayList<Integer>();
+	double size = MINIMUM_CHUNK_SIZE;
+	while (size <= slabSize / growthFactor) {
+	    // 8 bytes alignment
+	    sizes.add(((int) size + 7) & ~7);
+	    size *= growthFactor;
+	}
+	sizes.add(slabSize);
+	chunkSizes = new int[sizes.size()];
+	freeChunks = new LongStack[sizes.size()];
+	for (int i = 0; i < chunkSizes.length; i++) {
+	    chunkSizes[i] = sizes.get(i);
+	    freeChunks[i] = new LongStack();
+	}
+	slabCounts = new int[chunkSizes.length];
+    }
+
+    /**
+     * @param length
+     *            value length
+     * @return the smallest slab class which fits the value, or -1 if the
+     *         value is larger than a slab
+     */
+    public int slabClass(int length) {
+	int low = 0;
+	int high = chunkSizes.length - 1;
+	if (length > chunkSizes[high]) {
+	    return -1;
+	}
+	while (low < high) {
+	    int middle = (low + high) >>> 1;
+	    if (chunkSizes[middle] < length) {
+		low = middle + 1;
+	    } else {
+		high = middle;
+	    }
+	}
+	return low;
+    }
+
+    /**
+     * Takes a free chunk of the class, a new slab is reserved if the class
+     * has no free chunks and the budget allows it.
+     * 
+     * @param slabClass
+     * @return chunk address or -1 if the class is full
+     */
+    public long allocate(int slabClass) {
+	LongStack free = freeChunks[slabClass];
+	if (free.isEmpty() && !grow(slabClass)) {
+	    return -1;
+	}
+	return free.pop();
+    }
+
+    private boolean grow(int slabClass) {
+	if (slabs.size() >= maxSlabs) {
+	    return false;
+	}
+	int slabIndex = slabs.size();
+	slabs.add(ByteBuffer.allocateDirect(slabSize));
+	slabClasses.add(slabClass);
+	slabCounts[slabClass]++;
+	carve(slabIndex, slabClass);
+	return true;
+    }
+
+    private void carve(int slabIndex, int slabClass) {
+	int chunkSize = chunkSizes[slabClass];
+	LongStack free = freeChunks[slabClass];
+	// push backwards, so chunks are handed out in address order
+	int offset = (slabSize / chunkSize - 1) * chunkSize;
+	for (; offset >= 0; offset -= chunkSize) {
+	    free.push(((long) slabIndex << 32) | offset);
+	}
+    }
+
+    public void free(long address) {
+	freeChunks[slabClassOf(address)].push(address);
+    }
+
+    public int slabClassOf(long address) {
+	return slabClasses.get((int) (address >>> 32));
+    }
+
+    public void write(long address, byte[] data) {
+	ByteBuffer slab = slabs.get((int) (address >>> 32));
+	slab.position((int) address);
+	slab.put(data);
+    }
+
+    public byte[] read(long address, int length) {
+	ByteBuffer slab = slabs.get((int) (address >>> 32));
+	byte[] data = new byte[length];
+	slab.position((int) address);
+	slab.get(data);
+	return data;
+    }
+
+    public int chunkSize(int slabClass) {
+	return chunkSizes[slabClass];
+    }
+
+    public int classCount() {
+	return chunkSizes.length;
+    }
+
+    /**
+     * @return number of slabs assigned to the class
+     */
+    public int slabCount(int slabClass) {
+	return slabCounts[slabClass];
+    }
+
+    /**
+     * @return direct memory reserved so far
+     */
+    public long reservedBytes() {
+	return (long) slabs.size() * slabSize;
+    }
+
+    public long maxBytes() {
+	return (long) maxSlabs * slabSize;
+    }
+
+    public int getSlabSize() {
+	return slabSize;
+    }
+
+    /**
+     * Returns all chunks to the free lists, the slabs stay reserved.
+     */
+    public void clear() {
+	for (LongStack free : freeChunks) {
+	    free.clear();
+	}
+	for (int i = 0; i < slabs.size(); i++) {
+	    carve(i, slabClasses.get(i));
+	}
+    }
+
+    /**
+     * Releases the slabs, the memory is returned once the buffers are
+     * collected.
+     */
+    public void release() {
+	for (LongStack free : freeChunks) {
+	    free.clear();
+	}
+	slabs.clear();
+	slabClasses.clear();
+	for (int i = 0; i < slabCounts.length; i++) {
+	    slabCounts[i] = 0;
+	}
+    }
+
+    /**
+     * Growable stack of primitive longs, keeps the free lists off the object
+     * graph.
+     */
+    private static final class LongStack {
+
+	private long[] elements = new long[16];
+	private int size;
+
+	void push(long value) {
+	    if (size == elements.length) {
+		long[] grown = new long[size * 2];
+		System.arraycopy(elements, 0, grown, 0, size);
+		elements = grown;
+	    }
+	    elements[size++] = value;
+	}
+
+	long pop() {
+	    return elements[--size];
+	}
+
+	boolean isEmpty() {
+	    return size == 0;
+	}
+
+	void clear() {
+	    size = 0;
+	}
+    }
+}
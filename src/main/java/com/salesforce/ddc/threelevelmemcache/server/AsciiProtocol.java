@@ -0,0 +1,229 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache.server;
+
+import static com.salesforce.ddc.threelevelmemcache.server.ItemStore.ASCII;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.salesforce.ddc.threelevelmemcache.server.ItemStore.Item;
+import com.salesforce.ddc.threelevelmemcache.server.ItemStore.Mode;
+import com.salesforce.ddc.threelevelmemcache.server.ItemStore.Result;
+
+/**
+ * The text protocol of memcached: get, gets, set, add, replace, append,
+ * prepend, cas, delete, incr, decr, touch, flush_all, stats, version,
+ * verbosity and quit.
+ */
+final class AsciiProtocol extends Protocol {
+
+    private static final int MAX_LINE = 2048;
+
+    AsciiProtocol(EmbeddedMemcachedServer server, ItemStore store) {
+	super(server, store);
+    }
+
+    @Override
+    Status handle(ByteBuffer in, ByteArrayOutputStream out) {
+	int start = in.position();
+	int end = indexOfLineEnd(in, start);
+	if (end < 0) {
+	    if (in.limit() - start > MAX_LINE) {
+		reply(out, "CLIENT_ERROR line too long");
+		return Status.CLOSE;
+	    }
+	    return Status.INCOMPLETE;
+	}
+	String line = new String(in.array(), in.arrayOffset() + start, end
+		- start, ASCII);
+	in.position(end + 2);
+	String[] tokens = StringUtils.split(line, ' ');
+	if (tokens.length == 0) {
+	    reply(out, "ERROR");
+	    return Status.HANDLED;
+	}
+	String command = tokens[0];
+	try {
+	    if ("get".equals(command) || "gets".equals(command)) {
+		get(tokens, "gets".equals(command), out);
+	    } else if ("set".equals(command) || "add".equals(command)
+		    || "replace".equals(command) || "append".equals(command)
+		    || "prepend".equals(command) || "cas".equals(command)) {
+		return store(tokens, in, start, out);
+	    } else if ("delete".equals(command)) {
+		reply(out, tokens, tokens.length >= 2 ? store.delete(tokens[1],
+			0).name() : "ERROR");
+	    } else if ("incr".equals(command) || "decr".equals(command)) {
+		incr(tokens, "incr".equals(command), out);
+	    } else if ("touch".equals(command)) {
+		reply(out, tokens, store.touch(tokens[1],
+			Integer.parseInt(tokens[2])) ? "TOUCHED" : "NOT_FOUND");
+	    } else if ("flush_all".equals(command)) {
+		store.flush(tokens.length >= 2
+			&& !"noreply".equals(tokens[1]) ? Integer
+			.parseInt(tokens[1]) : 0);
+		reply(out, tokens, "OK");
+	    } else if ("stats".equals(command)) {
+		if (tokens.length == 1) {
+		    for (Map.Entry<String, String> stat : server.getStats()
+			    .entrySet()) {
+			reply(out, "STAT " + stat.getKey() + " "
+				+ stat.getValue());
+		    }
+		}
+		reply(out, "END");
+	    } else if ("version".equals(command)) {
+		reply(out, "VERSION " + EmbeddedMemcachedServer.VERSION);
+	    } else if ("verbosity".equals(command)) {
+		reply(out, tokens, "OK");
+	    } else if ("quit".equals(command)) {
+		return Status.CLOSE;
+	    } else {
+		reply(out, "ERROR");
+	    }
+	} catch (NumberFormatException e) {
+	    reply(out, "CLIENT_ERROR bad command line format");
+	} catch (ArrayIndexOutOfBoundsException e) {
+	    reply(out, "ERROR");
+	}
+	return Status.HANDLED;
+    }
+
+    private void get(String[] tokens, boolean withCas,
+	    ByteArrayOutputStream out) {
+	for (int i = 1; i < tokens.length; i++) {
+	    Item item = store.get(tokens[i]);
+	    if (item != null) {
+		write(out, "VALUE " + tokens[i] + " " + item.flags + " "
+			+ item.data.length + (withCas ? " " + item.cas : "")
+			+ "\r\n");
+		out.write(item.data, 0, item.data.length);
+		write(out, "\r\n");
+	    }
+	}
+	reply(out, "END");
+    }
+
+    /**
+     * &lt;command&gt; &lt;key&gt; &lt;flags&gt; &lt;exptime&gt;
+     * &lt;bytes&gt; [&lt;cas unique&gt;] [noreply], followed by the data
+     * block.
+     */
+    private Status store(String[] tokens, ByteBuffer in, int start,
+	    ByteArrayOutputStream out) {
+	boolean cas = "cas".equals(tokens[0]);
+	if (tokens.length < (cas ? 6 : 5)) {
+	    reply(out, "ERROR");
+	    return Status.HANDLED;
+	}
+	int flags = (int) Long.parseLong(tokens[2]);
+	int exptime = Integer.parseInt(tokens[3]);
+	int bytes = Integer.parseInt(tokens[4]);
+	// a cas unique of 0 matches no item
+	long unique = cas ? ItemStore.parseUnsignedLong(tokens[5]) : 0;
+	if (bytes < 0 || bytes > MAX_BUFFERED_VALUE) {
+	    reply(out, "CLIENT_ERROR bad data chunk");
+	    return Status.CLOSE;
+	}
+	int dataStart = in.position();
+	if (in.limit() < dataStart + bytes + 2) {
+	    in.position(start);
+	    return Status.INCOMPLETE;
+	}
+	byte[] data = new byte[bytes];
+	in.get(data);
+	if (in.get() != '\r' || in.get() != '\n') {
+	    reply(out, "CLIENT_ERROR bad data chunk");
+	    return Status.CLOSE;
+	}
+	if (bytes > server.getMaxItemSize()) {
+	    reply(out, "SERVER_ERROR object too large for cache");
+	    return Status.HANDLED;
+	}
+	Object stored = store.store(
+		cas ? Mode.SET : Mode.valueOf(tokens[0]
+			.toUpperCase(Locale.ENGLISH)),
+		tokens[1], flags, exptime, data, cas && unique == 0 ? -1
+			: unique);
+	reply(out, tokens, stored instanceof Item ? Result.STORED.name()
+		: ((Result) stored).name());
+	return Status.HANDLED;
+    }
+
+    private void incr(String[] tokens, boolean increment,
+	    ByteArrayOutputStream out) {
+	long delta;
+	try {
+	    delta = ItemStore.parseUnsignedLong(tokens[2]);
+	} catch (NumberFormatException e) {
+	    reply(out, "CLIENT_ERROR invalid numeric delta argument");
+	    return;
+	}
+	try {
+	    Item item = store.incr(tokens[1], delta, increment, null, 0);
+	    reply(out, tokens, item != null ? new String(item.data, ASCII)
+		    : "NOT_FOUND");
+	} catch (NumberFormatException e) {
+	    reply(out,
+		    "CLIENT_ERROR cannot increment or decrement non-numeric value");
+	}
+    }
+
+    private static int indexOfLineEnd(ByteBuffer in, int start) {
+	byte[] array = in.array();
+	int offset = in.arrayOffset();
+	for (int i = start; i < in.limit() - 1; i++) {
+	    if (array[offset + i] == '\r' && array[offset + i + 1] == '\n') {
+		return i;
+	    }
+	}
+	return -1;
+    }
+
+    /**
+     * Replies unless the command ends with noreply.
+     */
+    private static void reply(ByteArrayOutputStream out, String[] tokens,
+	    String response) {
+	if (!"noreply".equals(tokens[tokens.length - 1])) {
+	    reply(out, response);
+	}
+    }
+
+    private static void reply(ByteArrayOutputStream out, String response) {
+	write(out, response + "\r\n");
+    }
+
+    private static void write(ByteArrayOutputStream out, String s) {
+	byte[] bytes = s.getBytes(ASCII);
+	out.write(bytes, 0, bytes.length);
+    }
+}
@@ -0,0 +1,386 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache.server;
+
+import static com.salesforce.ddc.threelevelmemcache.server.ItemStore.ASCII;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import com.salesforce.ddc.threelevelmemcache.server.ItemStore.Item;
+import com.salesforce.ddc.threelevelmemcache.server.ItemStore.Mode;
+import com.salesforce.ddc.threelevelmemcache.server.ItemStore.Result;
+
+/**
+ * The binary protocol of memcached, the quiet variants of the commands
+ * included: get, getk, set, add, replace, append, prepend, delete,
+ * increment, decrement, touch, gat, flush, stat, version, noop and quit.
+ */
+final class BinaryProtocol extends Protocol {
+
+    static final int REQUEST_MAGIC = 0x80;
+    private static final int RESPONSE_MAGIC = 0x81;
+    private static final int HEADER_LENGTH = 24;
+
+    private static final int GET = 0x00;
+    private static final int SET = 0x01;
+    private static final int ADD = 0x02;
+    private static final int REPLACE = 0x03;
+    private static final int DELETE = 0x04;
+    private static final int INCREMENT = 0x05;
+    private static final int DECREMENT = 0x06;
+    private static final int QUIT = 0x07;
+    private static final int FLUSH = 0x08;
+    private static final int GETQ = 0x09;
+    private static final int NOOP = 0x0a;
+    private static final int VERSION = 0x0b;
+    private static final int GETK = 0x0c;
+    private static final int GETKQ = 0x0d;
+    private static final int APPEND = 0x0e;
+    private static final int PREPEND = 0x0f;
+    private static final int STAT = 0x10;
+    private static final int SETQ = 0x11;
+    private static final int ADDQ = 0x12;
+    private static final int REPLACEQ = 0x13;
+    private static final int DELETEQ = 0x14;
+    private static final int INCREMENTQ = 0x15;
+    private static final int DECREMENTQ = 0x16;
+    private static final int QUITQ = 0x17;
+    private static final int FLUSHQ = 0x18;
+    private static final int APPENDQ = 0x19;
+    private static final int PREPENDQ = 0x1a;
+    private static final int TOUCH = 0x1c;
+    private static final int GAT = 0x1d;
+    private static final int GATQ = 0x1e;
+
+    private static final int SUCCESS = 0x00;
+    private static final int KEY_NOT_FOUND = 0x01;
+    private static final int KEY_EXISTS = 0x02;
+    private static final int VALUE_TOO_LARGE = 0x03;
+    private static final int INVALID_ARGUMENTS = 0x04;
+    private static final int NOT_STORED = 0x05;
+    private static final int NON_NUMERIC = 0x06;
+    private static final int UNKNOWN_COMMAND = 0x81;
+
+    /** expiration of an increment which must not create the item */
+    private static final int NO_INITIAL = 0xffffffff;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    BinaryProtocol(EmbeddedMemcachedServer server, ItemStore store) {
+	super(server, store);
+    }
+
+    /**
+     * A request, the header fields which matter here and its body.
+     */
+    private static final class Request {
+
+	int opcode;
+	int opaque;
+	long cas;
+	ByteBuffer extras;
+	String key;
+	byte[] value;
+    }
+
+    @Override
+    Status handle(ByteBuffer in, ByteArrayOutputStream out) {
+	int start = in.position();
+	if (in.remaining() < HEADER_LENGTH) {
+	    return Status.INCOMPLETE;
+	}
+	if ((in.get(start) & 0xff) != REQUEST_MAGIC) {
+	    return Status.CLOSE;
+	}
+	int keyLength = in.getShort(start + 2) & 0xffff;
+	int extrasLength = in.get(start + 4) & 0xff;
+	int bodyLength = in.getInt(start + 8);
+	if (bodyLength < extrasLength + keyLength
+		|| bodyLength > MAX_BUFFERED_VALUE) {
+	    return Status.CLOSE;
+	}
+	if (in.remaining() < HEADER_LENGTH + bodyLength) {
+	    return Status.INCOMPLETE;
+	}
+	Request request = new Request();
+	request.opcode = in.get(start + 1) & 0xff;
+	request.opaque = in.getInt(start + 12);
+	request.cas = in.getLong(start + 16);
+	in.position(start + HEADER_LENGTH);
+	byte[] extras = new byte[extrasLength];
+	in.get(extras);
+	request.extras = ByteBuffer.wrap(extras);
+	byte[] key = new byte[keyLength];
+	in.get(key);
+	request.key = new String(key, ASCII);
+	request.value = new byte[bodyLength - extrasLength - keyLength];
+	in.get(request.value);
+	return handle(request, out);
+    }
+
+    private Status handle(Request request, ByteArrayOutputStream out) {
+	int opcode = request.opcode;
+	try {
+	    switch (opcode) {
+	    case GET:
+	    case GETQ:
+	    case GETK:
+	    case GETKQ:
+		get(request, opcode == GETK || opcode == GETKQ, opcode == GETQ
+			|| opcode == GETKQ, out);
+		break;
+	    case GAT:
+	    case GATQ:
+		store.touch(request.key, request.extras.getInt(0));
+		get(request, false, opcode == GATQ, out);
+		break;
+	    case SET:
+	    case SETQ:
+		store(request, Mode.SET, opcode == SETQ, out);
+		break;
+	    case ADD:
+	    case ADDQ:
+		store(request, Mode.ADD, opcode == ADDQ, out);
+		break;
+	    case REPLACE:
+	    case REPLACEQ:
+		store(request, Mode.REPLACE, opcode == REPLACEQ, out);
+		break;
+	    case APPEND:
+	    case APPENDQ:
+		store(request, Mode.APPEND, opcode == APPENDQ, out);
+		break;
+	    case PREPEND:
+	    case PREPENDQ:
+		store(request, Mode.PREPEND, opcode == PREPENDQ, out);
+		break;
+	    case DELETE:
+	    case DELETEQ:
+		Result deleted = store.delete(request.key, request.cas);
+		respond(request, deleted == Result.DELETED ? SUCCESS
+			: status(deleted, Mode.SET), opcode == DELETEQ, out);
+		break;
+	    case INCREMENT:
+	    case INCREMENTQ:
+	    case DECREMENT:
+	    case DECREMENTQ:
+		incr(request, opcode == INCREMENT || opcode == INCREMENTQ,
+			opcode == INCREMENTQ || opcode == DECREMENTQ, out);
+		break;
+	    case TOUCH:
+		respond(request, store.touch(request.key,
+			request.extras.getInt(0)) ? SUCCESS : KEY_NOT_FOUND,
+			false, out);
+		break;
+	    case FLUSH:
+	    case FLUSHQ:
+		store.flush(request.extras.capacity() >= 4 ? request.extras
+			.getInt(0) : 0);
+		respond(request, SUCCESS, opcode == FLUSHQ, out);
+		break;
+	    case NOOP:
+		respond(request, SUCCESS, false, out);
+		break;
+	    case VERSION:
+		write(out, request.opcode, SUCCESS, request.opaque, 0, EMPTY,
+			EMPTY, EmbeddedMemcachedServer.VERSION.getBytes(ASCII));
+		break;
+	    case STAT:
+		if (request.key.isEmpty()) {
+		    for (Map.Entry<String, String> stat : server.getStats()
+			    .entrySet()) {
+			write(out, STAT, SUCCESS, request.opaque, 0, EMPTY, stat
+				.getKey().getBytes(ASCII), stat.getValue()
+				.getBytes(ASCII));
+		    }
+		}
+		respond(request, SUCCESS, false, out);
+		break;
+	    case QUIT:
+	    case QUITQ:
+		respond(request, SUCCESS, opcode == QUITQ, out);
+		return Status.CLOSE;
+	    default:
+		respond(request, UNKNOWN_COMMAND, false, out);
+		break;
+	    }
+	} catch (IndexOutOfBoundsException e) {
+	    // extras missing
+	    respond(request, INVALID_ARGUMENTS, false, out);
+	}
+	return Status.HANDLED;
+    }
+
+    private void get(Request request, boolean withKey, boolean quiet,
+	    ByteArrayOutputStream out) {
+	Item item = store.get(request.key);
+	byte[] key = withKey ? request.key.getBytes(ASCII) : EMPTY;
+	if (item == null) {
+	    if (!quiet) {
+		write(out, request.opcode, KEY_NOT_FOUND, request.opaque, 0,
+			EMPTY, key, message(KEY_NOT_FOUND));
+	    }
+	    return;
+	}
+	write(out, request.opcode, SUCCESS, request.opaque, item.cas,
+		ByteBuffer.allocate(4).putInt(item.flags).array(), key,
+		item.data);
+    }
+
+    /**
+     * Extras of set, add and replace: flags and expiration. Append and
+     * prepend have none.
+     */
+    private void store(Request request, Mode mode, boolean quiet,
+	    ByteArrayOutputStream out) {
+	if (request.value.length > server.getMaxItemSize()) {
+	    respond(request, VALUE_TOO_LARGE, false, out);
+	    return;
+	}
+	boolean withExtras = mode != Mode.APPEND && mode != Mode.PREPEND;
+	int flags = withExtras ? request.extras.getInt(0) : 0;
+	int exptime = withExtras ? request.extras.getInt(4) : 0;
+	Object stored = store.store(mode, request.key, flags, exptime,
+		request.value, request.cas);
+	if (stored instanceof Item) {
+	    if (!quiet) {
+		write(out, request.opcode, SUCCESS, request.opaque,
+			((Item) stored).cas, EMPTY, EMPTY, EMPTY);
+	    }
+	} else if (stored == Result.STORED) {
+	    respond(request, SUCCESS, quiet, out);
+	} else {
+	    respond(request, status((Result) stored, mode), false, out);
+	}
+    }
+
+    /**
+     * Extras: delta, initial value and expiration, all ones if the item must
+     * not be created.
+     */
+    private void incr(Request request, boolean increment, boolean quiet,
+	    ByteArrayOutputStream out) {
+	long delta = request.extras.getLong(0);
+	long initial = request.extras.getLong(8);
+	int exptime = request.extras.getInt(16);
+	Item item;
+	try {
+	    item = store.incr(request.key, delta, increment,
+		    exptime == NO_INITIAL ? null : Long.valueOf(initial),
+		    exptime);
+	} catch (NumberFormatException e) {
+	    respond(request, NON_NUMERIC, false, out);
+	    return;
+	}
+	if (item == null) {
+	    respond(request, KEY_NOT_FOUND, false, out);
+	} else if (!quiet) {
+	    long value = ItemStore.parseUnsignedLong(new String(item.data,
+		    ASCII));
+	    write(out, request.opcode, SUCCESS, request.opaque, item.cas,
+		    EMPTY, EMPTY, ByteBuffer.allocate(8).putLong(value).array());
+	}
+    }
+
+    private static int status(Result result, Mode mode) {
+	switch (result) {
+	case NOT_FOUND:
+	    return KEY_NOT_FOUND;
+	case EXISTS:
+	    return KEY_EXISTS;
+	case NOT_STORED:
+	    // memcached answers like this to a failed add and replace
+	    return mode == Mode.ADD ? KEY_EXISTS
+		    : mode == Mode.REPLACE ? KEY_NOT_FOUND : NOT_STORED;
+	default:
+	    return SUCCESS;
+	}
+    }
+
+    /**
+     * Responds with the status and its message. A quiet command gets no
+     * response when it succeeds.
+     */
+    private static void respond(Request request, int status, boolean quiet,
+	    ByteArrayOutputStream out) {
+	if (status == SUCCESS && quiet) {
+	    return;
+	}
+	write(out, request.opcode, status, request.opaque, 0, EMPTY, EMPTY,
+		message(status));
+    }
+
+    private static byte[] message(int status) {
+	String message;
+	switch (status) {
+	case SUCCESS:
+	    return EMPTY;
+	case KEY_NOT_FOUND:
+	    message = "Not found";
+	    break;
+	case KEY_EXISTS:
+	    message = "Data exists for key.";
+	    break;
+	case VALUE_TOO_LARGE:
+	    message = "Too large.";
+	    break;
+	case INVALID_ARGUMENTS:
+	    message = "Invalid arguments";
+	    break;
+	case NOT_STORED:
+	    message = "Not stored.";
+	    break;
+	case NON_NUMERIC:
+	    message = "Non-numeric server-side value for incr or decr";
+	    break;
+	default:
+	    message = "Unknown command";
+	    break;
+	}
+	return message.getBytes(ASCII);
+    }
+
+    private static void write(ByteArrayOutputStream out, int opcode,
+	    int status, int opaque, long cas, byte[] extras, byte[] key,
+	    byte[] value) {
+	ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+	header.put((byte) RESPONSE_MAGIC);
+	header.put((byte) opcode);
+	header.putShort((short) key.length);
+	header.put((byte) extras.length);
+	header.put((byte) 0);
+	header.putShort((short) status);
+	header.putInt(extras.length + key.length + value.length);
+	header.putInt(opaque);
+	header.putLong(cas);
+	out.write(header.array(), 0, HEADER_LENGTH);
+	out.write(extras, 0, extras.length);
+	out.write(key, 0, key.length);
+	out.write(value, 0, value.length);
+    }
+}
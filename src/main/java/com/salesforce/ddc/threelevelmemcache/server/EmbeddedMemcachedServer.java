@@ -0,0 +1,505 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * In-process memcached server on the loopback interface, for the tests and
+ * the benchmarks. It speaks the text and the binary protocols, chosen by
+ * the first byte each connection sends, so a MemcachedClientFactoryBean
+ * points at it through its servers:
+ * 
+ * <pre>
+ * EmbeddedMemcachedServer server = new EmbeddedMemcachedServer();
+ * server.start();
+ * factoryBean.setServers(server.getServers());
+ * </pre>
+ * 
+ * Faults are injected while it runs: {@link #setLatency(long)} and
+ * {@link #setJitter(long)} delay the responses, {@link #setLossRate(double)}
+ * drops connections the way a network failure does, and
+ * {@link #dropConnections()} simulates a restart. A slow node is one server
+ * of several with a latency.
+ * <p/>
+ * One thread serves every connection. Items live on the heap until they
+ * expire or are flushed, nothing is evicted.
+ */
+public class EmbeddedMemcachedServer {
+
+    private static Log log = LogFactory.getLog(EmbeddedMemcachedServer.class);
+
+    /** version reported to the clients */
+    public static final String VERSION = "1.4.15";
+
+    private static final int DEFAULT_MAX_ITEM_SIZE = 1024 * 1024;
+    private static final int INITIAL_BUFFER_SIZE = 16 * 1024;
+
+    private final ItemStore store = new ItemStore();
+    private final Random random = new Random();
+    private int port;
+    private volatile long latency;
+    private volatile long jitter;
+    private volatile double lossRate;
+    private volatile int maxItemSize = DEFAULT_MAX_ITEM_SIZE;
+
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread thread;
+    private volatile boolean running;
+    private volatile boolean dropRequested;
+    /** the selector thread's only */
+    private final Set<Connection> connections = new LinkedHashSet<Connection>();
+    // written by the selector thread only
+    private volatile int currentConnections;
+    private volatile long totalConnections;
+    private volatile long lostConnections;
+
+    public EmbeddedMemcachedServer() {
+	this(0);
+    }
+
+    /**
+     * @param port
+     *            port to listen to, 0 for any free port
+     */
+    public EmbeddedMemcachedServer(int port) {
+	this.port = port;
+    }
+
+    /**
+     * Listens to the port and serves the connections on a daemon thread.
+     */
+    public synchronized void start() throws IOException {
+	if (running) {
+	    throw new IllegalStateException("Already started on port " + port);
+	}
+	selector = Selector.open();
+	serverChannel = ServerSocketChannel.open();
+	serverChannel.socket().setReuseAddress(true);
+	serverChannel.socket().bind(
+		new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port));
+	serverChannel.configureBlocking(false);
+	serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+	port = serverChannel.socket().getLocalPort();
+	running = true;
+	thread = new Thread(new Runnable() {
+
+	    @Override
+	    public void run() {
+		serve();
+	    }
+	}, "EmbeddedMemcachedServer-" + port);
+	thread.setDaemon(true);
+	thread.start();
+	log.info("Embedded memcached server listening on " + getServers());
+    }
+
+    /**
+     * Closes every connection and stops listening. The items are kept, a
+     * new {@link #start()} serves them again.
+     */
+    public synchronized void shutdown() {
+	if (!running) {
+	    return;
+	}
+	running = false;
+	selector.wakeup();
+	try {
+	    thread.join();
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	}
+    }
+
+    public boolean isRunning() {
+	return running;
+    }
+
+    public int getPort() {
+	return port;
+    }
+
+    /**
+     * @return address of the server in the format of the servers of
+     *         MemcachedClientFactoryBean
+     */
+    public String getServers() {
+	return "127.0.0.1:" + port;
+    }
+
+    public long getLatency() {
+	return latency;
+    }
+
+    /**
+     * @param latency
+     *            millis each response is delayed by. Responses keep the
+     *            order of the requests of their connection.
+     */
+    public void setLatency(long latency) {
+	this.latency = latency;
+    }
+
+    public long getJitter() {
+	return jitter;
+    }
+
+    /**
+     * @param jitter
+     *            up to that many millis are randomly added to the latency of
+     *            each response
+     */
+    public void setJitter(long jitter) {
+	this.jitter = jitter;
+    }
+
+    public double getLossRate() {
+	return lossRate;
+    }
+
+    /**
+     * @param lossRate
+     *            probability a request is followed by the loss of its
+     *            connection, with the responses not sent yet. The client
+     *            sees its pending operations fail and reconnects.
+     */
+    public void setLossRate(double lossRate) {
+	this.lossRate = lossRate;
+    }
+
+    /**
+     * @param seed
+     *            seed of the jitter and of the losses, to replay a run
+     */
+    public void setSeed(long seed) {
+	random.setSeed(seed);
+    }
+
+    public int getMaxItemSize() {
+	return maxItemSize;
+    }
+
+    /**
+     * @param maxItemSize
+     *            largest value stored, 1 MB by default like memcached.
+     *            Larger ones are refused with the error of memcached.
+     */
+    public void setMaxItemSize(int maxItemSize) {
+	this.maxItemSize = maxItemSize;
+    }
+
+    /**
+     * Closes every client connection, as a restart of memcached would,
+     * without losing the items.
+     */
+    public void dropConnections() {
+	dropRequested = true;
+	Selector selector = this.selector;
+	if (selector != null) {
+	    selector.wakeup();
+	}
+    }
+
+    /**
+     * @return number of items stored, expired ones included until they are
+     *         read
+     */
+    public int size() {
+	return store.size();
+    }
+
+    /**
+     * Removes every item.
+     */
+    public void flush() {
+	store.flush(0);
+    }
+
+    /**
+     * @return the statistics the stats command reports
+     */
+    public Map<String, String> getStats() {
+	Map<String, String> stats = new TreeMap<String, String>(
+		store.getStats());
+	stats.put("version", VERSION);
+	stats.put("curr_connections", String.valueOf(currentConnections));
+	stats.put("total_connections", String.valueOf(totalConnections));
+	stats.put("lost_connections", String.valueOf(lostConnections));
+	return stats;
+    }
+
+    private void serve() {
+	try {
+	    while (running) {
+		long wait = sendDueResponses(System.currentTimeMillis());
+		// 0 blocks until a connection is ready
+		selector.select(wait < 0 ? 0 : wait);
+		if (dropRequested) {
+		    dropRequested = false;
+		    for (Connection connection : new ArrayList<Connection>(
+			    connections)) {
+			connection.close();
+		    }
+		}
+		Iterator<SelectionKey> keys = selector.selectedKeys()
+			.iterator();
+		while (keys.hasNext()) {
+		    SelectionKey key = keys.next();
+		    keys.remove();
+		    if (!key.isValid()) {
+			continue;
+		    }
+		    if (key.isAcceptable()) {
+			accept();
+			continue;
+		    }
+		    Connection connection = (Connection) key.attachment();
+		    try {
+			if (key.isReadable()) {
+			    connection.read();
+			}
+			if (key.isValid() && key.isWritable()) {
+			    connection.write();
+			}
+		    } catch (IOException e) {
+			if (log.isDebugEnabled()) {
+			    log.debug("Connection failed: " + e.getMessage());
+			}
+			connection.close();
+		    }
+		}
+	    }
+	} catch (IOException e) {
+	    log.error("Embedded memcached server on port " + port
+		    + " stopped", e);
+	} finally {
+	    for (Connection connection : new ArrayList<Connection>(connections)) {
+		connection.close();
+	    }
+	    closeQuietly(serverChannel);
+	    closeQuietly(selector);
+	    running = false;
+	}
+    }
+
+    private void accept() throws IOException {
+	SocketChannel channel = serverChannel.accept();
+	if (channel == null) {
+	    return;
+	}
+	channel.configureBlocking(false);
+	channel.socket().setTcpNoDelay(true);
+	Connection connection = new Connection(channel);
+	connection.key = channel.register(selector, SelectionKey.OP_READ,
+		connection);
+	connections.add(connection);
+	currentConnections = connections.size();
+	totalConnections++;
+    }
+
+    /**
+     * @return millis until the next delayed response, -1 if none is waiting
+     */
+    private long sendDueResponses(long now) {
+	long next = -1;
+	for (Connection connection : new ArrayList<Connection>(connections)) {
+	    try {
+		long due = connection.sendDue(now);
+		if (due >= 0) {
+		    long wait = Math.max(1, due - now);
+		    next = next < 0 ? wait : Math.min(next, wait);
+		}
+	    } catch (IOException e) {
+		connection.close();
+	    }
+	}
+	return next;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+	try {
+	    if (closeable != null) {
+		closeable.close();
+	    }
+	} catch (IOException e) {
+	    // closing anyway
+	}
+    }
+
+    /**
+     * A response waiting for its latency.
+     */
+    private static final class Delayed {
+
+	final long due;
+	final byte[] bytes;
+
+	Delayed(long due, byte[] bytes) {
+	    this.due = due;
+	    this.bytes = bytes;
+	}
+    }
+
+    private final class Connection {
+
+	final SocketChannel channel;
+	SelectionKey key;
+	ByteBuffer in = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+	Protocol protocol;
+	final ArrayDeque<Delayed> delayed = new ArrayDeque<Delayed>();
+	final ArrayDeque<ByteBuffer> writes = new ArrayDeque<ByteBuffer>();
+	long lastDue;
+	boolean closing;
+
+	Connection(SocketChannel channel) {
+	    this.channel = channel;
+	}
+
+	void read() throws IOException {
+	    if (channel.read(in) < 0) {
+		close();
+		return;
+	    }
+	    in.flip();
+	    if (protocol == null && in.hasRemaining()) {
+		EmbeddedMemcachedServer server = EmbeddedMemcachedServer.this;
+		boolean binary = (in.get(0) & 0xff) == BinaryProtocol.REQUEST_MAGIC;
+		protocol = binary ? new BinaryProtocol(server, store)
+			: new AsciiProtocol(server, store);
+	    }
+	    ByteArrayOutputStream out = new ByteArrayOutputStream();
+	    Protocol.Status status = Protocol.Status.INCOMPLETE;
+	    while (!closing && in.hasRemaining()) {
+		status = protocol.handle(in, out);
+		if (status != Protocol.Status.HANDLED) {
+		    break;
+		}
+		double loss = lossRate;
+		if (loss > 0 && random.nextDouble() < loss) {
+		    lostConnections++;
+		    close();
+		    return;
+		}
+	    }
+	    in.compact();
+	    if (!in.hasRemaining()) {
+		// a request larger than the buffer
+		ByteBuffer larger = ByteBuffer.allocate(in.capacity() * 2);
+		in.flip();
+		larger.put(in);
+		in = larger;
+	    }
+	    if (status == Protocol.Status.CLOSE) {
+		closing = true;
+	    }
+	    if (out.size() > 0) {
+		respond(out.toByteArray());
+	    } else if (closing) {
+		write();
+	    }
+	}
+
+	void respond(byte[] response) throws IOException {
+	    long delay = latency;
+	    long spread = jitter;
+	    if (spread > 0) {
+		delay += (long) (random.nextDouble() * spread);
+	    }
+	    if (delay <= 0 && delayed.isEmpty()) {
+		writes.add(ByteBuffer.wrap(response));
+		write();
+		return;
+	    }
+	    // never before the previous response
+	    lastDue = Math.max(lastDue, System.currentTimeMillis() + delay);
+	    delayed.add(new Delayed(lastDue, response));
+	}
+
+	/**
+	 * @return when the next delayed response is due, -1 if none is
+	 *         waiting
+	 */
+	long sendDue(long now) throws IOException {
+	    boolean due = false;
+	    while (!delayed.isEmpty() && delayed.peek().due <= now) {
+		writes.add(ByteBuffer.wrap(delayed.poll().bytes));
+		due = true;
+	    }
+	    if (due) {
+		write();
+	    }
+	    return delayed.isEmpty() ? -1 : delayed.peek().due;
+	}
+
+	void write() throws IOException {
+	    while (!writes.isEmpty()) {
+		ByteBuffer buffer = writes.peek();
+		channel.write(buffer);
+		if (buffer.hasRemaining()) {
+		    break;
+		}
+		writes.poll();
+	    }
+	    if (closing && writes.isEmpty() && delayed.isEmpty()) {
+		close();
+		return;
+	    }
+	    if (key.isValid()) {
+		key.interestOps(writes.isEmpty() ? SelectionKey.OP_READ
+			: SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+	    }
+	}
+
+	void close() {
+	    if (connections.remove(this)) {
+		currentConnections = connections.size();
+	    }
+	    key.cancel();
+	    closeQuietly(channel);
+	}
+    }
+}
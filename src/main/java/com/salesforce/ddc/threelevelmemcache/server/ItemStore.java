@@ -0,0 +1,280 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache.server;
+
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Items of an {@link EmbeddedMemcachedServer}, with the semantics of the
+ * memcached commands. Items expire lazily, when they are read.
+ */
+final class ItemStore {
+
+    static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static final BigInteger TWO_TO_64 = BigInteger.ONE.shiftLeft(64);
+    /** relative expiration times are 30 days at most */
+    private static final int MAX_RELATIVE_EXPIRATION = 60 * 60 * 24 * 30;
+
+    enum Mode {
+	SET, ADD, REPLACE, APPEND, PREPEND
+    }
+
+    enum Result {
+	STORED, NOT_STORED, EXISTS, NOT_FOUND, DELETED
+    }
+
+    static final class Item {
+
+	final byte[] data;
+	final int flags;
+	final long cas;
+	/** millis, 0 if the item never expires */
+	final long expiresAt;
+
+	Item(byte[] data, int flags, long cas, long expiresAt) {
+	    this.data = data;
+	    this.flags = flags;
+	    this.cas = cas;
+	    this.expiresAt = expiresAt;
+	}
+
+	boolean isExpired(long now) {
+	    return expiresAt != 0 && expiresAt <= now;
+	}
+    }
+
+    private final Map<String, Item> items = new HashMap<String, Item>();
+    private long lastCas;
+    private long gets;
+    private long hits;
+    private long sets;
+
+    synchronized Item get(String key) {
+	gets++;
+	Item item = getLive(key);
+	if (item != null) {
+	    hits++;
+	}
+	return item;
+    }
+
+    private Item getLive(String key) {
+	Item item = items.get(key);
+	if (item != null && item.isExpired(System.currentTimeMillis())) {
+	    items.remove(key);
+	    return null;
+	}
+	return item;
+    }
+
+    /**
+     * @param cas
+     *            cas the item must have, 0 for any
+     * @return the stored item, or the outcome as a {@link Result}
+     */
+    synchronized Object store(Mode mode, String key, int flags, int exptime,
+	    byte[] data, long cas) {
+	sets++;
+	Item item = getLive(key);
+	if (cas != 0) {
+	    if (item == null) {
+		return Result.NOT_FOUND;
+	    }
+	    if (item.cas != cas) {
+		return Result.EXISTS;
+	    }
+	}
+	long expiresAt = expiresAt(exptime);
+	switch (mode) {
+	case ADD:
+	    if (item != null) {
+		return Result.NOT_STORED;
+	    }
+	    break;
+	case REPLACE:
+	    if (item == null) {
+		return Result.NOT_STORED;
+	    }
+	    break;
+	case APPEND:
+	case PREPEND:
+	    if (item == null) {
+		return Result.NOT_STORED;
+	    }
+	    byte[] joined = new byte[item.data.length + data.length];
+	    byte[] first = mode == Mode.APPEND ? item.data : data;
+	    byte[] second = mode == Mode.APPEND ? data : item.data;
+	    System.arraycopy(first, 0, joined, 0, first.length);
+	    System.arraycopy(second, 0, joined, first.length, second.length);
+	    data = joined;
+	    flags = item.flags;
+	    expiresAt = item.expiresAt;
+	    break;
+	default:
+	    break;
+	}
+	if (expiresAt < 0) {
+	    items.remove(key);
+	    return Result.STORED;
+	}
+	Item stored = new Item(data, flags, ++lastCas, expiresAt);
+	items.put(key, stored);
+	return stored;
+    }
+
+    /**
+     * @param cas
+     *            cas the item must have, 0 for any
+     */
+    synchronized Result delete(String key, long cas) {
+	Item item = getLive(key);
+	if (item == null) {
+	    return Result.NOT_FOUND;
+	}
+	if (cas != 0 && item.cas != cas) {
+	    return Result.EXISTS;
+	}
+	items.remove(key);
+	return Result.DELETED;
+    }
+
+    /**
+     * Increments or decrements the decimal value of the item, as an unsigned
+     * 64 bit number. A decrement stops at 0, an increment wraps around.
+     * 
+     * @param initial
+     *            value stored if the item is missing, null to fail
+     * @return the updated item, null if the item is missing
+     * @throws NumberFormatException
+     *             if the value is not a number
+     */
+    synchronized Item incr(String key, long delta, boolean increment,
+	    Long initial, int exptime) {
+	Item item = getLive(key);
+	if (item == null) {
+	    if (initial == null) {
+		return null;
+	    }
+	    Item created = new Item(toUnsignedString(initial.longValue())
+		    .getBytes(ASCII), 0, ++lastCas, expiresAt(exptime));
+	    items.put(key, created);
+	    return created;
+	}
+	long value = parseUnsignedLong(new String(item.data, ASCII).trim());
+	if (increment) {
+	    value += delta;
+	} else {
+	    value = value + Long.MIN_VALUE < delta + Long.MIN_VALUE ? 0 : value
+		    - delta;
+	}
+	Item updated = new Item(toUnsignedString(value).getBytes(ASCII),
+		item.flags, ++lastCas, item.expiresAt);
+	items.put(key, updated);
+	return updated;
+    }
+
+    synchronized boolean touch(String key, int exptime) {
+	Item item = getLive(key);
+	if (item == null) {
+	    return false;
+	}
+	items.put(key, new Item(item.data, item.flags, item.cas,
+		expiresAt(exptime)));
+	return true;
+    }
+
+    /**
+     * @param delay
+     *            seconds before every current item expires
+     */
+    synchronized void flush(int delay) {
+	if (delay <= 0) {
+	    items.clear();
+	    return;
+	}
+	long flushAt = System.currentTimeMillis() + delay * 1000L;
+	for (Iterator<Map.Entry<String, Item>> i = items.entrySet().iterator(); i
+		.hasNext();) {
+	    Map.Entry<String, Item> entry = i.next();
+	    Item item = entry.getValue();
+	    if (item.expiresAt == 0 || item.expiresAt > flushAt) {
+		entry.setValue(new Item(item.data, item.flags, item.cas,
+			flushAt));
+	    }
+	}
+    }
+
+    synchronized Map<String, String> getStats() {
+	Map<String, String> stats = new HashMap<String, String>();
+	stats.put("curr_items", String.valueOf(items.size()));
+	stats.put("cmd_get", String.valueOf(gets));
+	stats.put("get_hits", String.valueOf(hits));
+	stats.put("get_misses", String.valueOf(gets - hits));
+	stats.put("cmd_set", String.valueOf(sets));
+	return stats;
+    }
+
+    synchronized int size() {
+	return items.size();
+    }
+
+    static long parseUnsignedLong(String value) {
+	BigInteger number = new BigInteger(value);
+	if (number.signum() < 0 || number.bitLength() > 64) {
+	    throw new NumberFormatException("Not an unsigned 64 bit number: "
+		    + value);
+	}
+	return number.longValue();
+    }
+
+    static String toUnsignedString(long value) {
+	return value >= 0 ? Long.toString(value) : BigInteger.valueOf(value)
+		.add(TWO_TO_64).toString();
+    }
+
+    /**
+     * @return millis the item expires at, 0 if never, negative if already
+     *         expired
+     */
+    private static long expiresAt(int exptime) {
+	if (exptime == 0) {
+	    return 0;
+	}
+	if (exptime < 0) {
+	    return -1;
+	}
+	if (exptime <= MAX_RELATIVE_EXPIRATION) {
+	    return System.currentTimeMillis() + exptime * 1000L;
+	}
+	long at = exptime * 1000L;
+	return at > System.currentTimeMillis() ? at : -1;
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache.server;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Handles the requests of a connection to an
+ * {@link EmbeddedMemcachedServer}, one at a time.
+ */
+abstract class Protocol {
+
+    enum Status {
+	/** a request was handled */
+	HANDLED,
+	/** the request is not fully read yet */
+	INCOMPLETE,
+	/** the connection must be closed once the responses are sent */
+	CLOSE
+    }
+
+    /** values larger than this are not even buffered */
+    static final int MAX_BUFFERED_VALUE = 64 * 1024 * 1024;
+
+    protected final EmbeddedMemcachedServer server;
+    protected final ItemStore store;
+
+    Protocol(EmbeddedMemcachedServer server, ItemStore store) {
+	this.server = server;
+	this.store = store;
+    }
+
+    /**
+     * Handles the request at the position of the buffer, and moves the
+     * position past it.
+     * 
+     * @param in
+     *            heap buffer of the bytes read
+     * @param out
+     *            receives the response, if any
+     * @return {@link Status#INCOMPLETE} with the position unchanged if the
+     *         request is not fully read yet
+     */
+    abstract Status handle(ByteBuffer in, ByteArrayOutputStream out);
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache;
+
+import java.util.concurrent.TimeUnit;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test(groups = "unit")
+public class CircuitBreakerUnitTestNG {
+
+    private static CircuitBreaker newBreaker() {
+	CircuitBreaker breaker = new CircuitBreaker("test");
+	breaker.setMinimumCalls(10);
+	breaker.setFailureRateThreshold(50);
+	breaker.setOpenMsec(50);
+	breaker.setProbes(2);
+	return breaker;
+    }
+
+    public void testOpensOnFailureRate() {
+	CircuitBreaker breaker = newBreaker();
+	for (int i = 0; i < 5; i++) {
+	    Assert.assertTrue(breaker.allowRequest());
+	    breaker.record(System.nanoTime(), true);
+	}
+	// not enough calls yet
+	for (int i = 0; i < 4; i++) {
+	    breaker.record(System.nanoTime(), false);
+	}
+	Assert.assertEquals(breaker.getState(), CircuitBreaker.State.CLOSED);
+	Assert.assertEquals(breaker.getFailureRatePercent(), 44);
+	breaker.record(System.nanoTime(), false);
+	Assert.assertEquals(breaker.getState(), CircuitBreaker.State.OPEN);
+	Assert.assertEquals(breaker.getOpened(), 1);
+	Assert.assertFalse(breaker.allowRequest());
+	Assert.assertEquals(breaker.getRejected(), 1);
+    }
+
+    public void testSlowCallsFail() {
+	CircuitBreaker breaker = newBreaker();
+	breaker.setSlowCallMsec(10);
+	long slowStart = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(20);
+	for (int i = 0; i < 10; i++) {
+	    breaker.record(slowStart, true);
+	}
+	Assert.assertEquals(breaker.getState(), CircuitBreaker.State.OPEN);
+    }
+
+    public void testProbes() throws Exception {
+	CircuitBreaker breaker = newBreaker();
+	for (int i = 0; i < 10; i++) {
+	    breaker.record(System.nanoTime(), false);
+	}
+	Assert.assertFalse(breaker.allowRequest());
+	Thread.sleep(60);
+
+	// one probe at a time
+	Assert.assertTrue(breaker.allowRequest());
+	Assert.assertEquals(breaker.getState(), CircuitBreaker.State.HALF_OPEN);
+	Assert.assertFalse(breaker.allowRequest());
+	// a failed probe opens the circuit again
+	breaker.record(System.nanoTime(), false);
+	Assert.assertEquals(breaker.getState(), CircuitBreaker.State.OPEN);
+	Assert.assertFalse(breaker.allowRequest());
+	Thread.sleep(60);
+
+	Assert.assertTrue(breaker.allowRequest());
+	breaker.record(System.nanoTime(), true);
+	Assert.assertEquals(breaker.getState(), CircuitBreaker.State.HALF_OPEN);
+	Assert.assertTrue(breaker.allowRequest());
+	breaker.record(System.nanoTime(), true);
+	Assert.assertEquals(breaker.getState(), CircuitBreaker.State.CLOSED);
+	Assert.assertEquals(breaker.getFailureRatePercent(), 0);
+	Assert.assertEquals(breaker.getOpened(), 2);
+    }
+}
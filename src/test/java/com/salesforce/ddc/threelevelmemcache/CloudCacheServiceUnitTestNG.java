@@ -26,20 +26,37 @@
 package com.salesforce.ddc.threelevelmemcache;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.spy.memcached.MemcachedClientIF;
+import net.spy.memcached.NodeLocator;
 
 import org.mockito.Mockito;
 import org.testng.Assert;
 import org.testng.AssertJUnit;
 import org.testng.annotations.Test;
 
+import com.salesforce.ddc.threelevelmemcache.exposed.CacheFuture;
+import com.salesforce.ddc.threelevelmemcache.exposed.CacheKey;
 import com.salesforce.ddc.threelevelmemcache.exposed.CacheService;
+import com.salesforce.ddc.threelevelmemcache.exposed.RemoveOutcome;
+import com.salesforce.ddc.threelevelmemcache.exposed.WriteQuorum;
 import com.salesforce.ddc.threelevelmemcache.exposed.listener.CacheListener;
 import com.salesforce.ddc.threelevelmemcache.exposed.proxy.ValueProxyFactory;
+import com.salesforce.ddc.threelevelmemcache.exposed.util.SHAKey;
 
 /**
  * @author Alexander Khimich
@@ -112,28 +129,28 @@ public class CloudCacheServiceUnitTestNG {
 		secondary);
 	CacheListener listener = Mockito.mock(CacheListener.class);
 	cacheService.setListener(listener);
-	Mockito.when(secondary.add("a", "b")).thenReturn(true);
+	Mockito.when(secondary.add(CacheKey.of("a"), "b")).thenReturn(true);
 
 	AssertJUnit.assertEquals(cacheService.add("a", "b"), true);
 	Mockito.verify(listener).put("a", "b");
-	Mockito.verify(jvm).add("a", "b");
+	Mockito.verify(jvm).add(CacheKey.of("a"), "b");
 	Mockito.verify(primary).isConnected();
-	Mockito.verify(primary).add("a", "b");
+	Mockito.verify(primary).add(CacheKey.of("a"), "b");
 
 	Mockito.verify(secondary).isConnected();
-	Mockito.verify(secondary).add("a", "b");
+	Mockito.verify(secondary).add(CacheKey.of("a"), "b");
 
 	// If secondary is off
 	Mockito.reset(primary, jvm, secondary, listener);
 	Mockito.when(primary.isConnected()).thenReturn(true);
 	Mockito.when(secondary.isConnected()).thenReturn(false);
 
-	Mockito.when(primary.add("a", "b")).thenReturn(false);
+	Mockito.when(primary.add(CacheKey.of("a"), "b")).thenReturn(false);
 	AssertJUnit.assertEquals(cacheService.add("a", "b"), false);
 	Mockito.verify(listener).put("a", "b");
-	Mockito.verify(jvm).add("a", "b");
+	Mockito.verify(jvm).add(CacheKey.of("a"), "b");
 	Mockito.verify(primary).isConnected();
-	Mockito.verify(primary).add("a", "b");
+	Mockito.verify(primary).add(CacheKey.of("a"), "b");
 
 	Mockito.verify(secondary).isConnected();
     }
@@ -223,9 +240,9 @@ public class CloudCacheServiceUnitTestNG {
 	cacheService.setListener(listener);
 	cacheService.remove("a");
 	Mockito.verify(listener).remove("a");
-	Mockito.verify(jvm).remove("a");
-	Mockito.verify(primary).remove("a");
-	Mockito.verify(secondary).remove("a");
+	Mockito.verify(jvm).remove(CacheKey.of("a"));
+	Mockito.verify(primary).remove(CacheKey.of("a"));
+	Mockito.verify(secondary).remove(CacheKey.of("a"));
 
     }
 
@@ -245,22 +262,22 @@ public class CloudCacheServiceUnitTestNG {
 	CacheListener listener = Mockito.mock(CacheListener.class);
 	cacheService.setListener(listener);
 
-	Mockito.when(primary.get("a")).thenReturn("b");
+	Mockito.when(primary.get(CacheKey.of("a"))).thenReturn("b");
 
 	AssertJUnit.assertEquals(cacheService.get("a"), "b");
-	Mockito.verify(jvm).get("a");
-	Mockito.verify(jvm).put("a", "b");
+	Mockito.verify(jvm).get(CacheKey.of("a"));
+	Mockito.verify(jvm).put(CacheKey.of("a"), "b");
 	Mockito.reset(jvm, listener);
 
 	cacheService.get("a");
-	Mockito.verify(jvm).get("a");
+	Mockito.verify(jvm).get(CacheKey.of("a"));
 	Mockito.verify(listener).get("a");
 
 	// when primary is off
 	Mockito.reset(jvm, primary, secondary, listener);
 	Mockito.when(primary.isConnected()).thenReturn(false);
 	Mockito.when(secondary.isConnected()).thenReturn(true);
-	Mockito.when(secondary.get("a")).thenReturn("c");
+	Mockito.when(secondary.get(CacheKey.of("a"))).thenReturn("c");
 	AssertJUnit.assertEquals(cacheService.get("a"), "c");
 
     }
@@ -313,10 +330,8 @@ public class CloudCacheServiceUnitTestNG {
 	AssertJUnit.assertEquals(
 		cacheService.getBatch(Arrays.asList("a", "a3", "a2")),
 		Arrays.asList("b", "b3", "b2"));
-	Mockito.verify(primary).getBatch(Arrays.asList("a3"));// only nulls will
-							      // be queries
-							      // from
-							      // primary
+	// only nulls will be queried from primary
+	Mockito.verify(primary).getBatch(CacheKey.of(Arrays.asList("a3")));
 
 	Mockito.verify(pf).createProxy("b");
 	Mockito.verify(pf).createProxy("b2");
@@ -389,6 +404,24 @@ public class CloudCacheServiceUnitTestNG {
 		Mockito.anyString());
     }
 
+    @Test
+    public void testPutBatchForwardsBatch() {
+	CacheService primary = Mockito.mock(CacheService.class);
+	CacheService secondary = Mockito.mock(CacheService.class);
+	Mockito.when(primary.isConnected()).thenReturn(true);
+	Mockito.when(secondary.isConnected()).thenReturn(true);
+	CloudCacheService cacheService = new CloudCacheService(
+		new JVMCacheService(), primary, secondary);
+	List<String> keys = Arrays.asList("a", "a2");
+	List<String> values = Arrays.asList("b", "b2");
+	cacheService.putBatch(keys, values);
+	Mockito.verify(primary).putBatch(CacheKey.of(keys), values);
+	Mockito.verify(secondary).putBatch(CacheKey.of(keys), values);
+	Mockito.verify(primary, Mockito.never()).put(Mockito.anyObject(),
+		Mockito.anyInt(), Mockito.any(Serializable.class));
+	AssertJUnit.assertEquals(cacheService.get("a2"), "b2");
+    }
+
     @Test
     public void testRemoveBatch() {
 	CacheService jvm = Mockito.mock(CacheService.class);
@@ -403,12 +436,67 @@ public class CloudCacheServiceUnitTestNG {
 	cacheService.removeBatch((Collection) Arrays.asList("a", "b"));
 	Mockito.verify(listener).remove("a");
 	Mockito.verify(listener).remove("b");
-	Mockito.verify(jvm).remove("a");
-	Mockito.verify(jvm).remove("b");
-	Mockito.verify(primary).remove("a");
-	Mockito.verify(primary).remove("b");
-	Mockito.verify(secondary).remove("a");
-	Mockito.verify(secondary).remove("b");
+	Mockito.verify(jvm).remove(CacheKey.of("a"));
+	Mockito.verify(jvm).remove(CacheKey.of("b"));
+	Mockito.verify(primary).removeBatch(
+		CacheKey.of(Arrays.asList("a", "b")));
+	Mockito.verify(secondary).removeBatch(
+		CacheKey.of(Arrays.asList("a", "b")));
+    }
+
+    @Test
+    public void testRemoveBatchWithOutcome() throws Exception {
+	CacheService primary = Mockito.mock(CacheService.class);
+	CacheService secondary = Mockito.mock(CacheService.class);
+	Mockito.when(primary.isConnected()).thenReturn(true);
+	Mockito.when(secondary.isConnected()).thenReturn(true);
+	CloudCacheService cacheService = new CloudCacheService(
+		new JVMCacheService(), primary, secondary);
+	cacheService.put("a", "1");
+	List<Object> keys = Arrays.<Object> asList("a", "b");
+
+	Map<Object, RemoveOutcome> outcomes = cacheService
+		.removeBatchWithOutcome(keys);
+	AssertJUnit.assertEquals(RemoveOutcome.REMOVED, outcomes.get("a"));
+	AssertJUnit.assertEquals(RemoveOutcome.REMOVED, outcomes.get("b"));
+	AssertJUnit.assertNull(cacheService.get("a"));
+
+	Mockito.doThrow(new RuntimeException("down")).when(secondary)
+		.removeBatch(CacheKey.of(keys));
+	outcomes = cacheService.removeBatchWithOutcome(keys);
+	AssertJUnit.assertEquals(RemoveOutcome.FAILED, outcomes.get("a"));
+	outcomes = cacheService.asyncRemoveBatch(keys).get(1,
+		TimeUnit.SECONDS);
+	AssertJUnit.assertEquals(RemoveOutcome.FAILED, outcomes.get("b"));
+    }
+
+    @Test
+    public void testRemoveBatchSkippedClusters() throws Exception {
+	CacheService primary = Mockito.mock(CacheService.class);
+	CacheService secondary = Mockito.mock(CacheService.class);
+	Mockito.when(primary.isConnected()).thenReturn(true);
+	CloudCacheService cacheService = new CloudCacheService(
+		new JVMCacheService(), primary, secondary);
+	List<Object> keys = Arrays.<Object> asList("a", "b");
+
+	// the value stays in the secondary which is down
+	Map<Object, RemoveOutcome> outcomes = cacheService
+		.removeBatchWithOutcome(keys);
+	AssertJUnit.assertEquals(RemoveOutcome.FAILED, outcomes.get("a"));
+	AssertJUnit.assertEquals(RemoveOutcome.FAILED, outcomes.get("b"));
+
+	Mockito.when(primary.isConnected()).thenReturn(false);
+	outcomes = cacheService.removeBatchWithOutcome(keys);
+	AssertJUnit.assertEquals(RemoveOutcome.FAILED, outcomes.get("a"));
+	outcomes = cacheService.asyncRemoveBatch(keys).get(1,
+		TimeUnit.SECONDS);
+	AssertJUnit.assertEquals(RemoveOutcome.FAILED, outcomes.get("b"));
+	Mockito.verify(primary).removeBatch(CacheKey.of(keys));
+
+	// no cluster configured, removed from the local caches
+	outcomes = new CloudCacheService(new JVMCacheService(), null, null)
+		.removeBatchWithOutcome(keys);
+	AssertJUnit.assertEquals(RemoveOutcome.REMOVED, outcomes.get("a"));
     }
 
     @Test
@@ -424,12 +512,12 @@ public class CloudCacheServiceUnitTestNG {
 	cacheService.setListener(listener);
 	AssertJUnit.assertEquals(cacheService.incr("a"), 0);
 	AssertJUnit.assertEquals(cacheService.decr("a"), 0);
-	Mockito.verify(jvm).incr("a");
-	Mockito.verify(primary).incr("a");
-	Mockito.verify(secondary).incr("a");
-	Mockito.verify(jvm).decr("a");
-	Mockito.verify(primary).decr("a");
-	Mockito.verify(secondary).decr("a");
+	Mockito.verify(jvm).incr(CacheKey.of("a"));
+	Mockito.verify(primary).incr(CacheKey.of("a"));
+	Mockito.verify(secondary).incr(CacheKey.of("a"));
+	Mockito.verify(jvm).decr(CacheKey.of("a"));
+	Mockito.verify(primary).decr(CacheKey.of("a"));
+	Mockito.verify(secondary).decr(CacheKey.of("a"));
     }
 
     @Test
@@ -461,13 +549,13 @@ public class CloudCacheServiceUnitTestNG {
 	AssertJUnit.assertEquals(cacheService.incr("a", 1, 0, 0), 2);
 	AssertJUnit.assertEquals(cacheService.decr("a", 2, 2, 2), -2l);
 
-	Mockito.verify(jvm).incr("a", 1, 0, 0);
-	Mockito.verify(primary).incr("a", 1, 0, 0);
-	Mockito.verify(secondary).incr("a", 1, 0, 0);
+	Mockito.verify(jvm).incr(CacheKey.of("a"), 1, 0, 0);
+	Mockito.verify(primary).incr(CacheKey.of("a"), 1, 0, 0);
+	Mockito.verify(secondary).incr(CacheKey.of("a"), 1, 0, 0);
 
-	Mockito.verify(jvm).decr("a", 2, 2, 2);
-	Mockito.verify(primary).decr("a", 2, 2, 2);
-	Mockito.verify(secondary).decr("a", 2, 2, 2);
+	Mockito.verify(jvm).decr(CacheKey.of("a"), 2, 2, 2);
+	Mockito.verify(primary).decr(CacheKey.of("a"), 2, 2, 2);
+	Mockito.verify(secondary).decr(CacheKey.of("a"), 2, 2, 2);
 
 	Mockito.verify(listener, Mockito.never()).get(Mockito.anyObject());
 	Mockito.verify(listener, Mockito.never()).put(Mockito.anyObject(),
@@ -509,13 +597,13 @@ public class CloudCacheServiceUnitTestNG {
 	AssertJUnit.assertEquals(cacheService.incr("a", 1, 0, 0), 2);
 	AssertJUnit.assertEquals(cacheService.decr("a", 2, 2, 2), -2l);
 
-	Mockito.verify(jvm).incr("a", 1, 0, 0);
-	Mockito.verify(primary, Mockito.never()).incr("a", 1, 0, 0);
-	Mockito.verify(secondary).incr("a", 1, 0, 0);
+	Mockito.verify(jvm).incr(CacheKey.of("a"), 1, 0, 0);
+	Mockito.verify(primary, Mockito.never()).incr(CacheKey.of("a"), 1, 0, 0);
+	Mockito.verify(secondary).incr(CacheKey.of("a"), 1, 0, 0);
 
-	Mockito.verify(jvm).decr("a", 2, 2, 2);
-	Mockito.verify(primary, Mockito.never()).decr("a", 2, 2, 2);
-	Mockito.verify(secondary).decr("a", 2, 2, 2);
+	Mockito.verify(jvm).decr(CacheKey.of("a"), 2, 2, 2);
+	Mockito.verify(primary, Mockito.never()).decr(CacheKey.of("a"), 2, 2, 2);
+	Mockito.verify(secondary).decr(CacheKey.of("a"), 2, 2, 2);
 
 	Mockito.verify(listener, Mockito.never()).get(Mockito.anyObject());
 	Mockito.verify(listener, Mockito.never()).put(Mockito.anyObject(),
@@ -548,11 +636,13 @@ public class CloudCacheServiceUnitTestNG {
 	AssertJUnit.assertEquals(cacheService.incr("a", 1, 0, 0), -1);
 	AssertJUnit.assertEquals(cacheService.decr("a", 2, 2, 2), -1);
 
-	Mockito.verify(primary, Mockito.never()).incr("a", 1, 0, 0);
-	Mockito.verify(secondary, Mockito.never()).incr("a", 2, 2, 2);
+	Mockito.verify(primary, Mockito.never()).incr(CacheKey.of("a"), 1, 0, 0);
+	Mockito.verify(secondary, Mockito.never()).incr(CacheKey.of("a"), 2,
+		2, 2);
 
-	Mockito.verify(primary, Mockito.never()).decr("a", 1, 0, 0);
-	Mockito.verify(secondary, Mockito.never()).decr("a", 2, 2, 2);
+	Mockito.verify(primary, Mockito.never()).decr(CacheKey.of("a"), 1, 0, 0);
+	Mockito.verify(secondary, Mockito.never()).decr(CacheKey.of("a"), 2,
+		2, 2);
 
 	Mockito.verify(listener, Mockito.never()).get(Mockito.anyObject());
 	Mockito.verify(listener, Mockito.never()).put(Mockito.anyObject(),
@@ -580,17 +670,430 @@ public class CloudCacheServiceUnitTestNG {
 	Mockito.when(primary.isConnected()).thenReturn(false);
 	Mockito.when(secondary.isConnected()).thenReturn(true);
 	AssertJUnit.assertEquals(cacheService.isConnected(), true);
-	Mockito.verify(primary, Mockito.times(2)).isConnected();
+	Mockito.verify(primary).isConnected();
 	Mockito.verify(secondary).isConnected();
 
 	Mockito.reset(primary, secondary);
 	Mockito.when(primary.isConnected()).thenReturn(false);
 	Mockito.when(secondary.isConnected()).thenReturn(false);
 	AssertJUnit.assertEquals(cacheService.isConnected(), false);
-	Mockito.verify(primary, Mockito.times(2)).isConnected();
+	Mockito.verify(primary).isConnected();
 	Mockito.verify(secondary).isConnected();
 
 	Assert.assertNotNull(cacheService.toString());
 
     }
+
+    @Test
+    public void testGetFromOffHeap() {
+	CacheService jvm = new JVMCacheService();
+	CacheService primary = Mockito.mock(CacheService.class);
+	Mockito.when(primary.isConnected()).thenReturn(true);
+	Mockito.when(primary.get(CacheKey.of("b"))).thenReturn("2");
+	CloudCacheService cacheService = new CloudCacheService(jvm, primary,
+		null);
+	OffHeapCacheService offHeap = new OffHeapCacheService(1024 * 1024,
+		64 * 1024);
+	cacheService.setOffHeapCache(offHeap);
+
+	offHeap.put("a", "1");
+	AssertJUnit.assertEquals(cacheService.get("a"), "1");
+	// promoted to the first level cache
+	AssertJUnit.assertEquals(jvm.get("a"), "1");
+	Mockito.verify(primary, Mockito.never()).get(CacheKey.of("a"));
+
+	// memcached hits fill the off-heap cache
+	AssertJUnit.assertEquals(cacheService.get("b"), "2");
+	AssertJUnit.assertEquals(offHeap.get("b"), "2");
+
+	offHeap.put("c", "3");
+	AssertJUnit.assertEquals(cacheService.getBatch(Arrays.asList("c")),
+		Arrays.asList("3"));
+
+	cacheService.remove("a");
+	AssertJUnit.assertNull(offHeap.get("a"));
+	AssertJUnit.assertEquals(cacheService.getStats().values().iterator()
+		.next().get("offHeapHits"), "2");
+    }
+
+    @Test
+    public void testTierStats() {
+	CacheService primary = new JVMCacheService(10);
+	CacheService secondary = new JVMCacheService(10);
+	CloudCacheService cacheService = new CloudCacheService(null, primary,
+		secondary);
+	primary.put("a", "1");
+	secondary.put("b", "2");
+	AssertJUnit.assertEquals(cacheService.get("a"), "1");
+	AssertJUnit.assertEquals(cacheService.get("b"), "2");
+	AssertJUnit.assertNull(cacheService.get("c"));
+	Map<String, String> stats = cacheService.getStats().values()
+		.iterator().next();
+	AssertJUnit.assertEquals(stats.get("primaryHits"), "1");
+	AssertJUnit.assertEquals(stats.get("secondaryHits"), "1");
+	AssertJUnit.assertEquals(stats.get("remoteMisses"), "1");
+    }
+
+    @Test
+    public void testCoalescedMisses() throws Exception {
+	final CountDownLatch release = new CountDownLatch(1);
+	final AtomicInteger primaryGets = new AtomicInteger();
+	CacheService primary = new JVMCacheService() {
+
+	    @Override
+	    public Serializable get(Object key) {
+		primaryGets.incrementAndGet();
+		try {
+		    release.await();
+		} catch (InterruptedException e) {
+		    Thread.currentThread().interrupt();
+		}
+		return "v";
+	    }
+	};
+	final CloudCacheService cacheService = new CloudCacheService(
+		new JVMCacheService(), primary, null);
+	AssertJUnit.assertFalse(cacheService.isMissCoalescing());
+	cacheService.setMissCoalescingTimeoutMsec(10000);
+	cacheService.setMissCoalescing(true);
+
+	ExecutorService executor = Executors.newFixedThreadPool(8);
+	try {
+	    List<Future<Serializable>> results = new ArrayList<Future<Serializable>>();
+	    for (int i = 0; i < 8; i++) {
+		results.add(executor.submit(new Callable<Serializable>() {
+
+		    @Override
+		    public Serializable call() {
+			return cacheService.get("hot");
+		    }
+		}));
+	    }
+	    MissCoalescer coalescer = cacheService.getMissCoalescer();
+	    long deadline = System.currentTimeMillis() + 10000;
+	    while (coalescer.getCoalesced() < 7
+		    && System.currentTimeMillis() < deadline) {
+		Thread.sleep(10);
+	    }
+	    release.countDown();
+	    for (Future<Serializable> result : results) {
+		AssertJUnit.assertEquals(result.get(10, TimeUnit.SECONDS), "v");
+	    }
+	} finally {
+	    executor.shutdown();
+	}
+	AssertJUnit.assertEquals(primaryGets.get(), 1);
+	Map<String, String> stats = cacheService.getStats().values()
+		.iterator().next();
+	AssertJUnit.assertEquals(stats.get("coalescedGets"), "7");
+	AssertJUnit.assertEquals(stats.get("coalescedGets." + SHAKey.sha("hot")),
+		"7");
+	AssertJUnit.assertEquals(stats.get("remoteLoads"), "1");
+    }
+
+    @Test
+    public void testTieredGetBatch() {
+	CacheService jvm = new JVMCacheService();
+	CacheService primary = Mockito.mock(CacheService.class);
+	CacheService secondary = Mockito.mock(CacheService.class);
+	Mockito.when(primary.isConnected()).thenReturn(true);
+	Mockito.when(secondary.isConnected()).thenReturn(true);
+	Mockito.when(
+		primary.getBatch(CacheKey.of(Arrays.asList("k2", "k3", "k4"))))
+		.thenReturn((List) Arrays.asList("p2", null, null));
+	Mockito.when(secondary.getBatch(CacheKey.of(Arrays.asList("k3", "k4"))))
+		.thenReturn((List) Arrays.asList("s3", null));
+	CloudCacheService cacheService = new CloudCacheService(jvm, primary,
+		secondary);
+	jvm.put("k1", "l1");
+
+	AssertJUnit.assertEquals(cacheService.getBatch(Arrays.asList("k1",
+		"k2", "k3", "k4")), Arrays.asList("l1", "p2", "s3", null));
+	Mockito.verify(secondary).getBatch(
+		CacheKey.of(Arrays.asList("k3", "k4")));
+	// the local cache is filled from both clusters
+	AssertJUnit.assertEquals(jvm.get("k2"), "p2");
+	AssertJUnit.assertEquals(jvm.get("k3"), "s3");
+	AssertJUnit.assertNull(jvm.get("k4"));
+
+	Map<String, String> stats = cacheService.getStats().values()
+		.iterator().next();
+	AssertJUnit.assertEquals(stats.get("batchL1Hits"), "1");
+	AssertJUnit.assertEquals(stats.get("batchPrimaryHits"), "1");
+	AssertJUnit.assertEquals(stats.get("batchSecondaryHits"), "1");
+	AssertJUnit.assertEquals(stats.get("batchMisses"), "1");
+
+	// warmed keys don't go to memcached again
+	Mockito.reset(primary, secondary);
+	Mockito.when(primary.isConnected()).thenReturn(true);
+	AssertJUnit.assertEquals(
+		cacheService.getBatch(Arrays.asList("k2", "k3")),
+		Arrays.asList("p2", "s3"));
+	Mockito.verify(primary, Mockito.never()).getBatch(Mockito.anyList());
+    }
+
+    @Test
+    public void testFanOutWrites() {
+	CacheService primary = Mockito.mock(CacheService.class);
+	CacheService secondary = Mockito.mock(CacheService.class);
+	Mockito.when(primary.isConnected()).thenReturn(true);
+	Mockito.when(secondary.isConnected()).thenReturn(true);
+	Mockito.when(primary.add(CacheKey.of("a"), "b")).thenReturn(false);
+	Mockito.when(secondary.add(CacheKey.of("a"), "b")).thenReturn(true);
+	Mockito.when(primary.incr(CacheKey.of("c"))).thenReturn(5l);
+	Mockito.when(secondary.incr(CacheKey.of("c"))).thenReturn(7l);
+	CloudCacheService cacheService = new CloudCacheService(null, primary,
+		secondary);
+	cacheService.setWriteQuorum(WriteQuorum.ALL);
+	cacheService.setWriteFanOut(true);
+	try {
+	    cacheService.put("a", "b");
+	    Mockito.verify(primary).put(CacheKey.of("a"), 0, "b");
+	    Mockito.verify(secondary).put(CacheKey.of("a"), 0, "b");
+	    AssertJUnit.assertTrue(cacheService.add("a", "b"));
+	    AssertJUnit.assertEquals(cacheService.incr("c"), 7l);
+	    cacheService.remove("a");
+	    Mockito.verify(primary).remove(CacheKey.of("a"));
+	    Mockito.verify(secondary).remove(CacheKey.of("a"));
+
+	    Map<String, String> stats = cacheService.getStats().values()
+		    .iterator().next();
+	    AssertJUnit.assertEquals(stats.get("writeQuorum"), "ALL");
+	    AssertJUnit.assertEquals(stats.get("fanOutWrites"), "8");
+	    AssertJUnit.assertEquals(stats.get("fanOutFailures"), "0");
+	} finally {
+	    cacheService.setWriteFanOut(false);
+	}
+    }
+
+    @Test
+    public void testAsyncCalls() throws Exception {
+	CacheService jvm = new JVMCacheService();
+	CacheService primary = Mockito.mock(CacheService.class);
+	CacheService secondary = Mockito.mock(CacheService.class);
+	Mockito.when(primary.isConnected()).thenReturn(true);
+	Mockito.when(secondary.isConnected()).thenReturn(true);
+	Mockito.when(secondary.get(CacheKey.of("a"))).thenReturn("s");
+	Mockito.when(primary.getBatch(CacheKey.of(Arrays.asList("b"))))
+		.thenReturn((List) Arrays.asList("p"));
+	Mockito.when(primary.add(CacheKey.of("c"), "d")).thenReturn(false);
+	Mockito.when(secondary.add(CacheKey.of("c"), "d")).thenReturn(true);
+	Mockito.when(primary.incr(CacheKey.of("e"))).thenReturn(5l);
+	Mockito.when(secondary.incr(CacheKey.of("e"))).thenReturn(7l);
+	CloudCacheService cacheService = new CloudCacheService(jvm, primary,
+		secondary);
+
+	// primary missed, secondary is asked and the local cache filled
+	AssertJUnit.assertEquals(cacheService.asyncGet("a").get(), "s");
+	AssertJUnit.assertEquals(jvm.get("a"), "s");
+	AssertJUnit.assertEquals(
+		cacheService.asyncGetBatch(Arrays.asList("a", "b")).get(),
+		Arrays.asList("s", "p"));
+	// only the key missing locally goes to memcached
+	Mockito.verify(primary).getBatch(CacheKey.of(Arrays.asList("b")));
+	AssertJUnit.assertTrue(cacheService.asyncAdd("c", "d").get());
+	AssertJUnit.assertEquals(cacheService.asyncIncr("e", 1).get()
+		.longValue(), 7l);
+	AssertJUnit.assertTrue(cacheService.asyncPut("a", 0, "t").get());
+	Mockito.verify(primary).put(CacheKey.of("a"), 0, "t");
+	Mockito.verify(secondary).put(CacheKey.of("a"), 0, "t");
+	AssertJUnit.assertEquals(jvm.get("a"), "t");
+    }
+
+    @Test
+    public void testAsyncGetChainsTiers() throws Exception {
+	final SettableCacheFuture<Serializable> primaryGet = new SettableCacheFuture<Serializable>();
+	final SettableCacheFuture<Serializable> secondaryGet = new SettableCacheFuture<Serializable>();
+	CacheService primary = new JVMCacheService() {
+
+	    @Override
+	    public CacheFuture<Serializable> asyncGet(Object key) {
+		return primaryGet;
+	    }
+	};
+	CacheService secondary = new JVMCacheService() {
+
+	    @Override
+	    public CacheFuture<Serializable> asyncGet(Object key) {
+		return secondaryGet;
+	    }
+	};
+	CacheService jvm = new JVMCacheService();
+	CloudCacheService cacheService = new CloudCacheService(jvm, primary,
+		secondary);
+
+	CacheFuture<Serializable> result = cacheService.asyncGet("a");
+	Assert.assertFalse(result.isDone());
+	primaryGet.set(null);
+	Assert.assertFalse(result.isDone());
+	secondaryGet.set("s");
+	AssertJUnit.assertTrue(result.isDone());
+	AssertJUnit.assertEquals(result.get(), "s");
+	AssertJUnit.assertEquals(jvm.get("a"), "s");
+
+	// a failed primary read fails the result
+	final SettableCacheFuture<Serializable> failed = new SettableCacheFuture<Serializable>();
+	cacheService = new CloudCacheService(null, new JVMCacheService() {
+
+	    @Override
+	    public CacheFuture<Serializable> asyncGet(Object key) {
+		return failed;
+	    }
+	}, null);
+	result = cacheService.asyncGet("b");
+	failed.setException(new IllegalStateException());
+	try {
+	    result.get();
+	    Assert.fail("primary failed");
+	} catch (ExecutionException e) {
+	    AssertJUnit.assertTrue(e.getCause() instanceof IllegalStateException);
+	}
+    }
+
+    @Test
+    public void testCircuitBreakerFailsOver() throws Exception {
+	final AtomicInteger primaryGets = new AtomicInteger();
+	CacheService primary = new JVMCacheService() {
+
+	    @Override
+	    public Serializable get(Object key) {
+		primaryGets.incrementAndGet();
+		throw new IllegalStateException("primary is down");
+	    }
+	};
+	CacheService secondary = new JVMCacheService();
+	secondary.put("a", "s");
+	CloudCacheService cacheService = new CloudCacheService(null, primary,
+		secondary);
+	cacheService.setMissCoalescing(false);
+	cacheService.setCircuitMinimumCalls(5);
+	cacheService.setCircuitOpenMsec(50);
+	for (int i = 0; i < 5; i++) {
+	    try {
+		cacheService.get("a");
+		Assert.fail("primary throws");
+	    } catch (IllegalStateException e) {
+		// expected
+	    }
+	}
+	AssertJUnit.assertEquals(cacheService.getPrimaryCircuitBreaker()
+		.getState(), CircuitBreaker.State.OPEN);
+	// primary is skipped
+	AssertJUnit.assertEquals(cacheService.get("a"), "s");
+	AssertJUnit.assertEquals(primaryGets.get(), 5);
+	Map<String, String> stats = cacheService.getStats().values()
+		.iterator().next();
+	AssertJUnit.assertEquals(stats.get("primaryCircuit"), "OPEN");
+	AssertJUnit.assertEquals(stats.get("primaryCircuitRejected"), "1");
+	AssertJUnit.assertEquals(stats.get("secondaryCircuit"), "CLOSED");
+
+	// after the open interval a probe goes to primary
+	Thread.sleep(60);
+	try {
+	    cacheService.get("a");
+	    Assert.fail("primary throws");
+	} catch (IllegalStateException e) {
+	    // expected
+	}
+	AssertJUnit.assertEquals(primaryGets.get(), 6);
+	AssertJUnit.assertEquals(cacheService.getPrimaryCircuitBreaker()
+		.getState(), CircuitBreaker.State.OPEN);
+    }
+
+    @Test
+    public void testCircuitBreakerCountsSilentFailures() throws Exception {
+	MemcachedClientIF client = Mockito.mock(MemcachedClientIF.class);
+	Mockito.when(client.getNodeLocator()).thenReturn(
+		Mockito.mock(NodeLocator.class));
+	Mockito.when(client.asyncGet(Mockito.anyString())).thenThrow(
+		new IllegalStateException("primary is down"));
+	MemcachedCacheService primary = new MemcachedCacheService(client);
+	primary.setExceptionsSilentMode(true);
+	CloudCacheService cacheService = new CloudCacheService(null, primary,
+		new JVMCacheService());
+	cacheService.setCircuitMinimumCalls(5);
+	for (int i = 0; i < 5; i++) {
+	    // silenced, but still a failure
+	    AssertJUnit.assertNull(cacheService.get("a"));
+	}
+	AssertJUnit.assertEquals(cacheService.getPrimaryCircuitBreaker()
+		.getState(), CircuitBreaker.State.OPEN);
+
+	// the shared tier keeps its mode for its other users
+	AssertJUnit.assertTrue(primary.isExceptionsSilentMode());
+	AssertJUnit.assertNull(primary.get("a"));
+	CloudCacheService other = new CloudCacheService(null, primary,
+		new JVMCacheService());
+	other.setCircuitMinimumCalls(5);
+	for (int i = 0; i < 5; i++) {
+	    AssertJUnit.assertNull(other.get("a"));
+	}
+	AssertJUnit.assertNull(other.asyncGet("a").get());
+	AssertJUnit.assertEquals(other.getPrimaryCircuitBreaker().getState(),
+		CircuitBreaker.State.OPEN);
+    }
+
+    @Test
+    public void testHedgedReads() {
+	CacheService primary = new JVMCacheService();
+	CacheService secondary = new JVMCacheService();
+	primary.put("a", "p");
+	secondary.put("b", "s");
+	CloudCacheService cacheService = new CloudCacheService(null, primary,
+		secondary);
+	cacheService.setHedgedReads(true);
+	AssertJUnit.assertEquals(cacheService.get("a"), "p");
+	AssertJUnit.assertEquals(cacheService.get("b"), "s");
+	AssertJUnit.assertNull(cacheService.get("c"));
+	AssertJUnit.assertEquals(cacheService.getHedgedReader().getReads(), 3);
+	Map<String, String> stats = cacheService.getStats().values()
+		.iterator().next();
+	AssertJUnit.assertEquals(stats.get("hedgedReads"), "0");
+	AssertJUnit.assertEquals(stats.get("hedgeDelayMicros"), "-1");
+	// counted by the cluster which answered
+	AssertJUnit.assertEquals(stats.get("primaryHits"), "1");
+	AssertJUnit.assertEquals(stats.get("secondaryHits"), "1");
+
+	cacheService.setHedgedReads(false);
+	AssertJUnit.assertNull(cacheService.getHedgedReader());
+    }
+
+    @Test
+    public void testReadRepair() throws Exception {
+	CacheService primary = new JVMCacheService() {
+
+	    @Override
+	    public boolean add(Object key, Serializable obj) {
+		// memcached add, stores only if absent
+		if (get(key) != null) {
+		    return false;
+		}
+		put(key, obj);
+		return true;
+	    }
+	};
+	CacheService secondary = new JVMCacheService();
+	secondary.put("a", "s");
+	secondary.put("b", "t");
+	CloudCacheService cacheService = new CloudCacheService(null, primary,
+		secondary);
+	cacheService.setReadRepair(true);
+	try {
+	    AssertJUnit.assertEquals(cacheService.get("a"), "s");
+	    AssertJUnit.assertEquals(
+		    cacheService.getBatch(Arrays.asList("a", "b")),
+		    Arrays.asList("s", "t"));
+	    ReadRepairer repairer = cacheService.getReadRepairer();
+	    for (int i = 0; i < 100 && repairer.getRepairs() < 2; i++) {
+		Thread.sleep(10);
+	    }
+	    AssertJUnit.assertEquals(primary.get("a"), "s");
+	    AssertJUnit.assertEquals(primary.get("b"), "t");
+	    Map<String, String> stats = cacheService.getStats().values()
+		    .iterator().next();
+	    AssertJUnit.assertEquals(stats.get("readRepairFailures"), "0");
+	} finally {
+	    cacheService.setReadRepair(false);
+	}
+    }
 }
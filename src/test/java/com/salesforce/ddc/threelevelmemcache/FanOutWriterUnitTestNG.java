@@ -0,0 +1,161 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.salesforce.ddc.threelevelmemcache.exposed.CacheService;
+import com.salesforce.ddc.threelevelmemcache.exposed.WriteQuorum;
+
+@Test(groups = "unit")
+public class FanOutWriterUnitTestNG {
+
+    private static final FanOutWriter.TierWrite<Long> INCR = new FanOutWriter.TierWrite<Long>() {
+
+	@Override
+	public Long write(CacheService tier) {
+	    return tier.incr("k");
+	}
+    };
+
+    public void testPrimaryQuorum() throws Exception {
+	FanOutWriter writer = new FanOutWriter(2);
+	try {
+	    BlockingTier secondary = new BlockingTier(2, true, false);
+	    FanOutWriter.Acks<Long> acks = writer.write(new BlockingTier(1,
+		    false, false), secondary, INCR);
+	    // returns while secondary is still writing
+	    Assert.assertTrue(acks.isPrimaryAcked());
+	    Assert.assertEquals(acks.getPrimary(), Long.valueOf(1));
+	    Assert.assertFalse(acks.isSecondaryAcked());
+	    Assert.assertNull(acks.getSecondary());
+
+	    secondary.release.countDown();
+	    waitFor(writer, 1);
+	    Assert.assertEquals(acks.getSecondary(), Long.valueOf(2));
+	    Assert.assertEquals(writer.getLaggingFailures(), 0);
+	} finally {
+	    writer.shutdown();
+	}
+    }
+
+    public void testAnyQuorum() throws Exception {
+	FanOutWriter writer = new FanOutWriter(2);
+	writer.setQuorum(WriteQuorum.ANY);
+	try {
+	    BlockingTier primary = new BlockingTier(1, true, true);
+	    FanOutWriter.Acks<Long> acks = writer.write(primary,
+		    new BlockingTier(2, false, false), INCR);
+	    Assert.assertTrue(acks.isSecondaryAcked());
+	    Assert.assertFalse(acks.isPrimaryAcked());
+
+	    // the lagging primary fails
+	    primary.release.countDown();
+	    waitFor(writer, 1);
+	    Assert.assertEquals(writer.getLaggingFailures(), 1);
+	    Assert.assertEquals(writer.getFailures(), 1);
+	} finally {
+	    writer.shutdown();
+	}
+    }
+
+    public void testTimeout() {
+	FanOutWriter writer = new FanOutWriter(2);
+	writer.setQuorum(WriteQuorum.ALL);
+	writer.setTimeoutMsec(20);
+	try {
+	    BlockingTier primary = new BlockingTier(1, true, false);
+	    FanOutWriter.Acks<Long> acks = writer.write(primary, null, INCR);
+	    Assert.assertFalse(acks.isPrimaryAcked());
+	    Assert.assertEquals(writer.getQuorumTimeouts(), 1);
+	    primary.release.countDown();
+	} finally {
+	    writer.shutdown();
+	}
+    }
+
+    public void testWriteAfterShutdown() {
+	FanOutWriter writer = new FanOutWriter(2);
+	writer.setQuorum(WriteQuorum.ALL);
+	writer.shutdown();
+	long start = System.currentTimeMillis();
+	FanOutWriter.Acks<Long> acks = writer.write(new BlockingTier(1, false,
+		false), new BlockingTier(2, false, false), INCR);
+	// failed right away, not after the quorum timeout
+	Assert.assertTrue(System.currentTimeMillis() - start < 1000);
+	Assert.assertFalse(acks.isPrimaryAcked());
+	Assert.assertFalse(acks.isSecondaryAcked());
+	Assert.assertEquals(writer.getFailures(), 2);
+	Assert.assertEquals(writer.getQuorumTimeouts(), 0);
+    }
+
+    private static void waitFor(FanOutWriter writer, long laggingWrites)
+	    throws InterruptedException {
+	long deadline = System.currentTimeMillis() + 10000;
+	while (writer.getLaggingWrites() < laggingWrites
+		&& System.currentTimeMillis() < deadline) {
+	    Thread.sleep(5);
+	}
+	Assert.assertEquals(writer.getLaggingWrites(), laggingWrites);
+    }
+
+    /**
+     * Tier which returns its counter value or fails, once released if it's
+     * blocked.
+     */
+    private static class BlockingTier extends JVMCacheService {
+
+	private final long value;
+	private final boolean blocked;
+	private final boolean failing;
+	private final CountDownLatch release = new CountDownLatch(1);
+
+	BlockingTier(long value, boolean blocked, boolean failing) {
+	    this.value = value;
+	    this.blocked = blocked;
+	    this.failing = failing;
+	}
+
+	@Override
+	public long incr(Object key) {
+	    if (blocked) {
+		try {
+		    release.await(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+		    Thread.currentThread().interrupt();
+		}
+	    }
+	    if (failing) {
+		throw new IllegalStateException("write failed");
+	    }
+	    return value;
+	}
+    }
+}
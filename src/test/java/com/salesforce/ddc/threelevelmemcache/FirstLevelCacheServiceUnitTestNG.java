@@ -25,16 +25,25 @@
  */
 package com.salesforce.ddc.threelevelmemcache;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.SerializingTranscoder;
+import net.spy.memcached.transcoders.Transcoder;
 
 import org.mockito.Mockito;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import com.salesforce.ddc.threelevelmemcache.eviction.ClassRegistryWeigher;
+import com.salesforce.ddc.threelevelmemcache.eviction.Weigher;
 import com.salesforce.ddc.threelevelmemcache.exposed.listener.CacheListener;
 import com.salesforce.ddc.threelevelmemcache.exposed.strategy.CachingStrategy;
 
@@ -220,4 +229,184 @@ public class FirstLevelCacheServiceUnitTestNG {
 	Assert.assertEquals(cacheService.get("b"), null);
     }
 
+    public void testExpiration() {
+	final long[] now = new long[] { 0 };
+	FirstLevelCacheService cacheService = new FirstLevelCacheService(10) {
+
+	    @Override
+	    protected long currentTimeNanos() {
+		return now[0];
+	    }
+	};
+	cacheService.put("a", 1, "1");
+	cacheService.put("b", 60, "2");
+	cacheService.put("c", "3");
+	Assert.assertEquals(cacheService.get("a"), "1");
+
+	now[0] = TimeUnit.SECONDS.toNanos(1);
+	Assert.assertNull(cacheService.get("a"));
+	Assert.assertEquals(cacheService.getBatch(Arrays.asList("a", "b", "c")),
+		Arrays.asList(null, "2", "3"));
+	Assert.assertEquals(cacheService.size(), 2);
+
+	// swept by the maintenance without being read
+	now[0] = TimeUnit.SECONDS.toNanos(120);
+	cacheService.put("d", "4");
+	Assert.assertEquals(cacheService.size(), 2);
+	Assert.assertEquals(cacheService.getStats().values().iterator().next()
+		.get("expirations"), "2");
+
+	// unix time in the past
+	cacheService.put("c", 60 * 60 * 24 * 31, "5");
+	Assert.assertNull(cacheService.get("c"));
+    }
+
+    public void testExpirationClockOfSubclass() {
+	// a clock far from System.nanoTime()
+	final long[] now = new long[] { Long.MIN_VALUE / 2 };
+	FirstLevelCacheService cacheService = new FirstLevelCacheService(10) {
+
+	    @Override
+	    protected long currentTimeNanos() {
+		return now[0];
+	    }
+	};
+	cacheService.put("a", 1, "1");
+	cacheService.put("b", "2");
+	now[0] += TimeUnit.SECONDS.toNanos(2);
+	// swept by the maintenance without being read
+	cacheService.put("c", "3");
+	Assert.assertEquals(cacheService.size(), 2);
+	Assert.assertEquals(cacheService.getStats().values().iterator().next()
+		.get("expirations"), "1");
+    }
+
+    public void testMaxBytes() {
+	FirstLevelCacheService cacheService = new FirstLevelCacheService(1000);
+	cacheService.setMaxBytes(10000);
+	ClassRegistryWeigher weigher = new ClassRegistryWeigher();
+	weigher.register(String.class, new Weigher() {
+
+	    @Override
+	    public int weigh(Serializable value) {
+		return ((String) value).length();
+	    }
+	});
+	cacheService.setWeigher(weigher);
+
+	char[] big = new char[4000];
+	Arrays.fill(big, 'x');
+	for (int i = 0; i < 10; i++) {
+	    cacheService.put("big" + i, new String(big));
+	}
+	Map<String, String> stats = cacheService.getStats().values()
+		.iterator().next();
+	Assert.assertTrue(Long.parseLong(stats.get("bytes")) <= 10000);
+	Assert.assertEquals(stats.get("maxBytes"), "10000");
+	Assert.assertEquals(stats.get("maxEntries"), "1000");
+	Assert.assertEquals(stats.get("entries"),
+		String.valueOf(cacheService.size()));
+	Assert.assertTrue(cacheService.size() <= 2);
+
+	// a value above the limit is not cached and drops the stale one
+	cacheService.put("a", "1");
+	cacheService.put("a", new String(new char[20000]));
+	Assert.assertNull(cacheService.get("a"));
+
+	cacheService.clearAll();
+	Assert.assertEquals(cacheService.getStats().values().iterator().next()
+		.get("bytes"), "0");
+    }
+
+    public void testMissRatioCurveStats() {
+	FirstLevelCacheService cacheService = new FirstLevelCacheService(8);
+	Map<String, String> stats = cacheService.getStats().values()
+		.iterator().next();
+	Assert.assertNull(stats.get("mrc.sampleRate"));
+
+	cacheService.setMissRatioCurveKeys(100);
+	Assert.assertEquals(cacheService.getMissRatioCurveKeys(), 100);
+	for (int i = 0; i < 1000; i++) {
+	    cacheService.get("key" + (i % 4));
+	}
+	stats = cacheService.getStats().values().iterator().next();
+	Assert.assertEquals(Double.parseDouble(stats.get("mrc.sampleRate")),
+		0.01, 1e-6);
+	Assert.assertNotNull(stats.get("mrc.sampledKeys"));
+	Assert.assertNotNull(stats.get("mrc.hitRatio.1"));
+	Assert.assertNotNull(stats.get("mrc.hitRatio.64"));
+	Assert.assertNull(stats.get("mrc.hitRatio.0"));
+
+	cacheService.setMissRatioCurveKeys(0);
+	Assert.assertEquals(cacheService.getMissRatioCurveKeys(), 0);
+	Assert.assertNull(cacheService.getStats().values().iterator().next()
+		.get("mrc.sampleRate"));
+    }
+
+    public void testWarmRestart() throws IOException {
+	File file = File.createTempFile("firstlevel", ".snapshot");
+	file.delete();
+	FirstLevelCacheService cacheService = new FirstLevelCacheService(100);
+	cacheService.setSnapshotFile(file.getPath());
+	cacheService.put("a", "1");
+	cacheService.put("b", 2);
+	cacheService.put("expired", 1, "x");
+	cacheService.put("c", 60, "3");
+	cacheService.shutdown();
+	Assert.assertTrue(file.isFile());
+
+	FirstLevelCacheService restarted = new FirstLevelCacheService(100);
+	restarted.setSnapshotFile(file.getPath());
+	// opened on first use
+	Assert.assertTrue(file.exists());
+	Assert.assertEquals(restarted.size(), 0);
+	Assert.assertEquals(restarted.getStats().values().iterator().next()
+		.get("snapshotEntries"), "4");
+	Assert.assertFalse(file.exists());
+
+	Assert.assertEquals(restarted.get("a"), "1");
+	Assert.assertEquals(restarted.get("b"), 2);
+	Assert.assertEquals(restarted.size(), 2);
+	// a key written after the restart wins over the snapshot
+	restarted.put("c", "new");
+	Assert.assertEquals(restarted.get("c"), "new");
+	restarted.remove("expired");
+	Assert.assertNull(restarted.get("expired"));
+	// every key was served, the snapshot is released
+	Assert.assertNull(restarted.getStats().values().iterator().next()
+		.get("snapshotEntries"));
+	restarted.clearAll();
+	Assert.assertNull(restarted.get("a"));
+    }
+
+    public void testWarmRestartTranscoderSetLast() throws IOException {
+	Transcoder<Object> reversing = new SerializingTranscoder() {
+
+	    @Override
+	    public CachedData encode(Object o) {
+		return super.encode(new StringBuilder((String) o).reverse()
+			.toString());
+	    }
+
+	    @Override
+	    public Object decode(CachedData d) {
+		return new StringBuilder((String) super.decode(d)).reverse()
+			.toString();
+	    }
+	};
+	File file = File.createTempFile("firstlevel", ".snapshot");
+	file.delete();
+	FirstLevelCacheService cacheService = new FirstLevelCacheService(100);
+	cacheService.setSnapshotTranscoder(reversing);
+	cacheService.setSnapshotFile(file.getPath());
+	cacheService.put("a", "ab");
+	cacheService.shutdown();
+
+	// the order Spring may set the properties in
+	FirstLevelCacheService restarted = new FirstLevelCacheService(100);
+	restarted.setSnapshotFile(file.getPath());
+	restarted.setSnapshotTranscoder(reversing);
+	Assert.assertEquals(restarted.get("a"), "ab");
+    }
+
 }
@@ -0,0 +1,132 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import net.spy.memcached.transcoders.SerializingTranscoder;
+import net.spy.memcached.transcoders.Transcoder;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.salesforce.ddc.threelevelmemcache.eviction.FirstLevelCacheEntry;
+
+@Test(groups = "unit")
+public class FirstLevelCacheSnapshotUnitTestNG {
+
+    private final Transcoder<Object> transcoder = new SerializingTranscoder();
+
+    public void testRoundTrip() throws IOException {
+	File file = newFile();
+	long now = TimeUnit.HOURS.toNanos(1);
+	List<FirstLevelCacheEntry> entries = new ArrayList<FirstLevelCacheEntry>();
+	entries.add(new FirstLevelCacheEntry("hot", "1"));
+	entries.add(new FirstLevelCacheEntry("ttl", 2, now
+		+ TimeUnit.MINUTES.toNanos(10)));
+	entries.add(new FirstLevelCacheEntry("expired", "3", now - 1));
+	Assert.assertEquals(
+		FirstLevelCacheSnapshot.write(file, entries, now, transcoder), 2);
+
+	FirstLevelCacheSnapshot snapshot = FirstLevelCacheSnapshot.open(file,
+		10, transcoder);
+	Assert.assertFalse(file.exists());
+	Assert.assertEquals(snapshot.size(), 2);
+	Assert.assertNull(snapshot.take("expired"));
+
+	FirstLevelCacheSnapshot.Entry hot = snapshot.take("hot");
+	Assert.assertEquals(hot.getValue(), "1");
+	Assert.assertEquals(hot.getExpiresAt(), 0);
+	// every key is served once
+	Assert.assertNull(snapshot.take("hot"));
+
+	FirstLevelCacheSnapshot.Entry ttl = snapshot.take("ttl");
+	Assert.assertEquals(ttl.getValue(), 2);
+	long remaining = ttl.getExpiresAt() - System.currentTimeMillis();
+	Assert.assertTrue(remaining > TimeUnit.MINUTES.toMillis(9)
+		&& remaining <= TimeUnit.MINUTES.toMillis(10), "" + remaining);
+	Assert.assertEquals(snapshot.size(), 0);
+    }
+
+    public void testMaxEntries() throws IOException {
+	File file = newFile();
+	List<FirstLevelCacheEntry> entries = new ArrayList<FirstLevelCacheEntry>();
+	for (int i = 0; i < 10; i++) {
+	    entries.add(new FirstLevelCacheEntry("k" + i, i));
+	}
+	FirstLevelCacheSnapshot.write(file, entries, 0, transcoder);
+
+	// only the hottest entries are loaded
+	FirstLevelCacheSnapshot snapshot = FirstLevelCacheSnapshot.open(file,
+		3, transcoder);
+	Assert.assertEquals(snapshot.size(), 3);
+	Assert.assertEquals(snapshot.take("k2").getValue(), 2);
+	Assert.assertNull(snapshot.take("k3"));
+    }
+
+    public void testFormatVersion() throws IOException {
+	File file = newFile();
+	List<FirstLevelCacheEntry> entries = new ArrayList<FirstLevelCacheEntry>();
+	entries.add(new FirstLevelCacheEntry("a", "1"));
+	FirstLevelCacheSnapshot.write(file, entries, 0, transcoder);
+	RandomAccessFile raf = new RandomAccessFile(file, "rw");
+	try {
+	    raf.seek(4);
+	    raf.writeInt(FirstLevelCacheSnapshot.FORMAT_VERSION + 1);
+	} finally {
+	    raf.close();
+	}
+	Assert.assertNull(FirstLevelCacheSnapshot.open(file, 10, transcoder));
+	Assert.assertFalse(file.exists());
+    }
+
+    public void testTruncated() throws IOException {
+	File file = newFile();
+	List<FirstLevelCacheEntry> entries = new ArrayList<FirstLevelCacheEntry>();
+	entries.add(new FirstLevelCacheEntry("a", "1"));
+	entries.add(new FirstLevelCacheEntry("b", "2"));
+	FirstLevelCacheSnapshot.write(file, entries, 0, transcoder);
+	RandomAccessFile raf = new RandomAccessFile(file, "rw");
+	try {
+	    raf.setLength(raf.length() - 1);
+	} finally {
+	    raf.close();
+	}
+	Assert.assertNull(FirstLevelCacheSnapshot.open(file, 10, transcoder));
+	Assert.assertNull(FirstLevelCacheSnapshot.open(file, 10, transcoder));
+    }
+
+    private static File newFile() throws IOException {
+	File file = File.createTempFile("firstlevel", ".snapshot");
+	file.deleteOnExit();
+	return file;
+    }
+}
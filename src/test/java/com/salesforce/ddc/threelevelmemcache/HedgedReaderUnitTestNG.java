@@ -0,0 +1,184 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache;
+
+import java.io.Serializable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.salesforce.ddc.threelevelmemcache.exposed.CacheFuture;
+
+@Test(groups = "unit")
+public class HedgedReaderUnitTestNG {
+
+    /**
+     * Tiers answering with the futures set by the test.
+     */
+    private static final class FakeTiers implements HedgedReader.Tiers {
+
+	private volatile CacheFuture<Serializable> primary, secondary;
+	private final AtomicInteger secondaryReads = new AtomicInteger();
+	private final AtomicInteger primaryMisses = new AtomicInteger();
+	private final AtomicInteger primaryHits = new AtomicInteger();
+	private final AtomicInteger secondaryHits = new AtomicInteger();
+
+	@Override
+	public CacheFuture<Serializable> primary(Object key) {
+	    return primary;
+	}
+
+	@Override
+	public CacheFuture<Serializable> secondary(Object key) {
+	    secondaryReads.incrementAndGet();
+	    return secondary;
+	}
+
+	@Override
+	public void missedPrimary(Object key, Serializable secondaryValue) {
+	    primaryMisses.incrementAndGet();
+	}
+
+	@Override
+	public void found(Object key, boolean bySecondary) {
+	    (bySecondary ? secondaryHits : primaryHits).incrementAndGet();
+	}
+    }
+
+    /**
+     * Samples enough fast primary reads to start hedging.
+     */
+    private static void warmUp(HedgedReader reader, FakeTiers tiers) {
+	tiers.primary = SettableCacheFuture.<Serializable> completed("p");
+	for (int i = 0; i < HedgedReader.LATENCY_SAMPLES; i++) {
+	    Assert.assertEquals(reader.get("a", tiers), "p");
+	}
+	Assert.assertEquals(reader.getDelayMicros(), 1000);
+	Assert.assertEquals(tiers.secondaryReads.get(), 0);
+	Assert.assertEquals(reader.getHedges(), 0);
+    }
+
+    public void testHedgesSlowPrimary() {
+	HedgedReader reader = new HedgedReader();
+	FakeTiers tiers = new FakeTiers();
+	Assert.assertEquals(reader.getDelayMicros(), -1);
+	warmUp(reader, tiers);
+
+	tiers.primary = new SettableCacheFuture<Serializable>();
+	tiers.secondary = SettableCacheFuture.<Serializable> completed("s");
+	Assert.assertEquals(reader.get("a", tiers), "s");
+	Assert.assertEquals(reader.getHedges(), 1);
+	Assert.assertEquals(reader.getHedgeWins(), 1);
+	Assert.assertEquals(tiers.primaryHits.get(),
+		HedgedReader.LATENCY_SAMPLES);
+	Assert.assertEquals(tiers.secondaryHits.get(), 1);
+
+	// a miss of a fast primary still goes to secondary
+	tiers.primary = SettableCacheFuture.<Serializable> completed(null);
+	Assert.assertEquals(reader.get("a", tiers), "s");
+	Assert.assertEquals(reader.getHedges(), 1);
+	Assert.assertEquals(tiers.secondaryReads.get(), 2);
+	// only the miss is reported, not the hedge
+	Assert.assertEquals(tiers.primaryMisses.get(), 1);
+	Assert.assertEquals(tiers.secondaryHits.get(), 2);
+    }
+
+    public void testTimeoutBeforeWarmUp() {
+	HedgedReader reader = new HedgedReader();
+	reader.setTimeoutMsec(50);
+	FakeTiers tiers = new FakeTiers();
+	tiers.primary = new SettableCacheFuture<Serializable>();
+	tiers.secondary = SettableCacheFuture.<Serializable> completed("s");
+	long start = System.currentTimeMillis();
+	// not hedged yet, but the wait for primary is still bounded
+	Assert.assertNull(reader.get("a", tiers));
+	Assert.assertTrue(System.currentTimeMillis() - start < 1000);
+	Assert.assertEquals(tiers.secondaryReads.get(), 0);
+	Assert.assertEquals(reader.getHedges(), 0);
+    }
+
+    public void testNullLosesTheRace() throws Exception {
+	HedgedReader reader = new HedgedReader();
+	FakeTiers tiers = new FakeTiers();
+	warmUp(reader, tiers);
+
+	final SettableCacheFuture<Serializable> primary = new SettableCacheFuture<Serializable>();
+	tiers.primary = primary;
+	tiers.secondary = SettableCacheFuture.<Serializable> completed(null);
+	ScheduledExecutorService executor = Executors
+		.newSingleThreadScheduledExecutor();
+	try {
+	    executor.schedule(new Runnable() {
+
+		@Override
+		public void run() {
+		    primary.set("p");
+		}
+	    }, 20, TimeUnit.MILLISECONDS);
+	    Assert.assertEquals(reader.get("a", tiers), "p");
+	} finally {
+	    executor.shutdown();
+	}
+	Assert.assertEquals(reader.getHedges(), 1);
+	Assert.assertEquals(reader.getHedgeWins(), 0);
+    }
+
+    public void testBudget() throws Exception {
+	HedgedReader reader = new HedgedReader();
+	reader.setBudgetPercent(0);
+	FakeTiers tiers = new FakeTiers();
+	warmUp(reader, tiers);
+
+	tiers.secondary = SettableCacheFuture.<Serializable> completed("s");
+	tiers.primary = new SettableCacheFuture<Serializable>();
+	// the initial budget allows one hedge
+	Assert.assertEquals(reader.get("a", tiers), "s");
+
+	final SettableCacheFuture<Serializable> primary = new SettableCacheFuture<Serializable>();
+	tiers.primary = primary;
+	ScheduledExecutorService executor = Executors
+		.newSingleThreadScheduledExecutor();
+	try {
+	    executor.schedule(new Runnable() {
+
+		@Override
+		public void run() {
+		    primary.set("p");
+		}
+	    }, 20, TimeUnit.MILLISECONDS);
+	    Assert.assertEquals(reader.get("a", tiers), "p");
+	} finally {
+	    executor.shutdown();
+	}
+	Assert.assertEquals(reader.getHedges(), 1);
+	Assert.assertEquals(reader.getOverBudget(), 1);
+	Assert.assertEquals(tiers.secondaryReads.get(), 1);
+    }
+}
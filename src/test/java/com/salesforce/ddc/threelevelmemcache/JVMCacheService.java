@@ -26,10 +26,13 @@
 package com.salesforce.ddc.threelevelmemcache;
 
 import java.io.Serializable;
+import java.util.HashMap;
 import java.util.Map;
 
 import org.apache.commons.lang.StringUtils;
 
+import com.salesforce.ddc.threelevelmemcache.eviction.FirstLevelCacheEntry;
+
 /**
  * Cache implementation is based on inner Concurrent Map.
  */
@@ -47,10 +50,7 @@ public class JVMCacheService extends FirstLevelCacheService {
     public void remove(Object key) {
 
 	String _key = getKey(key);
-	Serializable value = cache.remove(_key);
-	if (value != null) {
-	    items.addAndGet(-1);
-	}
+	removeEntry(_key);
 
 	if (listener != null)
 	    listener.remove(key);
@@ -59,7 +59,7 @@ public class JVMCacheService extends FirstLevelCacheService {
     @Override
     public void put(Object key, Serializable obj) {
 	String _key = getKey(key);
-	cache.put(_key, obj);
+	putEntry(_key, obj);
 	if (listener != null)
 	    listener.put(key, obj);
 
@@ -69,9 +69,9 @@ public class JVMCacheService extends FirstLevelCacheService {
     public void append(Object key, String obj) {
 	String normalizedKey = getKey(key);
 	if (cache.containsKey(normalizedKey)) {
-	    String indexList = (String) cache.get(normalizedKey);
+	    String indexList = (String) cache.get(normalizedKey).getValue();
 	    if (StringUtils.isNotBlank(indexList)) {
-		cache.put(normalizedKey, new StringBuffer(indexList)
+		putEntry(normalizedKey, new StringBuffer(indexList)
 			.append(",").append(obj).toString());
 	    }
 	    if (listener != null)
@@ -83,7 +83,11 @@ public class JVMCacheService extends FirstLevelCacheService {
     }
 
     public Map<Object, Serializable> getMap() {
-	return cache;
+	Map<Object, Serializable> map = new HashMap<Object, Serializable>();
+	for (FirstLevelCacheEntry entry : cache.values()) {
+	    map.put(entry.getKey(), entry.getValue());
+	}
+	return map;
     }
 
     @Override
@@ -25,10 +25,14 @@
  */
 package com.salesforce.ddc.threelevelmemcache;
 
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyObject;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertTrue;
 
@@ -47,15 +51,20 @@ import java.util.concurrent.TimeoutException;
 
 import net.spy.memcached.CASResponse;
 import net.spy.memcached.CASValue;
+import net.spy.memcached.CachedData;
 import net.spy.memcached.MemcachedClientIF;
 import net.spy.memcached.NodeLocator;
 import net.spy.memcached.internal.BulkFuture;
 import net.spy.memcached.internal.BulkGetCompletionListener;
 import net.spy.memcached.internal.CheckedOperationTimeoutException;
+import net.spy.memcached.internal.OperationCompletionListener;
 import net.spy.memcached.internal.OperationFuture;
 import net.spy.memcached.ops.Operation;
 import net.spy.memcached.ops.OperationStatus;
+import net.spy.memcached.transcoders.SerializingTranscoder;
+import net.spy.memcached.transcoders.Transcoder;
 
+import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.AppenderSkeleton;
 import org.apache.log4j.Level;
 import org.apache.log4j.LogManager;
@@ -65,6 +74,11 @@ import org.mockito.Mockito;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import com.salesforce.ddc.threelevelmemcache.exposed.CacheFuture;
+import com.salesforce.ddc.threelevelmemcache.exposed.RemoveOutcome;
+import com.salesforce.ddc.threelevelmemcache.exposed.util.KeyEncoding;
+import com.salesforce.ddc.threelevelmemcache.exposed.util.KeyFormat;
+import com.salesforce.ddc.threelevelmemcache.exposed.util.KeyHash;
 import com.salesforce.ddc.threelevelmemcache.exposed.util.SHAKey;
 import com.salesforce.ddc.threelevelmemcache.exposed.util.WaitResponseUtils;
 
@@ -333,4 +347,330 @@ public class MemcachedCacheServiceUnitTestNG {
 
     }
 
+    @Test(groups = "unit")
+    public void testPutBatchReportsFailedKeys() {
+	MemcachedClientIF mc = mock(MemcachedClientIF.class);
+	when(mc.set(SHAKey.sha("a"), 0, "1")).thenReturn(setFuture(true));
+	when(mc.set(SHAKey.sha("b"), 0, "2")).thenReturn(setFuture(false));
+	when(mc.set(SHAKey.sha("c"), 0, "3")).thenReturn(setFuture(null));
+	MemcachedCacheService cs = new MemcachedCacheService(mc);
+	cs.setTimeOutBulkOperation("100");
+	List<String> keys = Arrays.asList("a", "b", "c");
+	List<String> values = Arrays.asList("1", "2", "3");
+
+	// not synchronous, the sets are not awaited
+	Assert.assertTrue(cs.putBatch(keys, values, 0).isEmpty());
+
+	cs.setSynchronousPut(true);
+	long start = System.currentTimeMillis();
+	Assert.assertEquals(cs.putBatch(keys, values, 0),
+		Arrays.asList("b", "c"));
+	Assert.assertTrue(System.currentTimeMillis() - start < 1000,
+		"Sets should share one deadline");
+	// failed keys are only logged, the batch goes on to the other tiers
+	cs.putBatch(keys, values);
+	verify(mc, times(3)).set(SHAKey.sha("c"), 0, "3");
+    }
+
+    /**
+     * @param result
+     *            result of the set, null for a set which never completes
+     */
+    private OperationFuture<Boolean> setFuture(final Boolean result) {
+	return new OperationFuture<Boolean>("", new CountDownLatch(0), 1000,
+		Executors.newSingleThreadExecutor()) {
+
+	    @Override
+	    public boolean isDone() {
+		return result != null;
+	    }
+
+	    @Override
+	    public Boolean get(long timeout, TimeUnit unit)
+		    throws InterruptedException, ExecutionException,
+		    TimeoutException {
+		if (result == null) {
+		    Thread.sleep(unit.toMillis(timeout));
+		    throw new TimeoutException("Exception");
+		}
+		return result;
+	    }
+	};
+    }
+
+    @Test(groups = "unit")
+    public void testAsyncOperationTimesOut() throws Exception {
+	MemcachedClientIF mc = mock(MemcachedClientIF.class);
+	// never completes, so the callback never comes
+	when(mc.add(SHAKey.sha("a"), 0, "1")).thenReturn(setFuture(null));
+	MemcachedCacheService cs = new MemcachedCacheService(mc);
+	cs.setTimeOutSingleOperation("50");
+
+	CacheFuture<Boolean> future = cs.asyncAdd("a", "1");
+	Assert.assertFalse(future.isDone());
+	Assert.assertEquals(future.get(1, TimeUnit.SECONDS), Boolean.FALSE);
+    }
+
+    @Test(groups = "unit")
+    public void testRemoveBatchWithOutcome() throws Exception {
+	MemcachedClientIF mc = mock(MemcachedClientIF.class);
+	when(mc.delete(SHAKey.sha("a"))).thenReturn(
+		deleteFuture(new OperationStatus(true, "OK")));
+	when(mc.delete(SHAKey.sha("b"))).thenReturn(
+		deleteFuture(new OperationStatus(false, "NOT_FOUND")));
+	when(mc.delete(SHAKey.sha("c"))).thenReturn(
+		deleteFuture(new OperationStatus(false, "Temporary failure")));
+	when(mc.delete(SHAKey.sha("d"))).thenReturn(deleteFuture(null));
+	MemcachedCacheService cs = new MemcachedCacheService(mc);
+	cs.setTimeOutBulkOperation("100");
+	List<Object> keys = Arrays.<Object> asList("a", "b", "c", "d");
+
+	Map<Object, RemoveOutcome> outcomes = cs.removeBatchWithOutcome(keys);
+	Assert.assertEquals(outcomes.get("a"), RemoveOutcome.REMOVED);
+	Assert.assertEquals(outcomes.get("b"), RemoveOutcome.NOT_FOUND);
+	Assert.assertEquals(outcomes.get("c"), RemoveOutcome.FAILED);
+	Assert.assertEquals(outcomes.get("d"), RemoveOutcome.TIMED_OUT);
+
+	outcomes = cs.asyncRemoveBatch(Arrays.<Object> asList("a", "b")).get(
+		1, TimeUnit.SECONDS);
+	Assert.assertEquals(outcomes.get("a"), RemoveOutcome.REMOVED);
+	Assert.assertEquals(outcomes.get("b"), RemoveOutcome.NOT_FOUND);
+    }
+
+    @Test(groups = "unit")
+    public void testDualReadKeys() {
+	MemcachedClientIF mc = mock(MemcachedClientIF.class);
+	Map<String, Object> stored = new HashMap<String, Object>();
+	stored.put(SHAKey.hash("a", KeyHash.MURMUR3_128), "new");
+	stored.put(SHAKey.sha("a"), "stale");
+	stored.put(SHAKey.sha("b"), "old");
+	when(mc.asyncGetBulk(Mockito.anyCollection())).thenReturn(
+		bulkFuture(stored));
+	when(mc.delete(anyString())).thenReturn(
+		deleteFuture(new OperationStatus(true, "OK")));
+	MemcachedCacheService cs = new MemcachedCacheService(mc);
+	cs.setKeyHash(KeyHash.MURMUR3_128);
+	cs.setDualReadKeyHash(KeyHash.SHA1);
+
+	Assert.assertEquals(cs.getBatch(Arrays.asList("a", "b", "c")),
+		Arrays.asList("new", "old", null));
+	// one multiget for both formats
+	Mockito.verify(mc).asyncGetBulk(
+		Arrays.asList(SHAKey.hash("a", KeyHash.MURMUR3_128),
+			SHAKey.hash("b", KeyHash.MURMUR3_128),
+			SHAKey.hash("c", KeyHash.MURMUR3_128),
+			SHAKey.sha("a"), SHAKey.sha("b"), SHAKey.sha("c")));
+	Assert.assertEquals(cs.get("b"), "old");
+
+	cs.remove("b");
+	Mockito.verify(mc).delete(SHAKey.hash("b", KeyHash.MURMUR3_128));
+	Mockito.verify(mc).delete(SHAKey.sha("b"));
+
+	// migration over, the old keys are not read anymore
+	cs.setDualReadKeyHash(null);
+	Assert.assertEquals(cs.getBatch(Arrays.asList("b")),
+		Arrays.asList((Object) null));
+    }
+
+    @Test(groups = "unit")
+    public void testDualReadKeyEncoding() {
+	MemcachedClientIF mc = mock(MemcachedClientIF.class);
+	KeyFormat compact = KeyFormat.DEFAULT.withEncoding(
+		KeyEncoding.BASE64URL).withNamespace("app:");
+	Map<String, Object> stored = new HashMap<String, Object>();
+	stored.put(compact.format("a"), "new");
+	stored.put(SHAKey.sha("b"), "old");
+	when(mc.asyncGetBulk(Mockito.anyCollection())).thenReturn(
+		bulkFuture(stored));
+	MemcachedCacheService cs = new MemcachedCacheService(mc);
+	cs.setKeyEncoding(KeyEncoding.BASE64URL);
+	cs.setKeyNamespace("app:");
+	cs.setDualReadKeyHash(KeyHash.SHA1);
+	Assert.assertEquals(cs.getKeyFormat(), compact);
+	Assert.assertEquals(cs.getDualReadKeyFormat(), KeyFormat.DEFAULT);
+
+	Assert.assertEquals(cs.getBatch(Arrays.asList("a", "b")),
+		Arrays.asList("new", "old"));
+	Mockito.verify(mc).asyncGetBulk(
+		Arrays.asList(compact.format("a"), compact.format("b"),
+			SHAKey.sha("a"), SHAKey.sha("b")));
+
+	// the same format twice is read once
+	cs.setKeyFormat(KeyFormat.DEFAULT);
+	Assert.assertNull(cs.getDualReadKeyFormat());
+    }
+
+    @Test(groups = "unit")
+    public void testChunkedValues() {
+	SerializingTranscoder transcoder = new SerializingTranscoder();
+	MemcachedClientIF mc = mock(MemcachedClientIF.class);
+	when(mc.getTranscoder()).thenReturn(transcoder);
+	when(mc.set(anyString(), anyInt(), anyObject())).thenReturn(
+		setFuture(true));
+	MemcachedCacheService cs = new MemcachedCacheService(mc);
+	cs.setMaxItemSize(64);
+	String value = StringUtils.repeat("0123456789", 20);
+
+	// 200 bytes in chunks of 56 bytes and the version
+	cs.put("a", value);
+	for (int i = 0; i < 4; i++) {
+	    Mockito.verify(mc).set(eq(SHAKey.sha("a") + ":" + i), eq(0),
+		    anyObject(), eq(ChunkManifest.TRANSCODER));
+	}
+	Mockito.verify(mc, Mockito.never()).set(eq(SHAKey.sha("a") + ":4"),
+		anyInt(), anyObject(), eq(ChunkManifest.TRANSCODER));
+
+	ChunkManifest manifest = new ChunkManifest(SHAKey.sha("a"),
+		transcoder.encode(value), 64);
+	Map<String, Object> stored = new HashMap<String, Object>();
+	stored.put(SHAKey.sha("a"), manifest);
+	stored.put(SHAKey.sha("b"), "small");
+	Map<String, byte[]> chunks = new HashMap<String, byte[]>();
+	byte[] data = transcoder.encode(value).getData();
+	for (int i = 0; i < manifest.getChunkCount(); i++) {
+	    chunks.put(manifest.getChunkKey(i), manifest.getChunk(data, i));
+	}
+	when(mc.asyncGetBulk(Mockito.anyCollection())).thenReturn(
+		bulkFuture(stored));
+	when(
+		mc.asyncGetBulk(Mockito.anyCollection(),
+			Mockito.<Transcoder<byte[]>> anyObject())).thenReturn(
+		bulkFuture(chunks));
+	Assert.assertEquals(cs.getBatch(Arrays.asList("a", "b", "c")),
+		Arrays.asList(value, "small", null));
+
+	// a chunk of a newer value, written while the value was read
+	CachedData newer = transcoder.encode(value.replace('0', '1'));
+	chunks.put(manifest.getChunkKey(2), new ChunkManifest(SHAKey.sha("a"),
+		newer, 64).getChunk(newer.getData(), 2));
+	Assert.assertEquals(cs.getBatch(Arrays.asList("a")),
+		Arrays.asList((Object) null));
+
+	chunks.put(manifest.getChunkKey(2), manifest.getChunk(data, 2));
+	Assert.assertEquals(cs.getBatch(Arrays.asList("a")),
+		Arrays.asList(value));
+	chunks.remove(manifest.getChunkKey(3));
+	Assert.assertEquals(cs.getBatch(Arrays.asList("a")),
+		Arrays.asList((Object) null));
+    }
+
+    @Test(groups = "unit")
+    public void testSynchronousPutAwaitsChunks() {
+	SerializingTranscoder transcoder = new SerializingTranscoder();
+	MemcachedClientIF mc = mock(MemcachedClientIF.class);
+	when(mc.getTranscoder()).thenReturn(transcoder);
+	when(mc.set(anyString(), anyInt(), anyObject())).thenReturn(
+		setFuture(true));
+	when(
+		mc.set(anyString(), anyInt(), Mockito.<byte[]> anyObject(),
+			eq(ChunkManifest.TRANSCODER))).thenReturn(
+		setFuture(true));
+	MemcachedCacheService cs = new MemcachedCacheService(mc);
+	cs.setMaxItemSize(64);
+	cs.setSynchronousPut(true);
+	cs.setTimeOutBulkOperation("100");
+	List<String> keys = Arrays.asList("a");
+	List<String> values = Arrays.asList(StringUtils.repeat("0123456789",
+		20));
+
+	Assert.assertTrue(cs.putBatch(keys, values, 0).isEmpty());
+	Mockito.verify(mc, Mockito.never()).delete(anyString());
+
+	// a chunk which is not stored fails the put and removes the manifest
+	when(
+		mc.set(eq(SHAKey.sha("a") + ":2"), anyInt(),
+			Mockito.<byte[]> anyObject(),
+			eq(ChunkManifest.TRANSCODER))).thenReturn(
+		setFuture(false));
+	Assert.assertEquals(cs.putBatch(keys, values, 0), keys);
+	Mockito.verify(mc).delete(SHAKey.sha("a"));
+    }
+
+    private <T> BulkFuture<Map<String, T>> bulkFuture(
+	    final Map<String, T> stored) {
+	return new BulkFuture<Map<String, T>>() {
+
+	    @Override
+	    public boolean isDone() {
+		return true;
+	    }
+
+	    @Override
+	    public boolean isCancelled() {
+		return false;
+	    }
+
+	    @Override
+	    public Map<String, T> get() {
+		return stored;
+	    }
+
+	    @Override
+	    public Map<String, T> get(long timeout, TimeUnit unit) {
+		return stored;
+	    }
+
+	    @Override
+	    public boolean cancel(boolean mayInterruptIfRunning) {
+		return false;
+	    }
+
+	    @Override
+	    public boolean isTimeout() {
+		return false;
+	    }
+
+	    @Override
+	    public OperationStatus getStatus() {
+		return new OperationStatus(true, "");
+	    }
+
+	    @Override
+	    public Map<String, T> getSome(long timeout, TimeUnit unit) {
+		return stored;
+	    }
+
+	    @Override
+	    public Future<Map<String, T>> addListener(
+		    BulkGetCompletionListener listener) {
+		return this;
+	    }
+
+	    @Override
+	    public Future<Map<String, T>> removeListener(
+		    BulkGetCompletionListener listener) {
+		return this;
+	    }
+	};
+    }
+
+    /**
+     * @param status
+     *            status of the delete, null for a delete which never
+     *            completes
+     */
+    private OperationFuture<Boolean> deleteFuture(final OperationStatus status) {
+	return new OperationFuture<Boolean>("", new CountDownLatch(0), 1000,
+		Executors.newSingleThreadExecutor()) {
+
+	    @Override
+	    public OperationStatus getStatus() {
+		return status;
+	    }
+
+	    @Override
+	    public OperationFuture<Boolean> addListener(
+		    OperationCompletionListener listener) {
+		if (status != null) {
+		    try {
+			listener.onComplete(this);
+		    } catch (Exception e) {
+			throw new RuntimeException(e);
+		    }
+		}
+		return this;
+	    }
+	};
+    }
+
 }
@@ -0,0 +1,204 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache;
+
+import java.io.Serializable;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.salesforce.ddc.threelevelmemcache.exposed.NotUseFirstLevelCacheDomain;
+import com.salesforce.ddc.threelevelmemcache.exposed.util.SHAKey;
+
+@Test(groups = "unit")
+public class MissCoalescerUnitTestNG {
+
+    public void testTimeout() throws Exception {
+	final MissCoalescer coalescer = new MissCoalescer();
+	coalescer.setTimeoutMsec(50);
+	final CountDownLatch loading = new CountDownLatch(1);
+	final CountDownLatch release = new CountDownLatch(1);
+	final AtomicInteger loads = new AtomicInteger();
+	final MissCoalescer.Loader loader = new MissCoalescer.Loader() {
+
+	    @Override
+	    public Serializable load(Object key) {
+		if (loads.incrementAndGet() == 1) {
+		    loading.countDown();
+		    try {
+			release.await();
+		    } catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		    }
+		    return "slow";
+		}
+		return "fast";
+	    }
+	};
+	ExecutorService executor = Executors.newSingleThreadExecutor();
+	try {
+	    Future<Serializable> leader = executor
+		    .submit(new Callable<Serializable>() {
+
+			@Override
+			public Serializable call() {
+			    return coalescer.get("k", loader);
+			}
+		    });
+	    Assert.assertTrue(loading.await(10, TimeUnit.SECONDS));
+	    // the waiter gives up and loads the key itself
+	    Assert.assertEquals(coalescer.get("k", loader), "fast");
+	    Assert.assertEquals(coalescer.getTimeouts(), 1);
+	    Assert.assertEquals(coalescer.getInFlight(), 1);
+	    release.countDown();
+	    Assert.assertEquals(leader.get(10, TimeUnit.SECONDS), "slow");
+	} finally {
+	    executor.shutdown();
+	}
+	Assert.assertEquals(coalescer.getInFlight(), 0);
+	Assert.assertEquals(coalescer.getLoads(), 2);
+	Assert.assertEquals(coalescer.getCoalesced("k"), 1);
+    }
+
+    public void testFailedLoad() {
+	MissCoalescer coalescer = new MissCoalescer();
+	try {
+	    coalescer.get("k", new MissCoalescer.Loader() {
+
+		@Override
+		public Serializable load(Object key) {
+		    throw new IllegalStateException();
+		}
+	    });
+	    Assert.fail("the load failure is not propagated");
+	} catch (IllegalStateException e) {
+	}
+	// the failed flight is not left behind
+	Assert.assertEquals(coalescer.getInFlight(), 0);
+	Assert.assertEquals(coalescer.get("k", new MissCoalescer.Loader() {
+
+	    @Override
+	    public Serializable load(Object key) {
+		return "v";
+	    }
+	}), "v");
+    }
+
+    public void testMostCoalescedKeys() {
+	MissCoalescer coalescer = new MissCoalescer();
+	Assert.assertTrue(coalescer.getMostCoalescedKeys(10).isEmpty());
+	Assert.assertEquals(coalescer.getCoalesced("k"), 0);
+
+	for (int i = 0; i < 3; i++) {
+	    coalescer.count("hot");
+	}
+	coalescer.count("cold");
+	// the application keys are not published
+	Assert.assertEquals(coalescer.getMostCoalescedKeys(1).keySet()
+		.iterator().next(), SHAKey.sha("hot"));
+	Assert.assertEquals(coalescer.getCoalesced("hot"), 3);
+    }
+
+    public void testKeyCountsDecay() {
+	MissCoalescer coalescer = new MissCoalescer();
+	for (int i = 0; i < 4; i++) {
+	    coalescer.count("hot");
+	}
+	coalescer.count("cold");
+	for (int i = 0; i < MissCoalescer.DECAY_PERIOD - 5; i++) {
+	    coalescer.count("other");
+	}
+	// halved by the last count, the keys at 0 make room for new ones
+	Assert.assertEquals(coalescer.getCoalesced("hot"), 2);
+	Assert.assertEquals(coalescer.getCoalesced("cold"), 0);
+	Assert.assertEquals(coalescer.getCoalesced("other"),
+		(MissCoalescer.DECAY_PERIOD - 6) / 2 + 1);
+	Assert.assertEquals(coalescer.getMostCoalescedKeys(10).size(), 2);
+    }
+
+    public void testNotSharedDomain() throws Exception {
+	final MissCoalescer coalescer = new MissCoalescer();
+	coalescer.setTimeoutMsec(10000);
+	final CountDownLatch release = new CountDownLatch(1);
+	final AtomicInteger loads = new AtomicInteger();
+	final MissCoalescer.Loader loader = new MissCoalescer.Loader() {
+
+	    @Override
+	    public Serializable load(Object key) {
+		if (loads.incrementAndGet() == 1) {
+		    try {
+			release.await();
+		    } catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		    }
+		}
+		return new NotShared();
+	    }
+	};
+	Callable<Serializable> get = new Callable<Serializable>() {
+
+	    @Override
+	    public Serializable call() {
+		return coalescer.get("k", loader);
+	    }
+	};
+	ExecutorService executor = Executors.newFixedThreadPool(2);
+	try {
+	    Future<Serializable> leader = executor.submit(get);
+	    long deadline = System.currentTimeMillis() + 10000;
+	    while (coalescer.getInFlight() == 0
+		    && System.currentTimeMillis() < deadline) {
+		Thread.sleep(10);
+	    }
+	    Future<Serializable> waiter = executor.submit(get);
+	    while (coalescer.getCoalesced() == 0
+		    && System.currentTimeMillis() < deadline) {
+		Thread.sleep(10);
+	    }
+	    release.countDown();
+	    // the waiter loads its own copy
+	    Assert.assertNotSame(waiter.get(10, TimeUnit.SECONDS),
+		    leader.get(10, TimeUnit.SECONDS));
+	} finally {
+	    executor.shutdown();
+	}
+	Assert.assertEquals(coalescer.getCoalesced(), 1);
+	Assert.assertEquals(loads.get(), 2);
+    }
+
+    @NotUseFirstLevelCacheDomain
+    private static final class NotShared implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+    }
+}
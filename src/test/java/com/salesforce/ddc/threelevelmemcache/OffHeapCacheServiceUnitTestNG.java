@@ -0,0 +1,100 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test(groups = "unit")
+public class OffHeapCacheServiceUnitTestNG {
+
+    public void testPutGet() {
+	OffHeapCacheService cacheService = new OffHeapCacheService(
+		1024 * 1024, 64 * 1024);
+	ArrayList<String> value = new ArrayList<String>(Arrays.asList("a",
+		"b"));
+	cacheService.put("a", value);
+	cacheService.put("b", "string");
+	Assert.assertEquals(cacheService.get("a"), value);
+	// every read is a new copy
+	Assert.assertNotSame(cacheService.get("a"), cacheService.get("a"));
+	Assert.assertEquals(cacheService.get("b"), "string");
+	Assert.assertNull(cacheService.get("c"));
+	Assert.assertEquals(cacheService.size(), 2);
+
+	cacheService.remove("a");
+	Assert.assertNull(cacheService.get("a"));
+	cacheService.incr("b");
+	Assert.assertNull(cacheService.get("b"));
+	Assert.assertEquals(cacheService.size(), 0);
+    }
+
+    public void testEviction() {
+	OffHeapCacheService cacheService = new OffHeapCacheService(
+		64 * 1024, 16 * 1024);
+	char[] chars = new char[3000];
+	Arrays.fill(chars, 'x');
+	String value = new String(chars);
+	for (int i = 0; i < 100; i++) {
+	    cacheService.put("key" + i, value);
+	}
+	Assert.assertTrue(cacheService.size() < 100);
+	Assert.assertEquals(cacheService.get("key99"), value);
+	Assert.assertNull(cacheService.get("key0"));
+
+	Map<String, String> stats = cacheService.getStats().values()
+		.iterator().next();
+	Assert.assertTrue(Long.parseLong(stats.get("evictions")) > 0);
+	Assert.assertTrue(Long.parseLong(stats.get("reservedBytes")) <= 64 * 1024);
+
+	// larger than a slab
+	cacheService.put("big", new String(new char[20 * 1024]));
+	Assert.assertNull(cacheService.get("big"));
+    }
+
+    public void testExpiration() {
+	OffHeapCacheService cacheService = new OffHeapCacheService(
+		1024 * 1024, 64 * 1024);
+	cacheService.put("a", 60, "1");
+	Assert.assertEquals(cacheService.get("a"), "1");
+	// unix time in the past
+	cacheService.put("a", 60 * 60 * 24 * 31, "2");
+	Assert.assertNull(cacheService.get("a"));
+    }
+
+    public void testDisabled() {
+	OffHeapCacheService cacheService = new OffHeapCacheService(0);
+	cacheService.put("a", "1");
+	Assert.assertNull(cacheService.get("a"));
+	Assert.assertEquals(cacheService.size(), 0);
+	cacheService.clearAll();
+	cacheService.shutdown();
+    }
+}
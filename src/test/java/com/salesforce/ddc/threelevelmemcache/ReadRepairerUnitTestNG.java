@@ -0,0 +1,111 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache;
+
+import java.io.Serializable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test(groups = "unit")
+public class ReadRepairerUnitTestNG {
+
+    /**
+     * Adds like memcached, only if the key is absent.
+     */
+    private static class AddingCacheService extends JVMCacheService {
+
+	@Override
+	public boolean add(Object key, Serializable obj) {
+	    if (get(key) != null) {
+		return false;
+	    }
+	    put(key, obj);
+	    return true;
+	}
+    }
+
+    private static void awaitRepairs(ReadRepairer repairer, long repairs)
+	    throws InterruptedException {
+	for (int i = 0; i < 100 && repairer.getRepairs() < repairs; i++) {
+	    Thread.sleep(10);
+	}
+	Assert.assertEquals(repairer.getRepairs(), repairs);
+    }
+
+    public void testRepair() throws Exception {
+	JVMCacheService primary = new AddingCacheService();
+	primary.put("b", "p");
+	ReadRepairer repairer = new ReadRepairer(primary);
+	try {
+	    Assert.assertTrue(repairer.repair("a", "s"));
+	    Assert.assertTrue(repairer.repair("b", "s"));
+	    awaitRepairs(repairer, 2);
+	    Assert.assertEquals(primary.get("a"), "s");
+	    // a value written to primary meanwhile is kept
+	    Assert.assertEquals(primary.get("b"), "p");
+	    Assert.assertEquals(repairer.getPending(), 0);
+	} finally {
+	    repairer.shutdown();
+	}
+    }
+
+    public void testDeduplicatesAndLimits() throws Exception {
+	final CountDownLatch release = new CountDownLatch(1);
+	JVMCacheService primary = new AddingCacheService() {
+
+	    @Override
+	    public boolean add(Object key, Serializable obj) {
+		try {
+		    release.await(1, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+		    Thread.currentThread().interrupt();
+		}
+		return super.add(key, obj);
+	    }
+	};
+	ReadRepairer repairer = new ReadRepairer(primary);
+	repairer.setMaxPerSecond(2);
+	try {
+	    Assert.assertTrue(repairer.repair("a", "s"));
+	    // the key is waiting for its repair already
+	    Assert.assertFalse(repairer.repair("a", "s"));
+	    Assert.assertEquals(repairer.getDeduplicated(), 1);
+	    Assert.assertTrue(repairer.repair("b", "s"));
+	    // over the limit of the current second, unless it just changed
+	    if (!repairer.repair("c", "s")) {
+		Assert.assertEquals(repairer.getRateLimited(), 1);
+		Assert.assertEquals(repairer.getPending(), 2);
+	    }
+	    release.countDown();
+	    awaitRepairs(repairer, 4 - 1 - repairer.getRateLimited());
+	} finally {
+	    repairer.shutdown();
+	}
+    }
+}
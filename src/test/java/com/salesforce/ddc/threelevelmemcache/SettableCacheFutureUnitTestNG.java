@@ -0,0 +1,91 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.salesforce.ddc.threelevelmemcache.exposed.CacheFuture;
+
+@Test(groups = "unit")
+public class SettableCacheFutureUnitTestNG {
+
+    public void testListeners() throws Exception {
+	final List<String> completed = new ArrayList<String>();
+	SettableCacheFuture<String> future = new SettableCacheFuture<String>();
+	future.addListener(new CacheFuture.Listener<String>() {
+
+	    @Override
+	    public void onComplete(CacheFuture<String> f) {
+		completed.add("before");
+	    }
+	});
+	Assert.assertFalse(future.isDone());
+	Assert.assertTrue(completed.isEmpty());
+
+	Assert.assertTrue(future.set("a"));
+	Assert.assertFalse(future.set("b"));
+	Assert.assertFalse(future.cancel(true));
+	Assert.assertTrue(future.isDone());
+	Assert.assertEquals(future.get(), "a");
+	Assert.assertEquals(completed.size(), 1);
+
+	// a listener added later is called right away
+	future.addListener(new CacheFuture.Listener<String>() {
+
+	    @Override
+	    public void onComplete(CacheFuture<String> f) {
+		completed.add("after");
+	    }
+	});
+	Assert.assertEquals(completed.size(), 2);
+	Assert.assertEquals(completed.get(1), "after");
+    }
+
+    public void testException() throws Exception {
+	SettableCacheFuture<String> future = new SettableCacheFuture<String>();
+	try {
+	    future.get(10, TimeUnit.MILLISECONDS);
+	    Assert.fail("not completed yet");
+	} catch (TimeoutException e) {
+	    // expected
+	}
+	IllegalStateException failure = new IllegalStateException();
+	Assert.assertTrue(future.setException(failure));
+	try {
+	    future.get();
+	    Assert.fail("completed with exception");
+	} catch (ExecutionException e) {
+	    Assert.assertSame(e.getCause(), failure);
+	}
+    }
+}
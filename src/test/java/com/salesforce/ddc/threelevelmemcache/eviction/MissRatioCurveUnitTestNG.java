@@ -0,0 +1,110 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache.eviction;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test(groups = "unit")
+public class MissRatioCurveUnitTestNG {
+
+    public void testCyclicReads() {
+	MissRatioCurve curve = new MissRatioCurve(100, 1);
+	Assert.assertEquals(curve.hitRatio(10), 0.0);
+	for (int round = 0; round < 10; round++) {
+	    for (int i = 0; i < 10; i++) {
+		curve.record("key" + i);
+	    }
+	}
+	Assert.assertEquals(curve.getSampledKeys(), 10);
+	Assert.assertEquals(curve.getSampledReads(), 100);
+	// LRU keeps none of the keys of a cycle longer than the cache
+	Assert.assertEquals(curve.hitRatio(9), 0.0);
+	Assert.assertEquals(curve.hitRatio(10), 0.9, 1e-9);
+	Assert.assertEquals(curve.hitRatio(1000), 0.9, 1e-9);
+    }
+
+    public void testBuckets() {
+	int previous = -1;
+	for (long distance = 0; distance < 100000; distance++) {
+	    int bucket = MissRatioCurve.bucket(distance);
+	    Assert.assertTrue(bucket >= previous);
+	    Assert.assertTrue(MissRatioCurve.lowerBound(bucket) <= distance);
+	    Assert.assertTrue(MissRatioCurve.lowerBound(bucket + 1) > distance);
+	    previous = bucket;
+	}
+	Assert.assertEquals(MissRatioCurve.lowerBound(MissRatioCurve
+		.bucket(Long.MAX_VALUE)) >>> 60, 7);
+    }
+
+    public void testSampledEstimate() {
+	long[] sizes = { 1000, 5000, 20000 };
+	double[] hits = new double[sizes.length];
+	@SuppressWarnings("unchecked")
+	Map<Object, Object>[] caches = new Map[sizes.length];
+	for (int i = 0; i < sizes.length; i++) {
+	    caches[i] = lru((int) sizes[i]);
+	}
+	MissRatioCurve curve = new MissRatioCurve(8192, 1);
+	Random random = new Random(42);
+	int reads = 500000;
+	for (int n = 0; n < reads; n++) {
+	    // skewed towards the low keys
+	    double r = random.nextDouble();
+	    String key = "key" + (int) (100000 * r * r);
+	    curve.record(key);
+	    for (int i = 0; i < sizes.length; i++) {
+		if (caches[i].get(key) != null) {
+		    hits[i]++;
+		} else {
+		    caches[i].put(key, key);
+		}
+	    }
+	}
+	Assert.assertTrue(curve.rate() < 1);
+	Assert.assertTrue(curve.getSampledKeys() <= 8192);
+	for (int i = 0; i < sizes.length; i++) {
+	    Assert.assertEquals(curve.hitRatio(sizes[i]), hits[i] / reads,
+		    0.03, "size " + sizes[i]);
+	}
+    }
+
+    private static Map<Object, Object> lru(final int size) {
+	return new LinkedHashMap<Object, Object>(size, 0.75f, true) {
+
+	    private static final long serialVersionUID = 1L;
+
+	    @Override
+	    protected boolean removeEldestEntry(Map.Entry<Object, Object> eldest) {
+		return size() > size;
+	    }
+	};
+    }
+}
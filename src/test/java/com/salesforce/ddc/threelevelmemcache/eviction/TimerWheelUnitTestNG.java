@@ -0,0 +1,90 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache.eviction;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test(groups = "unit")
+public class TimerWheelUnitTestNG {
+
+    public void testAdvance() {
+	TimerWheel wheel = new TimerWheel(0);
+	FirstLevelCacheEntry second = entry("second", TimeUnit.SECONDS, 1);
+	FirstLevelCacheEntry minute = entry("minute", TimeUnit.MINUTES, 5);
+	FirstLevelCacheEntry hour = entry("hour", TimeUnit.HOURS, 3);
+	FirstLevelCacheEntry week = entry("week", TimeUnit.DAYS, 14);
+	wheel.schedule(second);
+	wheel.schedule(minute);
+	wheel.schedule(hour);
+	wheel.schedule(week);
+	wheel.schedule(new FirstLevelCacheEntry("never", "v"));
+	Assert.assertEquals(wheel.size(), 4);
+
+	List<FirstLevelCacheEntry> expired = new ArrayList<FirstLevelCacheEntry>();
+	wheel.advance(TimeUnit.SECONDS.toNanos(3), expired);
+	Assert.assertEquals(expired.size(), 1);
+	Assert.assertSame(expired.get(0), second);
+
+	expired.clear();
+	wheel.advance(TimeUnit.MINUTES.toNanos(4), expired);
+	Assert.assertTrue(expired.isEmpty());
+	wheel.advance(TimeUnit.MINUTES.toNanos(7), expired);
+	Assert.assertEquals(expired.size(), 1);
+	Assert.assertSame(expired.get(0), minute);
+
+	expired.clear();
+	wheel.advance(TimeUnit.DAYS.toNanos(15), expired);
+	Assert.assertEquals(expired.size(), 2);
+	Assert.assertEquals(wheel.size(), 0);
+    }
+
+    public void testDeschedule() {
+	TimerWheel wheel = new TimerWheel(0);
+	FirstLevelCacheEntry a = entry("a", TimeUnit.SECONDS, 10);
+	FirstLevelCacheEntry b = entry("b", TimeUnit.SECONDS, 10);
+	wheel.schedule(a);
+	wheel.schedule(b);
+	wheel.deschedule(a);
+	// descheduling twice is a no-op
+	wheel.deschedule(a);
+	Assert.assertEquals(wheel.size(), 1);
+
+	List<FirstLevelCacheEntry> expired = new ArrayList<FirstLevelCacheEntry>();
+	wheel.advance(TimeUnit.SECONDS.toNanos(20), expired);
+	Assert.assertEquals(expired.size(), 1);
+	Assert.assertSame(expired.get(0), b);
+    }
+
+    private static FirstLevelCacheEntry entry(String key, TimeUnit unit,
+	    long duration) {
+	return new FirstLevelCacheEntry(key, "v", unit.toNanos(duration));
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache.eviction;
+
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test(groups = "unit")
+public class WeigherUnitTestNG {
+
+    public void testSerializedSize() {
+	SerializedSizeWeigher weigher = new SerializedSizeWeigher();
+	Assert.assertTrue(weigher.weigh("abcd") > weigher.weigh("ab"));
+	Assert.assertEquals(weigher.weigh(new byte[100]) - weigher
+		.weigh(new byte[0]), 100);
+
+	ArrayList<String> small = new ArrayList<String>(Arrays.asList("a"));
+	ArrayList<String> large = new ArrayList<String>();
+	for (int i = 0; i < 100; i++) {
+	    large.add("value" + i);
+	}
+	Assert.assertTrue(weigher.weigh(large) > weigher.weigh(small) + 500);
+    }
+
+    public void testUnserializable() {
+	SerializedSizeWeigher weigher = new SerializedSizeWeigher();
+	Assert.assertEquals(weigher.weigh(new Failing()),
+		SerializedSizeWeigher.DEFAULT_WEIGHT);
+    }
+
+    private static final class Failing implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private void writeObject(ObjectOutputStream out) {
+	    throw new ConcurrentModificationException();
+	}
+    }
+
+    public void testClassRegistry() {
+	ClassRegistryWeigher weigher = new ClassRegistryWeigher();
+	weigher.register(Number.class, new Weigher() {
+
+	    @Override
+	    public int weigh(Serializable value) {
+		return 7;
+	    }
+	});
+	Assert.assertEquals(weigher.weigh(Integer.valueOf(1)), 7);
+	Assert.assertEquals(weigher.weigh("ab"), new SerializedSizeWeigher()
+		.weigh("ab"));
+    }
+
+    public void testWeightedEviction() {
+	WindowTinyLfuEvictionPolicy policy = new WindowTinyLfuEvictionPolicy();
+	policy.setMaximum(1000);
+	FirstLevelCacheEntry heavy = new FirstLevelCacheEntry("heavy", "v", 0,
+		900);
+	policy.onInsert(heavy);
+	for (int i = 0; i < 10; i++) {
+	    policy.onInsert(new FirstLevelCacheEntry("light" + i, "v", 0, 10));
+	}
+	Assert.assertEquals(policy.weightedSize(), 1000);
+	policy.onInsert(new FirstLevelCacheEntry("light", "v", 0, 10));
+	while (policy.weightedSize() > 1000) {
+	    policy.evict();
+	}
+	Assert.assertTrue(policy.weightedSize() <= 1000);
+    }
+}
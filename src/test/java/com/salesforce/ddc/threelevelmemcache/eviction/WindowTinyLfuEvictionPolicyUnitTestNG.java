@@ -0,0 +1,118 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache.eviction;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test(groups = "unit")
+public class WindowTinyLfuEvictionPolicyUnitTestNG {
+
+    public void testSketch() {
+	FrequencySketch sketch = new FrequencySketch(100);
+	int hash = "a".hashCode();
+	Assert.assertEquals(sketch.frequency(hash), 0);
+	for (int i = 0; i < 5; i++) {
+	    sketch.increment(hash);
+	}
+	Assert.assertEquals(sketch.frequency(hash), 5);
+	for (int i = 0; i < 100; i++) {
+	    sketch.increment(hash);
+	}
+	// 4-bit counters
+	Assert.assertEquals(sketch.frequency(hash), 15);
+    }
+
+    public void testSketchReset() {
+	FrequencySketch sketch = new FrequencySketch(10);
+	int hash = "hot".hashCode();
+	for (int i = 0; i < 8; i++) {
+	    sketch.increment(hash);
+	}
+	// sample size is 10 * maximum, fill it with other items
+	for (int i = 0; i < 100; i++) {
+	    sketch.increment(("cold" + i).hashCode());
+	}
+	Assert.assertTrue(sketch.frequency(hash) < 8);
+    }
+
+    public void testOneHitWondersAreNotAdmitted() {
+	WindowTinyLfuEvictionPolicy policy = new WindowTinyLfuEvictionPolicy();
+	policy.setMaximum(100);
+	FirstLevelCacheEntry[] hot = new FirstLevelCacheEntry[99];
+	for (int i = 0; i < hot.length; i++) {
+	    hot[i] = new FirstLevelCacheEntry("hot" + i, "v");
+	    policy.onInsert(hot[i]);
+	    policy.onAccess(hot[i]);
+	    policy.onAccess(hot[i]);
+	}
+	policy.onInsert(new FirstLevelCacheEntry("scan", "v"));
+	for (int i = 0; i < 1000; i++) {
+	    if (i % 100 == 0) {
+		// the hot set keeps being read while the scan goes on
+		for (FirstLevelCacheEntry entry : hot) {
+		    policy.onAccess(entry);
+		}
+	    }
+	    policy.onInsert(new FirstLevelCacheEntry("scan" + i, "v"));
+	    FirstLevelCacheEntry victim = policy.evict();
+	    Assert.assertTrue(victim.getKey().startsWith("scan"),
+		    "hot entry evicted:" + victim);
+	    Assert.assertEquals(victim.getQueue(),
+		    FirstLevelCacheEntry.QUEUE_NONE);
+	}
+	Assert.assertEquals(policy.windowSize() + policy.probationSize()
+		+ policy.protectedSize(), 100);
+    }
+
+    public void testRemove() {
+	WindowTinyLfuEvictionPolicy policy = new WindowTinyLfuEvictionPolicy();
+	policy.setMaximum(10);
+	FirstLevelCacheEntry a = new FirstLevelCacheEntry("a", "v");
+	FirstLevelCacheEntry b = new FirstLevelCacheEntry("b", "v");
+	policy.onInsert(a);
+	policy.onInsert(b);
+	policy.onRemove(a);
+	Assert.assertEquals(a.getQueue(), FirstLevelCacheEntry.QUEUE_NONE);
+	// removing twice or removing an unknown entry is a no-op
+	policy.onRemove(a);
+	policy.onRemove(new FirstLevelCacheEntry("c", "v"));
+	Assert.assertSame(policy.evict(), b);
+	Assert.assertNull(policy.evict());
+    }
+
+    public void testFifo() {
+	FifoEvictionPolicy policy = new FifoEvictionPolicy();
+	FirstLevelCacheEntry a = new FirstLevelCacheEntry("a", "v");
+	FirstLevelCacheEntry b = new FirstLevelCacheEntry("b", "v");
+	policy.onInsert(a);
+	policy.onInsert(b);
+	policy.onAccess(a);
+	Assert.assertSame(policy.evict(), a);
+	Assert.assertSame(policy.evict(), b);
+	Assert.assertNull(policy.evict());
+    }
+}
@@ -0,0 +1,59 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache.exposed;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.salesforce.ddc.threelevelmemcache.exposed.util.SHAKey;
+
+@Test(groups = "unit")
+public class CacheKeyUnitTestNG {
+
+    public void testDerivedForms() {
+	CacheKey key = CacheKey.of(42);
+	Assert.assertEquals(key.getKey(), 42);
+	Assert.assertEquals(key.toString(), "42");
+	Assert.assertEquals(key.getSha(), SHAKey.sha("42"));
+	Assert.assertSame(key.getSha(), key.getSha());
+	Assert.assertSame(CacheKey.of(key), key);
+	Assert.assertNull(CacheKey.of((Object) null));
+    }
+
+    public void testEquality() {
+	Assert.assertEquals(CacheKey.of(42), CacheKey.of("42"));
+	Assert.assertEquals(CacheKey.of(42).hashCode(), CacheKey.of("42")
+		.hashCode());
+	Assert.assertFalse(CacheKey.of("a").equals("a"));
+
+	List<Object> keys = CacheKey.of(Arrays.asList("a", "b"));
+	Assert.assertEquals(keys,
+		Arrays.asList(CacheKey.of("a"), CacheKey.of("b")));
+    }
+}
@@ -25,10 +25,17 @@
  */
 package com.salesforce.ddc.threelevelmemcache.exposed;
 
+import java.util.Random;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import com.salesforce.ddc.threelevelmemcache.exposed.util.KeyEncoding;
+import com.salesforce.ddc.threelevelmemcache.exposed.util.KeyFormat;
+import com.salesforce.ddc.threelevelmemcache.exposed.util.KeyHash;
 import com.salesforce.ddc.threelevelmemcache.exposed.util.SHAKey;
 
 /**
@@ -45,4 +52,96 @@ public class SHAKeyUnitTestNG {
 	Assert.assertEquals(SHAKey.sha(null), null);
 
     }
+
+    public void testSHAOfAnyString() throws Exception {
+	Random random = new Random(7);
+	StringBuilder key = new StringBuilder();
+	for (int i = 0; i < 500; i++) {
+	    key.setLength(0);
+	    int length = i < 490 ? random.nextInt(64) : 5000 + i;
+	    for (int j = 0; j < length; j++) {
+		// ascii, two and three byte chars, surrogates paired or not
+		key.append((char) (random.nextBoolean() ? random.nextInt(0x80)
+			: random.nextInt(0x10000)));
+	    }
+	    String data = key.toString();
+	    Assert.assertEquals(SHAKey.sha(data),
+		    DigestUtils.shaHex(data.getBytes("UTF-8")), "key " + i);
+	}
+	Assert.assertEquals(SHAKey.sha("\ud83d\ude00"),
+		DigestUtils.shaHex("\ud83d\ude00".getBytes("UTF-8")));
+    }
+
+    public void testMurmur3() {
+	Assert.assertEquals(SHAKey.hash("", KeyHash.MURMUR3_128),
+		"00000000000000000000000000000000");
+	Assert.assertEquals(SHAKey.hash("hell", KeyHash.MURMUR3_128),
+		"67f8103e694299624753ebba820bdb92");
+	Assert.assertEquals(SHAKey.hash(
+		"The quick brown fox jumps over the lazy dog",
+		KeyHash.MURMUR3_128), "6c1b07bc7bbc4be347939ac4a93c437a");
+	Assert.assertEquals(SHAKey.hash("some", KeyHash.SHA1),
+		SHAKey.sha("some"));
+	Assert.assertNull(SHAKey.hash(null, KeyHash.MURMUR3_128));
+    }
+
+    public void testBase64Url() throws Exception {
+	for (String data : new String[] { "", "some", "\u00e9t\u00e9" }) {
+	    String sha = SHAKey.hash(data, KeyHash.SHA1, KeyEncoding.BASE64URL,
+		    "");
+	    Assert.assertEquals(sha,
+		    Base64.encodeBase64URLSafeString(DigestUtils.sha(data)));
+	    Assert.assertEquals(sha.length(), 27);
+	    String murmur = SHAKey.hash(data, KeyHash.MURMUR3_128,
+		    KeyEncoding.BASE64URL, "");
+	    Assert.assertEquals(murmur, Base64.encodeBase64URLSafeString(Hex
+		    .decodeHex(SHAKey.hash(data, KeyHash.MURMUR3_128)
+			    .toCharArray())));
+	    Assert.assertEquals(murmur.length(), 22);
+	}
+    }
+
+    public void testNamespace() {
+	Assert.assertEquals(SHAKey.hash("some", KeyHash.SHA1, KeyEncoding.HEX,
+		"app1:"), "app1:" + SHAKey.sha("some"));
+	KeyFormat format = KeyFormat.DEFAULT.withEncoding(KeyEncoding.BASE64URL)
+		.withNamespace("a-very-long-namespace-which-outgrows-the-buffer:");
+	Assert.assertEquals(format.format("some"),
+		"a-very-long-namespace-which-outgrows-the-buffer:"
+			+ SHAKey.hash("some", KeyHash.SHA1,
+				KeyEncoding.BASE64URL, ""));
+	Assert.assertEquals(KeyFormat.DEFAULT.format("some"),
+		SHAKey.sha("some"));
+	Assert.assertNull(format.format(null));
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testNoFallbackWithoutNamespace() {
+	SHAKey.hash("some", KeyHash.SHA1, KeyEncoding.HEX, null);
+    }
+
+    public void testHashAfterFailure() {
+	String expected = SHAKey.hash("some", KeyHash.MURMUR3_128,
+		KeyEncoding.BASE64URL, "ns:");
+	try {
+	    SHAKey.hash("some", KeyHash.MURMUR3_128, KeyEncoding.BASE64URL,
+		    null);
+	    Assert.fail("null namespace must not fall back");
+	} catch (IllegalStateException e) {
+	    // expected
+	}
+	Assert.assertEquals(SHAKey.hash("some", KeyHash.MURMUR3_128,
+		KeyEncoding.BASE64URL, "ns:"), expected);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testNamespaceWithSpace() {
+	KeyFormat.DEFAULT.withNamespace("my app");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testNamespaceTooLong() {
+	KeyFormat.DEFAULT.withNamespace(new String(new char[201]).replace(
+		'\0', 'a'));
+    }
 }
@@ -0,0 +1,173 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache.exposed.trace;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.salesforce.ddc.threelevelmemcache.eviction.Weigher;
+
+@Test(groups = "unit")
+public class TraceRecordingCacheListenerUnitTestNG {
+
+    public void testRoundTrip() throws Exception {
+	File file = File.createTempFile("cache", ".trace");
+	file.deleteOnExit();
+	long start = System.currentTimeMillis();
+	TraceRecordingCacheListener listener = new TraceRecordingCacheListener(
+		file.getPath());
+	listener.get("a");
+	listener.put("a", new byte[300]);
+	Thread.sleep(5);
+	listener.append("b", "1,2");
+	listener.remove("a");
+	listener.close();
+	Assert.assertFalse(listener.isRecording());
+	Assert.assertEquals(listener.getRecorded(), 4);
+	Assert.assertEquals(listener.getDropped(), 0);
+	Assert.assertEquals(listener.getBytes(), file.length());
+	// ignored once closed
+	listener.get("a");
+
+	TraceReader reader = new TraceReader(file);
+	try {
+	    Assert.assertTrue(reader.getStartMillis() >= start);
+	    Assert.assertTrue(reader.next());
+	    Assert.assertEquals(reader.getOperation(), TraceOperation.GET);
+	    long a = reader.getKeyHash();
+	    Assert.assertEquals(a, TraceRecordingCacheListener.hash("a"));
+	    Assert.assertEquals(reader.getValueSize(), -1);
+	    Assert.assertTrue(reader.next());
+	    Assert.assertEquals(reader.getOperation(), TraceOperation.PUT);
+	    Assert.assertEquals(reader.getKeyHash(), a);
+	    Assert.assertEquals(reader.getValueSize(), 316);
+	    long putMicros = reader.getTimeMicros();
+	    Assert.assertTrue(reader.next());
+	    Assert.assertEquals(reader.getOperation(), TraceOperation.APPEND);
+	    Assert.assertFalse(reader.getKeyHash() == a);
+	    Assert.assertEquals(reader.getValueSize(), 46);
+	    Assert.assertTrue(reader.getTimeMicros() - putMicros >= 5000);
+	    Assert.assertTrue(reader.next());
+	    Assert.assertEquals(reader.getOperation(), TraceOperation.REMOVE);
+	    Assert.assertEquals(reader.getKeyHash(), a);
+	    Assert.assertFalse(reader.next());
+	} finally {
+	    reader.close();
+	}
+    }
+
+    public void testMaxBytes() throws Exception {
+	File file = File.createTempFile("cache", ".trace");
+	file.deleteOnExit();
+	TraceRecordingCacheListener listener = new TraceRecordingCacheListener(
+		file.getPath());
+	listener.setMaxBytes(100);
+	for (int i = 0; i < 1000 && listener.isRecording(); i++) {
+	    listener.get("key" + i);
+	    Thread.sleep(1);
+	}
+	listener.close();
+	Assert.assertTrue(listener.getRecorded() < 1000);
+	Assert.assertTrue(file.length() < 100 + 1024 * 20);
+    }
+
+    public void testFailingWeigher() throws Exception {
+	File file = File.createTempFile("cache", ".trace");
+	file.deleteOnExit();
+	TraceRecordingCacheListener listener = new TraceRecordingCacheListener(
+		file.getPath());
+	listener.setWeigher(new Weigher() {
+
+	    @Override
+	    public int weigh(Serializable value) {
+		if ("changing".equals(value)) {
+		    throw new ConcurrentModificationException();
+		}
+		return 7;
+	    }
+	});
+	listener.put("a", "changing");
+	listener.put("b", "v");
+	listener.close();
+	Assert.assertEquals(listener.getRecorded(), 2);
+
+	TraceReader reader = new TraceReader(file);
+	try {
+	    Assert.assertTrue(reader.next());
+	    Assert.assertEquals(reader.getValueSize(), 0);
+	    Assert.assertTrue(reader.next());
+	    Assert.assertEquals(reader.getValueSize(), 7);
+	} finally {
+	    reader.close();
+	}
+    }
+
+    public void testDefaultWeigher() throws Exception {
+	File file = File.createTempFile("cache", ".trace");
+	file.deleteOnExit();
+	TraceRecordingCacheListener listener = new TraceRecordingCacheListener(
+		file.getPath());
+	// not serialized on the caller thread
+	listener.put("a", new ArrayList<String>(Arrays.asList("1", "2")));
+	listener.put("b", Long.valueOf(1));
+	listener.close();
+
+	TraceReader reader = new TraceReader(file);
+	try {
+	    Assert.assertTrue(reader.next());
+	    Assert.assertEquals(reader.getValueSize(),
+		    TraceRecordingCacheListener.DEFAULT_VALUE_SIZE);
+	    Assert.assertTrue(reader.next());
+	    Assert.assertEquals(reader.getValueSize(), 16);
+	} finally {
+	    reader.close();
+	}
+    }
+
+    public void testUnwritableFile() {
+	TraceRecordingCacheListener listener = new TraceRecordingCacheListener(
+		new File(new File("no such directory"), "cache.trace")
+			.getPath());
+	Assert.assertFalse(listener.isRecording());
+	listener.get("a");
+	listener.close();
+	Assert.assertEquals(listener.getRecorded(), 0);
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testNotATrace() throws Exception {
+	File file = File.createTempFile("cache", ".trace");
+	file.deleteOnExit();
+	new TraceReader(file);
+    }
+}
@@ -0,0 +1,321 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache.exposed.transcoder;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.SerializingTranscoder;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test(groups = "unit")
+public class CompactTranscoderUnitTestNG {
+
+    public void testSerializer() {
+	CompactTranscoder transcoder = transcoder();
+	Account account = new Account(42L, "acme");
+	CachedData data = transcoder.encode(account);
+	Assert.assertEquals(data.getFlags(), CompactTranscoder.COMPACT);
+	Assert.assertEquals(transcoder.decode(data), account);
+	Assert.assertTrue(data.getData().length < new SerializingTranscoder()
+		.encode(account).getData().length / 4);
+    }
+
+    public void testExternalizable() {
+	CompactTranscoder transcoder = transcoder();
+	Contact contact = new Contact();
+	contact.account = new Account(1L, "acme");
+	contact.attributes.put("since", new Date(0));
+	contact.attributes.put("tags", new ArrayList<Object>(Arrays.asList(
+		"a", 1, 2L, true, 0.5d, null, new byte[] { 1, 2 })));
+	CachedData data = transcoder.encode(contact);
+	Assert.assertEquals(data.getFlags(), CompactTranscoder.COMPACT);
+	Contact decoded = (Contact) transcoder.decode(data);
+	Assert.assertEquals(decoded.account, contact.account);
+	Assert.assertEquals(decoded.attributes.get("since"), new Date(0));
+	ArrayList<?> tags = (ArrayList<?>) decoded.attributes.get("tags");
+	Assert.assertEquals(tags.subList(0, 6),
+		Arrays.asList("a", 1, 2L, true, 0.5d, null));
+	Assert.assertEquals((byte[]) tags.get(6), new byte[] { 1, 2 });
+    }
+
+    public void testLegacyValues() {
+	CompactTranscoder transcoder = transcoder();
+	Account account = new Account(42L, "acme");
+	// written before the class was registered
+	Assert.assertEquals(transcoder.decode(new SerializingTranscoder()
+		.encode(account)), account);
+	// not registered
+	Date date = new Date(7);
+	CachedData data = transcoder.encode(date);
+	Assert.assertEquals(data.getFlags() & CompactTranscoder.COMPACT, 0);
+	Assert.assertEquals(transcoder.decode(data), date);
+	Assert.assertEquals(transcoder.decode(transcoder.encode("text")),
+		"text");
+    }
+
+    public void testCompactWritesOff() {
+	CompactTranscoder writer = transcoder();
+	CachedData compact = writer.encode(new Account(42L, "acme"));
+	writer.setCompactWrites(false);
+	CachedData data = writer.encode(new Account(42L, "acme"));
+	Assert.assertEquals(data.getFlags() & CompactTranscoder.COMPACT, 0);
+	Assert.assertEquals(writer.decode(data), new Account(42L, "acme"));
+	Assert.assertEquals(writer.decode(compact), new Account(42L, "acme"));
+    }
+
+    public void testUndecodable() {
+	CachedData data = transcoder().encode(new Account(42L, "acme"));
+	// the reader does not know the class
+	Assert.assertNull(new CompactTranscoder().decode(data));
+	byte[] bytes = data.getData().clone();
+	bytes[0] = CompactTranscoder.VERSION + 1;
+	Assert.assertNull(transcoder().decode(
+		new CachedData(data.getFlags(), bytes, CachedData.MAX_SIZE)));
+	// truncated
+	Assert.assertNull(transcoder().decode(
+		new CachedData(data.getFlags(), Arrays.copyOf(data.getData(),
+			data.getData().length - 1), CachedData.MAX_SIZE)));
+    }
+
+    public void testCompression() {
+	CompactTranscoder transcoder = transcoder();
+	transcoder.setCompressionThreshold(100);
+	char[] name = new char[1000];
+	Arrays.fill(name, 'a');
+	Account account = new Account(42L, new String(name));
+	CachedData data = transcoder.encode(account);
+	Assert.assertEquals(data.getFlags(), CompactTranscoder.COMPACT
+		| CompactTranscoder.COMPRESSED);
+	Assert.assertTrue(data.getData().length < 100);
+	Assert.assertEquals(transcoder.decode(data), account);
+    }
+
+    public void testCodecs() {
+	CompactTranscoder transcoder = transcoder();
+	CompressionPolicy policy = new CompressionPolicy();
+	policy.setCodec(BuiltInCodec.LZ4);
+	policy.setMinBytes(100);
+	transcoder.setCompression(policy);
+	char[] name = new char[1000];
+	Arrays.fill(name, 'a');
+	Account account = new Account(42L, new String(name));
+	CachedData data = transcoder.encode(account);
+	Assert.assertEquals(data.getFlags(), CompactTranscoder.COMPACT
+		| LZ4Codec.ID << 16);
+	Assert.assertTrue(data.getData().length < 100);
+	Assert.assertEquals(transcoder.decode(data), account);
+
+	// unregistered classes and strings too, small values are not
+	String text = new String(name);
+	data = transcoder.encode(text);
+	Assert.assertEquals(data.getFlags(), LZ4Codec.ID << 16);
+	Assert.assertEquals(transcoder.decode(data), text);
+	Assert.assertEquals(transcoder.encode("a").getFlags(), 0);
+
+	// any transcoder reads the built-in codecs
+	Assert.assertEquals(new CompactTranscoder().decode(data), text);
+	// and the gzipped values
+	SerializingTranscoder gzip = new SerializingTranscoder();
+	gzip.setCompressionThreshold(100);
+	Assert.assertEquals(transcoder.decode(gzip.encode(text)), text);
+    }
+
+    public void testCustomCodec() {
+	CompressionCodec reversed = new CompressionCodec() {
+
+	    @Override
+	    public int getId() {
+		return 9;
+	    }
+
+	    @Override
+	    public byte[] compress(byte[] data) {
+		byte[] compressed = BuiltInCodec.DEFLATE.compress(data);
+		for (int i = 0; i < compressed.length; i++) {
+		    compressed[i] = (byte) ~compressed[i];
+		}
+		return compressed;
+	    }
+
+	    @Override
+	    public byte[] decompress(byte[] data) throws IOException {
+		byte[] compressed = data.clone();
+		for (int i = 0; i < compressed.length; i++) {
+		    compressed[i] = (byte) ~compressed[i];
+		}
+		return BuiltInCodec.DEFLATE.decompress(compressed);
+	    }
+	};
+	CompactTranscoder transcoder = transcoder();
+	CompressionPolicy policy = new CompressionPolicy();
+	policy.register(Account.class, reversed);
+	policy.setSizeBands(Collections.singletonMap(0, BuiltInCodec.LZ4));
+	transcoder.setCompression(policy);
+	char[] name = new char[1000];
+	Arrays.fill(name, 'a');
+	Account account = new Account(42L, new String(name));
+	CachedData data = transcoder.encode(account);
+	Assert.assertEquals(data.getFlags() & CompactTranscoder.CODEC_MASK,
+		9 << 16);
+	Assert.assertEquals(transcoder.decode(data), account);
+	// unknown to this reader, a miss
+	Assert.assertNull(new CompactTranscoder().decode(data));
+	try {
+	    new CompactTranscoder().register(new CompressionCodec() {
+
+		@Override
+		public int getId() {
+		    return LZ4Codec.ID;
+		}
+
+		@Override
+		public byte[] compress(byte[] data) {
+		    return data;
+		}
+
+		@Override
+		public byte[] decompress(byte[] data) {
+		    return data;
+		}
+	    });
+	    Assert.fail("id of a built-in codec");
+	} catch (IllegalArgumentException e) {
+	    // expected
+	}
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testIdReused() {
+	transcoder().register(1, Contact.class);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testClassRegisteredTwice() {
+	transcoder().register(3, Contact.class);
+    }
+
+    public void testSpringSetters() {
+	CompactTranscoder transcoder = new CompactTranscoder();
+	Map<Integer, ValueSerializer<?>> serializers = new HashMap<Integer, ValueSerializer<?>>();
+	serializers.put(1, new AccountSerializer());
+	transcoder.setSerializers(serializers);
+	Map<Integer, Class<?>> externalizables = new HashMap<Integer, Class<?>>();
+	externalizables.put(2, Contact.class);
+	transcoder.setExternalizables(externalizables);
+	Assert.assertEquals(transcoder.encode(new Contact()).getFlags(),
+		CompactTranscoder.COMPACT);
+	externalizables.put(3, Account.class);
+	try {
+	    transcoder.setExternalizables(externalizables);
+	    Assert.fail("Account is not Externalizable");
+	} catch (IllegalArgumentException e) {
+	    // expected
+	}
+    }
+
+    private static CompactTranscoder transcoder() {
+	CompactTranscoder transcoder = new CompactTranscoder();
+	transcoder.register(1, new AccountSerializer());
+	transcoder.register(2, Contact.class);
+	return transcoder;
+    }
+
+    static class Account implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	final long id;
+	final String name;
+
+	Account(long id, String name) {
+	    this.id = id;
+	    this.name = name;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+	    return obj instanceof Account && ((Account) obj).id == id
+		    && ((Account) obj).name.equals(name);
+	}
+
+	@Override
+	public int hashCode() {
+	    return (int) id;
+	}
+    }
+
+    static class AccountSerializer implements ValueSerializer<Account> {
+
+	@Override
+	public Class<Account> getType() {
+	    return Account.class;
+	}
+
+	@Override
+	public void write(Account value, ObjectOutput out) throws IOException {
+	    out.writeLong(value.id);
+	    out.writeUTF(value.name);
+	}
+
+	@Override
+	public Account read(ObjectInput in) throws IOException {
+	    return new Account(in.readLong(), in.readUTF());
+	}
+    }
+
+    public static class Contact implements Externalizable {
+
+	Account account;
+	HashMap<String, Object> attributes = new HashMap<String, Object>();
+
+	@Override
+	public void writeExternal(ObjectOutput out) throws IOException {
+	    out.writeObject(account);
+	    out.writeObject(attributes);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public void readExternal(ObjectInput in) throws IOException,
+		ClassNotFoundException {
+	    account = (Account) in.readObject();
+	    attributes = (HashMap<String, Object>) in.readObject();
+	}
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache.exposed.transcoder;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test(groups = "unit")
+public class CompressionCodecUnitTestNG {
+
+    public void testRoundTrip() throws Exception {
+	Random random = new Random(3);
+	for (BuiltInCodec codec : BuiltInCodec.values()) {
+	    for (int size : new int[] { 0, 1, 12, 13, 17, 100, 4096, 70000,
+		    300000 }) {
+		byte[] text = text(random, size);
+		Assert.assertEquals(codec.decompress(codec.compress(text)),
+			text, codec + " " + size);
+		byte[] noise = new byte[size];
+		random.nextBytes(noise);
+		Assert.assertEquals(codec.decompress(codec.compress(noise)),
+			noise, codec + " " + size);
+	    }
+	}
+    }
+
+    public void testRatio() {
+	byte[] text = text(new Random(5), 100000);
+	int lz4 = BuiltInCodec.LZ4.compress(text).length;
+	int deflate = BuiltInCodec.DEFLATE.compress(text).length;
+	Assert.assertTrue(lz4 < text.length / 2, "lz4 " + lz4);
+	Assert.assertTrue(deflate < lz4, "deflate " + deflate);
+	int best = BuiltInCodec.DEFLATE_BEST.compress(text).length;
+	Assert.assertTrue(best <= BuiltInCodec.DEFLATE_FAST.compress(text).length);
+	byte[] zeros = new byte[100000];
+	Assert.assertTrue(BuiltInCodec.LZ4.compress(zeros).length < 500);
+    }
+
+    public void testLZ4Block() throws Exception {
+	// "abc" literals, a match of 9 at offset 3, "abcab" literals
+	byte[] block = { 17, 0, 0, 0, 0x35, 'a', 'b', 'c', 3, 0, 0x50, 'a',
+		'b', 'c', 'a', 'b' };
+	Assert.assertEquals(new String(BuiltInCodec.LZ4.decompress(block),
+		"US-ASCII"), "abcabcabcabcabcab");
+    }
+
+    public void testCorrupt() {
+	byte[] text = text(new Random(7), 10000);
+	for (BuiltInCodec codec : new BuiltInCodec[] { BuiltInCodec.LZ4,
+		BuiltInCodec.DEFLATE }) {
+	    byte[] compressed = codec.compress(text);
+	    assertCorrupt(codec, Arrays.copyOf(compressed,
+		    compressed.length / 2));
+	    assertCorrupt(codec, new byte[] { 1, 2, 3 });
+	}
+	// claims more than a byte can expand to
+	assertCorrupt(BuiltInCodec.LZ4, new byte[] { 0, 0, 0, 1, 0 });
+	// match before the start
+	assertCorrupt(BuiltInCodec.LZ4, new byte[] { 8, 0, 0, 0, 0x10, 'a', 5,
+		0, 0x10, 'a' });
+    }
+
+    private static void assertCorrupt(BuiltInCodec codec, byte[] data) {
+	try {
+	    codec.decompress(data);
+	    Assert.fail(codec + " decompressed corrupt data");
+	} catch (IOException e) {
+	    // expected
+	}
+    }
+
+    /**
+     * @return words of a small vocabulary, compressible like serialized
+     *         objects
+     */
+    static byte[] text(Random random, int size) {
+	String[] words = { "account", "contact", "id", "name", "owner",
+		"created", "2013-01-01", "true", "false", "null", "value" };
+	StringBuilder text = new StringBuilder(size + 16);
+	while (text.length() < size) {
+	    text.append(words[random.nextInt(words.length)]).append(
+		    random.nextInt(100)).append(' ');
+	}
+	text.setLength(size);
+	return text.toString().getBytes();
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache.exposed.transcoder;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test(groups = "unit")
+public class CompressionPolicyUnitTestNG {
+
+    public void testSizeBands() {
+	CompressionPolicy policy = new CompressionPolicy();
+	Assert.assertFalse(policy.isEnabled());
+	Assert.assertNull(policy.select(String.class, 1 << 20));
+	policy.setCodec(BuiltInCodec.LZ4);
+	policy.setMinBytes(1000);
+	Map<Integer, CompressionCodec> bands = new HashMap<Integer, CompressionCodec>();
+	bands.put(100000, BuiltInCodec.DEFLATE);
+	policy.setSizeBands(bands);
+	Assert.assertTrue(policy.isEnabled());
+	Assert.assertNull(policy.select(String.class, 999));
+	Assert.assertEquals(policy.select(String.class, 1000),
+		BuiltInCodec.LZ4);
+	Assert.assertEquals(policy.select(String.class, 99999),
+		BuiltInCodec.LZ4);
+	Assert.assertEquals(policy.select(String.class, 100000),
+		BuiltInCodec.DEFLATE);
+    }
+
+    public void testClassCodecs() {
+	CompressionPolicy policy = new CompressionPolicy();
+	policy.setCodec(BuiltInCodec.LZ4);
+	policy.setMinBytes(1000);
+	policy.register(Date.class, BuiltInCodec.DEFLATE_BEST);
+	Assert.assertEquals(policy.select(java.sql.Date.class, 1000),
+		BuiltInCodec.DEFLATE_BEST);
+	Assert.assertNull(policy.select(Date.class, 999));
+	Assert.assertEquals(policy.select(String.class, 1000),
+		BuiltInCodec.LZ4);
+	Assert.assertTrue(policy.getCodecs().contains(
+		BuiltInCodec.DEFLATE_BEST));
+    }
+
+    public void testPoorRatioSkipped() {
+	CompressionPolicy policy = new CompressionPolicy();
+	policy.setCodec(BuiltInCodec.LZ4);
+	policy.setMinBytes(0);
+	for (int i = 0; i < CompressionPolicy.MIN_SAMPLES; i++) {
+	    Assert.assertNotNull(policy.select(byte[].class, 1000));
+	    policy.record(byte[].class, 1000, 990);
+	    policy.record(String.class, 1000, 300);
+	}
+	Assert.assertEquals(policy.getRatio(byte[].class), 0.99, 0.001);
+	int compressed = 0;
+	for (int i = 0; i < 10 * CompressionPolicy.PROBE_INTERVAL; i++) {
+	    if (policy.select(byte[].class, 1000) != null) {
+		compressed++;
+	    }
+	}
+	// probes only
+	Assert.assertEquals(compressed, 10);
+	Assert.assertNotNull(policy.select(String.class, 1000));
+
+	// the ratio improves, the class is compressed again
+	for (int i = 0; i < CompressionPolicy.MIN_SAMPLES; i++) {
+	    policy.record(byte[].class, 1000, 100);
+	}
+	Assert.assertNotNull(policy.select(byte[].class, 1000));
+    }
+}
@@ -0,0 +1,64 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache.offheap;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test(groups = "unit")
+public class SlabAllocatorUnitTestNG {
+
+    public void testSlabClass() {
+	SlabAllocator allocator = new SlabAllocator(4096, 1024, 2);
+	Assert.assertEquals(allocator.chunkSize(allocator.slabClass(1)), 64);
+	Assert.assertEquals(allocator.chunkSize(allocator.slabClass(64)), 64);
+	Assert.assertEquals(allocator.chunkSize(allocator.slabClass(65)), 128);
+	Assert.assertEquals(allocator.chunkSize(allocator.slabClass(513)), 1024);
+	Assert.assertEquals(allocator.slabClass(1025), -1);
+    }
+
+    public void testAllocate() {
+	SlabAllocator allocator = new SlabAllocator(2048, 1024, 2);
+	int slabClass = allocator.slabClass(512);
+	long first = allocator.allocate(slabClass);
+	long second = allocator.allocate(slabClass);
+	long third = allocator.allocate(slabClass);
+	long fourth = allocator.allocate(slabClass);
+	Assert.assertTrue(first >= 0 && second >= 0 && third >= 0
+		&& fourth >= 0);
+	// both slabs are taken
+	Assert.assertEquals(allocator.allocate(slabClass), -1);
+	Assert.assertEquals(allocator.allocate(allocator.slabClass(10)), -1);
+	Assert.assertEquals(allocator.reservedBytes(), 2048);
+
+	byte[] data = new byte[] { 1, 2, 3 };
+	allocator.write(second, data);
+	Assert.assertEquals(allocator.read(second, 3), data);
+
+	allocator.free(first);
+	Assert.assertEquals(allocator.allocate(slabClass), first);
+    }
+}
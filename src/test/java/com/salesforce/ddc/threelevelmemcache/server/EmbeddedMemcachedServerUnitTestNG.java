@@ -0,0 +1,184 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ddc.threelevelmemcache.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@Test(groups = "unit")
+public class EmbeddedMemcachedServerUnitTestNG {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private EmbeddedMemcachedServer server;
+    private Socket socket;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+	server = new EmbeddedMemcachedServer();
+	server.start();
+	socket = new Socket("127.0.0.1", server.getPort());
+	socket.setSoTimeout(5000);
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+	socket.close();
+	server.shutdown();
+    }
+
+    public void testAsciiCommands() throws IOException {
+	Assert.assertEquals(send("get a\r\n", 1), "END\r\n");
+	Assert.assertEquals(send("set a 5 0 3\r\nabc\r\n", 1), "STORED\r\n");
+	Assert.assertEquals(send("add a 0 0 1\r\nx\r\n", 1),
+		"NOT_STORED\r\n");
+	Assert.assertEquals(send("append a 0 0 2\r\nde\r\n", 1),
+		"STORED\r\n");
+	Assert.assertEquals(send("get a b\r\n", 3),
+		"VALUE a 5 5\r\nabcde\r\nEND\r\n");
+	String gets = send("gets a\r\n", 3);
+	String cas = gets.substring(12, gets.indexOf("\r\n"));
+	Assert.assertEquals(send("cas a 0 0 1 " + cas + "1\r\nx\r\n", 1),
+		"EXISTS\r\n");
+	Assert.assertEquals(send("cas a 0 0 1 " + cas + "\r\nx\r\n", 1),
+		"STORED\r\n");
+	Assert.assertEquals(send("set n 0 0 2 noreply\r\n10\r\nincr n 5\r\n",
+		1), "15\r\n");
+	Assert.assertEquals(send("decr n 20\r\n", 1), "0\r\n");
+	Assert.assertEquals(send("incr a 1\r\n", 1),
+		"CLIENT_ERROR cannot increment or decrement non-numeric value\r\n");
+	Assert.assertEquals(send("delete a\r\n", 1), "DELETED\r\n");
+	Assert.assertEquals(send("delete a\r\n", 1), "NOT_FOUND\r\n");
+	Assert.assertEquals(server.size(), 1);
+	Assert.assertEquals(send("flush_all\r\n", 1), "OK\r\n");
+	Assert.assertEquals(server.size(), 0);
+	Assert.assertEquals(send("bogus\r\n", 1), "ERROR\r\n");
+	Assert.assertEquals(send("version\r\n", 1), "VERSION "
+		+ EmbeddedMemcachedServer.VERSION + "\r\n");
+    }
+
+    public void testMaxItemSize() throws IOException {
+	server.setMaxItemSize(4);
+	Assert.assertEquals(send("set a 0 0 5\r\nabcde\r\n", 1),
+		"SERVER_ERROR object too large for cache\r\n");
+	Assert.assertEquals(send("set a 0 0 4\r\nabcd\r\n", 1), "STORED\r\n");
+    }
+
+    public void testBinaryCommands() throws IOException {
+	OutputStream out = socket.getOutputStream();
+	DataInputStream in = new DataInputStream(socket.getInputStream());
+	ByteBuffer extras = ByteBuffer.allocate(8);
+	extras.putInt(7).putInt(0);
+	out.write(request(0x01, extras.array(), "k", "value", 1));
+	Assert.assertEquals(readResponse(in, 1).length, 0);
+	out.write(request(0x00, new byte[0], "k", "", 2));
+	byte[] body = readResponse(in, 2);
+	Assert.assertEquals(ByteBuffer.wrap(body).getInt(), 7);
+	Assert.assertEquals(new String(body, 4, body.length - 4, ASCII),
+		"value");
+	// the quiet get of a missing key is answered by the noop only
+	out.write(request(0x09, new byte[0], "missing", "", 3));
+	out.write(request(0x0a, new byte[0], "", "", 4));
+	Assert.assertEquals(readResponse(in, 4).length, 0);
+    }
+
+    public void testLatency() throws IOException {
+	server.setLatency(100);
+	long start = System.nanoTime();
+	Assert.assertEquals(send("get a\r\nget b\r\n", 2), "END\r\nEND\r\n");
+	Assert.assertTrue(System.nanoTime() - start >= 100L * 1000 * 1000);
+    }
+
+    public void testLossRate() throws IOException {
+	server.setLossRate(1);
+	socket.getOutputStream().write("get a\r\n".getBytes(ASCII));
+	Assert.assertEquals(socket.getInputStream().read(), -1);
+	Assert.assertEquals(server.getStats().get("lost_connections"), "1");
+    }
+
+    /**
+     * Sends the commands and reads as many response lines.
+     */
+    private String send(String commands, int lines) throws IOException {
+	socket.getOutputStream().write(commands.getBytes(ASCII));
+	InputStream in = socket.getInputStream();
+	ByteArrayOutputStream response = new ByteArrayOutputStream();
+	int previous = -1;
+	while (lines > 0) {
+	    int b = in.read();
+	    if (b < 0) {
+		break;
+	    }
+	    response.write(b);
+	    if (previous == '\r' && b == '\n') {
+		lines--;
+	    }
+	    previous = b;
+	}
+	return new String(response.toByteArray(), ASCII);
+    }
+
+    private static byte[] request(int opcode, byte[] extras, String key,
+	    String value, int opaque) {
+	byte[] keyBytes = key.getBytes(ASCII);
+	byte[] valueBytes = value.getBytes(ASCII);
+	int bodyLength = extras.length + keyBytes.length + valueBytes.length;
+	ByteBuffer request = ByteBuffer.allocate(24 + bodyLength);
+	request.put((byte) 0x80).put((byte) opcode)
+		.putShort((short) keyBytes.length).put((byte) extras.length)
+		.put((byte) 0).putShort((short) 0).putInt(bodyLength)
+		.putInt(opaque).putLong(0);
+	request.put(extras).put(keyBytes).put(valueBytes);
+	return request.array();
+    }
+
+    /**
+     * @return the body of a successful response
+     */
+    private static byte[] readResponse(DataInputStream in, int opaque)
+	    throws IOException {
+	byte[] header = new byte[24];
+	in.readFully(header);
+	ByteBuffer buffer = ByteBuffer.wrap(header);
+	Assert.assertEquals(buffer.get(0) & 0xff, 0x81);
+	Assert.assertEquals(buffer.getShort(6), 0);
+	Assert.assertEquals(buffer.getInt(12), opaque);
+	byte[] body = new byte[buffer.getInt(8)];
+	in.readFully(body);
+	return body;
+    }
+}